@@ -10,13 +10,21 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.util.concurrent.BlockingQueue;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 
 @Component
 @Slf4j
 public class FilesystemEventHandler {
 
+    // 每次从一个 folder 取出的最大事件数
+    private static final int BATCH_SIZE = 256;
+
+    @Value("${syncduo.server.system.eventHandlerThreads:4}")
+    private int HANDLER_THREADS;
+
     @Value("${syncduo.server.system.eventDebounceWindowSec:5}")
     private int DEBOUNCE_WINDOW;
 
@@ -24,51 +32,81 @@ public class FilesystemEventHandler {
 
     private final SystemManagementService systemManagementService;
 
-    private final BlockingQueue<FilesystemEvent> filesystemEventQueue;
+    private final FilesystemEventQueue filesystemEventQueue;
 
     @Autowired
     public FilesystemEventHandler(
             DebounceService debounceService,
             SystemManagementService systemManagementService,
-            FolderWatcher folderWatcher) {
+            FilesystemEventQueue filesystemEventQueue) {
         this.moduleDebounceService = debounceService.forModule(FilesystemEventHandler.class.getSimpleName());
         this.systemManagementService = systemManagementService;
-        this.filesystemEventQueue = folderWatcher.getFilesystemEventQueue();
+        this.filesystemEventQueue = filesystemEventQueue;
     }
 
     public void startHandle() {
-        // 起一个固定线程, 轮询 queue
-        new Thread(() -> {
-            log.info("Filesystem Event Handler Start");
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    // 从 queue 取 filesystem event
-                    FilesystemEvent filesystemEvent = this.filesystemEventQueue.take();
-                    log.debug("receive fileEvent: {}", filesystemEvent);
-                    // 错误的 filesystem event 过滤
-                    if (ObjectUtils.anyNull(
-                            filesystemEvent,
-                            filesystemEvent.getFolder(),
-                            filesystemEvent.getFile(),
-                            filesystemEvent.getFileEventTypeEnum())) {
-                        log.warn("receive invalid filesystem event: {}", filesystemEvent);
-                    }
-                    // 不处理删除事件, 过滤
-                    if (FileEventTypeEnum.FILE_DELETED.equals(filesystemEvent.getFileEventTypeEnum())) {
-                        log.debug("filtered fileEvent: {}", filesystemEvent);
-                        continue;
-                    }
-                    // DEBOUNCE_WINDOW 内同个文件没有新的事件, 则执行 copyFile
-                    this.moduleDebounceService.debounce(
-                            filesystemEvent.getFile().toAbsolutePath().toString(),
-                            () -> this.systemManagementService.copyFile(filesystemEvent),
-                            DEBOUNCE_WINDOW
-                    );
-                    log.debug("debounced fileEvent: {}", filesystemEvent);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt(); // good practice
+        // 固定数量的线程, 按 folder 轮转批量取出 event
+        for (int i = 0; i < Math.max(1, HANDLER_THREADS); i++) {
+            new Thread(this::handleLoop, "Filesystem-Event-Handler-" + i).start();
+        }
+    }
+
+    private void handleLoop() {
+        log.info("Filesystem Event Handler Start. thread is {}", Thread.currentThread().getName());
+        List<FilesystemEvent> batch = new ArrayList<>(BATCH_SIZE);
+        while (!Thread.currentThread().isInterrupted()) {
+            Path folder;
+            try {
+                // 从 queue 取一个 folder 的一批 filesystem event
+                folder = this.filesystemEventQueue.drainTo(batch, BATCH_SIZE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // good practice
+                return;
+            }
+            try {
+                for (FilesystemEvent filesystemEvent : batch) {
+                    this.handleEvent(filesystemEvent);
                 }
+            } catch (Exception e) {
+                log.error("handle filesystem event failed. folder is {}", folder, e);
+            } finally {
+                batch.clear();
+                this.filesystemEventQueue.complete(folder);
             }
-        }, "Filesystem-Event-Handler").start();
+        }
+    }
+
+    private void handleEvent(FilesystemEvent filesystemEvent) {
+        log.debug("receive fileEvent: {}", filesystemEvent);
+        // 错误的 filesystem event 过滤
+        if (ObjectUtils.anyNull(
+                filesystemEvent,
+                filesystemEvent.getFolder(),
+                filesystemEvent.getFile(),
+                filesystemEvent.getFileEventTypeEnum())) {
+            log.warn("receive invalid filesystem event: {}", filesystemEvent);
+            return;
+        }
+        // 队列溢出的 folder, 整体 syncCopy 一次
+        if (FileEventTypeEnum.FOLDER_DIRTY.equals(filesystemEvent.getFileEventTypeEnum())) {
+            this.moduleDebounceService.debounce(
+                    "FolderDirty::" + filesystemEvent.getFolder().toAbsolutePath(),
+                    () -> this.systemManagementService.syncCopyFolder(filesystemEvent),
+                    DEBOUNCE_WINDOW
+            );
+            return;
+        }
+        // 不处理删除事件, 过滤
+        if (FileEventTypeEnum.FILE_DELETED.equals(filesystemEvent.getFileEventTypeEnum())) {
+            log.debug("filtered fileEvent: {}", filesystemEvent);
+            return;
+        }
+        // DEBOUNCE_WINDOW 内同个文件没有新的事件, 则执行 copyFile
+        this.moduleDebounceService.debounce(
+                filesystemEvent.getFile().toAbsolutePath().toString(),
+                () -> this.systemManagementService.copyFile(filesystemEvent),
+                DEBOUNCE_WINDOW
+        );
+        log.debug("debounced fileEvent: {}", filesystemEvent);
     }
 }
@@ -0,0 +1,230 @@
+package com.syncduo.server.bus;
+
+import com.syncduo.server.enums.FileEventTypeEnum;
+import com.syncduo.server.model.internal.FilesystemEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// 按 (folder, file) 合并的事件队列. 同一路径上未消费的事件只占一个位置,
+// 队列满时不阻塞 watcher, 而是把未消费事件最多的 folder 标记为 dirty, 由一次 syncCopy 兜底.
+// 每个 folder 有自己的待处理事件, 消费者按 folder 轮转, 每次只取一个 folder 的一批事件,
+// 繁忙的 folder 积压再多也只占一个轮次, 不会排在其他 folder 的事件前面.
+// folder 被一个消费者取走后, 处理完成(complete)之前不会交给其他消费者, 同一路径的事件保持顺序
+@Slf4j
+@Component
+public class FilesystemEventQueue {
+
+    private final int capacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    // <folder, 该 folder 的待处理事件>
+    private final HashMap<Path, FolderQueue> folderQueueMap = new HashMap<>();
+
+    // 有待处理事件且没有被消费者占用的 folder, 按轮转顺序
+    private final ArrayDeque<FolderQueue> readyDeque = new ArrayDeque<>();
+
+    // 所有 folder 未消费的事件数
+    private int pendingCount = 0;
+
+    private final AtomicLong coalescedCount = new AtomicLong(0);
+
+    private final AtomicLong overflowCount = new AtomicLong(0);
+
+    public FilesystemEventQueue(@Value("${syncduo.server.system.eventQueueCapacity:10000}") int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    public void offer(FilesystemEvent filesystemEvent) {
+        this.lock.lock();
+        try {
+            Path folder = filesystemEvent.getFolder();
+            FolderQueue folderQueue = this.folderQueueMap.computeIfAbsent(folder, FolderQueue::new);
+            // folder 已经 dirty, 之后的 syncCopy 会覆盖该事件
+            if (folderQueue.dirty) {
+                coalescedCount.incrementAndGet();
+                return;
+            }
+            // watcher 自身已经丢失事件(例如 inotify 溢出), 直接标记 dirty
+            if (FileEventTypeEnum.FOLDER_DIRTY.equals(filesystemEvent.getFileEventTypeEnum())) {
+                this.markFolderDirty(folderQueue);
+                return;
+            }
+            FilesystemEvent pendingEvent = folderQueue.pendingEventMap.get(filesystemEvent.getFile());
+            if (pendingEvent != null) {
+                pendingEvent.setFileEventTypeEnum(merge(
+                        pendingEvent.getFileEventTypeEnum(),
+                        filesystemEvent.getFileEventTypeEnum()));
+                coalescedCount.incrementAndGet();
+                return;
+            }
+            if (this.pendingCount >= this.capacity) {
+                // 繁忙的 folder 让出位置, 安静的 folder 的单个事件不会触发 syncCopy
+                FolderQueue busiestFolderQueue = this.getBusiestFolderQueue(folderQueue);
+                overflowCount.incrementAndGet();
+                log.warn("filesystem event queue is full. mark folder dirty {}", busiestFolderQueue.folder);
+                this.markFolderDirty(busiestFolderQueue);
+                if (busiestFolderQueue == folderQueue) {
+                    return;
+                }
+            }
+            folderQueue.pendingEventMap.put(filesystemEvent.getFile(), filesystemEvent);
+            this.pendingCount++;
+            this.makeReady(folderQueue);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // 阻塞直到有 folder 可以处理, 然后取出该 folder 最多 maxElements 个事件, 返回该 folder.
+    // 处理完成后必须调用 complete, 否则该 folder 不会再被取出
+    public Path drainTo(Collection<FilesystemEvent> collection, int maxElements) throws InterruptedException {
+        this.lock.lockInterruptibly();
+        try {
+            while (this.readyDeque.isEmpty()) {
+                this.notEmpty.await();
+            }
+            FolderQueue folderQueue = this.readyDeque.poll();
+            folderQueue.ready = false;
+            folderQueue.busy = true;
+            int count = 0;
+            // dirty 标记优先, 尽早触发 syncCopy
+            if (folderQueue.dirty) {
+                folderQueue.dirty = false;
+                collection.add(new FilesystemEvent(
+                        folderQueue.folder, folderQueue.folder, FileEventTypeEnum.FOLDER_DIRTY));
+                count++;
+            }
+            Iterator<FilesystemEvent> eventIterator = folderQueue.pendingEventMap.values().iterator();
+            while (count < maxElements && eventIterator.hasNext()) {
+                collection.add(eventIterator.next());
+                eventIterator.remove();
+                this.pendingCount--;
+                count++;
+            }
+            return folderQueue.folder;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // drainTo 取出的事件处理完成. folder 还有事件则排到轮转的末尾
+    public void complete(Path folder) {
+        this.lock.lock();
+        try {
+            FolderQueue folderQueue = this.folderQueueMap.get(folder);
+            if (folderQueue == null) {
+                return;
+            }
+            folderQueue.busy = false;
+            if (folderQueue.isEmpty()) {
+                this.folderQueueMap.remove(folder);
+                return;
+            }
+            this.makeReady(folderQueue);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int size() {
+        this.lock.lock();
+        try {
+            int dirtyCount = 0;
+            for (FolderQueue folderQueue : this.folderQueueMap.values()) {
+                if (folderQueue.dirty) {
+                    dirtyCount++;
+                }
+            }
+            return this.pendingCount + dirtyCount;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public long getCoalescedCount() {
+        return this.coalescedCount.get();
+    }
+
+    public long getOverflowCount() {
+        return this.overflowCount.get();
+    }
+
+    // 调用方需持有锁. 被消费者占用的 folder 等 complete 时再排队
+    private void makeReady(FolderQueue folderQueue) {
+        if (folderQueue.ready || folderQueue.busy) {
+            return;
+        }
+        folderQueue.ready = true;
+        this.readyDeque.offer(folderQueue);
+        this.notEmpty.signal();
+    }
+
+    // 调用方需持有锁. 未消费事件最多的 folder, 相同时优先 incomingFolderQueue
+    private FolderQueue getBusiestFolderQueue(FolderQueue incomingFolderQueue) {
+        FolderQueue busiestFolderQueue = incomingFolderQueue;
+        for (FolderQueue folderQueue : this.folderQueueMap.values()) {
+            if (folderQueue.pendingEventMap.size() > busiestFolderQueue.pendingEventMap.size()) {
+                busiestFolderQueue = folderQueue;
+            }
+        }
+        return busiestFolderQueue;
+    }
+
+    // 调用方需持有锁
+    private void markFolderDirty(FolderQueue folderQueue) {
+        folderQueue.dirty = true;
+        // 该 folder 下未消费的事件由 syncCopy 覆盖, 释放位置
+        this.pendingCount -= folderQueue.pendingEventMap.size();
+        folderQueue.pendingEventMap.clear();
+        this.makeReady(folderQueue);
+    }
+
+    private static FileEventTypeEnum merge(FileEventTypeEnum pending, FileEventTypeEnum incoming) {
+        if (incoming == FileEventTypeEnum.FILE_DELETED) {
+            return FileEventTypeEnum.FILE_DELETED;
+        }
+        if (pending == FileEventTypeEnum.FILE_CREATED) {
+            return FileEventTypeEnum.FILE_CREATED;
+        }
+        // 删除后又出现, 视为修改
+        return FileEventTypeEnum.FILE_MODIFIED;
+    }
+
+    private static class FolderQueue {
+
+        private final Path folder;
+
+        // <file, event>, 保持入队顺序
+        private final LinkedHashMap<Path, FilesystemEvent> pendingEventMap = new LinkedHashMap<>();
+
+        private boolean dirty = false;
+
+        // 在 readyDeque 中
+        private boolean ready = false;
+
+        // 被消费者占用
+        private boolean busy = false;
+
+        FolderQueue(Path folder) {
+            this.folder = folder;
+        }
+
+        boolean isEmpty() {
+            return !this.dirty && this.pendingEventMap.isEmpty();
+        }
+    }
+}
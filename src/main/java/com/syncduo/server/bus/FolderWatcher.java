@@ -1,29 +1,40 @@
 package com.syncduo.server.bus;
 
-import com.syncduo.server.enums.FileEventTypeEnum;
+import com.syncduo.server.bus.watcher.FolderScanScheduler;
+import com.syncduo.server.bus.watcher.NativeWatchService;
+import com.syncduo.server.bus.watcher.NativeWatcher;
+import com.syncduo.server.bus.watcher.PollingWatcher;
+import com.syncduo.server.bus.watcher.ScheduledPollingWatcher;
+import com.syncduo.server.bus.watcher.Watcher;
+import com.syncduo.server.bus.watcher.WatcherFilter;
+import com.syncduo.server.enums.FolderWatcherModeEnum;
+import com.syncduo.server.enums.SyncFlowTypeEnum;
 import com.syncduo.server.exception.BusinessException;
 import com.syncduo.server.exception.ValidationException;
+import com.syncduo.server.model.api.systeminfo.FolderWatcherStats;
+import com.syncduo.server.model.entity.SyncFlowEntity;
 import com.syncduo.server.model.internal.FilesystemEvent;
+import com.syncduo.server.service.db.impl.SyncFlowService;
 import com.syncduo.server.util.FilesystemUtil;
-import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.collections4.MapUtils;
-import org.apache.commons.io.monitor.FileAlterationListenerAdaptor;
-import org.apache.commons.io.monitor.FileAlterationMonitor;
-import org.apache.commons.io.monitor.FileAlterationObserver;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
 
 @Slf4j
 @Service
@@ -32,68 +43,143 @@ public class FolderWatcher implements DisposableBean {
     @Value("${syncduo.server.system.folderWatcherIntervalMillis:5000}")
     private int interval;
 
-    @Getter
-    private final BlockingQueue<FilesystemEvent> filesystemEventQueue = new LinkedBlockingQueue<>(1000);
+    // POLLING: 每个 folder 一个线程轮询; NATIVE: WatchService 内核通知; SCHEDULED: 共享线程池轮询
+    @Value("${syncduo.server.system.folderWatcherMode:POLLING}")
+    private String folderWatcherMode;
 
-    // <folderPath, monitor>
-    private final ConcurrentHashMap<String, FileAlterationMonitor> monitorMap =
+    // POLLING 和 SCHEDULED 模式下文件状态索引的持久化目录, 为空则不持久化
+    @Value("${syncduo.server.system.folderWatcherStatePath:data/folder-watcher}")
+    private String folderWatcherStatePath;
+
+    // <folderPath, watcher>
+    private final ConcurrentHashMap<String, Watcher> watcherMap =
             new ConcurrentHashMap<>(100);
 
-    public void addWatcher(String folderPath) throws ValidationException, BusinessException {
+    // NATIVE 模式下所有 watcher 共用一个 inotify 实例和一个轮询线程
+    private final NativeWatchService nativeWatchService = new NativeWatchService();
+
+    private final FolderScanScheduler folderScanScheduler;
+
+    private final FilesystemEventQueue filesystemEventQueue;
+
+    private final SyncFlowService syncFlowService;
+
+    @Autowired
+    public FolderWatcher(
+            FolderScanScheduler folderScanScheduler,
+            FilesystemEventQueue filesystemEventQueue,
+            SyncFlowService syncFlowService) {
+        this.folderScanScheduler = folderScanScheduler;
+        this.filesystemEventQueue = filesystemEventQueue;
+        this.syncFlowService = syncFlowService;
+    }
+
+    public synchronized void addWatcher(String folderPath) throws ValidationException, BusinessException {
         if (StringUtils.isBlank(folderPath)) {
             throw new ValidationException("addWatcher failed. folderPath is empty");
         }
         Path folderPathValid = FilesystemUtil.isFolderPathValid(folderPath);
-        if (monitorMap.containsKey(folderPath)) {
+        if (watcherMap.containsKey(folderPath)) {
             return;
         }
-        // 创建 observer// 监听文件创建/修改/删除
-        FileAlterationObserver observer = this.createObserver(folderPathValid);
-        try {
-            observer.initialize();
-        } catch (Exception e) {
-            throw new BusinessException(("addWatcher failed. observer initialize failed. " +
-                    "folderPath is %s").formatted(folderPath), e);
-        }
-        FileAlterationMonitor monitor = new FileAlterationMonitor(getRandomInterval(interval), observer);
+        Watcher watcher = this.createWatcher(folderPathValid, this.buildWatcherFilter(folderPath));
         try {
-            monitor.start();
-            this.monitorMap.put(folderPath, monitor);
+            watcher.start();
+            this.watcherMap.put(folderPath, watcher);
         } catch (Exception e) {
             throw new BusinessException("addWatcher failed. folderPath is %s".formatted(folderPath), e);
         }
     }
 
+    // syncflow 创建, 删除或修改 filter 后调用. filter 变化则重建 watcher, 没有 syncflow 则停止 watcher
+    public synchronized void refreshWatcher(String folderPath) throws ValidationException, BusinessException {
+        if (StringUtils.isBlank(folderPath)) {
+            return;
+        }
+        Watcher watcher = this.watcherMap.get(folderPath);
+        if (ObjectUtils.isEmpty(watcher)) {
+            return;
+        }
+        if (CollectionUtils.isEmpty(this.getReactiveSyncFlowList(folderPath))) {
+            log.info("no syncflow related. stop watcher. folderPath is {}", folderPath);
+            this.stopMonitor(folderPath);
+            return;
+        }
+        WatcherFilter watcherFilter = this.buildWatcherFilter(folderPath);
+        if (WatcherFilter.getSignature(watcherFilter).equals(WatcherFilter.getSignature(watcher.getWatcherFilter()))) {
+            return;
+        }
+        log.info("filter changed. rebuild watcher. folderPath is {}", folderPath);
+        // 旧的索引范围和新 filter 不一致, 一并丢弃
+        this.stopMonitor(folderPath);
+        this.addWatcher(folderPath);
+    }
+
     public void manualCheckFolder(String folderPath) {
         if (StringUtils.isBlank(folderPath)) {
             return;
         }
-        FileAlterationMonitor monitor = this.monitorMap.get(folderPath);
-        if (ObjectUtils.isEmpty(monitor)) {
+        Watcher watcher = this.watcherMap.get(folderPath);
+        if (ObjectUtils.isEmpty(watcher)) {
             return;
         }
-        monitor.getObservers().forEach(FileAlterationObserver::checkAndNotify);
+        watcher.checkAndNotify();
     }
 
     public void stopMonitor(String folderPath) {
         if (StringUtils.isBlank(folderPath)) {
             return;
         }
-        FileAlterationMonitor fileAlterationMonitor = this.monitorMap.get(folderPath);
-        if (ObjectUtils.isEmpty(fileAlterationMonitor)) {
+        Watcher watcher = this.watcherMap.get(folderPath);
+        if (ObjectUtils.isEmpty(watcher)) {
             return;
         }
         try {
-            fileAlterationMonitor.stop();
-            this.monitorMap.remove(folderPath);
+            watcher.stop();
+            watcher.discardCheckpoint();
+            this.watcherMap.remove(folderPath);
         } catch (Exception e) {
-            log.warn("stopWatcher failed. monitor is {}, folderPath is {}",
-                    fileAlterationMonitor,
+            log.warn("stopWatcher failed. watcher is {}, folderPath is {}",
+                    watcher,
                     folderPath,
                     new BusinessException(("stopWatcher failed. monitor is %s").formatted(folderPath), e));
         }
     }
 
+    public boolean isUnchangedSince(String folderPath, long timestampMillis) {
+        if (StringUtils.isBlank(folderPath)) {
+            return false;
+        }
+        Watcher watcher = this.watcherMap.get(folderPath);
+        return ObjectUtils.isNotEmpty(watcher) && watcher.isUnchangedSince(timestampMillis);
+    }
+
+    // initial delay 10 minutes, fixDelay 10 minutes. unit is millisecond
+    @Scheduled(
+            initialDelay = 1000 * 60 * 10,
+            fixedDelayString = "${syncduo.server.system.folderWatcherCheckpointIntervalMillis:600000}",
+            scheduler = "systemManagementTaskScheduler"
+    )
+    public void checkpointAllWatcher() {
+        if (StringUtils.isBlank(this.folderWatcherStatePath)) {
+            return;
+        }
+        this.watcherMap.values().forEach(Watcher::checkpoint);
+    }
+
+    private Path getStateFile(Path folder) {
+        if (StringUtils.isBlank(this.folderWatcherStatePath)) {
+            return null;
+        }
+        try {
+            Path stateFolder = Files.createDirectories(Path.of(this.folderWatcherStatePath));
+            return stateFolder.resolve(DigestUtils.sha1Hex(folder.toString()) + ".idx");
+        } catch (IOException e) {
+            log.warn("getStateFile failed. folderWatcherStatePath is {}", this.folderWatcherStatePath, e);
+            return null;
+        }
+    }
+
     // Method to generate a random interval with a base and range
     private static long getRandomInterval(long baseInterval) {
         Random random = new Random();
@@ -101,70 +187,97 @@ public class FolderWatcher implements DisposableBean {
         return baseInterval + randomAddition;
     }
 
-    private FileAlterationObserver createObserver(Path folder) {
-        FileAlterationObserver observer = new FileAlterationObserver(folder.toFile());
-        observer.addListener(new FileAlterationListenerAdaptor() {
-            @Override
-            public void onFileCreate(File file) {
-                try {
-                    sendFileEvent(new FilesystemEvent(folder, file.toPath(), FileEventTypeEnum.FILE_CREATED));
-                } catch (Exception e) {
-                    log.error("文件夹发送 file event 失败",
-                            new BusinessException("observer onFileCreate failed.", e));
-                }
-            }
+    private Watcher createWatcher(Path folder, WatcherFilter watcherFilter) {
+        return switch (FolderWatcherModeEnum.fromModeString(this.folderWatcherMode)) {
+            case NATIVE -> new NativeWatcher(folder, watcherFilter, this.nativeWatchService, this::sendFileEvent);
+            case POLLING -> new PollingWatcher(
+                    folder,
+                    getRandomInterval(interval),
+                    this.getStateFile(folder),
+                    watcherFilter,
+                    this::sendFileEvent);
+            case SCHEDULED -> new ScheduledPollingWatcher(
+                    folder,
+                    this.folderScanScheduler,
+                    this.getStateFile(folder),
+                    watcherFilter,
+                    this::sendFileEvent);
+        };
+    }
 
-            @Override
-            public void onFileDelete(File file) {
-                try {
-                    sendFileEvent(new FilesystemEvent(folder, file.toPath(), FileEventTypeEnum.FILE_DELETED));
-                } catch (Exception e) {
-                    log.error("文件夹发送 file event 失败",
-                            new BusinessException("observer onFileDelete failed.", e));
-                }
+    // 合并 folder 上全部 reactive syncflow 的 filter. 解析失败则不过滤
+    private WatcherFilter buildWatcherFilter(String folderPath) {
+        try {
+            List<List<String>> filterCriteriaList = new ArrayList<>();
+            for (SyncFlowEntity syncFlowEntity : this.getReactiveSyncFlowList(folderPath)) {
+                filterCriteriaList.add(this.syncFlowService.getFilterCriteriaAsList(syncFlowEntity));
             }
+            return WatcherFilter.of(filterCriteriaList);
+        } catch (Exception e) {
+            log.warn("buildWatcherFilter failed. watcher will not filter. folderPath is {}", folderPath, e);
+            return null;
+        }
+    }
 
-            @Override
-            public void onFileChange(File file) {
-                try {
-                    sendFileEvent(new FilesystemEvent(folder, file.toPath(), FileEventTypeEnum.FILE_MODIFIED));
-                } catch (Exception e) {
-                    log.error("文件夹发送 file event 失败",
-                            new BusinessException("observer onFileChange failed.", e));
-                }
-            }
-        });
-        return observer;
+    private List<SyncFlowEntity> getReactiveSyncFlowList(String folderPath) {
+        return this.syncFlowService.getBySourceFolderPath(folderPath).stream()
+                .filter(syncFlowEntity -> SyncFlowTypeEnum.REACTIVE_SYNC ==
+                        SyncFlowTypeEnum.fromTypeString(syncFlowEntity.getSyncFlowType()))
+                .toList();
     }
 
+    // 队列按路径合并事件, 满了则标记 folder dirty, 不会阻塞 observer
     private void sendFileEvent(FilesystemEvent fileSystemEvent) throws BusinessException {
         log.debug("fileEvent: {}", fileSystemEvent);
         try {
-            this.filesystemEventQueue.put(fileSystemEvent);
-        } catch (InterruptedException ignored) {
-            Thread.currentThread().interrupt();
-        } catch (ClassCastException | NullPointerException | IllegalArgumentException e) {
+            this.filesystemEventQueue.offer(fileSystemEvent);
+        } catch (NullPointerException | IllegalArgumentException e) {
             throw new BusinessException("sendFileEvent failed. ", e);
         }
     }
 
+    public List<FolderWatcherStats> getFolderWatcherStats() {
+        List<FolderWatcherStats> result = new ArrayList<>(this.watcherMap.size());
+        this.watcherMap.forEach((folderPath, watcher) -> {
+            FolderWatcherStats folderWatcherStats = new FolderWatcherStats();
+            folderWatcherStats.setFolderPath(folderPath);
+            folderWatcherStats.setWatcherType(watcher.getClass().getSimpleName());
+            folderWatcherStats.setIndexedFileCount(watcher.getFileCount());
+            folderWatcherStats.setEstimatedMemoryBytes(watcher.getEstimatedMemoryBytes());
+            FolderScanScheduler.ScanTask scanTask = this.folderScanScheduler.getScanTask(folderPath);
+            if (ObjectUtils.isNotEmpty(scanTask)) {
+                folderWatcherStats.setMountPoint(scanTask.getMountPoint());
+                folderWatcherStats.setScanCount(scanTask.getScanCount());
+                folderWatcherStats.setLastScanMillis(scanTask.getLastScanMillis());
+                folderWatcherStats.setAverageScanMillis(scanTask.getAverageScanMillis());
+                folderWatcherStats.setMaxScanMillis(scanTask.getMaxScanMillis());
+                folderWatcherStats.setLastScanAt(scanTask.getLastScanAt());
+            }
+            result.add(folderWatcherStats);
+        });
+        return result;
+    }
+
     public int getWatcherNumber() {
-        if (MapUtils.isEmpty(this.monitorMap)) {
+        if (MapUtils.isEmpty(this.watcherMap)) {
             return 0;
         }
-        return this.monitorMap.size();
+        return this.watcherMap.size();
     }
 
     @Override
     public void destroy() {
-        this.monitorMap.forEach((k, v) -> {
+        this.watcherMap.forEach((k, v) -> {
             try {
-                this.stopMonitor(k);
+                v.stop();
+                // 停机前持久化索引, 下次启动只需要和目录树做比较
+                v.checkpoint();
                 log.debug("shutdown monitor. folderPath is {}", k);
             } catch (Exception e) {
                 log.warn("failed to shutdown monitor. folderPath is {}", k, e);
             }
         });
-        this.monitorMap.clear();
+        this.watcherMap.clear();
+        this.nativeWatchService.close();
     }
 }
\ No newline at end of file
@@ -0,0 +1,102 @@
+package com.syncduo.server.bus.watcher;
+
+import com.syncduo.server.exception.BusinessException;
+import com.syncduo.server.model.internal.FilesystemEvent;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+// 轮询 watcher 的公共部分: CompactFolderObserver 索引和索引的持久化. 子类决定由谁来调度扫描
+@Slf4j
+public abstract class AbstractPollingWatcher implements Watcher {
+
+    @Getter
+    private final Path folder;
+
+    @Getter
+    private final WatcherFilter watcherFilter;
+
+    protected final CompactFolderObserver observer;
+
+    // 索引持久化文件, 为 null 表示不持久化
+    private final Path stateFile;
+
+    protected AbstractPollingWatcher(
+            Path folder,
+            Path stateFile,
+            WatcherFilter watcherFilter,
+            Consumer<FilesystemEvent> eventSink) {
+        this.folder = folder;
+        this.watcherFilter = watcherFilter;
+        this.stateFile = stateFile;
+        // 被排除的目录不会被遍历
+        this.observer = new CompactFolderObserver(folder, watcherFilter, eventSink);
+    }
+
+    @Override
+    public void start() throws BusinessException {
+        try {
+            if (this.stateFile != null && this.observer.restore(this.stateFile)) {
+                // 恢复索引后和当前目录树比较一次, 停机期间的变化作为普通事件发出
+                this.observer.checkAndNotify();
+            } else {
+                this.observer.initialize();
+            }
+        } catch (Exception e) {
+            throw new BusinessException(("start failed. observer initialize failed. " +
+                    "folderPath is %s").formatted(this.folder), e);
+        }
+        this.startScan();
+    }
+
+    // 索引建立后开始周期扫描
+    protected abstract void startScan() throws BusinessException;
+
+    @Override
+    public void checkAndNotify() {
+        this.observer.checkAndNotify();
+    }
+
+    @Override
+    public void checkpoint() {
+        if (this.stateFile == null) {
+            return;
+        }
+        try {
+            this.observer.save(this.stateFile);
+        } catch (IOException e) {
+            log.warn("checkpoint failed. folderPath is {}, stateFile is {}", this.folder, this.stateFile, e);
+        }
+    }
+
+    @Override
+    public void discardCheckpoint() {
+        if (this.stateFile == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(this.stateFile);
+        } catch (IOException e) {
+            log.warn("discardCheckpoint failed. stateFile is {}", this.stateFile, e);
+        }
+    }
+
+    @Override
+    public boolean isUnchangedSince(long timestampMillis) {
+        return this.observer.isRestored() && this.observer.getLastEventMillis() < timestampMillis;
+    }
+
+    @Override
+    public long getEstimatedMemoryBytes() {
+        return this.observer.getEstimatedMemoryBytes();
+    }
+
+    @Override
+    public long getFileCount() {
+        return this.observer.getFileCount();
+    }
+}
@@ -0,0 +1,507 @@
+package com.syncduo.server.bus.watcher;
+
+import com.syncduo.server.enums.FileEventTypeEnum;
+import com.syncduo.server.exception.BusinessException;
+import com.syncduo.server.model.internal.FilesystemEvent;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+// 替代 FileAlterationObserver. 每个目录的快照以排序后的原始数组保存, 不为每个文件创建对象
+@Slf4j
+public class CompactFolderObserver {
+
+    // 持久化文件格式
+    private static final int STATE_FILE_MAGIC = 0x53444958;
+
+    // 2: 增加 filter 签名
+    private static final int STATE_FILE_VERSION = 2;
+
+    private static final byte[] EMPTY_NAMES = new byte[0];
+
+    private static final int[] EMPTY_OFFSETS = {0};
+
+    private static final long[] EMPTY_LONGS = new long[0];
+
+    // 数组对象头的估算大小
+    private static final int ARRAY_HEADER_BYTES = 16;
+
+    // DirectorySnapshot 对象本身的估算大小
+    private static final int SNAPSHOT_OBJECT_BYTES = 32;
+
+    @Getter
+    private final Path folder;
+
+    // 为 null 表示不过滤. 被排除的目录和文件不进入索引
+    private final WatcherFilter watcherFilter;
+
+    private final Consumer<FilesystemEvent> eventSink;
+
+    private DirectorySnapshot rootSnapshot;
+
+    @Getter
+    private volatile long estimatedMemoryBytes = 0;
+
+    @Getter
+    private volatile long fileCount = 0;
+
+    @Getter
+    private volatile long folderCount = 0;
+
+    // 最近一次发送事件的时间. 新建索引时为建立时间, 之前的变化无从得知
+    @Getter
+    private volatile long lastEventMillis = 0;
+
+    // 索引是否从持久化文件恢复
+    @Getter
+    private volatile boolean restored = false;
+
+    // 单次 build/diff 过程中的统计
+    private long memoryCounter;
+
+    private long fileCounter;
+
+    private long folderCounter;
+
+    public CompactFolderObserver(Path folder, WatcherFilter watcherFilter, Consumer<FilesystemEvent> eventSink) {
+        this.folder = folder;
+        this.watcherFilter = watcherFilter;
+        this.eventSink = eventSink;
+    }
+
+    public synchronized void initialize() {
+        this.lastEventMillis = System.currentTimeMillis();
+        this.restored = false;
+        this.resetCounter();
+        this.rootSnapshot = this.build(this.folder, false);
+        this.publishCounter();
+    }
+
+    public synchronized void checkAndNotify() {
+        this.resetCounter();
+        if (this.rootSnapshot == null) {
+            this.rootSnapshot = this.build(this.folder, true);
+        } else {
+            this.rootSnapshot = this.diff(this.folder, this.rootSnapshot);
+        }
+        this.publishCounter();
+    }
+
+    // 先写临时文件再替换, 避免进程退出时留下半个文件
+    public synchronized void save(Path stateFile) throws IOException {
+        if (this.rootSnapshot == null) {
+            return;
+        }
+        Path tmpFile = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmpFile), 64 * 1024))) {
+            out.writeInt(STATE_FILE_MAGIC);
+            out.writeInt(STATE_FILE_VERSION);
+            out.writeUTF(this.folder.toString());
+            out.writeUTF(WatcherFilter.getSignature(this.watcherFilter));
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(this.lastEventMillis);
+            writeSnapshot(out, this.rootSnapshot);
+        }
+        Files.move(tmpFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // 从持久化文件恢复索引, 文件不存在或者不匹配时返回 false
+    public synchronized boolean restore(Path stateFile) {
+        if (!Files.isRegularFile(stateFile)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(stateFile), 64 * 1024))) {
+            if (in.readInt() != STATE_FILE_MAGIC || in.readInt() != STATE_FILE_VERSION) {
+                log.warn("restore failed. state file format mismatch. stateFile is {}", stateFile);
+                return false;
+            }
+            String folderPath = in.readUTF();
+            if (!this.folder.toString().equals(folderPath)) {
+                log.warn("restore failed. folder mismatch. stateFile is {}, folder is {}", stateFile, folderPath);
+                return false;
+            }
+            // filter 不同时索引的范围不同, 不能使用
+            if (!WatcherFilter.getSignature(this.watcherFilter).equals(in.readUTF())) {
+                log.warn("restore failed. filter mismatch. stateFile is {}", stateFile);
+                return false;
+            }
+            long savedAt = in.readLong();
+            long savedLastEventMillis = in.readLong();
+            this.resetCounter();
+            this.rootSnapshot = this.readSnapshot(in);
+            this.publishCounter();
+            this.lastEventMillis = savedLastEventMillis;
+            this.restored = true;
+            log.info("restore folder index. folder is {}, savedAt is {}, files is {}",
+                    this.folder, savedAt, this.fileCount);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.warn("restore failed. stateFile is {}", stateFile, e);
+            this.rootSnapshot = null;
+            return false;
+        }
+    }
+
+    private static void writeSnapshot(DataOutputStream out, DirectorySnapshot snapshot) throws IOException {
+        int size = snapshot.size();
+        out.writeInt(size);
+        out.writeInt(snapshot.names.length);
+        out.write(snapshot.names);
+        for (int i = 0; i <= size; i++) {
+            out.writeInt(snapshot.nameOffsets[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            out.writeLong(snapshot.lengths[i]);
+            out.writeLong(snapshot.lastModified[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            DirectorySnapshot child = snapshot.getChild(i);
+            out.writeBoolean(child != null);
+            if (child != null) {
+                writeSnapshot(out, child);
+            }
+        }
+    }
+
+    private DirectorySnapshot readSnapshot(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size == 0) {
+            in.readInt();
+            in.readInt();
+            return this.finish(new SnapshotBuilder(0));
+        }
+        byte[] names = new byte[in.readInt()];
+        in.readFully(names);
+        int[] nameOffsets = new int[size + 1];
+        for (int i = 0; i <= size; i++) {
+            nameOffsets[i] = in.readInt();
+        }
+        long[] lengths = new long[size];
+        long[] lastModified = new long[size];
+        for (int i = 0; i < size; i++) {
+            lengths[i] = in.readLong();
+            lastModified[i] = in.readLong();
+        }
+        DirectorySnapshot[] children = new DirectorySnapshot[size];
+        boolean hasChildFolder = false;
+        for (int i = 0; i < size; i++) {
+            if (in.readBoolean()) {
+                children[i] = this.readSnapshot(in);
+                hasChildFolder = true;
+            }
+        }
+        DirectorySnapshot snapshot = new DirectorySnapshot(
+                names, nameOffsets, lengths, lastModified, hasChildFolder ? children : null);
+        this.countSnapshot(snapshot);
+        return snapshot;
+    }
+
+    // 扫描目录, 生成快照. notify 为 true 时, 为所有文件发送 create 事件
+    private DirectorySnapshot build(Path dir, boolean notify) {
+        byte[][] currentNames = listSortedNames(dir);
+        SnapshotBuilder builder = new SnapshotBuilder(currentNames.length);
+        for (byte[] name : currentNames) {
+            Path child = dir.resolve(new String(name, StandardCharsets.UTF_8));
+            BasicFileAttributes attributes = this.readIncludedAttributes(child);
+            if (attributes == null) {
+                continue;
+            }
+            if (attributes.isDirectory()) {
+                builder.add(name, 0, attributes.lastModifiedTime().toMillis(), this.build(child, notify));
+            } else {
+                builder.add(name, attributes.size(), attributes.lastModifiedTime().toMillis(), null);
+                if (notify) {
+                    this.sendFileEvent(child, FileEventTypeEnum.FILE_CREATED);
+                }
+            }
+        }
+        return this.finish(builder);
+    }
+
+    // 当前目录列表与快照做归并比较, 返回新的快照
+    private DirectorySnapshot diff(Path dir, DirectorySnapshot previous) {
+        byte[][] currentNames = listSortedNames(dir);
+        SnapshotBuilder builder = new SnapshotBuilder(currentNames.length);
+        int i = 0;
+        int j = 0;
+        int previousSize = previous.size();
+        while (i < previousSize || j < currentNames.length) {
+            int cmp;
+            if (i >= previousSize) {
+                cmp = 1;
+            } else if (j >= currentNames.length) {
+                cmp = -1;
+            } else {
+                cmp = previous.compareName(i, currentNames[j]);
+            }
+            if (cmp < 0) {
+                // 快照中有, 当前没有 -> 删除
+                this.notifyDeleted(dir.resolve(previous.getName(i)), previous.getChild(i));
+                i++;
+                continue;
+            }
+            byte[] name = currentNames[j];
+            Path child = dir.resolve(new String(name, StandardCharsets.UTF_8));
+            BasicFileAttributes attributes = this.readIncludedAttributes(child);
+            if (cmp > 0) {
+                // 当前有, 快照中没有 -> 新建
+                if (attributes != null) {
+                    this.addCreated(builder, name, child, attributes);
+                }
+                j++;
+                continue;
+            }
+            // 两边都有
+            DirectorySnapshot previousChild = previous.getChild(i);
+            if (attributes == null) {
+                this.notifyDeleted(child, previousChild);
+            } else if (attributes.isDirectory() != (previousChild != null)) {
+                // 文件和目录互相替换
+                this.notifyDeleted(child, previousChild);
+                this.addCreated(builder, name, child, attributes);
+            } else if (attributes.isDirectory()) {
+                builder.add(name, 0, attributes.lastModifiedTime().toMillis(), this.diff(child, previousChild));
+            } else {
+                long length = attributes.size();
+                long lastModified = attributes.lastModifiedTime().toMillis();
+                builder.add(name, length, lastModified, null);
+                if (length != previous.lengths[i] || lastModified != previous.lastModified[i]) {
+                    this.sendFileEvent(child, FileEventTypeEnum.FILE_MODIFIED);
+                }
+            }
+            i++;
+            j++;
+        }
+        return this.finish(builder);
+    }
+
+    private void addCreated(SnapshotBuilder builder, byte[] name, Path child, BasicFileAttributes attributes) {
+        if (attributes.isDirectory()) {
+            builder.add(name, 0, attributes.lastModifiedTime().toMillis(), this.build(child, true));
+        } else {
+            builder.add(name, attributes.size(), attributes.lastModifiedTime().toMillis(), null);
+            this.sendFileEvent(child, FileEventTypeEnum.FILE_CREATED);
+        }
+    }
+
+    // snapshot 为 null 表示文件, 否则为目录, 目录下所有文件都发送删除事件
+    private void notifyDeleted(Path path, DirectorySnapshot snapshot) {
+        if (snapshot == null) {
+            this.sendFileEvent(path, FileEventTypeEnum.FILE_DELETED);
+            return;
+        }
+        for (int i = 0; i < snapshot.size(); i++) {
+            this.notifyDeleted(path.resolve(snapshot.getName(i)), snapshot.getChild(i));
+        }
+    }
+
+    private DirectorySnapshot finish(SnapshotBuilder builder) {
+        DirectorySnapshot snapshot = builder.build();
+        this.countSnapshot(snapshot);
+        return snapshot;
+    }
+
+    private void countSnapshot(DirectorySnapshot snapshot) {
+        int size = snapshot.size();
+        this.memoryCounter += SNAPSHOT_OBJECT_BYTES
+                + ARRAY_HEADER_BYTES + snapshot.names.length
+                + ARRAY_HEADER_BYTES + 4L * snapshot.nameOffsets.length
+                + 2L * (ARRAY_HEADER_BYTES + 8L * size);
+        if (snapshot.children != null) {
+            this.memoryCounter += ARRAY_HEADER_BYTES + 4L * size;
+        }
+        this.folderCounter++;
+        this.fileCounter += size - snapshot.childFolderCount();
+    }
+
+    private void resetCounter() {
+        this.memoryCounter = 0;
+        this.fileCounter = 0;
+        this.folderCounter = 0;
+    }
+
+    private void publishCounter() {
+        this.estimatedMemoryBytes = this.memoryCounter;
+        this.fileCount = this.fileCounter;
+        // 不统计根目录
+        this.folderCount = Math.max(0, this.folderCounter - 1);
+    }
+
+    private void sendFileEvent(Path file, FileEventTypeEnum fileEventTypeEnum) {
+        this.lastEventMillis = System.currentTimeMillis();
+        try {
+            this.eventSink.accept(new FilesystemEvent(this.folder, file, fileEventTypeEnum));
+        } catch (Exception e) {
+            log.error("文件夹发送 file event 失败",
+                    new BusinessException("compact observer %s failed.".formatted(fileEventTypeEnum), e));
+        }
+    }
+
+    private static byte[][] listSortedNames(Path dir) {
+        String[] names = dir.toFile().list();
+        if (names == null || names.length == 0) {
+            return new byte[0][];
+        }
+        byte[][] result = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            result[i] = names[i].getBytes(StandardCharsets.UTF_8);
+        }
+        Arrays.sort(result, Arrays::compareUnsigned);
+        return result;
+    }
+
+    // 被 filter 排除的子项视为不存在. 作为文件和目录都被排除时, 不需要读取属性
+    private BasicFileAttributes readIncludedAttributes(Path child) {
+        if (this.watcherFilter == null) {
+            return readAttributes(child);
+        }
+        String relativePath = WatcherFilter.relativize(this.folder, child);
+        boolean fileExcluded = this.watcherFilter.isFileExcluded(relativePath);
+        boolean folderExcluded = this.watcherFilter.isFolderExcluded(relativePath);
+        if (fileExcluded && folderExcluded) {
+            return null;
+        }
+        BasicFileAttributes attributes = readAttributes(child);
+        if (attributes == null) {
+            return null;
+        }
+        return (attributes.isDirectory() ? folderExcluded : fileExcluded) ? null : attributes;
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            // 扫描期间文件被删除
+            return null;
+        }
+    }
+
+    // 单个目录的快照. 子项按名称(UTF-8 无符号字节序)排序, 名称拼接在一个 byte 数组里
+    static final class DirectorySnapshot {
+
+        final byte[] names;
+
+        // 长度为 size + 1, 第 i 个名称为 names[nameOffsets[i], nameOffsets[i + 1])
+        final int[] nameOffsets;
+
+        final long[] lengths;
+
+        final long[] lastModified;
+
+        // 目录项对应的子快照, 文件项为 null. 没有子目录时整个数组为 null
+        final DirectorySnapshot[] children;
+
+        DirectorySnapshot(
+                byte[] names,
+                int[] nameOffsets,
+                long[] lengths,
+                long[] lastModified,
+                DirectorySnapshot[] children) {
+            this.names = names;
+            this.nameOffsets = nameOffsets;
+            this.lengths = lengths;
+            this.lastModified = lastModified;
+            this.children = children;
+        }
+
+        int size() {
+            return this.lengths.length;
+        }
+
+        String getName(int index) {
+            int from = this.nameOffsets[index];
+            return new String(this.names, from, this.nameOffsets[index + 1] - from, StandardCharsets.UTF_8);
+        }
+
+        int compareName(int index, byte[] name) {
+            return Arrays.compareUnsigned(
+                    this.names, this.nameOffsets[index], this.nameOffsets[index + 1],
+                    name, 0, name.length);
+        }
+
+        DirectorySnapshot getChild(int index) {
+            return this.children == null ? null : this.children[index];
+        }
+
+        int childFolderCount() {
+            if (this.children == null) {
+                return 0;
+            }
+            int count = 0;
+            for (DirectorySnapshot child : this.children) {
+                if (child != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    // 按顺序追加子项, 最后裁剪为精确长度的数组
+    private static final class SnapshotBuilder {
+
+        private byte[][] names;
+
+        private long[] lengths;
+
+        private long[] lastModified;
+
+        private DirectorySnapshot[] children;
+
+        private int size = 0;
+
+        private int nameBytes = 0;
+
+        private boolean hasChildFolder = false;
+
+        SnapshotBuilder(int capacity) {
+            this.names = new byte[capacity][];
+            this.lengths = new long[capacity];
+            this.lastModified = new long[capacity];
+            this.children = new DirectorySnapshot[capacity];
+        }
+
+        void add(byte[] name, long length, long lastModified, DirectorySnapshot child) {
+            this.names[this.size] = name;
+            this.lengths[this.size] = length;
+            this.lastModified[this.size] = lastModified;
+            this.children[this.size] = child;
+            this.nameBytes += name.length;
+            this.hasChildFolder |= child != null;
+            this.size++;
+        }
+
+        DirectorySnapshot build() {
+            if (this.size == 0) {
+                return new DirectorySnapshot(EMPTY_NAMES, EMPTY_OFFSETS, EMPTY_LONGS, EMPTY_LONGS, null);
+            }
+            byte[] nameTable = new byte[this.nameBytes];
+            int[] nameOffsets = new int[this.size + 1];
+            int offset = 0;
+            for (int i = 0; i < this.size; i++) {
+                nameOffsets[i] = offset;
+                System.arraycopy(this.names[i], 0, nameTable, offset, this.names[i].length);
+                offset += this.names[i].length;
+            }
+            nameOffsets[this.size] = offset;
+            return new DirectorySnapshot(
+                    nameTable,
+                    nameOffsets,
+                    Arrays.copyOf(this.lengths, this.size),
+                    Arrays.copyOf(this.lastModified, this.size),
+                    this.hasChildFolder ? Arrays.copyOf(this.children, this.size) : null);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.syncduo.server.bus.watcher;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ScheduledFuture;
+
+// 所有轮询 watcher 共用一个有界线程池扫描, 并限制同一挂载点上同时扫描的 watcher 数量
+@Slf4j
+@Component
+public class FolderScanScheduler {
+
+    // 挂载点繁忙时的重试间隔
+    private static final long MOUNT_BUSY_RETRY_MILLIS = 200;
+
+    @Value("${syncduo.server.system.folderWatcherIntervalMillis:5000}")
+    private long interval;
+
+    @Value("${syncduo.server.system.folderScanPerMountLimit:1}")
+    private int perMountLimit;
+
+    private final TaskScheduler folderScanTaskScheduler;
+
+    // <folderPath, scanTask>
+    private final ConcurrentHashMap<String, ScanTask> scanTaskMap = new ConcurrentHashMap<>();
+
+    // <mountPoint, permits>
+    private final ConcurrentHashMap<String, Semaphore> mountPermitMap = new ConcurrentHashMap<>();
+
+    @Autowired
+    public FolderScanScheduler(@Qualifier("folderScanTaskScheduler") TaskScheduler folderScanTaskScheduler) {
+        this.folderScanTaskScheduler = folderScanTaskScheduler;
+    }
+
+    public void register(Watcher watcher) {
+        ScanTask scanTask = new ScanTask(watcher, getMountPoint(watcher.getFolder()));
+        ScanTask previous = this.scanTaskMap.put(watcher.getFolder().toString(), scanTask);
+        if (previous != null) {
+            previous.cancel();
+        }
+        // 首次扫描随机分布在一个 interval 内, 避免所有 watcher 同时扫描
+        this.scheduleNext(scanTask, ThreadLocalRandom.current().nextLong(this.interval + 1));
+    }
+
+    public void unregister(Path folder) {
+        ScanTask scanTask = this.scanTaskMap.remove(folder.toString());
+        if (scanTask != null) {
+            scanTask.cancel();
+        }
+    }
+
+    public ScanTask getScanTask(String folderPath) {
+        return this.scanTaskMap.get(folderPath);
+    }
+
+    private void scheduleNext(ScanTask scanTask, long delayMillis) {
+        if (scanTask.cancelled) {
+            return;
+        }
+        scanTask.scheduledFuture = this.folderScanTaskScheduler.schedule(
+                () -> this.runScan(scanTask),
+                Instant.now().plusMillis(delayMillis));
+    }
+
+    private void runScan(ScanTask scanTask) {
+        if (scanTask.cancelled) {
+            return;
+        }
+        Semaphore permits = this.mountPermitMap.computeIfAbsent(
+                scanTask.mountPoint,
+                k -> new Semaphore(Math.max(1, this.perMountLimit)));
+        if (!permits.tryAcquire()) {
+            // 挂载点上已有足够的扫描, 不占用 worker 线程等待, 稍后重试
+            this.scheduleNext(scanTask, MOUNT_BUSY_RETRY_MILLIS);
+            return;
+        }
+        long startTime = System.nanoTime();
+        try {
+            scanTask.watcher.checkAndNotify();
+        } catch (Exception e) {
+            log.error("folder scan failed. folderPath is {}", scanTask.watcher.getFolder(), e);
+        } finally {
+            permits.release();
+            scanTask.recordScan((System.nanoTime() - startTime) / 1_000_000);
+        }
+        // 上一次扫描结束后再计时, 同一文件夹的扫描不会重叠
+        this.scheduleNext(scanTask, this.interval);
+    }
+
+    private static String getMountPoint(Path folder) {
+        try {
+            return Files.getFileStore(folder).toString();
+        } catch (IOException e) {
+            log.warn("getMountPoint failed. folderPath is {}", folder, e);
+            return folder.getRoot() == null ? "" : folder.getRoot().toString();
+        }
+    }
+
+    @Getter
+    public static class ScanTask {
+
+        private final Watcher watcher;
+
+        private final String mountPoint;
+
+        private volatile boolean cancelled = false;
+
+        private volatile ScheduledFuture<?> scheduledFuture;
+
+        private volatile long lastScanMillis = 0;
+
+        private volatile long maxScanMillis = 0;
+
+        private volatile long totalScanMillis = 0;
+
+        private volatile long scanCount = 0;
+
+        private volatile long lastScanAt = 0;
+
+        ScanTask(Watcher watcher, String mountPoint) {
+            this.watcher = watcher;
+            this.mountPoint = mountPoint;
+        }
+
+        public long getAverageScanMillis() {
+            long count = this.scanCount;
+            return count == 0 ? 0 : this.totalScanMillis / count;
+        }
+
+        // 同一 task 的扫描串行执行, 只有一个线程写
+        private void recordScan(long scanMillis) {
+            this.lastScanMillis = scanMillis;
+            this.maxScanMillis = Math.max(this.maxScanMillis, scanMillis);
+            this.totalScanMillis += scanMillis;
+            this.scanCount++;
+            this.lastScanAt = System.currentTimeMillis();
+        }
+
+        private void cancel() {
+            this.cancelled = true;
+            ScheduledFuture<?> future = this.scheduledFuture;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+}
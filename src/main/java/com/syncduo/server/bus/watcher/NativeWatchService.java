@@ -0,0 +1,139 @@
+package com.syncduo.server.bus.watcher;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// 所有 NativeWatcher 共用一个 WatchService(一个 inotify 实例)和一个轮询线程
+// linux 默认 max_user_instances 为 128, 每个 folder 一个实例会很快耗尽
+// 同一目录在同一个 WatchService 中只有一个 key, 嵌套的 source folder 会共享 key, 所以 key 对应一组 watcher
+@Slf4j
+public class NativeWatchService {
+
+    // <watchKey, 注册了该目录的 watcher>
+    private final ConcurrentHashMap<WatchKey, Set<NativeWatcher>> ownerMap = new ConcurrentHashMap<>();
+
+    private WatchService watchService;
+
+    private volatile boolean closed = false;
+
+    // 第一次注册时创建 WatchService 并启动轮询线程
+    // 注册和取消注册加锁, 避免刚注册的 key 被另一个 watcher 取消
+    public synchronized WatchKey register(NativeWatcher nativeWatcher, Path dir) throws IOException {
+        WatchKey watchKey = dir.register(this.getWatchService(dir), ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        this.ownerMap.compute(watchKey, (k, ownerSet) -> {
+            if (ownerSet == null) {
+                ownerSet = ConcurrentHashMap.newKeySet();
+            }
+            ownerSet.add(nativeWatcher);
+            return ownerSet;
+        });
+        return watchKey;
+    }
+
+    // 没有其他 watcher 使用该目录时才取消 key
+    public synchronized void unregister(NativeWatcher nativeWatcher, WatchKey watchKey) {
+        this.ownerMap.computeIfPresent(watchKey, (k, ownerSet) -> {
+            ownerSet.remove(nativeWatcher);
+            if (ownerSet.isEmpty()) {
+                k.cancel();
+                return null;
+            }
+            return ownerSet;
+        });
+    }
+
+    public synchronized void close() {
+        this.closed = true;
+        this.ownerMap.clear();
+        if (this.watchService == null) {
+            return;
+        }
+        try {
+            // close 会唤醒阻塞在 take() 的线程
+            this.watchService.close();
+        } catch (IOException e) {
+            log.warn("native watch service close failed.", e);
+        }
+    }
+
+    private synchronized WatchService getWatchService(Path dir) throws IOException {
+        if (this.closed) {
+            throw new ClosedWatchServiceException();
+        }
+        if (this.watchService == null) {
+            this.watchService = dir.getFileSystem().newWatchService();
+            Thread pollThread = new Thread(this::pollEvents, "Native-Watcher");
+            pollThread.setDaemon(true);
+            pollThread.start();
+        }
+        return this.watchService;
+    }
+
+    private void pollEvents() {
+        while (!this.closed) {
+            WatchKey watchKey;
+            try {
+                watchKey = this.watchService.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+            // inotify 溢出时所有 key 都会收到 OVERFLOW, 取完已就绪的 key 后每个 watcher 只处理一次
+            Set<NativeWatcher> overflowSet = new HashSet<>();
+            try {
+                do {
+                    this.processKey(watchKey, overflowSet);
+                } while ((watchKey = this.watchService.poll()) != null);
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+            for (NativeWatcher nativeWatcher : overflowSet) {
+                nativeWatcher.handleOverflow();
+            }
+        }
+    }
+
+    private void processKey(WatchKey watchKey, Set<NativeWatcher> overflowSet) {
+        Set<NativeWatcher> ownerSet = this.ownerMap.get(watchKey);
+        if (ownerSet == null) {
+            // key 可能正在注册, 等注册完成后再取一次
+            synchronized (this) {
+                ownerSet = this.ownerMap.get(watchKey);
+            }
+        }
+        if (ownerSet == null) {
+            watchKey.cancel();
+            return;
+        }
+        Path dir = (Path) watchKey.watchable();
+        List<WatchEvent<?>> watchEventList = watchKey.pollEvents();
+        boolean overflow = watchEventList.stream().anyMatch(watchEvent -> watchEvent.kind() == OVERFLOW);
+        for (NativeWatcher nativeWatcher : ownerSet) {
+            if (overflow) {
+                overflowSet.add(nativeWatcher);
+            }
+            nativeWatcher.handleEvents(dir, watchEventList);
+        }
+        // 目录被删除或不可访问时, key 失效
+        if (!watchKey.reset()) {
+            Set<NativeWatcher> removed = this.ownerMap.remove(watchKey);
+            if (removed != null) {
+                removed.forEach(nativeWatcher -> nativeWatcher.onKeyInvalid(watchKey, dir));
+            }
+        }
+    }
+}
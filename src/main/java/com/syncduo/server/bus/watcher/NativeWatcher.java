@@ -0,0 +1,185 @@
+package com.syncduo.server.bus.watcher;
+
+import com.syncduo.server.enums.FileEventTypeEnum;
+import com.syncduo.server.exception.BusinessException;
+import com.syncduo.server.model.internal.FilesystemEvent;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// 基于 WatchService(linux 下为 inotify) 的 watcher, 事件由内核推送, 不需要轮询整个目录树
+// WatchService 和轮询线程由 NativeWatchService 共享
+@Slf4j
+public class NativeWatcher implements Watcher {
+
+    @Getter
+    private final Path folder;
+
+    @Getter
+    private final WatcherFilter watcherFilter;
+
+    private final Consumer<FilesystemEvent> eventSink;
+
+    // 所有 NativeWatcher 共用, 由 FolderWatcher 持有
+    private final NativeWatchService nativeWatchService;
+
+    // <watchKey, 目录>, 只包含本 watcher 注册的目录
+    private final ConcurrentHashMap<WatchKey, Path> keyMap = new ConcurrentHashMap<>();
+
+    // 已注册的目录, 用于判断删除事件的对象是否为目录
+    private final Set<Path> registeredFolders = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean running = false;
+
+    public NativeWatcher(
+            Path folder,
+            WatcherFilter watcherFilter,
+            NativeWatchService nativeWatchService,
+            Consumer<FilesystemEvent> eventSink) {
+        this.folder = folder;
+        this.watcherFilter = watcherFilter;
+        this.nativeWatchService = nativeWatchService;
+        this.eventSink = eventSink;
+    }
+
+    @Override
+    public void start() throws BusinessException {
+        this.running = true;
+        try {
+            this.registerRecursively(this.folder, false);
+        } catch (IOException | ClosedWatchServiceException e) {
+            // 注册失败时释放已注册的目录
+            this.stop();
+            throw new BusinessException("start failed. folderPath is %s".formatted(this.folder), e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        this.running = false;
+        this.keyMap.keySet().forEach(watchKey -> this.nativeWatchService.unregister(this, watchKey));
+        this.keyMap.clear();
+        this.registeredFolders.clear();
+    }
+
+    @Override
+    public void checkAndNotify() {
+        // 事件由内核推送, 无需手动检查
+        log.debug("native watcher ignore manual check. folderPath is {}", this.folder);
+    }
+
+    // 由 NativeWatchService 的轮询线程调用
+    void handleEvents(Path dir, List<WatchEvent<?>> watchEventList) {
+        if (!this.running) {
+            return;
+        }
+        for (WatchEvent<?> watchEvent : watchEventList) {
+            if (watchEvent.kind() == OVERFLOW) {
+                continue;
+            }
+            try {
+                this.handleEvent(dir, watchEvent);
+            } catch (Exception e) {
+                log.error("native watcher handle event failed. dir is {}", dir, e);
+            }
+        }
+    }
+
+    // 目录被删除或不可访问, key 已失效
+    void onKeyInvalid(WatchKey watchKey, Path dir) {
+        this.keyMap.remove(watchKey);
+        this.registeredFolders.remove(dir);
+    }
+
+    // 内核事件队列溢出, 事件已丢失. 补注册遗漏的新目录, 然后整个 folder 标记为 dirty, 由一次 syncCopy 兜底
+    void handleOverflow() {
+        if (!this.running) {
+            return;
+        }
+        log.warn("native watcher overflow. mark folder dirty {}", this.folder);
+        try {
+            this.registerRecursively(this.folder, false);
+        } catch (IOException | ClosedWatchServiceException e) {
+            log.error("native watcher register after overflow failed. folderPath is {}", this.folder, e);
+        }
+        this.sendFileEvent(this.folder, FileEventTypeEnum.FOLDER_DIRTY);
+    }
+
+    private void handleEvent(Path dir, WatchEvent<?> watchEvent) throws IOException {
+        WatchEvent.Kind<?> kind = watchEvent.kind();
+        Path child = dir.resolve((Path) watchEvent.context());
+        if (kind == ENTRY_CREATE) {
+            boolean isFolder = Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS);
+            if (this.isExcluded(child, isFolder)) {
+                return;
+            }
+            if (isFolder) {
+                // 新目录需要注册, 注册前已写入的文件补发 create 事件
+                this.registerRecursively(child, true);
+            } else {
+                this.sendFileEvent(child, FileEventTypeEnum.FILE_CREATED);
+            }
+        } else if (kind == ENTRY_MODIFY) {
+            if (!Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS) && !this.isExcluded(child, false)) {
+                this.sendFileEvent(child, FileEventTypeEnum.FILE_MODIFIED);
+            }
+        } else if (kind == ENTRY_DELETE) {
+            // 目录删除时对应的 key 会自行失效
+            if (!this.registeredFolders.remove(child) && !this.isExcluded(child, false)) {
+                this.sendFileEvent(child, FileEventTypeEnum.FILE_DELETED);
+            }
+        }
+    }
+
+    private void registerRecursively(Path start, boolean notifyFiles) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                // 被排除的目录不注册, 也不遍历
+                if (!dir.equals(folder) && isExcluded(dir, true)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                WatchKey watchKey = nativeWatchService.register(NativeWatcher.this, dir);
+                keyMap.put(watchKey, dir);
+                registeredFolders.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (notifyFiles && attrs.isRegularFile() && !isExcluded(file, false)) {
+                    sendFileEvent(file, FileEventTypeEnum.FILE_CREATED);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                log.warn("native watcher register failed. path is {}", file, exc);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private boolean isExcluded(Path path, boolean isFolder) {
+        return this.watcherFilter != null && this.watcherFilter.isExcluded(this.folder, path, isFolder);
+    }
+
+    private void sendFileEvent(Path file, FileEventTypeEnum fileEventTypeEnum) {
+        try {
+            this.eventSink.accept(new FilesystemEvent(this.folder, file, fileEventTypeEnum));
+        } catch (Exception e) {
+            log.error("文件夹发送 file event 失败",
+                    new BusinessException("native watcher %s failed.".formatted(fileEventTypeEnum), e));
+        }
+    }
+}
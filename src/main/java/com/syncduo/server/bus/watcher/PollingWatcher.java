@@ -0,0 +1,68 @@
+package com.syncduo.server.bus.watcher;
+
+import com.syncduo.server.model.internal.FilesystemEvent;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+// 每个 folder 一个轮询线程. 索引使用 CompactFolderObserver, 不为每个文件创建对象
+@Slf4j
+public class PollingWatcher extends AbstractPollingWatcher {
+
+    private final long intervalMillis;
+
+    private volatile boolean running = false;
+
+    private Thread pollThread;
+
+    public PollingWatcher(
+            Path folder,
+            long intervalMillis,
+            Path stateFile,
+            WatcherFilter watcherFilter,
+            Consumer<FilesystemEvent> eventSink) {
+        super(folder, stateFile, watcherFilter, eventSink);
+        this.intervalMillis = intervalMillis;
+    }
+
+    @Override
+    protected synchronized void startScan() {
+        if (this.running) {
+            return;
+        }
+        this.running = true;
+        this.pollThread = new Thread(this::pollLoop, "Polling-Watcher-" + this.getFolder().getFileName());
+        this.pollThread.setDaemon(true);
+        this.pollThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        this.running = false;
+        if (this.pollThread != null) {
+            this.pollThread.interrupt();
+            this.pollThread = null;
+        }
+    }
+
+    private void pollLoop() {
+        while (this.running) {
+            try {
+                Thread.sleep(this.intervalMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (!this.running) {
+                return;
+            }
+            try {
+                this.observer.checkAndNotify();
+            } catch (Exception e) {
+                // 单次扫描失败不影响下一次
+                log.warn("polling watcher scan failed. folderPath is {}", this.getFolder(), e);
+            }
+        }
+    }
+}
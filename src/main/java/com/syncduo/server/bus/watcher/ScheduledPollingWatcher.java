@@ -0,0 +1,34 @@
+package com.syncduo.server.bus.watcher;
+
+import com.syncduo.server.model.internal.FilesystemEvent;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+// 不自带线程, 由 FolderScanScheduler 统一调度扫描
+@Slf4j
+public class ScheduledPollingWatcher extends AbstractPollingWatcher {
+
+    private final FolderScanScheduler folderScanScheduler;
+
+    public ScheduledPollingWatcher(
+            Path folder,
+            FolderScanScheduler folderScanScheduler,
+            Path stateFile,
+            WatcherFilter watcherFilter,
+            Consumer<FilesystemEvent> eventSink) {
+        super(folder, stateFile, watcherFilter, eventSink);
+        this.folderScanScheduler = folderScanScheduler;
+    }
+
+    @Override
+    protected void startScan() {
+        this.folderScanScheduler.register(this);
+    }
+
+    @Override
+    public void stop() {
+        this.folderScanScheduler.unregister(this.getFolder());
+    }
+}
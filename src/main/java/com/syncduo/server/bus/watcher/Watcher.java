@@ -0,0 +1,43 @@
+package com.syncduo.server.bus.watcher;
+
+import com.syncduo.server.exception.BusinessException;
+
+import java.nio.file.Path;
+
+public interface Watcher {
+
+    void start() throws BusinessException;
+
+    void stop() throws BusinessException;
+
+    // 手动触发一次检查
+    void checkAndNotify();
+
+    Path getFolder();
+
+    // 为 null 表示不过滤
+    WatcherFilter getWatcherFilter();
+
+    // 持久化文件状态索引
+    default void checkpoint() {
+    }
+
+    // 删除持久化的索引, watcher 被移除时调用
+    default void discardCheckpoint() {
+    }
+
+    // 索引从持久化文件恢复, 且 timestampMillis 之后没有发现任何变化
+    default boolean isUnchangedSince(long timestampMillis) {
+        return false;
+    }
+
+    // 文件状态索引占用的内存估算, -1 表示不支持统计
+    default long getEstimatedMemoryBytes() {
+        return -1;
+    }
+
+    // 索引中的文件数, -1 表示不支持统计
+    default long getFileCount() {
+        return -1;
+    }
+}
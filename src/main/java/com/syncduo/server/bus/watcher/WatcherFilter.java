@@ -0,0 +1,93 @@
+package com.syncduo.server.bus.watcher;
+
+import com.syncduo.server.exception.ValidationException;
+import com.syncduo.server.util.RcloneFilterUtil;
+import lombok.Getter;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.io.FilenameUtils;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+// 同一个源文件夹上全部 syncflow 的 filter 合并而成. 只有每个 syncflow 都排除的目录和文件, watcher 才跳过
+// 目录只按覆盖整个目录树的规则("dir/", "dir/**")剪枝, 被剪掉的目录不会被遍历, 也不会 stat
+public class WatcherFilter {
+
+    // 每个 syncflow 一个 pattern
+    private final List<Pattern> filePatternList;
+
+    // 有 syncflow 没有目录规则时为 null, 不剪枝
+    private final List<Pattern> folderPatternList;
+
+    // 用于判断 filter 是否变化, 以及持久化的索引是否可用
+    @Getter
+    private final String signature;
+
+    private WatcherFilter(List<Pattern> filePatternList, List<Pattern> folderPatternList, String signature) {
+        this.filePatternList = filePatternList;
+        this.folderPatternList = folderPatternList;
+        this.signature = signature;
+    }
+
+    // filterCriteriaList 为每个 syncflow 的 filter. 任意一个 syncflow 没有 filter 时, 什么都不排除, 返回 null
+    public static WatcherFilter of(List<List<String>> filterCriteriaList) throws ValidationException {
+        if (CollectionUtils.isEmpty(filterCriteriaList)) {
+            return null;
+        }
+        List<Pattern> filePatternList = new ArrayList<>(filterCriteriaList.size());
+        List<Pattern> folderPatternList = new ArrayList<>(filterCriteriaList.size());
+        for (List<String> filterCriteria : filterCriteriaList) {
+            Pattern filePattern = RcloneFilterUtil.compile(filterCriteria);
+            if (filePattern == null) {
+                return null;
+            }
+            filePatternList.add(filePattern);
+            Pattern folderPattern = RcloneFilterUtil.compileFolderRule(filterCriteria);
+            if (folderPatternList != null && folderPattern != null) {
+                folderPatternList.add(folderPattern);
+            } else {
+                folderPatternList = null;
+            }
+        }
+        String signature = DigestUtils.sha1Hex(filterCriteriaList.stream()
+                .map(Object::toString)
+                .sorted()
+                .toList()
+                .toString());
+        return new WatcherFilter(filePatternList, folderPatternList, signature);
+    }
+
+    public static String getSignature(WatcherFilter watcherFilter) {
+        return watcherFilter == null ? "" : watcherFilter.getSignature();
+    }
+
+    // 相对于源文件夹的路径, 以 "/" 分隔
+    public static String relativize(Path folder, Path path) {
+        return FilenameUtils.separatorsToUnix(folder.relativize(path).toString());
+    }
+
+    public boolean isExcluded(Path folder, Path path, boolean isFolder) {
+        String relativePath = relativize(folder, path);
+        return isFolder ? this.isFolderExcluded(relativePath) : this.isFileExcluded(relativePath);
+    }
+
+    public boolean isFileExcluded(String relativePath) {
+        return matchAll(this.filePatternList, relativePath);
+    }
+
+    public boolean isFolderExcluded(String relativePath) {
+        return this.folderPatternList != null && matchAll(this.folderPatternList, relativePath);
+    }
+
+    private static boolean matchAll(List<Pattern> patternList, String relativePath) {
+        for (Pattern pattern : patternList) {
+            if (!pattern.matcher(relativePath).find()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -43,9 +43,9 @@ public class ApplicationLifeCycleConfig {
         log.info("Starting up {} environment", this.activeProfile);
         this.rcloneFacadeService.init();
         this.resticFacadeService.init();
-        // 系统启动扫描
-        this.systemManagementService.rescanAllSyncFlow();
-        // 启动 handler
+        // 启动 handler. 需要先于启动扫描, 恢复的索引比较时会产生事件
         filesystemEventHandler.startHandle();
+        // 系统启动扫描
+        this.systemManagementService.startUpScanAllSyncFlow();
     }
 }
@@ -0,0 +1,28 @@
+package com.syncduo.server.configuration;
+
+import com.syncduo.server.util.ParallelFileWalker;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class FileWalkerConfig {
+
+    @Value("${syncduo.server.system.fileWalkParallelism:8}")
+    private int fileWalkParallelism;
+
+    @Value("${syncduo.server.system.backgroundFileWalkParallelism:1}")
+    private int backgroundFileWalkParallelism;
+
+    // 请求路径上的遍历(还原缓存统计, 删除文件夹)使用这个
+    @Bean(name = "fileWalker", destroyMethod = "shutdown")
+    public ParallelFileWalker fileWalker() {
+        return new ParallelFileWalker("File-Walker-", fileWalkParallelism, Thread.NORM_PRIORITY);
+    }
+
+    // 后台复查(folder stats)使用这个, 低并行度低优先级, 不和请求路径抢 IO
+    @Bean(name = "backgroundFileWalker", destroyMethod = "shutdown")
+    public ParallelFileWalker backgroundFileWalker() {
+        return new ParallelFileWalker("Background-File-Walker-", backgroundFileWalkParallelism, Thread.MIN_PRIORITY);
+    }
+}
@@ -20,6 +20,13 @@ public class GlobalControllerAdvice {
         return ResponseEntity.status(syncDuoHttpResponse.getStatusCode()).body(syncDuoHttpResponse);
     }
 
+    // 重新抛出, 异常传递到容器后连接被直接关闭(chunked 响应没有结束块)
+    @ExceptionHandler(ResponseCommittedException.class)
+    public void handleResponseCommittedException(ResponseCommittedException e) {
+        log.warn("controller failed after response committed. abort connection. ", e);
+        throw e;
+    }
+
     @ExceptionHandler(ResourceNotFoundException.class)
     public ResponseEntity<SyncDuoHttpResponse<Void>> handleResourceNotFountException(ResourceNotFoundException e) {
         log.warn("controller failed. resource not found. ", e);
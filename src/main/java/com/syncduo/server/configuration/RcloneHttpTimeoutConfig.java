@@ -0,0 +1,51 @@
+package com.syncduo.server.configuration;
+
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.core5.util.Timeout;
+
+import java.net.URI;
+
+
+// rclone rc 接口按类型区分读超时
+// QUERY: job/status, job/list, core/stats, operations/stat 等查询, 应该很快返回
+// SUBMIT: _async=true 提交的任务, rclone 需要先检查 fs 再返回 jobid
+public class RcloneHttpTimeoutConfig {
+
+    // unix socket 请求的 URI, host 不参与连接
+    public static final String UNIX_SOCKET_BASE_URL = "http://localhost";
+
+    private final RequestConfig queryRequestConfig;
+
+    private final RequestConfig submitRequestConfig;
+
+    public RcloneHttpTimeoutConfig(
+            long connectionRequestTimeoutMillis,
+            long queryReadTimeoutMillis,
+            long submitReadTimeoutMillis) {
+        this.queryRequestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(Timeout.ofMilliseconds(connectionRequestTimeoutMillis))
+                .setResponseTimeout(Timeout.ofMilliseconds(queryReadTimeoutMillis))
+                .build();
+        this.submitRequestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(Timeout.ofMilliseconds(connectionRequestTimeoutMillis))
+                .setResponseTimeout(Timeout.ofMilliseconds(submitReadTimeoutMillis))
+                .build();
+    }
+
+    public RequestConfig forUri(URI uri) {
+        return this.forRequest(this.isAsyncJob(uri));
+    }
+
+    public RequestConfig forRequest(boolean isAsyncJob) {
+        return isAsyncJob ? this.submitRequestConfig : this.queryRequestConfig;
+    }
+
+    public long getReadTimeoutMillis(boolean isAsyncJob) {
+        return this.forRequest(isAsyncJob).getResponseTimeout().toMilliseconds();
+    }
+
+    public boolean isAsyncJob(URI uri) {
+        String query = uri.getRawQuery();
+        return query != null && query.contains("_async=true");
+    }
+}
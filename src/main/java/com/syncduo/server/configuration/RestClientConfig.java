@@ -1,24 +1,160 @@
 package com.syncduo.server.configuration;
 
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.transport.HttpClientTransportOverHTTP;
+import org.eclipse.jetty.io.ClientConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.MediaType;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.client.JettyClientHttpRequestFactory;
 import org.springframework.web.client.RestClient;
 
+import java.nio.file.Path;
+import java.time.Duration;
+
 @Configuration
 public class RestClientConfig {
+
+    @Value("${syncduo.server.rclone.httpMaxConnections:50}")
+    private int maxConnections;
+
+    @Value("${syncduo.server.rclone.httpConnectTimeoutMillis:3000}")
+    private long connectTimeoutMillis;
+
+    @Value("${syncduo.server.rclone.httpKeepAliveSec:60}")
+    private long keepAliveSec;
+
+    @Bean
+    public RcloneHttpTimeoutConfig rcloneHttpTimeoutConfig(
+            @Value("${syncduo.server.rclone.httpQueryReadTimeoutMillis:10000}") long queryReadTimeoutMillis,
+            @Value("${syncduo.server.rclone.httpSubmitReadTimeoutMillis:30000}") long submitReadTimeoutMillis) {
+        // 连接池耗尽时等待的时间与 connect timeout 相同
+        return new RcloneHttpTimeoutConfig(
+                this.connectTimeoutMillis,
+                queryReadTimeoutMillis,
+                submitReadTimeoutMillis);
+    }
+
+    // unixSocketPath 为空时不创建. jetty HttpClient 通过 unix domain socket 连接 rcd, 同步和异步请求共用
+    @Bean(destroyMethod = "stop")
+    @ConditionalOnExpression("!'${syncduo.server.rclone.unixSocketPath:}'.isBlank()")
+    public HttpClient rcloneUnixSocketHttpClient(
+            @Value("${syncduo.server.rclone.unixSocketPath}") String unixSocketPath) throws Exception {
+        ClientConnector clientConnector = ClientConnector.forUnixDomain(Path.of(unixSocketPath));
+        clientConnector.setConnectTimeout(Duration.ofMillis(this.connectTimeoutMillis));
+        QueuedThreadPool executor = new QueuedThreadPool();
+        executor.setName("Rclone-Unix-Socket");
+        HttpClient httpClient = new HttpClient(new HttpClientTransportOverHTTP(clientConnector));
+        httpClient.setExecutor(executor);
+        httpClient.setMaxConnectionsPerDestination(this.maxConnections);
+        httpClient.setIdleTimeout(Duration.ofSeconds(this.keepAliveSec).toMillis());
+        httpClient.setConnectTimeout(this.connectTimeoutMillis);
+        httpClient.start();
+        return httpClient;
+    }
+
+    // 配置了 unixSocketPath 时 rc 请求走 unix socket, 否则与 rcloneTcpRestClient 相同
     @Bean
     public RestClient rcloneRestClient(
+            @Value("${syncduo.server.rclone.httpUser}") String user,
+            @Value("${syncduo.server.rclone.httpPassword}") String password,
+            @Qualifier("rcloneUnixSocketHttpClient") ObjectProvider<HttpClient> rcloneUnixSocketHttpClient,
+            RcloneHttpTimeoutConfig rcloneHttpTimeoutConfig,
+            @Qualifier("rcloneTcpRestClient") RestClient rcloneTcpRestClient) {
+        HttpClient httpClient = rcloneUnixSocketHttpClient.getIfAvailable();
+        if (httpClient == null) {
+            return rcloneTcpRestClient;
+        }
+        // 按接口类型设置读超时, 两个 factory 共用同一个 HttpClient
+        JettyClientHttpRequestFactory queryRequestFactory = new JettyClientHttpRequestFactory(httpClient);
+        queryRequestFactory.setReadTimeout(rcloneHttpTimeoutConfig.getReadTimeoutMillis(false));
+        JettyClientHttpRequestFactory submitRequestFactory = new JettyClientHttpRequestFactory(httpClient);
+        submitRequestFactory.setReadTimeout(rcloneHttpTimeoutConfig.getReadTimeoutMillis(true));
+        // host 只用于拼接 URI, 实际连接的是 unix socket
+        return RestClient.builder()
+                .baseUrl(RcloneHttpTimeoutConfig.UNIX_SOCKET_BASE_URL)
+                .requestFactory((uri, httpMethod) -> rcloneHttpTimeoutConfig.isAsyncJob(uri) ?
+                        submitRequestFactory.createRequest(uri, httpMethod) :
+                        queryRequestFactory.createRequest(uri, httpMethod))
+                .defaultHeaders(headers -> {
+                    headers.setBasicAuth(user, password);
+                    headers.setContentType(MediaType.APPLICATION_JSON);
+                })
+                .build();
+    }
+
+    // rcd 始终监听 TCP, web gui 和传输延迟对比使用
+    @Bean
+    public RestClient rcloneTcpRestClient(
             @Value("${syncduo.server.rclone.httpBaseUrl}") String baseUrl,
             @Value("${syncduo.server.rclone.httpUser}") String user,
-            @Value("${syncduo.server.rclone.httpPassword}") String password) {
+            @Value("${syncduo.server.rclone.httpPassword}") String password,
+            RcloneHttpTimeoutConfig rcloneHttpTimeoutConfig) {
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(this.maxConnections)
+                .setMaxConnPerRoute(this.maxConnections)
+                .setDefaultConnectionConfig(this.connectionConfig())
+                .build();
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy((response, context) -> TimeValue.ofSeconds(this.keepAliveSec))
+                .evictIdleConnections(TimeValue.ofSeconds(this.keepAliveSec))
+                .build();
+        HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
+        // 按接口类型设置读超时
+        requestFactory.setHttpContextFactory((httpMethod, uri) -> {
+            HttpClientContext context = HttpClientContext.create();
+            context.setRequestConfig(rcloneHttpTimeoutConfig.forUri(uri));
+            return context;
+        });
         return RestClient.builder()
                 .baseUrl(baseUrl)
+                .requestFactory(requestFactory)
                 .defaultHeaders(headers -> {
                     headers.setBasicAuth(user, password);
                     headers.setContentType(MediaType.APPLICATION_JSON);
                 })
                 .build();
     }
+
+    // 异步请求使用的 client, 请求的发送和响应都在 IO reactor 线程中完成
+    @Bean(destroyMethod = "close")
+    public CloseableHttpAsyncClient rcloneHttpAsyncClient() {
+        PoolingAsyncClientConnectionManager connectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(this.maxConnections)
+                .setMaxConnPerRoute(this.maxConnections)
+                .setDefaultConnectionConfig(this.connectionConfig())
+                .build();
+        CloseableHttpAsyncClient httpAsyncClient = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy((response, context) -> TimeValue.ofSeconds(this.keepAliveSec))
+                .evictIdleConnections(TimeValue.ofSeconds(this.keepAliveSec))
+                .build();
+        httpAsyncClient.start();
+        return httpAsyncClient;
+    }
+
+    private ConnectionConfig connectionConfig() {
+        return ConnectionConfig.custom()
+                .setConnectTimeout(Timeout.ofMilliseconds(this.connectTimeoutMillis))
+                .build();
+    }
 }
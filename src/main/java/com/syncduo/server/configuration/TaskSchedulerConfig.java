@@ -14,6 +14,9 @@ public class TaskSchedulerConfig {
     @Value("${syncduo.server.system.taskScheduleAwaitTerminationSec}")
     private int taskScheduleAwaitTerminationSec;
 
+    @Value("${syncduo.server.system.folderScanWorkers:4}")
+    private int folderScanWorkers;
+
     @Bean(name = "generalTaskScheduler")
     public TaskScheduler generalTaskScheduler() {
         ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
@@ -36,4 +39,28 @@ public class TaskSchedulerConfig {
         scheduler.initialize();
         return scheduler;
     }
+
+    // folder stats 的遍历是后台兜底任务, 单线程低优先级, 同一时间只遍历一个 dest folder
+    @Bean(name = "folderStatsTaskScheduler")
+    public TaskScheduler folderStatsTaskScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(1);
+        scheduler.setThreadNamePrefix("Folder-Stats-Thread-");
+        scheduler.setThreadPriority(Thread.MIN_PRIORITY);
+        scheduler.setWaitForTasksToCompleteOnShutdown(false);
+        scheduler.initialize();
+        return scheduler;
+    }
+
+    // SCHEDULED 模式下所有 watcher 的扫描共用这个线程池
+    @Bean(name = "folderScanTaskScheduler")
+    public TaskScheduler folderScanTaskScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(folderScanWorkers);
+        scheduler.setThreadNamePrefix("Folder-Scan-Thread-");
+        scheduler.setWaitForTasksToCompleteOnShutdown(false);
+        scheduler.setRemoveOnCancelPolicy(true);
+        scheduler.initialize();
+        return scheduler;
+    }
 }
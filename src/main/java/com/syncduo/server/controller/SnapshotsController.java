@@ -1,11 +1,18 @@
 package com.syncduo.server.controller;
 
+import com.syncduo.server.enums.ResticDumpArchiveEnum;
+import com.syncduo.server.enums.ResticJobTypeEnum;
 import com.syncduo.server.enums.ResticNodeTypeEnum;
 import com.syncduo.server.exception.BusinessException;
+import com.syncduo.server.exception.FileOperationException;
 import com.syncduo.server.exception.ResourceNotFoundException;
+import com.syncduo.server.exception.ResponseCommittedException;
 import com.syncduo.server.exception.ValidationException;
 import com.syncduo.server.model.api.global.SyncDuoHttpResponse;
+import com.syncduo.server.model.api.snapshots.BackupQueueInfo;
+import com.syncduo.server.model.api.snapshots.JobProgress;
 import com.syncduo.server.model.api.snapshots.SnapshotFileInfo;
+import com.syncduo.server.model.api.snapshots.SnapshotFilePage;
 import com.syncduo.server.model.api.snapshots.SnapshotInfo;
 import com.syncduo.server.model.api.snapshots.SyncFlowWithSnapshots;
 import com.syncduo.server.model.api.syncflow.ManualBackupRequest;
@@ -14,27 +21,46 @@ import com.syncduo.server.model.entity.SyncFlowEntity;
 import com.syncduo.server.model.restic.ls.Node;
 import com.syncduo.server.service.db.impl.BackupJobService;
 import com.syncduo.server.service.db.impl.SyncFlowService;
+import com.syncduo.server.service.restic.BackupScheduler;
 import com.syncduo.server.service.restic.ResticFacadeService;
+import com.syncduo.server.service.restic.ResticProgressService;
 import com.syncduo.server.util.EntityValidationUtil;
+import com.syncduo.server.util.HttpRangeUtil;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.ibatis.annotations.Param;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.AsyncRequestTimeoutException;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.net.MalformedURLException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 @RequestMapping("/snapshots")
@@ -42,20 +68,38 @@ import java.util.List;
 @CrossOrigin(originPatterns = "*")
 public class SnapshotsController {
 
+    private static final int DEFAULT_PAGE_SIZE = 200;
+
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    // stream download 的请求超时比 restic dump 的超时稍长, 由 restic 先结束并报告错误
+    private static final long DUMP_TIMEOUT_MARGIN_MILLIS = 60 * 1000;
+
     private final SyncFlowService syncFlowService;
 
     private final BackupJobService backupJobService;
 
     private final ResticFacadeService resticFacadeService;
 
+    private final ResticProgressService resticProgressService;
+
+    private final BackupScheduler backupScheduler;
+
+    @Value("${syncduo.server.restic.dumpTimeoutSec:21600}")
+    private long RESTIC_DUMP_TIMEOUT_SEC;
+
     @Autowired
     public SnapshotsController(
             SyncFlowService syncFlowService,
             BackupJobService backupJobService,
-            ResticFacadeService resticFacadeService) {
+            ResticFacadeService resticFacadeService,
+            ResticProgressService resticProgressService,
+            BackupScheduler backupScheduler) {
         this.syncFlowService = syncFlowService;
         this.backupJobService = backupJobService;
         this.resticFacadeService = resticFacadeService;
+        this.resticProgressService = resticProgressService;
+        this.backupScheduler = backupScheduler;
     }
 
     @PostMapping("/backup")
@@ -68,11 +112,19 @@ public class SnapshotsController {
         if (ObjectUtils.isEmpty(syncFlowEntity)) {
             throw new ResourceNotFoundException("backup failed. SyncFlow is deleted");
         }
-        // backup
-        this.resticFacadeService.backup(syncFlowEntity);
+        // 手动 backup 排在队列最前面
+        if (!this.backupScheduler.submit(syncFlowEntity, true)) {
+            return SyncDuoHttpResponse.success(null, "backup is already queued or not allowed");
+        }
         return SyncDuoHttpResponse.success();
     }
 
+    // 运行中和排队中的 backup, 包含队列位置和等待时间
+    @GetMapping("/get-backup-queue")
+    public SyncDuoHttpResponse<List<BackupQueueInfo>> getBackupQueue() {
+        return SyncDuoHttpResponse.success(this.backupScheduler.getBackupQueueInfo());
+    }
+
     @GetMapping("/get-snapshot-files")
     public SyncDuoHttpResponse<List<SnapshotFileInfo>> getSnapshotFiles(
             @Param("backupJobId") String backupJobId,
@@ -80,28 +132,17 @@ public class SnapshotsController {
         if (StringUtils.isAnyBlank(backupJobId, pathString)) {
             throw new ValidationException("getSnapshotsFile failed. backupJobId or path is null.");
         }
-        // 查询 backup job entity
-        BackupJobEntity backupJobEntity = this.backupJobService.getByBackupJobId(Long.parseLong(backupJobId));
-        if (ObjectUtils.isEmpty(backupJobEntity)) {
-            throw new ResourceNotFoundException("getSnapshotsFile failed. backupJobId not found.");
-        }
-        // 如果 backup 没有产生 snapshot, 则使用最新的 snapshot
-        if (StringUtils.isBlank(backupJobEntity.getSnapshotId())) {
-            backupJobEntity = this.backupJobService.getFirstValidSnapshotId(backupJobEntity);
-            if (StringUtils.isBlank(backupJobEntity.getSnapshotId())) {
-                return SyncDuoHttpResponse.success(null, "there is no snapshot");
-            }
+        String snapshotId = this.getSnapshotIdOfBackupJob(backupJobId);
+        if (StringUtils.isBlank(snapshotId)) {
+            return SyncDuoHttpResponse.success(null, "there is no snapshot");
         }
-        List<Node> nodeList = this.resticFacadeService.getSnapshotFileInfo(
-                backupJobEntity.getSnapshotId(),
-                pathString
-        );
+        List<Node> nodeList = this.resticFacadeService.getSnapshotFileInfo(snapshotId, pathString);
         if (CollectionUtils.isEmpty(nodeList)) {
             return SyncDuoHttpResponse.success(null, "getSnapshotsFile success. there is no file.");
         }
         List<SnapshotFileInfo> result = new ArrayList<>();
         for (Node node : nodeList) {
-            result.add(SnapshotFileInfo.getFromResticNode(backupJobEntity.getSnapshotId(), node));
+            result.add(SnapshotFileInfo.getFromResticNode(snapshotId, node));
         }
         // restic ls 命令, 使用形如 /<folder1>/ 的方式查询, 还是会把 folder1 包含在查询结果中
         // 所以需要去除 pathString 的结果
@@ -124,6 +165,32 @@ public class SnapshotsController {
         return SyncDuoHttpResponse.success(result);
     }
 
+    // 分页版本. 排序稳定(目录在前, 再按名称), 使用 nextCursor 获取下一页, namePrefix 按文件名前缀过滤
+    @GetMapping("/get-snapshot-files-page")
+    public SyncDuoHttpResponse<SnapshotFilePage> getSnapshotFilesPage(
+            @RequestParam("backupJobId") String backupJobId,
+            @RequestParam("pathString") String pathString,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "pageSize", required = false) Integer pageSize,
+            @RequestParam(value = "namePrefix", required = false) String namePrefix) {
+        if (StringUtils.isAnyBlank(backupJobId, pathString)) {
+            throw new ValidationException("getSnapshotFilesPage failed. backupJobId or path is null.");
+        }
+        if (ObjectUtils.isEmpty(pageSize)) {
+            pageSize = DEFAULT_PAGE_SIZE;
+        }
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new ValidationException("getSnapshotFilesPage failed. pageSize should between 1 and %s"
+                    .formatted(MAX_PAGE_SIZE));
+        }
+        String snapshotId = this.getSnapshotIdOfBackupJob(backupJobId);
+        if (StringUtils.isBlank(snapshotId)) {
+            return SyncDuoHttpResponse.success(null, "there is no snapshot");
+        }
+        return SyncDuoHttpResponse.success(this.resticFacadeService.getSnapshotFilePage(
+                snapshotId, pathString, cursor, namePrefix, pageSize));
+    }
+
     @GetMapping("/get-all-syncflow-with-snapshots")
     public SyncDuoHttpResponse<List<SyncFlowWithSnapshots>> getAllSyncFlowWithSnapshots() {
         // 获取全部 syncflow
@@ -159,10 +226,32 @@ public class SnapshotsController {
         return SyncDuoHttpResponse.success(Long.toString(restoreJobId));
     }
 
+    // restore 得到的文件支持 Range 和 If-Range, 断点续传和视频预览的拖动都只请求需要的部分
     @GetMapping("/get-download-files")
-    public ResponseEntity<Resource> getDownloadFiles(
+    public void downloadFiles(
             @RequestParam("restoreJobId") String restoreJobId,
-            @RequestParam("isPreview") Boolean isPreview) {
+            @RequestParam("isPreview") Boolean isPreview,
+            HttpServletRequest request,
+            HttpServletResponse response) {
+        ResponseEntity<Resource> responseEntity = this.getDownloadFiles(restoreJobId, isPreview);
+        if (!(responseEntity.getBody() instanceof FileSystemResource fileSystemResource)) {
+            response.setStatus(responseEntity.getStatusCode().value());
+            return;
+        }
+        try {
+            HttpRangeUtil.sendFile(request, response, fileSystemResource.getFile().toPath(), responseEntity.getHeaders());
+        } catch (IOException e) {
+            if (!response.isCommitted()) {
+                throw new FileOperationException("downloadFiles failed. restoreJobId is %s"
+                        .formatted(restoreJobId), e);
+            }
+            // 已经开始发送, 通常是客户端断开
+            log.debug("downloadFiles interrupted. restoreJobId is {}", restoreJobId, e);
+        }
+    }
+
+    // 返回 restore 得到的文件和响应头. restore job 还在运行时返回 204
+    private ResponseEntity<Resource> getDownloadFiles(String restoreJobId, Boolean isPreview) {
         if (StringUtils.isBlank(restoreJobId)) {
             throw new ValidationException("getDownloadFiles failed. restoreJobId is blank");
         }
@@ -176,13 +265,14 @@ public class SnapshotsController {
         if (ObjectUtils.isEmpty(restoreFile)) {
             return ResponseEntity.noContent().build();
         }
-        UrlResource urlResource;
+        BasicFileAttributes attrs;
         try {
-            urlResource = new UrlResource(restoreFile.toUri());
-        } catch (MalformedURLException e) {
-            throw new BusinessException(("getDownloadFiles failed. " +
-                    "restoreFile:%s can't convert to url.").formatted(restoreFile), e);
+            attrs = Files.readAttributes(restoreFile, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new FileOperationException("getDownloadFiles failed. " +
+                    "restoreFile:%s can't read attributes.".formatted(restoreFile), e);
         }
+        FileSystemResource fileSystemResource = new FileSystemResource(restoreFile);
         String fileName = restoreFile.getFileName().toString();
         // 不是 preview 则直接返回文件
         if (!isPreview) {
@@ -191,7 +281,9 @@ public class SnapshotsController {
                             "attachment; filename=\"" + fileName + "\"")
                     .header(HttpHeaders.ACCESS_CONTROL_EXPOSE_HEADERS, HttpHeaders.CONTENT_DISPOSITION)
                     .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                    .body(urlResource);
+                    .eTag(HttpRangeUtil.getETag(attrs))
+                    .lastModified(attrs.lastModifiedTime().toMillis())
+                    .body(fileSystemResource);
         }
         // 是预览则判断 media type 并返回二进制流
         MediaType mediaType = determineContentType(fileName);
@@ -201,7 +293,131 @@ public class SnapshotsController {
         return ResponseEntity.ok()
                 .contentType(mediaType)
                 .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + fileName + "\"")
-                .body(urlResource);
+                .eTag(HttpRangeUtil.getETag(attrs))
+                .lastModified(attrs.lastModifiedTime().toMillis())
+                .body(fileSystemResource);
+    }
+
+    // 不提交 restore job, 直接把 restic dump 的输出写入 response. 目录打包为 zip 或 tar, 文件输出原始内容
+    // 没有中间文件, 立即开始下载. 多个文件的下载仍然使用 submit-download-job
+    @GetMapping("/stream-download-files")
+    public ResponseEntity<StreamingResponseBody> streamDownloadFiles(
+            @RequestParam("snapshotId") String snapshotId,
+            @RequestParam("path") String path,
+            @RequestParam("type") String type,
+            @RequestParam(value = "archive", required = false, defaultValue = "zip") String archive,
+            HttpServletRequest request,
+            HttpServletResponse response) {
+        if (StringUtils.isAnyBlank(snapshotId, path, type)) {
+            throw new ValidationException("streamDownloadFiles failed. snapshotId, path or type is blank");
+        }
+        ResticNodeTypeEnum resticNodeType = ResticNodeTypeEnum.fromString(type);
+        if (resticNodeType == ResticNodeTypeEnum.UNKNOWN) {
+            throw new ValidationException("streamDownloadFiles failed. type:%s is not supported.".formatted(type));
+        }
+        String name = Path.of(path).getFileName() == null ?
+                "snapshot-" + snapshotId.substring(0, Math.min(8, snapshotId.length())) :
+                Path.of(path).getFileName().toString();
+        MediaType mediaType;
+        ResticDumpArchiveEnum resticDumpArchive = null;
+        if (resticNodeType == ResticNodeTypeEnum.DIRECTORY) {
+            resticDumpArchive = ResticDumpArchiveEnum.fromArchiveString(archive);
+            if (resticDumpArchive == ResticDumpArchiveEnum.UNKNOWN) {
+                throw new ValidationException("streamDownloadFiles failed. archive:%s is not supported."
+                        .formatted(archive));
+            }
+            name = name + "." + resticDumpArchive.getArchive();
+            mediaType = MediaType.parseMediaType(resticDumpArchive.getContentType());
+        } else {
+            mediaType = MediaType.APPLICATION_OCTET_STREAM;
+        }
+        ResticDumpArchiveEnum finalResticDumpArchive = resticDumpArchive;
+        // 超时只作用于这个请求, 不修改全局的 async 超时
+        WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(
+                DumpTimeoutInterceptor.class.getName(),
+                new DumpTimeoutInterceptor(
+                        TimeUnit.SECONDS.toMillis(RESTIC_DUMP_TIMEOUT_SEC) + DUMP_TIMEOUT_MARGIN_MILLIS));
+        StreamingResponseBody body = outputStream -> {
+            try {
+                this.resticFacadeService.dumpToStream(snapshotId, path, finalResticDumpArchive, outputStream);
+            } catch (RuntimeException e) {
+                // 已经发送了部分内容, 不能再返回错误信息, 中断连接
+                if (response.isCommitted()) {
+                    throw new ResponseCommittedException(("streamDownloadFiles failed after response committed. " +
+                            "snapshotId is %s, path is %s").formatted(snapshotId, path), e);
+                }
+                throw e;
+            }
+        };
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION,
+                        ContentDisposition.attachment().filename(name, StandardCharsets.UTF_8).build().toString())
+                .header(HttpHeaders.ACCESS_CONTROL_EXPOSE_HEADERS, HttpHeaders.CONTENT_DISPOSITION)
+                .contentType(mediaType)
+                .body(body);
+    }
+
+    // SSE 不可用时的轮询接口. jobType 和 jobId 都为空时返回全部进度
+    @GetMapping("/get-job-progress")
+    public SyncDuoHttpResponse<List<JobProgress>> getJobProgress(
+            @RequestParam(value = "jobType", required = false) String jobType,
+            @RequestParam(value = "jobId", required = false) String jobId) {
+        if (StringUtils.isAllBlank(jobType, jobId)) {
+            return SyncDuoHttpResponse.success(this.resticProgressService.getAllProgress());
+        }
+        if (StringUtils.isAnyBlank(jobType, jobId)) {
+            throw new ValidationException("getJobProgress failed. jobType or jobId is blank.");
+        }
+        JobProgress jobProgress = this.resticProgressService.getProgress(
+                parseJobType(jobType), parseJobId(jobId));
+        if (ObjectUtils.isEmpty(jobProgress)) {
+            return SyncDuoHttpResponse.success(Collections.emptyList(), "job is not running or finished long ago");
+        }
+        return SyncDuoHttpResponse.success(List.of(jobProgress));
+    }
+
+    // 订阅进度, 每次 restic 输出 status 后推送 progress 事件. 参数为空表示不过滤
+    @GetMapping(value = "/subscribe-job-progress", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeJobProgress(
+            @RequestParam(value = "jobType", required = false) String jobType,
+            @RequestParam(value = "jobId", required = false) String jobId) {
+        return this.resticProgressService.subscribe(
+                StringUtils.isBlank(jobType) ? null : parseJobType(jobType),
+                StringUtils.isBlank(jobId) ? null : parseJobId(jobId));
+    }
+
+    private static ResticJobTypeEnum parseJobType(String jobType) {
+        ResticJobTypeEnum resticJobType = ResticJobTypeEnum.fromName(jobType);
+        if (resticJobType == ResticJobTypeEnum.UNKNOWN) {
+            throw new ValidationException("jobType:%s is not supported.".formatted(jobType));
+        }
+        return resticJobType;
+    }
+
+    private static long parseJobId(String jobId) {
+        try {
+            return Long.parseLong(jobId);
+        } catch (Exception e) {
+            throw new ValidationException("jobId:%s can't convert to long.".formatted(jobId));
+        }
+    }
+
+    // 如果 backup 没有产生 snapshot, 则使用最新的 snapshot. 没有可用的 snapshot 返回 null
+    private String getSnapshotIdOfBackupJob(String backupJobId) {
+        long id;
+        try {
+            id = Long.parseLong(backupJobId);
+        } catch (Exception e) {
+            throw new ValidationException("backupJobId can't convert to long");
+        }
+        BackupJobEntity backupJobEntity = this.backupJobService.getByBackupJobId(id);
+        if (ObjectUtils.isEmpty(backupJobEntity)) {
+            throw new ResourceNotFoundException("getSnapshotsFile failed. backupJobId not found.");
+        }
+        if (StringUtils.isBlank(backupJobEntity.getSnapshotId())) {
+            backupJobEntity = this.backupJobService.getFirstValidSnapshotId(backupJobEntity);
+        }
+        return backupJobEntity.getSnapshotId();
     }
 
     private MediaType determineContentType(String filename) {
@@ -213,6 +429,9 @@ public class SnapshotsController {
             case "jpg", "jpeg" -> MediaType.IMAGE_JPEG;
             case "png" -> MediaType.IMAGE_PNG;
             case "gif" -> MediaType.IMAGE_GIF;
+            case "mp4" -> MediaType.parseMediaType("video/mp4");
+            case "webm" -> MediaType.parseMediaType("video/webm");
+            case "mp3" -> MediaType.parseMediaType("audio/mpeg");
             // ... 可以添加更多支持的类型
             default -> null;
         };
@@ -248,4 +467,33 @@ public class SnapshotsController {
         syncFlowWithSnapshots.setSnapshotInfoList(snapshotInfos);
         return syncFlowWithSnapshots;
     }
+
+    // 在 startAsync 之前设置当前请求的超时. 超时时响应已经开始发送, 则中断连接而不是写入错误信息
+    private static class DumpTimeoutInterceptor implements CallableProcessingInterceptor {
+
+        private final long timeoutMillis;
+
+        DumpTimeoutInterceptor(long timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public <T> void beforeConcurrentHandling(NativeWebRequest request, Callable<T> task) {
+            if (request instanceof AsyncWebRequest asyncWebRequest) {
+                asyncWebRequest.setTimeout(this.timeoutMillis);
+            }
+        }
+
+        @Override
+        public <T> Object handleTimeout(NativeWebRequest request, Callable<T> task) {
+            HttpServletResponse response = request.getNativeResponse(HttpServletResponse.class);
+            if (ObjectUtils.isNotEmpty(response) && response.isCommitted()) {
+                return new ResponseCommittedException(
+                        "streamDownloadFiles timeout after response committed. timeout is %s ms"
+                                .formatted(this.timeoutMillis),
+                        new AsyncRequestTimeoutException());
+            }
+            return RESULT_NONE;
+        }
+    }
 }
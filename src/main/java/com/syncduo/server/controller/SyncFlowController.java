@@ -8,11 +8,11 @@ import com.syncduo.server.model.api.global.FolderStats;
 import com.syncduo.server.model.api.global.SyncDuoHttpResponse;
 import com.syncduo.server.model.api.syncflow.*;
 import com.syncduo.server.model.entity.SyncFlowEntity;
+import com.syncduo.server.service.bussiness.FolderStatsService;
 import com.syncduo.server.service.bussiness.SystemManagementService;
 import com.syncduo.server.service.db.impl.SyncFlowService;
 import com.syncduo.server.service.rclone.RcloneFacadeService;
 import com.syncduo.server.util.EntityValidationUtil;
-import com.syncduo.server.util.FilesystemUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.ObjectUtils;
@@ -39,16 +39,20 @@ public class SyncFlowController {
 
     private final SystemManagementService systemManagementService;
 
+    private final FolderStatsService folderStatsService;
+
     @Autowired
     public SyncFlowController(
             SyncFlowService syncFlowService,
             FolderWatcher folderWatcher,
             RcloneFacadeService rcloneFacadeService,
-            SystemManagementService systemManagementService) {
+            SystemManagementService systemManagementService,
+            FolderStatsService folderStatsService) {
         this.syncFlowService = syncFlowService;
         this.folderWatcher = folderWatcher;
         this.rcloneFacadeService = rcloneFacadeService;
         this.systemManagementService = systemManagementService;
+        this.folderStatsService = folderStatsService;
     }
 
     @PostMapping("/update-filter-criteria")
@@ -69,6 +73,9 @@ public class SyncFlowController {
         // 更新 filter
         syncFlowEntity.setFilterCriteria(updateFilterCriteriaRequest.getFilterCriteria());
         this.syncFlowService.updateById(syncFlowEntity);
+        this.rcloneFacadeService.invalidateFilter(syncFlowId);
+        // watcher 的剪枝范围随 filter 变化
+        this.folderWatcher.refreshWatcher(syncFlowEntity.getSourceFolderPath());
         // 修改完成
         return SyncDuoHttpResponse.success();
     }
@@ -148,8 +155,9 @@ public class SyncFlowController {
         SyncFlowTypeEnum syncFlowTypeEnum =
                 SyncFlowTypeEnum.fromTypeString(createSyncFlowRequest.getSyncFlowType());
         if (syncFlowTypeEnum == SyncFlowTypeEnum.REACTIVE_SYNC) {
-            // 添加 watcher
+            // 添加 watcher. 源文件夹已有 watcher 时, 新 syncflow 可能缩小剪枝范围
             this.folderWatcher.addWatcher(syncFlowEntity.getSourceFolderPath());
+            this.folderWatcher.refreshWatcher(syncFlowEntity.getSourceFolderPath());
             // 开始扫描
             this.systemManagementService.checkSyncFlowStatusAsync(syncFlowEntity, true);
         }
@@ -221,14 +229,15 @@ public class SyncFlowController {
         }
     }
 
-    private SyncFlowInfo getSyncFlowInfo(SyncFlowEntity syncFlowEntity)
-            throws ValidationException, ResourceNotFoundException, FileOperationException {
+    private SyncFlowInfo getSyncFlowInfo(SyncFlowEntity syncFlowEntity) {
         if (syncFlowEntity.getSyncStatus().equals(SyncFlowStatusEnum.INITIAL_SCAN.name())) {
             return new SyncFlowInfo(syncFlowEntity);
         }
-        // 本地获取 folderStat
-        List<Long> folderInfo = FilesystemUtil.getFolderInfo(syncFlowEntity.getDestFolderPath());
-        FolderStats folderStats = new FolderStats(folderInfo.get(0), folderInfo.get(1), folderInfo.get(2));
-        return new SyncFlowInfo(syncFlowEntity, folderStats);
+        // 从内存获取 folderStat, 还没有统计完成则不返回
+        long[] folderInfo = this.folderStatsService.getFolderStats(syncFlowEntity);
+        if (ObjectUtils.isEmpty(folderInfo)) {
+            return new SyncFlowInfo(syncFlowEntity);
+        }
+        return new SyncFlowInfo(syncFlowEntity, new FolderStats(folderInfo));
     }
 }
@@ -1,16 +1,22 @@
 package com.syncduo.server.controller;
 
+import com.syncduo.server.bus.FilesystemEventQueue;
 import com.syncduo.server.bus.FolderWatcher;
 import com.syncduo.server.exception.ValidationException;
 import com.syncduo.server.model.api.global.FolderStats;
 import com.syncduo.server.model.api.global.SyncDuoHttpResponse;
+import com.syncduo.server.model.api.systeminfo.EventQueueStats;
+import com.syncduo.server.model.api.systeminfo.FolderWatcherStats;
+import com.syncduo.server.model.api.systeminfo.RcloneTransportLatency;
+import com.syncduo.server.model.api.systeminfo.SyncFlowLockStats;
 import com.syncduo.server.model.api.systeminfo.SystemInfo;
 import com.syncduo.server.model.api.systeminfo.SystemSettings;
 import com.syncduo.server.model.entity.SyncFlowEntity;
 import com.syncduo.server.model.rclone.core.stat.CoreStatsResponse;
+import com.syncduo.server.service.bussiness.FolderStatsService;
+import com.syncduo.server.service.bussiness.SystemManagementService;
 import com.syncduo.server.service.db.impl.SyncFlowService;
 import com.syncduo.server.service.rclone.RcloneFacadeService;
-import com.syncduo.server.util.FilesystemUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.ObjectUtils;
@@ -18,6 +24,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.lang.management.ManagementFactory;
@@ -38,16 +45,28 @@ public class SystemInfoController {
 
     private final SystemSettings systemSettings;
 
+    private final FilesystemEventQueue filesystemEventQueue;
+
+    private final SystemManagementService systemManagementService;
+
+    private final FolderStatsService folderStatsService;
+
     @Autowired
     public SystemInfoController(
             SyncFlowService syncFlowService,
             FolderWatcher folderWatcher,
             RcloneFacadeService rcloneFacadeService,
-            SystemSettings systemSettings) {
+            SystemSettings systemSettings,
+            FilesystemEventQueue filesystemEventQueue,
+            SystemManagementService systemManagementService,
+            FolderStatsService folderStatsService) {
         this.syncFlowService = syncFlowService;
         this.folderWatcher = folderWatcher;
         this.rcloneFacadeService = rcloneFacadeService;
         this.systemSettings = systemSettings;
+        this.filesystemEventQueue = filesystemEventQueue;
+        this.systemManagementService = systemManagementService;
+        this.folderStatsService = folderStatsService;
     }
 
     @GetMapping("/get-system-settings")
@@ -55,6 +74,34 @@ public class SystemInfoController {
         return SyncDuoHttpResponse.success(systemSettings);
     }
 
+    @GetMapping("/get-folder-watcher-stats")
+    public SyncDuoHttpResponse<List<FolderWatcherStats>> getFolderWatcherStats() {
+        return SyncDuoHttpResponse.success(this.folderWatcher.getFolderWatcherStats());
+    }
+
+    @GetMapping("/get-sync-flow-lock-stats")
+    public SyncDuoHttpResponse<List<SyncFlowLockStats>> getSyncFlowLockStats() {
+        return SyncDuoHttpResponse.success(this.systemManagementService.getSyncFlowLockStats());
+    }
+
+    @GetMapping("/get-event-queue-stats")
+    public SyncDuoHttpResponse<EventQueueStats> getEventQueueStats() {
+        EventQueueStats eventQueueStats = new EventQueueStats();
+        eventQueueStats.setQueueDepth(this.filesystemEventQueue.size());
+        eventQueueStats.setCoalescedCount(this.filesystemEventQueue.getCoalescedCount());
+        eventQueueStats.setOverflowCount(this.filesystemEventQueue.getOverflowCount());
+        return SyncDuoHttpResponse.success(eventQueueStats);
+    }
+
+    @GetMapping("/get-rclone-transport-latency")
+    public SyncDuoHttpResponse<List<RcloneTransportLatency>> getRcloneTransportLatency(
+            @RequestParam(value = "iterations", defaultValue = "200") int iterations) {
+        if (iterations <= 0 || iterations > 10000) {
+            throw new ValidationException("getRcloneTransportLatency failed. iterations should be in (0, 10000]");
+        }
+        return SyncDuoHttpResponse.success(this.rcloneFacadeService.measureTransportLatency(iterations));
+    }
+
     @GetMapping("/get-system-info")
     public SyncDuoHttpResponse<SystemInfo> getSystemInfo() {
         SystemInfo systemInfo = new SystemInfo();
@@ -79,13 +126,16 @@ public class SystemInfoController {
             return SyncDuoHttpResponse.success(systemInfo);
         }
         systemInfo.setSyncFlowNumber(allSyncFlow.size());
-        // 遍历 sync flow 累加 folder stats
+        // 遍历 sync flow 累加内存中的 folder stats, 还没有统计完成的跳过
         long[] folderStatsArray = {0, 0, 0};
         for (SyncFlowEntity syncFlowEntity : allSyncFlow) {
-            List<Long> folderInfo = FilesystemUtil.getFolderInfo(syncFlowEntity.getDestFolderPath());
-            folderStatsArray[0] += folderInfo.get(0);
-            folderStatsArray[1] += folderInfo.get(1);
-            folderStatsArray[2] += folderInfo.get(2);
+            long[] folderInfo = this.folderStatsService.getFolderStats(syncFlowEntity);
+            if (ObjectUtils.isEmpty(folderInfo)) {
+                continue;
+            }
+            folderStatsArray[0] += folderInfo[0];
+            folderStatsArray[1] += folderInfo[1];
+            folderStatsArray[2] += folderInfo[2];
         }
         FolderStats folderStats = new FolderStats(folderStatsArray);
         systemInfo.setFolderStats(folderStats);
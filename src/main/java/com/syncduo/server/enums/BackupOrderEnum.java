@@ -0,0 +1,31 @@
+package com.syncduo.server.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@AllArgsConstructor
+@Getter
+public enum BackupOrderEnum {
+
+    // 最近一次 snapshot 最旧的先备份, 从未备份过的最先
+    OLDEST_SNAPSHOT_FIRST("OLDEST_SNAPSHOT_FIRST"),
+
+    // 上次 snapshot 之后源文件夹有变化的先备份
+    DIRTY_FIRST("DIRTY_FIRST"),
+
+    // 上次 snapshot 处理的字节数少的先备份
+    SMALLEST_FIRST("SMALLEST_FIRST"),
+
+    ;
+
+    private final String order;
+
+    public static BackupOrderEnum fromOrderString(String order) {
+        for (BackupOrderEnum value : values()) {
+            if (value.order.equalsIgnoreCase(order)) {
+                return value;
+            }
+        }
+        return OLDEST_SNAPSHOT_FIRST;
+    }
+}
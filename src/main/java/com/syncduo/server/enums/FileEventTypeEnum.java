@@ -7,4 +7,7 @@ public enum FileEventTypeEnum {
     FILE_MODIFIED,
 
     FILE_DELETED,
+
+    // 事件队列溢出, 整个文件夹需要 syncCopy
+    FOLDER_DIRTY,
 }
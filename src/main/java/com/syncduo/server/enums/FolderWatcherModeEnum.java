@@ -0,0 +1,31 @@
+package com.syncduo.server.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@AllArgsConstructor
+@Getter
+public enum FolderWatcherModeEnum {
+
+    // commons-io FileAlterationMonitor 轮询
+    POLLING("POLLING"),
+
+    // 内核通知(inotify), 基于 java.nio WatchService
+    NATIVE("NATIVE"),
+
+    // 所有 watcher 共用一个有界线程池轮询, 限制同一挂载点的并发扫描
+    SCHEDULED("SCHEDULED"),
+
+    ;
+
+    private final String mode;
+
+    public static FolderWatcherModeEnum fromModeString(String mode) {
+        for (FolderWatcherModeEnum value : values()) {
+            if (value.mode.equalsIgnoreCase(mode)) {
+                return value;
+            }
+        }
+        return POLLING;
+    }
+}
@@ -0,0 +1,30 @@
+package com.syncduo.server.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+// restic dump --archive 支持的格式
+@AllArgsConstructor
+@Getter
+public enum ResticDumpArchiveEnum {
+
+    ZIP("zip", "application/zip"),
+
+    TAR("tar", "application/x-tar"),
+
+    UNKNOWN("unknown", "application/octet-stream")
+    ;
+
+    private final String archive;
+
+    private final String contentType;
+
+    public static ResticDumpArchiveEnum fromArchiveString(String archive) {
+        for (ResticDumpArchiveEnum value : values()) {
+            if (value != UNKNOWN && value.archive.equalsIgnoreCase(archive)) {
+                return value;
+            }
+        }
+        return UNKNOWN;
+    }
+}
@@ -0,0 +1,27 @@
+package com.syncduo.server.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@AllArgsConstructor
+@Getter
+public enum ResticJobTypeEnum {
+
+    BACKUP("BACKUP"),
+
+    RESTORE("RESTORE"),
+
+    UNKNOWN("UNKNOWN")
+    ;
+
+    private final String name;
+
+    public static ResticJobTypeEnum fromName(String name) {
+        for (ResticJobTypeEnum value : values()) {
+            if (value.name.equals(name)) {
+                return value;
+            }
+        }
+        return UNKNOWN;
+    }
+}
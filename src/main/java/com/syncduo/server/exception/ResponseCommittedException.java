@@ -0,0 +1,14 @@
+package com.syncduo.server.exception;
+
+import lombok.EqualsAndHashCode;
+import org.springframework.http.HttpStatus;
+
+
+// 响应已经开始发送后发生的错误, 无法再返回错误信息. 由容器中断连接, 客户端看到下载失败而不是被截断的 200
+@EqualsAndHashCode(callSuper = false)
+public class ResponseCommittedException extends SyncDuoException {
+
+    public ResponseCommittedException(String message, Throwable cause) {
+        super(HttpStatus.INTERNAL_SERVER_ERROR, message, cause);
+    }
+}
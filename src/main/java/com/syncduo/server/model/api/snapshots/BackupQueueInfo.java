@@ -0,0 +1,23 @@
+package com.syncduo.server.model.api.snapshots;
+
+import lombok.Data;
+
+@Data
+public class BackupQueueInfo {
+
+    private String syncFlowId;
+
+    private String syncFlowName;
+
+    private String backupStatus; // QUEUED, RUNNING
+
+    private boolean manual;
+
+    private int queuePosition; // 从 1 开始, 运行中为 0
+
+    private long enqueuedAt; // epoch millis
+
+    private long waitMillis; // 排队时间, 运行中为实际等待时间
+
+    private Long startedAt; // epoch millis, 排队中为 null
+}
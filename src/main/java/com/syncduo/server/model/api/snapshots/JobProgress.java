@@ -0,0 +1,56 @@
+package com.syncduo.server.model.api.snapshots;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class JobProgress {
+
+    private String jobType; // BACKUP, RESTORE
+
+    private String jobId; // backupJobId 或 restoreJobId
+
+    private String jobStatus; // RUNNING, SUCCESS, FAILED
+
+    private double percentDone; // 0 ~ 1
+
+    private long secondsElapsed;
+
+    private long totalFiles;
+
+    private long filesDone;
+
+    private long totalBytes;
+
+    private long bytesDone;
+
+    private long errorCount;
+
+    private List<String> currentFiles;
+
+    private long bytesPerSecond;
+
+    private Long etaSeconds; // 未知则为 null
+
+    private long updatedAt; // epoch millis
+
+    public JobProgress copy() {
+        JobProgress copy = new JobProgress();
+        copy.setJobType(this.jobType);
+        copy.setJobId(this.jobId);
+        copy.setJobStatus(this.jobStatus);
+        copy.setPercentDone(this.percentDone);
+        copy.setSecondsElapsed(this.secondsElapsed);
+        copy.setTotalFiles(this.totalFiles);
+        copy.setFilesDone(this.filesDone);
+        copy.setTotalBytes(this.totalBytes);
+        copy.setBytesDone(this.bytesDone);
+        copy.setErrorCount(this.errorCount);
+        copy.setCurrentFiles(this.currentFiles);
+        copy.setBytesPerSecond(this.bytesPerSecond);
+        copy.setEtaSeconds(this.etaSeconds);
+        copy.setUpdatedAt(this.updatedAt);
+        return copy;
+    }
+}
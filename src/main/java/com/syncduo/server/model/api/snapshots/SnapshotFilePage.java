@@ -0,0 +1,15 @@
+package com.syncduo.server.model.api.snapshots;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class SnapshotFilePage {
+
+    private List<SnapshotFileInfo> snapshotFileInfoList;
+
+    private String nextCursor; // 最后一页为 null
+
+    private boolean hasMore;
+}
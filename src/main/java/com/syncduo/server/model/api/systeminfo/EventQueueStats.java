@@ -0,0 +1,13 @@
+package com.syncduo.server.model.api.systeminfo;
+
+import lombok.Data;
+
+@Data
+public class EventQueueStats {
+
+    private int queueDepth;
+
+    private long coalescedCount;
+
+    private long overflowCount;
+}
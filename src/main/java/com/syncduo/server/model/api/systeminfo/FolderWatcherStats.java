@@ -0,0 +1,27 @@
+package com.syncduo.server.model.api.systeminfo;
+
+import lombok.Data;
+
+@Data
+public class FolderWatcherStats {
+
+    private String folderPath;
+
+    private String watcherType;
+
+    private String mountPoint;
+
+    private long scanCount;
+
+    private long lastScanMillis;
+
+    private long averageScanMillis;
+
+    private long maxScanMillis;
+
+    private long lastScanAt; // epoch millis
+
+    private long indexedFileCount; // -1 表示不支持统计
+
+    private long estimatedMemoryBytes; // -1 表示不支持统计
+}
@@ -0,0 +1,22 @@
+package com.syncduo.server.model.api.systeminfo;
+
+import lombok.Data;
+
+@Data
+public class RcloneTransportLatency {
+
+    // unix or tcp
+    private String transport;
+
+    private int iterations;
+
+    private int failed;
+
+    private long averageMicros;
+
+    private long p50Micros;
+
+    private long p99Micros;
+
+    private long maxMicros;
+}
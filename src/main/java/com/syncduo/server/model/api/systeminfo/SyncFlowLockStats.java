@@ -0,0 +1,23 @@
+package com.syncduo.server.model.api.systeminfo;
+
+import lombok.Data;
+
+@Data
+public class SyncFlowLockStats {
+
+    private long syncFlowId;
+
+    private int readerCount;
+
+    private boolean writerHeld;
+
+    private int queueLength;
+
+    private long acquireCount;
+
+    private long waitCount; // 需要排队的次数
+
+    private long totalWaitMillis;
+
+    private long maxWaitMillis;
+}
@@ -24,6 +24,8 @@ public class SystemSettings {
         @JsonSerialize(using = ToStringSerializer.class)
         private Long folderWatcherIntervalMillis;
 
+        private String folderWatcherMode;
+
         @JsonSerialize(using = ToStringSerializer.class)
         private Long checkSyncflowStatusIntervalMillis;
 
@@ -30,5 +30,8 @@ public class CopyJobEntity extends BaseEntity {
 
     private Long transferredBytes;
 
+    // 提交的文件数, syncCopy 为 null
+    private Long fileCount;
+
     private String errorMessage;
 }
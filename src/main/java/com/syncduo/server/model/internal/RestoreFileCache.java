@@ -9,11 +9,17 @@ public class RestoreFileCache {
 
     private long restoreJobId;
 
-    private String debounceJobKey;
-
     private String snapshotId;
 
-    private String folderFullPath;
+    // 一次 restore 多个文件时为空
+    private String originFilePath;
+
+    private String restoreRootPath;
+
+    private String restoreFullPath;
+
+    // restore root folder 的总大小
+    private long bytes;
 
-    private String fileFullPath;
+    private long lastAccessMillis;
 }
@@ -0,0 +1,19 @@
+package com.syncduo.server.model.rclone.job.list;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class JobListResponse {
+
+    // rclone 内存中全部的 job id, 包括已完成但未过期的
+    @JsonProperty("jobids")
+    private List<Integer> jobIds;
+
+    // 1.64 之后的 rclone 才有, 旧版本为 null
+    private List<Integer> runningIds;
+
+    private List<Integer> finishedIds;
+}
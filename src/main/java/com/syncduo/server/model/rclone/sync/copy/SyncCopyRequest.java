@@ -27,4 +27,10 @@ public class SyncCopyRequest {
     public void exclude(List<String> excludeList) {
         this.filter.setExcludeRule(excludeList);
     }
+
+    // 只复制列表文件中的路径, 每行一个相对于 srcFs 的路径
+    public void filesFrom(String filesFromPath) {
+        this.filter.setFilesFromRaw(List.of(filesFromPath));
+        this.createEmptySrcDirs = false;
+    }
 }
@@ -0,0 +1,48 @@
+package com.syncduo.server.model.restic.backup;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+import java.math.BigInteger;
+import java.util.List;
+
+// 进度消息字段随 restic 版本变化, 未知字段忽略, 避免进度解析失败导致整个 backup 失败
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BackupStatus {
+
+    @JsonProperty("message_type")
+    private String messageType;
+
+    @JsonProperty("seconds_elapsed")
+    private BigInteger secondsElapsed;
+
+    @JsonProperty("seconds_remaining")
+    private BigInteger secondsRemaining;
+
+    @JsonProperty("percent_done")
+    private double percentDone;
+
+    @JsonProperty("total_files")
+    private BigInteger totalFiles;
+
+    @JsonProperty("files_done")
+    private BigInteger filesDone;
+
+    @JsonProperty("total_bytes")
+    private BigInteger totalBytes;
+
+    @JsonProperty("bytes_done")
+    private BigInteger bytesDone;
+
+    @JsonProperty("error_count")
+    private BigInteger errorCount;
+
+    @JsonProperty("current_files")
+    private List<String> currentFiles;
+
+    public static String getCondition() {
+        return "status";
+    }
+}
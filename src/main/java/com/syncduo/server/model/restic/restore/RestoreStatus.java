@@ -0,0 +1,47 @@
+package com.syncduo.server.model.restic.restore;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+import java.math.BigInteger;
+
+// 进度消息字段随 restic 版本变化, 未知字段忽略
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class RestoreStatus {
+
+    @JsonProperty("message_type")
+    private String messageType;
+
+    @JsonProperty("seconds_elapsed")
+    private BigInteger secondsElapsed;
+
+    @JsonProperty("percent_done")
+    private double percentDone;
+
+    @JsonProperty("total_files")
+    private BigInteger totalFiles;
+
+    @JsonProperty("files_restored")
+    private BigInteger filesRestored;
+
+    @JsonProperty("files_skipped")
+    private BigInteger filesSkipped;
+
+    @JsonProperty("files_deleted")
+    private BigInteger filesDeleted;
+
+    @JsonProperty("total_bytes")
+    private BigInteger totalBytes;
+
+    @JsonProperty("bytes_restored")
+    private BigInteger bytesRestored;
+
+    @JsonProperty("bytes_skipped")
+    private BigInteger bytesSkipped;
+
+    public static String getCondition() {
+        return "status";
+    }
+}
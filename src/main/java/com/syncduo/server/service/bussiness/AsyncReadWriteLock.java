@@ -0,0 +1,185 @@
+package com.syncduo.server.service.bussiness;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// 不占用线程的读写锁. 获取锁返回 CompletableFuture, 释放时直接唤醒等待者
+// 等待者按 FIFO 排队: 有人排队时新的 reader 也要排队, writer 不会被源源不断的 reader 饿死
+@Slf4j
+public class AsyncReadWriteLock {
+
+    private final Executor executor;
+
+    private final ArrayDeque<Waiter> waiterQueue = new ArrayDeque<>();
+
+    // 以下状态都在 synchronized(this) 中访问
+    private int readerCount = 0;
+
+    private boolean writerHeld = false;
+
+    // 已从 lock map 中回收, 不再发放锁
+    private boolean retired = false;
+
+    private long acquireCount = 0;
+
+    // 需要排队的获取次数
+    private long waitCount = 0;
+
+    private long totalWaitMillis = 0;
+
+    private long maxWaitMillis = 0;
+
+    // 等待者在 executor 中被唤醒, 不在释放锁的线程上执行后续逻辑
+    public AsyncReadWriteLock(Executor executor) {
+        this.executor = executor;
+    }
+
+    // lock 已经回收时返回 null, 调用方需要重新获取 lock 对象
+    public CompletableFuture<Handle> readLock() {
+        return this.acquire(false);
+    }
+
+    // lock 已经回收时返回 null, 调用方需要重新获取 lock 对象
+    public CompletableFuture<Handle> writeLock() {
+        return this.acquire(true);
+    }
+
+    public synchronized long getAcquireCount() {
+        return this.acquireCount;
+    }
+
+    public synchronized long getWaitCount() {
+        return this.waitCount;
+    }
+
+    public synchronized long getTotalWaitMillis() {
+        return this.totalWaitMillis;
+    }
+
+    public synchronized long getMaxWaitMillis() {
+        return this.maxWaitMillis;
+    }
+
+    public synchronized int getReaderCount() {
+        return this.readerCount;
+    }
+
+    public synchronized boolean isWriterHeld() {
+        return this.writerHeld;
+    }
+
+    public synchronized int getQueueLength() {
+        return this.waiterQueue.size();
+    }
+
+    // 没有持有者也没有等待者, 可以回收
+    public synchronized boolean isIdle() {
+        return this.readerCount == 0 && !this.writerHeld && this.waiterQueue.isEmpty();
+    }
+
+    // 空闲时标记为已回收, 返回 true. 之后的 readLock/writeLock 都返回 null,
+    // 拿到旧引用但还没排队的调用方不会和新的 lock 同时持有锁
+    public synchronized boolean retireIfIdle() {
+        if (this.isIdle()) {
+            this.retired = true;
+        }
+        return this.retired;
+    }
+
+    private CompletableFuture<Handle> acquire(boolean write) {
+        Handle handle = new Handle(write);
+        synchronized (this) {
+            if (this.retired) {
+                return null;
+            }
+            this.acquireCount++;
+            if (this.waiterQueue.isEmpty() && this.canGrant(write)) {
+                this.grant(write);
+                return CompletableFuture.completedFuture(handle);
+            }
+            Waiter waiter = new Waiter(handle, System.currentTimeMillis());
+            this.waiterQueue.add(waiter);
+            this.waitCount++;
+            return waiter.future;
+        }
+    }
+
+    private void release(boolean write) {
+        List<Waiter> wokenList = new ArrayList<>(1);
+        synchronized (this) {
+            if (write) {
+                this.writerHeld = false;
+            } else {
+                this.readerCount--;
+            }
+            // 从队头开始唤醒: 一个 writer, 或者连续的多个 reader
+            long now = System.currentTimeMillis();
+            while (!this.waiterQueue.isEmpty() && this.canGrant(this.waiterQueue.peek().handle.write)) {
+                Waiter waiter = this.waiterQueue.poll();
+                this.grant(waiter.handle.write);
+                long waitMillis = now - waiter.enqueueMillis;
+                this.totalWaitMillis += waitMillis;
+                this.maxWaitMillis = Math.max(this.maxWaitMillis, waitMillis);
+                wokenList.add(waiter);
+            }
+        }
+        for (Waiter waiter : wokenList) {
+            try {
+                this.executor.execute(() -> waiter.future.complete(waiter.handle));
+            } catch (Exception e) {
+                log.warn("wake up lock waiter in executor failed. complete in current thread", e);
+                waiter.future.complete(waiter.handle);
+            }
+        }
+    }
+
+    private boolean canGrant(boolean write) {
+        return write ? (this.readerCount == 0 && !this.writerHeld) : !this.writerHeld;
+    }
+
+    private void grant(boolean write) {
+        if (write) {
+            this.writerHeld = true;
+        } else {
+            this.readerCount++;
+        }
+    }
+
+    // 持有锁的凭证. unlock 可以重复调用, 只有第一次生效
+    public class Handle {
+
+        private final boolean write;
+
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Handle(boolean write) {
+            this.write = write;
+        }
+
+        public void unlock() {
+            if (this.released.compareAndSet(false, true)) {
+                release(this.write);
+            }
+        }
+    }
+
+    private static class Waiter {
+
+        private final Handle handle;
+
+        private final long enqueueMillis;
+
+        private final CompletableFuture<Handle> future = new CompletableFuture<>();
+
+        Waiter(Handle handle, long enqueueMillis) {
+            this.handle = handle;
+            this.enqueueMillis = enqueueMillis;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.syncduo.server.service.bussiness;
+
+import com.syncduo.server.model.entity.SyncFlowEntity;
+import com.syncduo.server.model.internal.FilesystemEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+
+// 按 syncflow 收集待复制的文件, 窗口结束或达到上限时一次性交给 flushHandler
+@Service
+@Slf4j
+public class CopyBatchService {
+
+    private final DebounceService.ModuleDebounceService moduleDebounceService;
+
+    // syncFlowId -> 当前未提交的 batch
+    private final Map<Long, CopyBatch> batchMap = new ConcurrentHashMap<>(10);
+
+    @Value("${syncduo.server.system.copyBatchWindowSec:2}")
+    private long copyBatchWindowSec;
+
+    @Value("${syncduo.server.system.copyBatchMaxFiles:1000}")
+    private int copyBatchMaxFiles;
+
+    @Value("${syncduo.server.system.copyBatchMaxBytes:1073741824}")
+    private long copyBatchMaxBytes;
+
+    @Autowired
+    public CopyBatchService(DebounceService debounceService) {
+        this.moduleDebounceService = debounceService.forModule("CopyBatchService");
+    }
+
+    public void submit(
+            SyncFlowEntity syncFlowEntity,
+            FilesystemEvent filesystemEvent,
+            BiConsumer<SyncFlowEntity, List<FilesystemEvent>> flushHandler) {
+        Long syncFlowId = syncFlowEntity.getSyncFlowId();
+        long fileSize = getFileSize(filesystemEvent.getFile());
+        // 达到上限的 batch 从 compute 中带出来, 在锁外提交
+        CopyBatch[] fullBatch = new CopyBatch[1];
+        this.batchMap.compute(syncFlowId, (id, batch) -> {
+            if (batch == null) {
+                batch = new CopyBatch(syncFlowEntity);
+                // 新 batch 规划一次窗口结束后的提交
+                CopyBatch scheduledBatch = batch;
+                this.moduleDebounceService.schedule(
+                        () -> {
+                            if (this.batchMap.remove(id, scheduledBatch)) {
+                                flush(scheduledBatch, flushHandler);
+                            }
+                        },
+                        this.copyBatchWindowSec
+                );
+            }
+            batch.add(filesystemEvent, fileSize);
+            if (batch.size() >= this.copyBatchMaxFiles || batch.totalBytes >= this.copyBatchMaxBytes) {
+                fullBatch[0] = batch;
+                return null;
+            }
+            return batch;
+        });
+        if (fullBatch[0] != null) {
+            log.debug("copy batch of syncflow {} reached limit. files:{}, bytes:{}",
+                    syncFlowId, fullBatch[0].size(), fullBatch[0].totalBytes);
+            flush(fullBatch[0], flushHandler);
+        }
+    }
+
+    private static void flush(
+            CopyBatch copyBatch,
+            BiConsumer<SyncFlowEntity, List<FilesystemEvent>> flushHandler) {
+        try {
+            flushHandler.accept(copyBatch.syncFlowEntity, copyBatch.getEventList());
+        } catch (Exception e) {
+            log.error("flush copy batch failed. syncFlow:{}", copyBatch.syncFlowEntity, e);
+        }
+    }
+
+    private static long getFileSize(Path file) {
+        try {
+            return Files.size(file);
+        } catch (Exception e) {
+            // 文件可能已经被删除, 不计入大小
+            return 0;
+        }
+    }
+
+    private static class CopyBatch {
+
+        private final SyncFlowEntity syncFlowEntity;
+
+        // 同一个文件只保留最新的事件
+        private final LinkedHashMap<Path, FilesystemEvent> eventMap = new LinkedHashMap<>();
+
+        private long totalBytes = 0;
+
+        CopyBatch(SyncFlowEntity syncFlowEntity) {
+            this.syncFlowEntity = syncFlowEntity;
+        }
+
+        void add(FilesystemEvent filesystemEvent, long fileSize) {
+            Path file = filesystemEvent.getFile().toAbsolutePath();
+            if (this.eventMap.put(file, filesystemEvent) == null) {
+                this.totalBytes += fileSize;
+            }
+        }
+
+        int size() {
+            return this.eventMap.size();
+        }
+
+        List<FilesystemEvent> getEventList() {
+            return new ArrayList<>(this.eventMap.values());
+        }
+    }
+}
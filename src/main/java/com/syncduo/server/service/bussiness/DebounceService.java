@@ -3,8 +3,10 @@ package com.syncduo.server.service.bussiness;
 import com.syncduo.server.exception.BusinessException;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.ObjectUtils;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.TaskScheduler;
 import org.springframework.stereotype.Service;
 
@@ -14,23 +16,42 @@ import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 
 @Slf4j
 @Service
-public class DebounceService {
+public class DebounceService implements DisposableBean {
 
     @Qualifier("generalTaskScheduler")
     private final TaskScheduler generalTaskScheduler;
 
+    // debounce 任务由 timing wheel 管理, 到期后交给 generalTaskScheduler 执行
+    private final DebounceTimingWheel debounceTimingWheel;
+
+    private final DebounceTimingWheel.KeySpace defaultKeySpace;
+
+    // 周期任务(scheduleAndCancelAfter)
     private final Map<String, ScheduledFuture<?>> taskMap = new ConcurrentHashMap<>();
 
     private final Map<String, ScheduledFuture<?>> cancelTaskMap = new ConcurrentHashMap<>();
 
     @Autowired
-    public DebounceService(TaskScheduler generalTaskScheduler) {
+    public DebounceService(
+            TaskScheduler generalTaskScheduler,
+            @Value("${syncduo.server.system.debounceTickMillis:100}") long debounceTickMillis) {
         this.generalTaskScheduler = generalTaskScheduler;
+        this.debounceTimingWheel = new DebounceTimingWheel(
+                "Debounce-Timing-Wheel",
+                debounceTickMillis,
+                task -> generalTaskScheduler.schedule(task, Instant.now()));
+        this.defaultKeySpace = this.debounceTimingWheel.newKeySpace();
+    }
+
+    @Override
+    public void destroy() {
+        this.debounceTimingWheel.stop();
     }
 
     public void schedule(Runnable task, long delaySec) {
@@ -74,20 +95,12 @@ public class DebounceService {
     }
 
     public void debounce(String key, Runnable task, long delaySec) {
-        // 有重复的未执行的task则取消
-        this.cancel(key);
-        // 规划新的task
-        ScheduledFuture<?> newTask = this.generalTaskScheduler.schedule(() -> {
-            try {
-                task.run();
-            } catch (Exception e) {
-                log.warn("execute debounce task(key:{}, task:{} failed", key, task, e);
-                // task 发生异常, 将 task 从 map 中移除, 也就是终止执行
-                this.cancel(key);
-            }
-        }, Instant.now().plusSeconds(delaySec));
-        // 新的task放进map中
-        this.taskMap.put(key, newTask);
+        // 有重复的未执行的task则原地延后
+        this.defaultKeySpace.debounce(key, task, TimeUnit.SECONDS.toMillis(delaySec));
+    }
+
+    public long getPendingDebounceCount() {
+        return this.debounceTimingWheel.getPendingCount();
     }
 
     // cancel schedule task and cancel task
@@ -102,6 +115,7 @@ public class DebounceService {
 
     // only cancel schedule task
     public void cancel(String key) {
+        this.defaultKeySpace.cancel(key);
         ScheduledFuture<?> existingTask = taskMap.get(key);
         if (ObjectUtils.isNotEmpty(existingTask)) {
             existingTask.cancel(false);
@@ -111,7 +125,7 @@ public class DebounceService {
 
     // 创建模块专用的Debounce服务
     public ModuleDebounceService forModule(String moduleName) {
-        return new ModuleDebounceService(this, moduleName);
+        return new ModuleDebounceService(this, moduleName, this.debounceTimingWheel.newKeySpace());
     }
 
     // 模块专用的Debounce包装器
@@ -121,14 +135,20 @@ public class DebounceService {
 
         private final String modulePrefix;
 
-        public ModuleDebounceService(DebounceService debounceService, String moduleName) {
+        // 模块独立的 key 空间, debounce 不需要拼接前缀
+        private final DebounceTimingWheel.KeySpace keySpace;
+
+        public ModuleDebounceService(
+                DebounceService debounceService,
+                String moduleName,
+                DebounceTimingWheel.KeySpace keySpace) {
             this.debounceService = debounceService;
             this.modulePrefix = moduleName + "::";
+            this.keySpace = keySpace;
         }
 
         public void debounce(String key, Runnable task, long delaySec) {
-            String fullKey = modulePrefix + key;
-            debounceService.debounce(fullKey, task, delaySec);
+            keySpace.debounce(key, task, TimeUnit.SECONDS.toMillis(delaySec));
         }
 
         public void schedule(Runnable task, long delaySec) {
@@ -146,11 +166,13 @@ public class DebounceService {
         }
 
         public void cancel(String key) {
+            keySpace.cancel(key);
             String fullKey = modulePrefix + key;
             debounceService.cancel(fullKey);
         }
 
         public void earlyCancel(String key) {
+            keySpace.cancel(key);
             String fullKey = modulePrefix + key;
             debounceService.earlyCancel(fullKey);
         }
@@ -0,0 +1,233 @@
+package com.syncduo.server.service.bussiness;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+// hashed timing wheel. 单个 tick 线程推进, 到期任务交给 executor 执行
+// 同一个 key 的重新规划只修改 deadline, 到期时再决定是执行还是挪到新的 bucket
+@Slf4j
+public class DebounceTimingWheel {
+
+    private static final int WHEEL_SIZE = 512;
+
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private final long tickMillis;
+
+    private final Executor executor;
+
+    private final ArrayDeque<WheelTask>[] buckets;
+
+    // 新任务先进入队列, 由 tick 线程放入 bucket, bucket 只被 tick 线程访问
+    private final ConcurrentLinkedQueue<WheelTask> insertQueue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong pendingCount = new AtomicLong(0);
+
+    private final AtomicLong firedCount = new AtomicLong(0);
+
+    private final long startMillis;
+
+    private final Thread tickThread;
+
+    private volatile boolean running = true;
+
+    // 只被 tick 线程修改
+    private long currentTick = 0;
+
+    @SuppressWarnings("unchecked")
+    public DebounceTimingWheel(String name, long tickMillis, Executor executor) {
+        this.tickMillis = tickMillis;
+        this.executor = executor;
+        this.buckets = new ArrayDeque[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            this.buckets[i] = new ArrayDeque<>();
+        }
+        this.startMillis = System.currentTimeMillis();
+        this.tickThread = new Thread(this::run, name);
+        this.tickThread.setDaemon(true);
+        this.tickThread.start();
+    }
+
+    public KeySpace newKeySpace() {
+        return new KeySpace();
+    }
+
+    public long getPendingCount() {
+        return this.pendingCount.get();
+    }
+
+    public long getFiredCount() {
+        return this.firedCount.get();
+    }
+
+    public void stop() {
+        this.running = false;
+        LockSupport.unpark(this.tickThread);
+    }
+
+    private void run() {
+        while (this.running) {
+            long tickDeadline = this.startMillis + (this.currentTick + 1) * this.tickMillis;
+            long sleepMillis = tickDeadline - System.currentTimeMillis();
+            if (sleepMillis > 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(sleepMillis));
+                continue;
+            }
+            try {
+                this.transferInsertQueue();
+                this.expireBucket(this.buckets[(int) (this.currentTick & WHEEL_MASK)]);
+            } catch (Exception e) {
+                log.error("debounce timing wheel tick failed.", e);
+            }
+            this.currentTick++;
+        }
+        log.info("debounce timing wheel {} stopped", this.tickThread.getName());
+    }
+
+    private void transferInsertQueue() {
+        WheelTask wheelTask;
+        while ((wheelTask = this.insertQueue.poll()) != null) {
+            if (wheelTask.state != WheelTask.PENDING) {
+                continue;
+            }
+            this.addToBucket(wheelTask);
+        }
+    }
+
+    private void addToBucket(WheelTask wheelTask) {
+        long targetTick = Math.max(
+                (wheelTask.deadlineMillis - this.startMillis) / this.tickMillis,
+                this.currentTick);
+        wheelTask.targetTick = targetTick;
+        this.buckets[(int) (targetTick & WHEEL_MASK)].add(wheelTask);
+    }
+
+    private void expireBucket(ArrayDeque<WheelTask> bucket) {
+        long now = System.currentTimeMillis();
+        int size = bucket.size();
+        for (int i = 0; i < size; i++) {
+            WheelTask wheelTask = bucket.poll();
+            if (wheelTask.state != WheelTask.PENDING) {
+                continue;
+            }
+            if (wheelTask.targetTick > this.currentTick) {
+                // 还没有转到, 留在原 bucket
+                bucket.add(wheelTask);
+                continue;
+            }
+            if (wheelTask.deadlineMillis > now) {
+                // deadline 被延长过, 挪到新的 bucket
+                this.addToBucket(wheelTask);
+                continue;
+            }
+            Runnable task = wheelTask.keySpace.expire(wheelTask, now);
+            if (task == null) {
+                // expire 时被并发延长了则重新放入, 被取消则丢弃
+                if (wheelTask.state == WheelTask.PENDING) {
+                    this.addToBucket(wheelTask);
+                }
+                continue;
+            }
+            this.firedCount.incrementAndGet();
+            try {
+                this.executor.execute(() -> {
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        log.warn("execute debounce task(key:{}) failed", wheelTask.key, e);
+                    }
+                });
+            } catch (Exception e) {
+                log.error("submit debounce task(key:{}) failed", wheelTask.key, e);
+            }
+        }
+    }
+
+    // 独立的 key 空间, 不同模块之间的 key 互不影响, 也不需要拼接前缀
+    public class KeySpace {
+
+        private final Map<Object, WheelTask> taskMap = new ConcurrentHashMap<>();
+
+        public void debounce(Object key, Runnable task, long delayMillis) {
+            long deadlineMillis = System.currentTimeMillis() + delayMillis;
+            this.taskMap.compute(key, (k, wheelTask) -> {
+                if (wheelTask == null) {
+                    WheelTask newTask = new WheelTask(k, this, task, deadlineMillis);
+                    pendingCount.incrementAndGet();
+                    insertQueue.offer(newTask);
+                    return newTask;
+                }
+                // 原地更新 deadline 和 task
+                wheelTask.task = task;
+                wheelTask.deadlineMillis = deadlineMillis;
+                return wheelTask;
+            });
+        }
+
+        public void cancel(Object key) {
+            this.taskMap.computeIfPresent(key, (k, wheelTask) -> {
+                wheelTask.state = WheelTask.CANCELLED;
+                pendingCount.decrementAndGet();
+                return null;
+            });
+        }
+
+        public boolean contains(Object key) {
+            return this.taskMap.containsKey(key);
+        }
+
+        // 到期则从 map 中移除并返回 task, 被延长则返回 null
+        private Runnable expire(WheelTask wheelTask, long now) {
+            Runnable[] result = new Runnable[1];
+            this.taskMap.computeIfPresent(wheelTask.key, (k, current) -> {
+                if (current != wheelTask || current.deadlineMillis > now) {
+                    return current;
+                }
+                current.state = WheelTask.FIRED;
+                pendingCount.decrementAndGet();
+                result[0] = current.task;
+                return null;
+            });
+            return result[0];
+        }
+    }
+
+    private static class WheelTask {
+
+        private static final int PENDING = 0;
+
+        private static final int FIRED = 1;
+
+        private static final int CANCELLED = 2;
+
+        private final Object key;
+
+        private final KeySpace keySpace;
+
+        // 以下两个字段只在 KeySpace 的 compute 中修改
+        private volatile Runnable task;
+
+        private volatile long deadlineMillis;
+
+        private volatile int state = PENDING;
+
+        // 只被 tick 线程访问
+        private long targetTick;
+
+        WheelTask(Object key, KeySpace keySpace, Runnable task, long deadlineMillis) {
+            this.key = key;
+            this.keySpace = keySpace;
+            this.task = task;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+}
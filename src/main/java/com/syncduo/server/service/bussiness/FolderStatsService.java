@@ -0,0 +1,306 @@
+package com.syncduo.server.service.bussiness;
+
+import com.syncduo.server.model.entity.SyncFlowEntity;
+import com.syncduo.server.model.internal.FilesystemEvent;
+import com.syncduo.server.service.db.impl.SyncFlowService;
+import com.syncduo.server.util.FilesystemUtil;
+import com.syncduo.server.util.ParallelFileWalker;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.lang3.ObjectUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 每个 syncflow 的 dest folder 统计(文件数, 文件夹数, 字节数)保存在内存中, 接口直接返回
+// 第一次查询时遍历一次. 之后 copy file 按文件增量更新, sync copy 和失败或重叠的 copy 标记为 dirty
+// dest folder 不被 watch, 外部修改由定时的全量复查兜底. dirty 和定时的全量复查都交给单线程低优先级的 folderStatsTaskScheduler 重新遍历
+@Slf4j
+@Service
+public class FolderStatsService {
+
+    private final SyncFlowService syncFlowService;
+
+    private final TaskScheduler folderStatsTaskScheduler;
+
+    private final ParallelFileWalker backgroundFileWalker;
+
+    private final DebounceService.ModuleDebounceService moduleDebounceService;
+
+    // <syncFlowId, stats>
+    private final Map<Long, Stats> statsMap = new ConcurrentHashMap<>();
+
+    // 已经提交遍历但还没开始的 syncflow, 避免重复提交
+    private final Set<Long> pendingWalkSet = ConcurrentHashMap.newKeySet();
+
+    @Value("${syncduo.server.system.folderStatsDirtyDelaySec:60}")
+    private long DIRTY_DELAY_SEC;
+
+    @Autowired
+    public FolderStatsService(
+            SyncFlowService syncFlowService,
+            TaskScheduler folderStatsTaskScheduler,
+            ParallelFileWalker backgroundFileWalker,
+            DebounceService debounceService) {
+        this.syncFlowService = syncFlowService;
+        this.folderStatsTaskScheduler = folderStatsTaskScheduler;
+        this.backgroundFileWalker = backgroundFileWalker;
+        this.moduleDebounceService = debounceService.forModule(FolderStatsService.class.getSimpleName());
+    }
+
+    // 返回 [fileCount, folderCount, bytes]. 还没有统计过则返回 null, 并提交一次遍历
+    public long[] getFolderStats(SyncFlowEntity syncFlowEntity) {
+        Stats stats = this.statsMap.get(syncFlowEntity.getSyncFlowId());
+        if (ObjectUtils.isEmpty(stats)) {
+            this.requestWalk(syncFlowEntity.getSyncFlowId());
+            return null;
+        }
+        synchronized (stats) {
+            return new long[]{stats.fileCount, stats.folderCount, stats.bytes};
+        }
+    }
+
+    // copy 之前记录 dest 中对应文件的状态. 还没有统计过的 syncflow 不需要增量, 返回 null
+    // 文件或新建的文件夹已被其他未完成的 copy 占用时, 不做增量, 标记为 dirty 由遍历修正
+    public DestSnapshot snapshotDest(SyncFlowEntity syncFlowEntity, List<FilesystemEvent> filesystemEventList) {
+        Stats stats = this.statsMap.get(syncFlowEntity.getSyncFlowId());
+        if (ObjectUtils.isEmpty(stats) || CollectionUtils.isEmpty(filesystemEventList)) {
+            return null;
+        }
+        Path sourceFolder = Path.of(syncFlowEntity.getSourceFolderPath()).toAbsolutePath().normalize();
+        Path destFolder = Path.of(syncFlowEntity.getDestFolderPath()).toAbsolutePath().normalize();
+        DestSnapshot destSnapshot = new DestSnapshot(syncFlowEntity.getSyncFlowId(), stats);
+        boolean overlap = false;
+        // 读取状态和登记 in-flight 在同一个锁内, 避免两个 copy 都把同一个文件视为新增
+        synchronized (stats) {
+            for (FilesystemEvent filesystemEvent : filesystemEventList) {
+                Path file = filesystemEvent.getFile().toAbsolutePath().normalize();
+                if (!file.startsWith(sourceFolder) || file.equals(sourceFolder)) {
+                    continue;
+                }
+                Path destFile = destFolder.resolve(sourceFolder.relativize(file));
+                if (destSnapshot.fileSizeMap.containsKey(destFile)) {
+                    continue;
+                }
+                if (!stats.inFlightSet.add(destFile)) {
+                    overlap = true;
+                    continue;
+                }
+                destSnapshot.fileSizeMap.put(destFile, getFileSize(destFile));
+                // 不存在的上级文件夹, copy 时会被创建
+                for (Path parent = destFile.getParent();
+                     parent != null && parent.startsWith(destFolder) && !parent.equals(destFolder);
+                     parent = parent.getParent()) {
+                    if (destSnapshot.missingFolderSet.contains(parent) ||
+                            Files.isDirectory(parent, LinkOption.NOFOLLOW_LINKS)) {
+                        break;
+                    }
+                    if (!stats.inFlightSet.add(parent)) {
+                        overlap = true;
+                        break;
+                    }
+                    destSnapshot.missingFolderSet.add(parent);
+                }
+            }
+        }
+        if (overlap) {
+            this.markDirty(syncFlowEntity.getSyncFlowId());
+        }
+        return destSnapshot;
+    }
+
+    // copy 成功后, 对比 copy 前后 dest 中文件的状态, 增量更新
+    public void applyCopy(DestSnapshot destSnapshot) {
+        if (ObjectUtils.isEmpty(destSnapshot)) {
+            return;
+        }
+        Stats stats = destSnapshot.stats;
+        synchronized (stats) {
+            for (Map.Entry<Path, Long> entry : destSnapshot.fileSizeMap.entrySet()) {
+                long before = entry.getValue();
+                long after = getFileSize(entry.getKey());
+                stats.fileCount += (after >= 0 ? 1 : 0) - (before >= 0 ? 1 : 0);
+                stats.bytes += Math.max(after, 0) - Math.max(before, 0);
+            }
+            for (Path folder : destSnapshot.missingFolderSet) {
+                if (Files.isDirectory(folder, LinkOption.NOFOLLOW_LINKS)) {
+                    stats.folderCount++;
+                }
+            }
+            stats.version++;
+            releaseInFlight(destSnapshot);
+        }
+    }
+
+    // copy 失败, 可能只复制了一部分, 不做增量, 标记为 dirty
+    public void discardCopy(DestSnapshot destSnapshot) {
+        if (ObjectUtils.isEmpty(destSnapshot)) {
+            return;
+        }
+        synchronized (destSnapshot.stats) {
+            releaseInFlight(destSnapshot);
+        }
+        this.markDirty(destSnapshot.syncFlowId);
+    }
+
+    // 无法按文件增量的变化(sync copy, dest folder 被外部修改), 延迟后重新遍历. 窗口内多次标记只遍历一次
+    public void markDirty(long syncFlowId) {
+        if (!this.statsMap.containsKey(syncFlowId)) {
+            return;
+        }
+        this.moduleDebounceService.debounce(
+                "SyncFlowId::%s::folderStats".formatted(syncFlowId),
+                () -> this.requestWalk(syncFlowId),
+                DIRTY_DELAY_SEC
+        );
+    }
+
+    public void remove(long syncFlowId) {
+        this.moduleDebounceService.cancel("SyncFlowId::%s::folderStats".formatted(syncFlowId));
+        this.statsMap.remove(syncFlowId);
+    }
+
+    // 兜底 dest folder 在 watcher 之外被修改的情况
+    @Scheduled(
+            initialDelayString = "${syncduo.server.system.folderStatsRecheckIntervalMillis:3600000}",
+            fixedDelayString = "${syncduo.server.system.folderStatsRecheckIntervalMillis:3600000}",
+            scheduler = "systemManagementTaskScheduler"
+    )
+    public void recheckAllFolderStats() {
+        log.info("Recheck All Folder Stats");
+        for (SyncFlowEntity syncFlowEntity : this.syncFlowService.getAllSyncFlow()) {
+            this.requestWalk(syncFlowEntity.getSyncFlowId());
+        }
+    }
+
+    private void requestWalk(long syncFlowId) {
+        if (!this.pendingWalkSet.add(syncFlowId)) {
+            return;
+        }
+        try {
+            this.folderStatsTaskScheduler.schedule(() -> this.walk(syncFlowId), Instant.now());
+        } catch (Exception e) {
+            this.pendingWalkSet.remove(syncFlowId);
+            log.warn("requestWalk failed. syncFlowId is {}", syncFlowId, e);
+        }
+    }
+
+    // 只在 folderStatsTaskScheduler 的单个线程中执行
+    private void walk(long syncFlowId) {
+        // 遍历开始后的变化需要重新提交
+        this.pendingWalkSet.remove(syncFlowId);
+        SyncFlowEntity syncFlowEntity;
+        try {
+            syncFlowEntity = this.syncFlowService.getBySyncFlowId(syncFlowId);
+        } catch (Exception e) {
+            log.warn("walk folder stats failed. get syncflow failed. syncFlowId is {}", syncFlowId, e);
+            return;
+        }
+        if (ObjectUtils.isEmpty(syncFlowEntity)) {
+            this.remove(syncFlowId);
+            return;
+        }
+        // 第一次遍历完成之前不放入 statsMap, 查询返回 null 而不是 0
+        Stats stats = this.statsMap.get(syncFlowId);
+        long version = 0;
+        if (ObjectUtils.isNotEmpty(stats)) {
+            synchronized (stats) {
+                version = stats.version;
+            }
+        }
+        long startTime = System.currentTimeMillis();
+        List<Long> folderInfo;
+        try {
+            folderInfo = FilesystemUtil.getFolderInfo(syncFlowEntity.getDestFolderPath(), this.backgroundFileWalker);
+        } catch (Exception e) {
+            log.warn("walk folder stats failed. syncFlow is {}", syncFlowEntity, e);
+            return;
+        }
+        boolean changedDuringWalk = false;
+        if (ObjectUtils.isEmpty(stats)) {
+            stats = new Stats();
+            Stats previous = this.statsMap.putIfAbsent(syncFlowId, stats);
+            if (ObjectUtils.isNotEmpty(previous)) {
+                stats = previous;
+                changedDuringWalk = true;
+            }
+        }
+        synchronized (stats) {
+            stats.fileCount = folderInfo.get(0);
+            stats.folderCount = folderInfo.get(1);
+            stats.bytes = folderInfo.get(2);
+            changedDuringWalk |= stats.version != version;
+            stats.version++;
+        }
+        // 遍历期间有增量, 无法判断是否已经包含在遍历结果中, 稍后再遍历一次
+        if (changedDuringWalk) {
+            this.markDirty(syncFlowId);
+        }
+        log.debug("walk folder stats success. syncFlowId is {}, cost {} ms",
+                syncFlowId, System.currentTimeMillis() - startTime);
+    }
+
+    // 调用方需持有 stats 的锁
+    private static void releaseInFlight(DestSnapshot destSnapshot) {
+        destSnapshot.stats.inFlightSet.removeAll(destSnapshot.fileSizeMap.keySet());
+        destSnapshot.stats.inFlightSet.removeAll(destSnapshot.missingFolderSet);
+    }
+
+    // 和 getFolderInfo 一致, 非文件夹都算作文件, 不跟随链接. 不存在返回 -1
+    private static long getFileSize(Path file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            return attrs.isDirectory() ? -1 : attrs.size();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    public static class DestSnapshot {
+
+        private final long syncFlowId;
+
+        private final Stats stats;
+
+        // <dest file, copy 之前的大小>, -1 表示不存在
+        private final Map<Path, Long> fileSizeMap = new HashMap<>();
+
+        private final Set<Path> missingFolderSet = new HashSet<>();
+
+        private DestSnapshot(long syncFlowId, Stats stats) {
+            this.syncFlowId = syncFlowId;
+            this.stats = stats;
+        }
+    }
+
+    // 字段在 synchronized(stats) 中访问
+    private static class Stats {
+
+        private long fileCount;
+
+        private long folderCount;
+
+        private long bytes;
+
+        // 每次修改加一, 用于判断遍历期间是否有增量
+        private long version;
+
+        // 未完成的 copy 登记的 dest 文件和将要新建的文件夹
+        private final Set<Path> inFlightSet = new HashSet<>();
+    }
+}
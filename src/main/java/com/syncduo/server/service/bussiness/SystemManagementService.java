@@ -4,25 +4,30 @@ import com.syncduo.server.bus.FolderWatcher;
 import com.syncduo.server.enums.SyncFlowStatusEnum;
 import com.syncduo.server.enums.SyncFlowTypeEnum;
 import com.syncduo.server.exception.BusinessException;
+import com.syncduo.server.model.api.systeminfo.SyncFlowLockStats;
+import com.syncduo.server.model.entity.CopyJobEntity;
 import com.syncduo.server.model.entity.SyncFlowEntity;
 import com.syncduo.server.model.internal.FilesystemEvent;
 import com.syncduo.server.service.db.impl.SyncFlowService;
 import com.syncduo.server.service.rclone.RcloneFacadeService;
-import com.syncduo.server.service.restic.ResticFacadeService;
+import com.syncduo.server.service.restic.BackupScheduler;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.lang3.ObjectUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.Executor;
 
 
 @Service
@@ -37,10 +42,17 @@ public class SystemManagementService {
 
     private final DebounceService.ModuleDebounceService moduleDebounceService;
 
-    private final ResticFacadeService resticFacadeService;
+    private final BackupScheduler backupScheduler;
 
-    // SyncFlowId:int, > 0 表示有 reader, < 0 表示有 writer. 支持跨线程释放
-    private final Map<Long, AtomicInteger> syncFLowLockMap = new ConcurrentHashMap<>(10);
+    private final CopyBatchService copyBatchService;
+
+    private final FolderStatsService folderStatsService;
+
+    // <SyncFlowId, lock>. copy file 持有 read lock, check/sync copy/delete 持有 write lock
+    private final Map<Long, AsyncReadWriteLock> syncFlowLockMap = new ConcurrentHashMap<>(10);
+
+    // 锁的等待者在此唤醒. 同类内部调用不经过 @Async 代理, 需要异步的内部调用也显式提交到这里
+    private final Executor generalExecutor;
 
     @Value("${syncduo.server.system.eventDebounceWindowSec}")
     private long DEBOUNCE_WINDOW;
@@ -51,37 +63,52 @@ public class SystemManagementService {
             SyncFlowService syncFlowService,
             RcloneFacadeService rcloneFacadeService,
             DebounceService debounceService,
-            ResticFacadeService resticFacadeService) {
+            BackupScheduler backupScheduler,
+            CopyBatchService copyBatchService,
+            FolderStatsService folderStatsService,
+            TaskScheduler generalTaskScheduler) {
         this.folderWatcher = folderWatcher;
         this.syncFlowService = syncFlowService;
         this.rcloneFacadeService = rcloneFacadeService;
         this.moduleDebounceService = debounceService.forModule("SystemManagementService");
-        this.resticFacadeService = resticFacadeService;
+        this.backupScheduler = backupScheduler;
+        this.copyBatchService = copyBatchService;
+        this.folderStatsService = folderStatsService;
+        this.generalExecutor = task -> generalTaskScheduler.schedule(task, Instant.now());
     }
 
     @Async("generalTaskScheduler")
     public void deleteSyncFlow(SyncFlowEntity syncFlowEntity) {
         // 如果是 Reactive Sync, 则获取锁
         SyncFlowTypeEnum syncFlowTypeEnum = SyncFlowTypeEnum.fromTypeString(syncFlowEntity.getSyncFlowType());
-        if (syncFlowTypeEnum == SyncFlowTypeEnum.REACTIVE_SYNC) {
-            this.writeLock(syncFlowEntity);
-        }
-        try {
-            // 删除 syncflow
-            this.syncFlowService.deleteSyncFlow(syncFlowEntity);
-        } catch (Exception ex) {
-            log.error("deleteSyncFlow failed. syncFlow:{}", syncFlowEntity, ex);
-        } finally {
-            if (syncFlowTypeEnum == SyncFlowTypeEnum.REACTIVE_SYNC) {
-                this.writeUnlock(syncFlowEntity);
+        CompletableFuture<AsyncReadWriteLock.Handle> lockFuture = syncFlowTypeEnum == SyncFlowTypeEnum.REACTIVE_SYNC ?
+                this.writeLock(syncFlowEntity) :
+                CompletableFuture.completedFuture(null);
+        lockFuture.thenAccept(handle -> {
+            try {
+                // 删除 syncflow
+                this.syncFlowService.deleteSyncFlow(syncFlowEntity);
+                this.rcloneFacadeService.invalidateFilter(syncFlowEntity.getSyncFlowId());
+                this.folderStatsService.remove(syncFlowEntity.getSyncFlowId());
+                this.folderWatcher.refreshWatcher(syncFlowEntity.getSourceFolderPath());
+            } catch (Exception ex) {
+                log.error("deleteSyncFlow failed. syncFlow:{}", syncFlowEntity, ex);
+            } finally {
+                if (handle != null) {
+                    handle.unlock();
+                }
+                // 没有持有者和等待者则回收锁. 回收后旧 lock 不再发放锁, acquireLock 会换成新的 lock
+                this.syncFlowLockMap.computeIfPresent(
+                        syncFlowEntity.getSyncFlowId(),
+                        (syncFlowId, lock) -> lock.retireIfIdle() ? null : lock);
             }
-        }
+        });
     }
 
     public void copyFile(FilesystemEvent filesystemEvent) {
         log.debug("system management receive fileEvent: {}", filesystemEvent);
         String sourceFolderPath = filesystemEvent.getFolder().toAbsolutePath().toString();
-        String fileName = filesystemEvent.getFile().getFileName().toString();
+        String filePath = filesystemEvent.getFile().toAbsolutePath().toString();
         // 根据 filesystem event 的 folder 查询下游 syncflow entity
         List<SyncFlowEntity> downstreamSyncFlowEntityList =
                 this.syncFlowService.getBySourceFolderPath(sourceFolderPath);
@@ -96,103 +123,183 @@ public class SystemManagementService {
                 // 不允许的 copy file 的状态(FAILED, PAUSE), 则继续保持原样, 等待下一次 rescan
                 continue;
             }
-            if (this.rcloneFacadeService.isFileFiltered(fileName, syncFlowEntity)) {
+            if (this.rcloneFacadeService.isFileFiltered(filePath, syncFlowEntity)) {
                 continue;
             }
-            this.copyFileAsync(syncFlowEntity, filesystemEvent);
+            // 同一个 syncflow 的文件在窗口内合并为一个 copy job
+            this.copyBatchService.submit(syncFlowEntity, filesystemEvent, (batchSyncFlowEntity, batchEventList) ->
+                    this.generalExecutor.execute(() -> this.copyFiles(batchSyncFlowEntity, batchEventList)));
         }
     }
 
-    @Async("generalTaskScheduler")
-    protected void copyFileAsync(SyncFlowEntity syncFlowEntity, FilesystemEvent filesystemEvent) {
-        // 获取 syncflow entity 的锁
-        this.readLock(syncFlowEntity);
-        try {
-            // syncflow status 修改为 RUNNING
-            this.syncFlowService.updateSyncFlowStatus(syncFlowEntity, SyncFlowStatusEnum.COPY_FILE);
-        } catch (Exception ex){
-            log.error("copyFileAsync failed. updateSyncFlowStatus failed. syncFlow:{}", syncFlowEntity, ex);
-            this.readUnlock(syncFlowEntity);
-            return;
+    // 事件队列溢出时, folder 下的事件被合并为一个 dirty 标记, 下游 syncflow 直接 syncCopy
+    public void syncCopyFolder(FilesystemEvent filesystemEvent) {
+        log.info("system management receive folder dirty event: {}", filesystemEvent);
+        String sourceFolderPath = filesystemEvent.getFolder().toAbsolutePath().toString();
+        List<SyncFlowEntity> downstreamSyncFlowEntityList =
+                this.syncFlowService.getBySourceFolderPath(sourceFolderPath);
+        for (SyncFlowEntity syncFlowEntity : downstreamSyncFlowEntityList) {
+            if (SyncFlowStatusEnum.isTransitionProhibit(
+                    syncFlowEntity.getSyncStatus(),
+                    SyncFlowStatusEnum.RESCAN)) {
+                continue;
+            }
+            this.generalExecutor.execute(() -> this.syncCopy(syncFlowEntity));
         }
-        // 发起 copy file 的请求
-        log.info("SyncFlowEntity: {} handle FilesystemEvent:{}", syncFlowEntity, filesystemEvent);
-        this.rcloneFacadeService.copyFile(syncFlowEntity, filesystemEvent)
-                .thenCompose(copyJobEntity -> {
-                    this.readUnlock(syncFlowEntity);
-                    // copy file 成功后, 发起一个 delay 的 syncflow check, 用于削峰
-                    this.moduleDebounceService.debounce(
-                            "SyncFlowId::%s::checkStatus".formatted(syncFlowEntity.getSyncFlowId()),
-                            () -> this.checkSyncFlowStatusAsync(syncFlowEntity, false),
-                            DEBOUNCE_WINDOW
-                    );
-                    // copy file 成功后, 获取 copy file 的详细数据
-                    return this.rcloneFacadeService.updateCopyJobStat(copyJobEntity);
-                })
-                .exceptionally(ex -> {
-                    this.readUnlock(syncFlowEntity);
-                    // copy file 失败, 记录日志和数据库
-                    log.error("copy file failed. SyncFlowEntity is {}, FilesystemEvent is {}",
-                            syncFlowEntity, filesystemEvent, ex);
-                    this.syncFlowService.updateSyncFlowStatus(syncFlowEntity, SyncFlowStatusEnum.FAILED);
-                    return null;
-                });
+    }
+
+    private void syncCopy(SyncFlowEntity syncFlowEntity) {
+        // 获取 syncflow 的锁, 等待期间不占用线程
+        this.writeLock(syncFlowEntity).thenAccept(handle -> {
+            try {
+                this.syncFlowService.updateSyncFlowStatus(syncFlowEntity, SyncFlowStatusEnum.RESCAN);
+            } catch (Exception ex) {
+                log.error("syncCopy failed. updateSyncFlowStatus failed. syncFlow:{}", syncFlowEntity, ex);
+                handle.unlock();
+                return;
+            }
+            this.syncCopyAndUnlock(syncFlowEntity, handle)
+                    .exceptionally(ex -> {
+                        // 释放锁
+                        handle.unlock();
+                        this.syncFlowService.updateSyncFlowStatus(syncFlowEntity, SyncFlowStatusEnum.FAILED);
+                        log.error("syncCopy failed. syncFlow:{}", syncFlowEntity, ex);
+                        return null;
+                    });
+        });
+    }
+
+    private void copyFiles(SyncFlowEntity syncFlowEntity, List<FilesystemEvent> filesystemEventList) {
+        // 获取 syncflow entity 的锁, 等待期间不占用线程
+        this.readLock(syncFlowEntity).thenAccept(handle -> {
+            try {
+                // syncflow status 修改为 RUNNING
+                this.syncFlowService.updateSyncFlowStatus(syncFlowEntity, SyncFlowStatusEnum.COPY_FILE);
+            } catch (Exception ex) {
+                log.error("copyFiles failed. updateSyncFlowStatus failed. syncFlow:{}", syncFlowEntity, ex);
+                handle.unlock();
+                return;
+            }
+            // 发起 copy file 的请求, 单个文件保持 operations/copyfile, 多个文件使用 sync/copy + files-from
+            log.info("SyncFlowEntity: {} handle FilesystemEvent:{}", syncFlowEntity, filesystemEventList);
+            CompletableFuture<CopyJobEntity> copyFuture;
+            FolderStatsService.DestSnapshot destSnapshot;
+            try {
+                // 记录 copy 之前 dest 的状态, 用于增量更新 folder stats
+                destSnapshot = this.folderStatsService.snapshotDest(syncFlowEntity, filesystemEventList);
+                copyFuture = filesystemEventList.size() == 1 ?
+                        this.rcloneFacadeService.copyFile(syncFlowEntity, filesystemEventList.get(0)) :
+                        this.rcloneFacadeService.copyFiles(syncFlowEntity, filesystemEventList);
+            } catch (Exception ex) {
+                destSnapshot = null;
+                copyFuture = CompletableFuture.failedFuture(ex);
+            }
+            FolderStatsService.DestSnapshot finalDestSnapshot = destSnapshot;
+            copyFuture
+                    .thenCompose(copyJobEntity -> {
+                        handle.unlock();
+                        this.folderStatsService.applyCopy(finalDestSnapshot);
+                        // copy file 成功后, 发起一个 delay 的 syncflow check, 用于削峰
+                        this.moduleDebounceService.debounce(
+                                "SyncFlowId::%s::checkStatus".formatted(syncFlowEntity.getSyncFlowId()),
+                                () -> this.checkSyncFlowStatusAsync(syncFlowEntity, false),
+                                DEBOUNCE_WINDOW
+                        );
+                        // copy file 成功后, 获取 copy file 的详细数据
+                        return this.rcloneFacadeService.updateCopyJobStat(copyJobEntity);
+                    })
+                    .exceptionally(ex -> {
+                        handle.unlock();
+                        this.folderStatsService.discardCopy(finalDestSnapshot);
+                        // copy file 失败, 记录日志和数据库
+                        log.error("copy file failed. SyncFlowEntity is {}, FilesystemEvent is {}",
+                                syncFlowEntity, filesystemEventList, ex);
+                        this.syncFlowService.updateSyncFlowStatus(syncFlowEntity, SyncFlowStatusEnum.FAILED);
+                        return null;
+                    });
+        });
     }
 
     @Async("generalTaskScheduler")
     public void checkSyncFlowStatusAsync(SyncFlowEntity syncFlowEntity, boolean isInitialScan) {
-        // 获取 syncflow 的锁
-        this.writeLock(syncFlowEntity);
-        log.debug("required lock. syncflow:{}", syncFlowEntity);
-        try {
-            // 设置 SyncFlowStatus 为 RESCAN or INITIAL_SCAN, 这是一个 fall back 的处理逻辑
-            String from = syncFlowEntity.getSyncStatus();
-            SyncFlowStatusEnum to = isInitialScan ? SyncFlowStatusEnum.INITIAL_SCAN : SyncFlowStatusEnum.RESCAN;
-            if (SyncFlowStatusEnum.isTransitionProhibit(from, to)) {
-                this.writeUnlock(syncFlowEntity);
-                log.warn("checkSyncFlowStatusAsync failed. syncFlow:{} status {} to {} not allow",
-                        syncFlowEntity, from ,to);
+        // 获取 syncflow 的锁, 等待期间不占用线程
+        this.writeLock(syncFlowEntity).thenAccept(handle -> {
+            log.debug("required lock. syncflow:{}", syncFlowEntity);
+            try {
+                // 设置 SyncFlowStatus 为 RESCAN or INITIAL_SCAN, 这是一个 fall back 的处理逻辑
+                String from = syncFlowEntity.getSyncStatus();
+                SyncFlowStatusEnum to = isInitialScan ? SyncFlowStatusEnum.INITIAL_SCAN : SyncFlowStatusEnum.RESCAN;
+                if (SyncFlowStatusEnum.isTransitionProhibit(from, to)) {
+                    handle.unlock();
+                    log.warn("checkSyncFlowStatusAsync failed. syncFlow:{} status {} to {} not allow",
+                            syncFlowEntity, from ,to);
+                    return;
+                } else {
+                    this.syncFlowService.updateSyncFlowStatus(syncFlowEntity, to);
+                }
+            } catch (Exception ex) {
+                log.error("checkSyncFlowStatus failed. updateSyncFlowStatus failed. syncFlow:{}", syncFlowEntity, ex);
+                // 释放锁
+                handle.unlock();
                 return;
-            } else {
-                this.syncFlowService.updateSyncFlowStatus(syncFlowEntity, to);
             }
+            // 检查
+            CompletableFuture<Boolean> checkFuture;
+            try {
+                checkFuture = this.rcloneFacadeService.oneWayCheck(syncFlowEntity);
+            } catch (Exception ex) {
+                checkFuture = CompletableFuture.failedFuture(ex);
+            }
+            checkFuture
+                    .thenCompose(isSync -> {
+                        if (isSync) {
+                            // 释放锁
+                            handle.unlock();
+                            // 如果同步则更新状态为 SYNC, 然后退出
+                            this.syncFlowService.updateSyncFlowStatus(syncFlowEntity, SyncFlowStatusEnum.SYNC);
+                            return CompletableFuture.completedFuture(null);
+                        }
+                        // 不同步则执行 syncCopy
+                        return this.syncCopyAndUnlock(syncFlowEntity, handle);
+                    })
+                    .exceptionally(ex -> {
+                        // 释放锁
+                        handle.unlock();
+                        // sync copy 失败, 则认为两个文件夹没有同步
+                        this.syncFlowService.updateSyncFlowStatus(syncFlowEntity, SyncFlowStatusEnum.FAILED);
+                        log.error("checkSyncFlowStatus failed. syncFlow:{}", syncFlowEntity, ex);
+                        return null;
+                    });
+        });
+    }
+
+    // 调用方需持有 write lock, syncCopy 成功后释放
+    private CompletableFuture<?> syncCopyAndUnlock(SyncFlowEntity syncFlowEntity, AsyncReadWriteLock.Handle handle) {
+        CompletableFuture<CopyJobEntity> syncCopyFuture;
+        try {
+            syncCopyFuture = this.rcloneFacadeService.syncCopy(syncFlowEntity);
         } catch (Exception ex) {
-            log.error("checkSyncFlowStatus failed. updateSyncFlowStatus failed. syncFlow:{}", syncFlowEntity, ex);
-            // 释放锁
-            this.writeUnlock(syncFlowEntity);
-            return;
+            syncCopyFuture = CompletableFuture.failedFuture(ex);
         }
-        // 检查
-        this.rcloneFacadeService.oneWayCheck(syncFlowEntity)
-                .thenCompose(isSync -> {
-                    if (isSync) {
-                        // 释放锁
-                        this.writeUnlock(syncFlowEntity);
-                        // 如果同步则更新状态为 SYNC, 然后退出
-                        this.syncFlowService.updateSyncFlowStatus(syncFlowEntity, SyncFlowStatusEnum.SYNC);
-                        return CompletableFuture.completedFuture(null);
-                    }
-                    // 不同步则执行 syncCopy
-                    return this.rcloneFacadeService.syncCopy(syncFlowEntity)
-                            .thenCompose(copyJobEntity -> {
-                                // 释放锁
-                                this.writeUnlock(syncFlowEntity);
-                                // sync copy 成功, 则认为两个文件夹同步
-                                this.syncFlowService.updateSyncFlowStatus(syncFlowEntity, SyncFlowStatusEnum.SYNC);
-                                // 记录 sync copy 的数据
-                                return this.rcloneFacadeService.updateCopyJobStat(copyJobEntity);
-                            });
-                })
-                .exceptionally(ex -> {
+        return syncCopyFuture
+                .thenCompose(copyJobEntity -> {
                     // 释放锁
-                    this.writeUnlock(syncFlowEntity);
-                    // sync copy 失败, 则认为两个文件夹没有同步
-                    this.syncFlowService.updateSyncFlowStatus(syncFlowEntity, SyncFlowStatusEnum.FAILED);
-                    log.error("checkSyncFlowStatus failed. syncFlow:{}", syncFlowEntity, ex);
-                    return null;
+                    handle.unlock();
+                    // sync copy 成功, 则认为两个文件夹同步
+                    this.syncFlowService.updateSyncFlowStatus(syncFlowEntity, SyncFlowStatusEnum.SYNC);
+                    // sync copy 复制的文件无法逐个增量, 重新遍历 dest folder
+                    this.folderStatsService.markDirty(syncFlowEntity.getSyncFlowId());
+                    // 记录 sync copy 的数据
+                    return this.rcloneFacadeService.updateCopyJobStat(copyJobEntity);
                 });
     }
 
+    // 系统启动时调用. 文件状态索引显示没有变化的 syncflow 跳过 rclone check
+    public void startUpScanAllSyncFlow() {
+        log.info("Start Up Scan All SyncFlow");
+        this.scanAllSyncFlow(true);
+    }
+
     // initial delay 5 minutes, fixDelay 30 minutes. unit is millisecond
     @Scheduled(
             initialDelay = 1000 * 60 * 5,
@@ -201,6 +308,12 @@ public class SystemManagementService {
     )
     public void rescanAllSyncFlow() {
         log.info("Rescan All SyncFlow");
+        this.scanAllSyncFlow(false);
+    }
+
+    private void scanAllSyncFlow(boolean isStartUp) {
+        // 内存索引和数据库对齐一次, 兜底数据库被外部修改的情况
+        this.syncFlowService.reloadRegistry();
         // 获取全部 syncflow
         List<SyncFlowEntity> syncFlowEntityList = this.syncFlowService.getAllSyncFlow();
         if (CollectionUtils.isEmpty(syncFlowEntityList)) {
@@ -217,6 +330,11 @@ public class SystemManagementService {
             try {
                 // 建立 watcher, 并发起 scan
                 this.folderWatcher.addWatcher(syncFlowEntity.getSourceFolderPath());
+                if (isStartUp && this.isSourceFolderUnchanged(syncFlowEntity)) {
+                    log.info("skip startup check. source folder unchanged since last sync. sync flow is {}",
+                            syncFlowEntity);
+                    continue;
+                }
                 this.checkSyncFlowStatusAsync(syncFlowEntity, false);
             } catch (Exception e) {
                 log.error("rescanAllSyncFlow has error. initialScan failed. sync flow is {}", syncFlowEntity,
@@ -225,6 +343,17 @@ public class SystemManagementService {
         }
     }
 
+    // 上一次确认同步之后, 源文件夹没有任何变化
+    private boolean isSourceFolderUnchanged(SyncFlowEntity syncFlowEntity) {
+        if (!SyncFlowStatusEnum.SYNC.name().equals(syncFlowEntity.getSyncStatus()) ||
+                ObjectUtils.isEmpty(syncFlowEntity.getLastSyncTime())) {
+            return false;
+        }
+        return this.folderWatcher.isUnchangedSince(
+                syncFlowEntity.getSourceFolderPath(),
+                syncFlowEntity.getLastSyncTime().getTime());
+    }
+
     // initial delay 5 minutes, fixDelay 4 hours. unit is millisecond
     @Scheduled(
             initialDelay = 1000 * 60 * 5,
@@ -238,62 +367,52 @@ public class SystemManagementService {
         if (CollectionUtils.isEmpty(allSyncFlow)) {
             return;
         }
+        // 只入队, 由 BackupScheduler 控制并发
         for (SyncFlowEntity syncFlowEntity : allSyncFlow) {
             try {
-                this.resticFacadeService.backup(syncFlowEntity);
-            } catch (BusinessException e) {
+                this.backupScheduler.submit(syncFlowEntity, false);
+            } catch (Exception e) {
                 log.error("periodicalBackup failed. syncFlowEntity is {}", syncFlowEntity, e);
             }
         }
     }
 
-    private void readLock(SyncFlowEntity syncFlowEntity) {
-        int waitCount = 0;
-        while (true) {
-            AtomicInteger counter = this.getCounter(syncFlowEntity);
-            if (counter.get() >= 0) {
-                counter.incrementAndGet();
-                return;
-            } else {
-                // read lock 大于 15 分钟
-                if (waitCount >= 60) {
-                    log.warn("readLock acquire exceed 15 minutes");
-                }
-                LockSupport.parkNanos(15L * 1000000000); // 等待 15 秒后再获取
-                waitCount++;
-            }
-        }
+    public List<SyncFlowLockStats> getSyncFlowLockStats() {
+        List<SyncFlowLockStats> result = new ArrayList<>(this.syncFlowLockMap.size());
+        this.syncFlowLockMap.forEach((syncFlowId, lock) -> {
+            SyncFlowLockStats syncFlowLockStats = new SyncFlowLockStats();
+            syncFlowLockStats.setSyncFlowId(syncFlowId);
+            syncFlowLockStats.setReaderCount(lock.getReaderCount());
+            syncFlowLockStats.setWriterHeld(lock.isWriterHeld());
+            syncFlowLockStats.setQueueLength(lock.getQueueLength());
+            syncFlowLockStats.setAcquireCount(lock.getAcquireCount());
+            syncFlowLockStats.setWaitCount(lock.getWaitCount());
+            syncFlowLockStats.setTotalWaitMillis(lock.getTotalWaitMillis());
+            syncFlowLockStats.setMaxWaitMillis(lock.getMaxWaitMillis());
+            result.add(syncFlowLockStats);
+        });
+        return result;
     }
 
-    private void readUnlock(SyncFlowEntity syncFlowEntity) {
-        this.getCounter(syncFlowEntity).decrementAndGet();
+    private CompletableFuture<AsyncReadWriteLock.Handle> readLock(SyncFlowEntity syncFlowEntity) {
+        return this.acquireLock(syncFlowEntity, false);
     }
 
-    private void writeLock(SyncFlowEntity syncFlowEntity) {
-        int waitCount = 0;
+    private CompletableFuture<AsyncReadWriteLock.Handle> writeLock(SyncFlowEntity syncFlowEntity) {
+        return this.acquireLock(syncFlowEntity, true);
+    }
+
+    // lock 在 computeIfAbsent 之后, 排队之前可能被 deleteSyncFlow 回收, 此时移除旧 lock 并重试
+    private CompletableFuture<AsyncReadWriteLock.Handle> acquireLock(SyncFlowEntity syncFlowEntity, boolean write) {
         while (true) {
-            AtomicInteger counter = this.getCounter(syncFlowEntity);
-            if (counter.get() == 0) {
-                counter.set(-1);
-                return;
-            } else {
-                // write lock 大于 15 分钟
-                if (waitCount >= 180) {
-                    log.warn("readLock acquire exceed 15 minutes");
-                }
-                LockSupport.parkNanos(5L * 1000000000); // 等待 5 秒后再获取
-                waitCount++;
+            AsyncReadWriteLock lock = this.syncFlowLockMap.computeIfAbsent(
+                    syncFlowEntity.getSyncFlowId(),
+                    syncFlowId -> new AsyncReadWriteLock(this.generalExecutor));
+            CompletableFuture<AsyncReadWriteLock.Handle> lockFuture = write ? lock.writeLock() : lock.readLock();
+            if (lockFuture != null) {
+                return lockFuture;
             }
+            this.syncFlowLockMap.remove(syncFlowEntity.getSyncFlowId(), lock);
         }
     }
-
-    private void writeUnlock(SyncFlowEntity syncFlowEntity) {
-        this.getCounter(syncFlowEntity).set(0);
-    }
-
-    private AtomicInteger getCounter(SyncFlowEntity syncFlowEntity) {
-        Long syncFlowId = syncFlowEntity.getSyncFlowId();
-        this.syncFLowLockMap.putIfAbsent(syncFlowId, new AtomicInteger(0));
-        return this.syncFLowLockMap.get(syncFlowId);
-    }
 }
@@ -94,6 +94,20 @@ public class BackupJobService
         return CollectionUtils.isEmpty(dbResult) ? current : dbResult.get(0);
     }
 
+    // 最近一次产生 snapshot 的 backup job, 没有则返回 null
+    public BackupJobEntity getLatestSnapshotBackupJob(long syncFlowId) {
+        LambdaQueryWrapper<BackupJobEntity> queryWrapper = new LambdaQueryWrapper<>();
+        queryWrapper.isNotNull(BackupJobEntity::getSnapshotId);
+        queryWrapper.eq(BackupJobEntity::getBackupJobStatus, CommonStatus.SUCCESS.name());
+        queryWrapper.eq(BackupJobEntity::getSyncFlowId, syncFlowId);
+        queryWrapper.eq(BackupJobEntity::getRecordDeleted, DeletedEnum.NOT_DELETED.getCode());
+        queryWrapper.orderByDesc(BackupJobEntity::getFinishedAt);
+        queryWrapper.last("LIMIT 1");
+
+        List<BackupJobEntity> dbResult = this.list(queryWrapper);
+        return CollectionUtils.isEmpty(dbResult) ? null : dbResult.get(0);
+    }
+
     public List<BackupJobEntity> getBySyncFlowId(long syncFlowId) {
         LambdaQueryWrapper<BackupJobEntity> queryWrapper = new LambdaQueryWrapper<>();
         queryWrapper.eq(BackupJobEntity::getSyncFlowId, syncFlowId);
@@ -27,8 +27,13 @@ public class CopyJobService
         implements ICopyJobService {
 
     public CopyJobEntity addCopyJob(long syncFlowId) throws DbException {
+        return this.addCopyJob(syncFlowId, null);
+    }
+
+    public CopyJobEntity addCopyJob(long syncFlowId, Long fileCount) throws DbException {
         CopyJobEntity copyJobEntity = new CopyJobEntity();
         copyJobEntity.setSyncFlowId(syncFlowId);
+        copyJobEntity.setFileCount(fileCount);
         // 设置默认值
         copyJobEntity.setCopyJobStatus(CommonStatus.RUNNING.name());
         // 保存数据库
@@ -105,6 +105,22 @@ public class RestoreJobService
         this.update(updateWrapper);
     }
 
+    public void deleteRecord(long restoreJobId) {
+        LambdaUpdateWrapper<RestoreJobEntity> updateWrapper = new LambdaUpdateWrapper<>();
+        updateWrapper.eq(RestoreJobEntity::getRestoreJobId, restoreJobId);
+        updateWrapper.eq(RestoreJobEntity::getRecordDeleted, DeletedEnum.NOT_DELETED.getCode());
+        updateWrapper.set(RestoreJobEntity::getRecordDeleted, DeletedEnum.DELETED.getCode());
+        // 更新数据库
+        this.update(updateWrapper);
+    }
+
+    public List<RestoreJobEntity> getAllRestoreJob() {
+        LambdaQueryWrapper<RestoreJobEntity> queryWrapper = new LambdaQueryWrapper<>();
+        queryWrapper.eq(RestoreJobEntity::getRecordDeleted, DeletedEnum.NOT_DELETED.getCode());
+
+        return this.list(queryWrapper);
+    }
+
     public RestoreJobEntity getByRestoreJobId(long RestoreJobId) {
         LambdaQueryWrapper<RestoreJobEntity> queryWrapper = new LambdaQueryWrapper<>();
         queryWrapper.eq(RestoreJobEntity::getRestoreJobId, RestoreJobId);
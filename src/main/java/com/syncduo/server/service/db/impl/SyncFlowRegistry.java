@@ -0,0 +1,184 @@
+package com.syncduo.server.service.db.impl;
+
+import com.syncduo.server.enums.DeletedEnum;
+import com.syncduo.server.model.entity.SyncFlowEntity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// 未删除 syncflow 的内存索引, 由 SyncFlowService 在写数据库后同步更新
+// 写操作串行, 每次写生成新的不可变索引, 读操作不加锁. 对外只返回副本, 调用方修改不会影响索引
+class SyncFlowRegistry {
+
+    private volatile Index index = Index.EMPTY;
+
+    // 从数据库完整加载过一次之后为 true
+    private volatile boolean loaded = false;
+
+    // 每次写操作加一, 用于丢弃和写操作并发的 reload 结果
+    private long writeVersion = 0;
+
+    boolean isLoaded() {
+        return this.loaded;
+    }
+
+    synchronized long getWriteVersion() {
+        return this.writeVersion;
+    }
+
+    // dbResult 是在 writeVersion 为 expectedWriteVersion 时读取的. 期间有写操作则放弃, 返回 false
+    synchronized boolean load(List<SyncFlowEntity> dbResult, long expectedWriteVersion) {
+        if (this.writeVersion != expectedWriteVersion) {
+            return false;
+        }
+        Map<Long, SyncFlowEntity> byId = new HashMap<>(dbResult.size() * 2);
+        for (SyncFlowEntity syncFlowEntity : dbResult) {
+            if (isAlive(syncFlowEntity)) {
+                byId.put(syncFlowEntity.getSyncFlowId(), copyOf(syncFlowEntity));
+            }
+        }
+        this.index = new Index(byId);
+        this.loaded = true;
+        return true;
+    }
+
+    // 写入或覆盖. 已删除的记录从索引中移除
+    synchronized void put(SyncFlowEntity syncFlowEntity) {
+        Map<Long, SyncFlowEntity> byId = new HashMap<>(this.index.byId);
+        if (isAlive(syncFlowEntity)) {
+            byId.put(syncFlowEntity.getSyncFlowId(), copyOf(syncFlowEntity));
+        } else {
+            byId.remove(syncFlowEntity.getSyncFlowId());
+        }
+        this.index = new Index(byId);
+        this.writeVersion++;
+    }
+
+    // updateById 只更新非 null 字段, 这里按同样的规则合并到已有记录上
+    synchronized void merge(SyncFlowEntity update) {
+        SyncFlowEntity current = this.index.byId.get(update.getSyncFlowId());
+        if (current == null) {
+            this.writeVersion++;
+            return;
+        }
+        SyncFlowEntity merged = copyOf(current);
+        setIfNotNull(update.getSourceFolderPath(), merged::setSourceFolderPath);
+        setIfNotNull(update.getDestFolderPath(), merged::setDestFolderPath);
+        setIfNotNull(update.getSyncFlowName(), merged::setSyncFlowName);
+        setIfNotNull(update.getSyncStatus(), merged::setSyncStatus);
+        setIfNotNull(update.getLastSyncTime(), merged::setLastSyncTime);
+        setIfNotNull(update.getFilterCriteria(), merged::setFilterCriteria);
+        setIfNotNull(update.getSyncFlowType(), merged::setSyncFlowType);
+        setIfNotNull(update.getLastUpdatedUser(), merged::setLastUpdatedUser);
+        setIfNotNull(update.getLastUpdatedTime(), merged::setLastUpdatedTime);
+        setIfNotNull(update.getRecordDeleted(), merged::setRecordDeleted);
+        this.put(merged);
+    }
+
+    SyncFlowEntity getById(Long syncFlowId) {
+        return copyOf(this.index.byId.get(syncFlowId));
+    }
+
+    List<SyncFlowEntity> getAll() {
+        return copyOf(this.index.all);
+    }
+
+    List<SyncFlowEntity> getBySourceFolderPath(String sourceFolderPath) {
+        return copyOf(this.index.bySourceFolderPath.getOrDefault(sourceFolderPath, Collections.emptyList()));
+    }
+
+    List<SyncFlowEntity> getByDestFolderPath(String destFolderPath) {
+        return copyOf(this.index.byDestFolderPath.getOrDefault(destFolderPath, Collections.emptyList()));
+    }
+
+    SyncFlowEntity getBySyncFlowName(String syncFlowName) {
+        for (SyncFlowEntity syncFlowEntity : this.index.all) {
+            if (syncFlowName.equals(syncFlowEntity.getSyncFlowName())) {
+                return copyOf(syncFlowEntity);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isAlive(SyncFlowEntity syncFlowEntity) {
+        return syncFlowEntity.getSyncFlowId() != null &&
+                !Objects.equals(syncFlowEntity.getRecordDeleted(), DeletedEnum.DELETED.getCode());
+    }
+
+    private static <T> void setIfNotNull(T value, Consumer<T> setter) {
+        if (value != null) {
+            setter.accept(value);
+        }
+    }
+
+    private static List<SyncFlowEntity> copyOf(List<SyncFlowEntity> syncFlowEntityList) {
+        List<SyncFlowEntity> result = new ArrayList<>(syncFlowEntityList.size());
+        for (SyncFlowEntity syncFlowEntity : syncFlowEntityList) {
+            result.add(copyOf(syncFlowEntity));
+        }
+        return result;
+    }
+
+    private static SyncFlowEntity copyOf(SyncFlowEntity source) {
+        if (source == null) {
+            return null;
+        }
+        SyncFlowEntity copy = new SyncFlowEntity();
+        copy.setSyncFlowId(source.getSyncFlowId());
+        copy.setSourceFolderPath(source.getSourceFolderPath());
+        copy.setDestFolderPath(source.getDestFolderPath());
+        copy.setSyncFlowName(source.getSyncFlowName());
+        copy.setSyncStatus(source.getSyncStatus());
+        copy.setLastSyncTime(source.getLastSyncTime());
+        copy.setFilterCriteria(source.getFilterCriteria());
+        copy.setSyncFlowType(source.getSyncFlowType());
+        copy.setCreatedUser(source.getCreatedUser());
+        copy.setCreatedTime(source.getCreatedTime());
+        copy.setLastUpdatedUser(source.getLastUpdatedUser());
+        copy.setLastUpdatedTime(source.getLastUpdatedTime());
+        copy.setRecordDeleted(source.getRecordDeleted());
+        return copy;
+    }
+
+    // 不可变的索引, 按 syncFlowId 排序
+    private static final class Index {
+
+        private static final Index EMPTY = new Index(Collections.emptyMap());
+
+        private final Map<Long, SyncFlowEntity> byId;
+
+        private final List<SyncFlowEntity> all;
+
+        private final Map<String, List<SyncFlowEntity>> bySourceFolderPath;
+
+        private final Map<String, List<SyncFlowEntity>> byDestFolderPath;
+
+        private Index(Map<Long, SyncFlowEntity> byId) {
+            this.byId = byId;
+            List<SyncFlowEntity> all = new ArrayList<>(byId.values());
+            all.sort((a, b) -> Long.compare(a.getSyncFlowId(), b.getSyncFlowId()));
+            this.all = Collections.unmodifiableList(all);
+            this.bySourceFolderPath = groupBy(all, SyncFlowEntity::getSourceFolderPath);
+            this.byDestFolderPath = groupBy(all, SyncFlowEntity::getDestFolderPath);
+        }
+
+        private static Map<String, List<SyncFlowEntity>> groupBy(
+                List<SyncFlowEntity> all,
+                Function<SyncFlowEntity, String> keyFunction) {
+            Map<String, List<SyncFlowEntity>> result = new HashMap<>();
+            for (SyncFlowEntity syncFlowEntity : all) {
+                String key = keyFunction.apply(syncFlowEntity);
+                if (key != null) {
+                    result.computeIfAbsent(key, k -> new ArrayList<>()).add(syncFlowEntity);
+                }
+            }
+            return result;
+        }
+    }
+}
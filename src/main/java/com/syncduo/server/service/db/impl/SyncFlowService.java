@@ -15,14 +15,14 @@ import com.syncduo.server.service.db.ISyncFlowService;
 import com.syncduo.server.util.EntityValidationUtil;
 import com.syncduo.server.util.JsonUtil;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.stereotype.Service;
 
+import java.io.Serializable;
 import java.sql.Timestamp;
 import java.time.Instant;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.List;
 
 @Service
@@ -31,6 +31,9 @@ public class SyncFlowService
         extends ServiceImpl<SyncFlowMapper, SyncFlowEntity>
         implements ISyncFlowService {
 
+    // 事件路由和 controller 的查询都走内存索引, 不访问数据库
+    private final SyncFlowRegistry syncFlowRegistry = new SyncFlowRegistry();
+
     public SyncFlowEntity createSyncFlow(CreateSyncFlowRequest createSyncFlowRequest) throws DbException {
         // 检查是否重名
         String syncFlowName = createSyncFlowRequest.getSyncFlowName();
@@ -70,27 +73,18 @@ public class SyncFlowService
         if (ObjectUtils.isEmpty(syncFlowId)) {
             throw new ValidationException("getBySyncFlowIdDB failed, syncFlowId is null");
         }
-        LambdaQueryWrapper<SyncFlowEntity> queryWrapper = new LambdaQueryWrapper<>();
-        queryWrapper.eq(SyncFlowEntity::getSyncFlowId, syncFlowId);
-        queryWrapper.eq(SyncFlowEntity::getRecordDeleted, DeletedEnum.NOT_DELETED.getCode());
-        return this.getOne(queryWrapper);
+        return this.getRegistry().getById(syncFlowId);
     }
 
     public SyncFlowEntity getBySyncFlowName(String syncFlowName) throws ValidationException {
         if (StringUtils.isBlank(syncFlowName)) {
             throw new ValidationException("getBySyncFlowName failed. syncFlowName is null");
         }
-        LambdaQueryWrapper<SyncFlowEntity> queryWrapper = new LambdaQueryWrapper<>();
-        queryWrapper.eq(SyncFlowEntity::getSyncFlowName, syncFlowName);
-        queryWrapper.eq(SyncFlowEntity::getRecordDeleted, DeletedEnum.NOT_DELETED.getCode());
-        return this.getOne(queryWrapper);
+        return this.getRegistry().getBySyncFlowName(syncFlowName);
     }
 
     public List<SyncFlowEntity> getAllSyncFlow() {
-        LambdaQueryWrapper<SyncFlowEntity> queryWrapper = new LambdaQueryWrapper<>();
-        queryWrapper.eq(SyncFlowEntity::getRecordDeleted, DeletedEnum.NOT_DELETED.getCode());
-        List<SyncFlowEntity> dbResult = this.list(queryWrapper);
-        return CollectionUtils.isEmpty(dbResult) ? Collections.emptyList() : dbResult;
+        return this.getRegistry().getAll();
     }
 
     public SyncFlowEntity updateSyncFlowStatus(
@@ -123,15 +117,12 @@ public class SyncFlowService
             throw new ValidationException("getBySourceAndDestFolderPath failed." +
                     "sourceFolderPath:%s or destFolderPath:%s is null.".formatted(sourceFolderPath, destFolderPath));
         }
-        LambdaQueryWrapper<SyncFlowEntity> queryWrapper = new LambdaQueryWrapper<>();
-        queryWrapper.eq(SyncFlowEntity::getSourceFolderPath, sourceFolderPath);
-        queryWrapper.eq(SyncFlowEntity::getDestFolderPath, destFolderPath);
-        queryWrapper.eq(SyncFlowEntity::getRecordDeleted, DeletedEnum.NOT_DELETED.getCode());
-        List<SyncFlowEntity> dbResult = this.list(queryWrapper);
-        if (CollectionUtils.isEmpty(dbResult)) {
-            return null;
+        for (SyncFlowEntity syncFlowEntity : this.getRegistry().getByDestFolderPath(destFolderPath)) {
+            if (sourceFolderPath.equals(syncFlowEntity.getSourceFolderPath())) {
+                return syncFlowEntity;
+            }
         }
-        return dbResult.get(0);
+        return null;
     }
 
     public List<SyncFlowEntity> getBySourceFolderPath(String sourceFolderPath) throws ValidationException {
@@ -139,14 +130,7 @@ public class SyncFlowService
             throw new ValidationException("getBySourceFolderPath failed." +
                     "sourceFolderPath:%s is null.".formatted(sourceFolderPath));
         }
-        LambdaQueryWrapper<SyncFlowEntity> queryWrapper = new LambdaQueryWrapper<>();
-        queryWrapper.eq(SyncFlowEntity::getSourceFolderPath, sourceFolderPath);
-        queryWrapper.eq(SyncFlowEntity::getRecordDeleted, DeletedEnum.NOT_DELETED.getCode());
-        List<SyncFlowEntity> dbResult = this.list(queryWrapper);
-        if (CollectionUtils.isEmpty(dbResult)) {
-            return Collections.emptyList();
-        }
-        return dbResult;
+        return this.getRegistry().getBySourceFolderPath(sourceFolderPath);
     }
 
     public void deleteSyncFlow(SyncFlowEntity syncFlowEntity)
@@ -168,6 +152,76 @@ public class SyncFlowService
         }
     }
 
+    // 从数据库重新加载内存索引. 和写操作并发时重试, 保证不会用旧数据覆盖新写入的记录
+    public void reloadRegistry() {
+        for (int i = 0; i < 3; i++) {
+            long writeVersion = this.syncFlowRegistry.getWriteVersion();
+            LambdaQueryWrapper<SyncFlowEntity> queryWrapper = new LambdaQueryWrapper<>();
+            queryWrapper.eq(SyncFlowEntity::getRecordDeleted, DeletedEnum.NOT_DELETED.getCode());
+            List<SyncFlowEntity> dbResult = this.list(queryWrapper);
+            if (this.syncFlowRegistry.load(dbResult, writeVersion)) {
+                log.debug("reload syncflow registry. size is {}", dbResult.size());
+                return;
+            }
+        }
+        log.warn("reloadRegistry failed. concurrent write keeps happening");
+    }
+
+    private SyncFlowRegistry getRegistry() {
+        if (!this.syncFlowRegistry.isLoaded()) {
+            this.reloadRegistry();
+        }
+        return this.syncFlowRegistry;
+    }
+
+    // 以下写方法覆盖 IService 的默认实现, 写数据库成功后同步更新内存索引
+    @Override
+    public boolean save(SyncFlowEntity entity) {
+        boolean saved = super.save(entity);
+        if (saved) {
+            this.syncFlowRegistry.put(entity);
+        }
+        return saved;
+    }
+
+    @Override
+    public boolean updateById(SyncFlowEntity entity) {
+        boolean updated = super.updateById(entity);
+        if (updated) {
+            this.syncFlowRegistry.merge(entity);
+        }
+        return updated;
+    }
+
+    // 物理删除很少发生, 直接重新加载
+    @Override
+    public boolean removeById(Serializable id, boolean useFill) {
+        boolean removed = super.removeById(id, useFill);
+        this.reloadRegistry();
+        return removed;
+    }
+
+    @Override
+    public boolean removeById(SyncFlowEntity entity) {
+        boolean removed = super.removeById(entity);
+        this.reloadRegistry();
+        return removed;
+    }
+
+    @Override
+    public boolean removeBatchByIds(Collection<?> list, int batchSize) {
+        boolean removed = super.removeBatchByIds(list, batchSize);
+        this.reloadRegistry();
+        return removed;
+    }
+
+    @Override
+    public boolean removeBatchByIds(Collection<?> list, int batchSize, boolean useFill) {
+        boolean removed = super.removeBatchByIds(list, batchSize, useFill);
+        this.reloadRegistry();
+        return removed;
+    }
+
     public List<String> getFilterCriteriaAsList(SyncFlowEntity syncFlowEntity)
             throws ValidationException, JsonException {
         EntityValidationUtil.isSyncFlowEntityValid(syncFlowEntity);
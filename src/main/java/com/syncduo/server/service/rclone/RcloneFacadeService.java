@@ -2,15 +2,15 @@ package com.syncduo.server.service.rclone;
 
 import com.syncduo.server.enums.SyncFlowStatusEnum;
 import com.syncduo.server.exception.BusinessException;
+import com.syncduo.server.exception.FileOperationException;
 import com.syncduo.server.exception.ValidationException;
+import com.syncduo.server.model.api.systeminfo.RcloneTransportLatency;
 import com.syncduo.server.model.entity.CopyJobEntity;
 import com.syncduo.server.model.entity.SyncFlowEntity;
 import com.syncduo.server.model.internal.FilesystemEvent;
-import com.syncduo.server.model.rclone.core.stat.CoreStatsRequest;
 import com.syncduo.server.model.rclone.core.stat.CoreStatsResponse;
 import com.syncduo.server.model.rclone.global.SubmitAsyncJobResponse;
 import com.syncduo.server.model.rclone.global.RcloneResponse;
-import com.syncduo.server.model.rclone.job.status.JobStatusRequest;
 import com.syncduo.server.model.rclone.job.status.JobStatusResponse;
 import com.syncduo.server.model.rclone.operations.check.CheckRequest;
 import com.syncduo.server.model.rclone.operations.check.CheckResponse;
@@ -18,12 +18,12 @@ import com.syncduo.server.model.rclone.operations.copyfile.CopyFileRequest;
 import com.syncduo.server.model.rclone.operations.stats.StatsRequest;
 import com.syncduo.server.model.rclone.operations.stats.StatsResponse;
 import com.syncduo.server.model.rclone.sync.copy.SyncCopyRequest;
-import com.syncduo.server.service.bussiness.DebounceService;
 import com.syncduo.server.service.db.impl.CopyJobService;
 import com.syncduo.server.service.db.impl.SyncFlowService;
 import com.syncduo.server.util.EntityValidationUtil;
 import com.syncduo.server.util.FilesystemUtil;
 import com.syncduo.server.util.JsonUtil;
+import com.syncduo.server.util.RcloneFilterUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.exec.CommandLine;
@@ -35,15 +35,25 @@ import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.stereotype.Service;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @Service
 @Slf4j
@@ -61,17 +71,17 @@ public class RcloneFacadeService implements DisposableBean {
     @Value("${syncduo.server.rclone.logFolderPath}")
     private String logFolderPath;
 
-    @Value("${syncduo.server.rclone.jobStatusTrackTimeoutSec}")
-    private int TIMEOUT;
-
-    @Value("${syncduo.server.rclone.jobStatusTrackIntervalSec}")
-    private int INTERVAL;
+    @Value("${syncduo.server.rclone.unixSocketPath:}")
+    private String unixSocketPath;
 
     private ExecuteWatchdog watchdog;
 
     private volatile boolean stopRclone = false;
 
-    private final DebounceService.ModuleDebounceService moduleDebounceService;
+    private final RcloneJobTracker rcloneJobTracker;
+
+    // rclone 异步请求的响应在 IO 线程返回, 数据库操作切换到 generalTaskScheduler
+    private final Executor callbackExecutor;
 
     private final CopyJobService copyJobService;
 
@@ -79,16 +89,21 @@ public class RcloneFacadeService implements DisposableBean {
 
     private final SyncFlowService syncFlowService;
 
+    // syncFlowId -> 编译后的 filter
+    private final Map<Long, CompiledFilter> compiledFilterMap = new ConcurrentHashMap<>();
+
     @Autowired
     public RcloneFacadeService(
-            DebounceService debounceService,
+            RcloneJobTracker rcloneJobTracker,
             CopyJobService copyJobService,
             RcloneService rcloneService,
-            SyncFlowService syncFlowService) {
-        this.moduleDebounceService = debounceService.forModule(RcloneFacadeService.class.getSimpleName());
+            SyncFlowService syncFlowService,
+            TaskScheduler generalTaskScheduler) {
+        this.rcloneJobTracker = rcloneJobTracker;
         this.copyJobService = copyJobService;
         this.rcloneService = rcloneService;
         this.syncFlowService = syncFlowService;
+        this.callbackExecutor = task -> generalTaskScheduler.schedule(task, Instant.now());
     }
 
     public void init() {
@@ -109,6 +124,46 @@ public class RcloneFacadeService implements DisposableBean {
         return rcloneResponse.getData();
     }
 
+    // 用 rc/noop 对比 unix socket 与 TCP 的请求延迟
+    public List<RcloneTransportLatency> measureTransportLatency(int iterations) {
+        if (iterations <= 0) {
+            throw new ValidationException("measureTransportLatency failed. iterations should be positive");
+        }
+        List<RcloneTransportLatency> result = new ArrayList<>(2);
+        if (this.rcloneService.isUnixSocketEnabled()) {
+            result.add(this.measureTransportLatency("unix", false, iterations));
+        }
+        result.add(this.measureTransportLatency("tcp", true, iterations));
+        return result;
+    }
+
+    private RcloneTransportLatency measureTransportLatency(String transport, boolean viaTcp, int iterations) {
+        // 预热, 建立连接
+        for (int i = 0; i < Math.min(iterations, 10); i++) {
+            this.rcloneService.noop(viaTcp);
+        }
+        long[] latencyNanos = new long[iterations];
+        int failed = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            RcloneResponse<Map> rcloneResponse = this.rcloneService.noop(viaTcp);
+            latencyNanos[i] = System.nanoTime() - start;
+            if (!rcloneResponse.isSuccess()) {
+                failed++;
+            }
+        }
+        Arrays.sort(latencyNanos);
+        RcloneTransportLatency rcloneTransportLatency = new RcloneTransportLatency();
+        rcloneTransportLatency.setTransport(transport);
+        rcloneTransportLatency.setIterations(iterations);
+        rcloneTransportLatency.setFailed(failed);
+        rcloneTransportLatency.setAverageMicros(Arrays.stream(latencyNanos).sum() / iterations / 1000);
+        rcloneTransportLatency.setP50Micros(latencyNanos[iterations / 2] / 1000);
+        rcloneTransportLatency.setP99Micros(latencyNanos[Math.min(iterations - 1, iterations * 99 / 100)] / 1000);
+        rcloneTransportLatency.setMaxMicros(latencyNanos[iterations - 1] / 1000);
+        return rcloneTransportLatency;
+    }
+
     public boolean isSourceFolderExist(String sourceFolderPath) {
         if (StringUtils.isBlank(sourceFolderPath)) {
             throw new ValidationException("isSourceFolderExist failed. sourceFolderPath is empty");
@@ -140,33 +195,23 @@ public class RcloneFacadeService implements DisposableBean {
             checkRequest.exclude(filterCriteria);
         }
         // 获取 RcloneAsyncResponse
-        RcloneResponse<SubmitAsyncJobResponse> submitAsyncJobResponse = this.rcloneService.oneWayCheck(checkRequest);
-        if (!submitAsyncJobResponse.isSuccess()) {
-            throw new BusinessException("oneWayCheck failed. submitAsyncJob failed. " +
-                    "syncFlowEntity is %s".formatted(syncFlowEntity),
-                    submitAsyncJobResponse.getBusinessException());
-        }
-        // 创建周期任务
-        int rcloneJobId = submitAsyncJobResponse.getData().getJobId();
-        return this.trackOneWayCheckJob(rcloneJobId);
+        return this.rcloneService.oneWayCheckAsync(checkRequest).thenCompose(submitAsyncJobResponse -> {
+            if (!submitAsyncJobResponse.isSuccess()) {
+                throw new BusinessException("oneWayCheck failed. submitAsyncJob failed. " +
+                        "syncFlowEntity is %s".formatted(syncFlowEntity),
+                        submitAsyncJobResponse.getBusinessException());
+            }
+            // 交给 tracker 跟踪
+            int rcloneJobId = submitAsyncJobResponse.getData().getJobId();
+            return this.trackOneWayCheckJob(rcloneJobId);
+        });
     }
 
     private CompletableFuture<Boolean> trackOneWayCheckJob(int rcloneJobId) {
-        CompletableFuture<Boolean> future = new CompletableFuture<>();
-        this.moduleDebounceService.cancelAfter(
-                "RcloneJobId::%s::Check".formatted(rcloneJobId),
-                () -> {
-                    // 查询 rclone 异步任务执行的情况
-                    RcloneResponse<JobStatusResponse> jobStatusResponse =
-                            this.rcloneService.getJobStatus(new JobStatusRequest(rcloneJobId));
-                    // rclone 访问失败或者 job status 不是 finish, 则重试
-                    if (!jobStatusResponse.isSuccess() || !jobStatusResponse.getData().isFinished()) {
-                        // return false 表示继续执行周期任务
-                        return false;
-                    }
-                    // rclone 异步任务完成
-                    JobStatusResponse jobStatusData = jobStatusResponse.getData();
-                    // rclone 异步任务执行失败了, 抛出异常, 终止周期任务
+        return this.rcloneJobTracker.track(rcloneJobId, false)
+                .thenApply(rcloneJobResult -> {
+                    JobStatusResponse jobStatusData = rcloneJobResult.getJobStatus();
+                    // rclone 异步任务执行失败了, 抛出异常
                     if (!jobStatusData.isSuccess()) {
                         throw new BusinessException("oneWayCheck failed. " +
                                 "error is %s".formatted(jobStatusData.getError()));
@@ -174,15 +219,8 @@ public class RcloneFacadeService implements DisposableBean {
                     // 反序列化 output 为 CheckResponse
                     CheckResponse checkResponse =
                             JsonUtil.deserializeObjectToPojo(jobStatusData.getOutput(), CheckResponse.class);
-                    future.complete(checkResponse.isSuccess());
-                    // 提前取消周期任务
-                    return true;
-                },
-                INTERVAL,
-                TIMEOUT,
-                future
-        );
-        return future;
+                    return checkResponse.isSuccess();
+                });
     }
 
     public CompletableFuture<CopyJobEntity> copyFile(
@@ -199,7 +237,65 @@ public class RcloneFacadeService implements DisposableBean {
                 fileRelativePath
         );
         // 发起请求
-        return this.createAndStartRcloneCopyJob(syncFlowEntity, () -> rcloneService.copyFile(copyFileRequest));
+        return this.createAndStartRcloneCopyJob(
+                syncFlowEntity,
+                1L,
+                () -> rcloneService.copyFileAsync(copyFileRequest));
+    }
+
+    // 多个文件合并为一个 sync/copy 任务, 通过 files-from 限定复制的文件
+    public CompletableFuture<CopyJobEntity> copyFiles(
+            SyncFlowEntity syncFlowEntity,
+            List<FilesystemEvent> filesystemEventList) {
+        String sourceFolderPath = syncFlowEntity.getSourceFolderPath();
+        List<String> fileRelativePathList = new ArrayList<>(filesystemEventList.size());
+        for (FilesystemEvent filesystemEvent : filesystemEventList) {
+            String filePath = filesystemEvent.getFile().toAbsolutePath().toString();
+            try {
+                fileRelativePathList.add(FilesystemUtil.splitPath(sourceFolderPath, filePath));
+            } catch (ValidationException e) {
+                // 文件在等待期间被删除
+                log.debug("copyFiles skip file. filePath is {}", filePath, e);
+            }
+        }
+        if (CollectionUtils.isEmpty(fileRelativePathList)) {
+            return CompletableFuture.failedFuture(new ValidationException("copyFiles failed. " +
+                    "all files are invalid. syncFlowEntity is %s".formatted(syncFlowEntity)));
+        }
+        // 写入 files-from 列表文件
+        Path filesFromPath;
+        try {
+            filesFromPath = Files.createTempFile("syncduo-files-from-", ".txt");
+            Files.write(filesFromPath, fileRelativePathList, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new FileOperationException("copyFiles failed. can't write files-from list. " +
+                    "syncFlowEntity is %s".formatted(syncFlowEntity), e);
+        }
+        SyncCopyRequest syncCopyRequest = new SyncCopyRequest(
+                sourceFolderPath,
+                syncFlowEntity.getDestFolderPath()
+        );
+        syncCopyRequest.filesFrom(filesFromPath.toString());
+        // 发起请求, 任务结束后删除列表文件
+        CompletableFuture<CopyJobEntity> future;
+        try {
+            future = this.createAndStartRcloneCopyJob(
+                    syncFlowEntity,
+                    (long) fileRelativePathList.size(),
+                    () -> this.rcloneService.syncCopyAsync(syncCopyRequest));
+        } catch (RuntimeException e) {
+            deleteFilesFromQuietly(filesFromPath);
+            throw e;
+        }
+        return future.whenComplete((copyJobEntity, ex) -> deleteFilesFromQuietly(filesFromPath));
+    }
+
+    private static void deleteFilesFromQuietly(Path filesFromPath) {
+        try {
+            Files.deleteIfExists(filesFromPath);
+        } catch (IOException e) {
+            log.warn("delete files-from list failed. path is {}", filesFromPath, e);
+        }
     }
 
     public CompletableFuture<CopyJobEntity> syncCopy(SyncFlowEntity syncFlowEntity) {
@@ -215,131 +311,116 @@ public class RcloneFacadeService implements DisposableBean {
             syncCopyRequest.exclude(filterCriteria);
         }
         // 发起请求
-        return this.createAndStartRcloneCopyJob(syncFlowEntity, () -> this.rcloneService.syncCopy(syncCopyRequest));
+        return this.createAndStartRcloneCopyJob(
+                syncFlowEntity,
+                null,
+                () -> this.rcloneService.syncCopyAsync(syncCopyRequest));
     }
 
     private CompletableFuture<CopyJobEntity> createAndStartRcloneCopyJob(
             SyncFlowEntity syncFlowEntity,
-            Supplier<RcloneResponse<SubmitAsyncJobResponse>> supplier) {
+            Long fileCount,
+            Supplier<CompletableFuture<RcloneResponse<SubmitAsyncJobResponse>>> supplier) {
         // 创建 copy job
-        CopyJobEntity copyJobEntity = this.copyJobService.addCopyJob(syncFlowEntity.getSyncFlowId());
-        // 发起 rclone 异步任务的请求
-        RcloneResponse<SubmitAsyncJobResponse> submitAsyncJobResponse = supplier.get();
-        // 失败则记录数据库, 并抛出异常
+        CopyJobEntity copyJobEntity = this.copyJobService.addCopyJob(syncFlowEntity.getSyncFlowId(), fileCount);
         Long copyJobId = copyJobEntity.getCopyJobId();
-        if (!submitAsyncJobResponse.isSuccess()) {
-            BusinessException businessException = submitAsyncJobResponse.getBusinessException();
-            this.copyJobService.markCopyJobAsFailed(copyJobId, businessException.toString());
-            throw new BusinessException("createAndStartRcloneJob failed. " +
-                    "submitAsyncJobResponse failed. ",
-                    businessException);
-        }
-        // 成功则更新 CopyJobEntity 并启动 rclone job status 跟踪
-        int rcloneJobId = submitAsyncJobResponse.getData().getJobId();
-        copyJobEntity = this.copyJobService.updateRcloneJobId(copyJobEntity, rcloneJobId);
-        return this.trackCopyJobStatus(copyJobEntity);
+        // 发起 rclone 异步任务的请求, 响应回来后切换到 generalTaskScheduler 处理数据库
+        return supplier.get().thenComposeAsync(submitAsyncJobResponse -> {
+            // 失败则记录数据库, 并抛出异常
+            if (!submitAsyncJobResponse.isSuccess()) {
+                BusinessException businessException = submitAsyncJobResponse.getBusinessException();
+                this.copyJobService.markCopyJobAsFailed(copyJobId, businessException.toString());
+                throw new BusinessException("createAndStartRcloneJob failed. " +
+                        "submitAsyncJobResponse failed. ",
+                        businessException);
+            }
+            // 成功则更新 CopyJobEntity 并启动 rclone job status 跟踪
+            int rcloneJobId = submitAsyncJobResponse.getData().getJobId();
+            CopyJobEntity startedCopyJobEntity = this.copyJobService.updateRcloneJobId(copyJobEntity, rcloneJobId);
+            return this.trackCopyJobStatus(startedCopyJobEntity);
+        }, this.callbackExecutor);
     }
 
     private CompletableFuture<CopyJobEntity> trackCopyJobStatus(CopyJobEntity copyJobEntity) {
-        CompletableFuture<CopyJobEntity> future = new CompletableFuture<>();
         Long copyJobId = copyJobEntity.getCopyJobId();
         int rcloneJobId = copyJobEntity.getRcloneJobId().intValue();
-        // 创建周期任务
-        this.moduleDebounceService.cancelAfter(
-                "CopyJobId::%s".formatted(copyJobId),
-                () -> {
-                    // 查询 rclone 异步任务执行的情况
-                    RcloneResponse<JobStatusResponse> jobStatusResponse =
-                            rcloneService.getJobStatus(new JobStatusRequest(rcloneJobId));
-                    // rclone 访问失败或者 job status 不是 finish, 则重试
-                    if (!jobStatusResponse.isSuccess() || !jobStatusResponse.getData().isFinished()) {
-                        return false;
-                    }
-                    // rclone 异步任务完成
-                    JobStatusResponse jobStatusData = jobStatusResponse.getData();
+        // job 结束时 tracker 同时获取 core stats, 留给 updateCopyJobStat 使用
+        return this.rcloneJobTracker.track(rcloneJobId, true)
+                .thenApply(rcloneJobResult -> {
+                    JobStatusResponse jobStatusData = rcloneJobResult.getJobStatus();
                     if (!jobStatusData.isSuccess()) {
                         // rclone 异步任务完成但失败, 刷新数据库, 更新状态和错误信息
                         BusinessException ex = new BusinessException(("rclone async job failed. " +
                                 "error is %s").formatted(jobStatusData.getError()));
                         this.copyJobService.markCopyJobAsFailed(copyJobId, ex.toString());
-                        // 抛出异常, 终止周期任务
                         throw ex;
                     }
                     // 记录成功
                     this.copyJobService.markCopyJobAsSuccess(copyJobId, jobStatusData);
-                    future.complete(copyJobEntity);
-                    // 提前取消周期任务
-                    return true;
-                },
-                INTERVAL,
-                TIMEOUT,
-                future
-        );
-        return future;
+                    return copyJobEntity;
+                });
     }
 
     public CompletableFuture<Void> updateCopyJobStat(CopyJobEntity copyJobEntity) {
-        CompletableFuture<Void> future = new CompletableFuture<>();
         Long copyJobId = copyJobEntity.getCopyJobId();
-        Long rcloneJobId = copyJobEntity.getRcloneJobId();
-        this.moduleDebounceService.cancelAfter(
-                "RcloneJobId::%s::Stat".formatted(rcloneJobId),
-                () -> {
-                    CoreStatsRequest coreStatsRequest = new CoreStatsRequest(rcloneJobId);
-                    RcloneResponse<CoreStatsResponse> rcloneResponse =
-                            this.rcloneService.getCoreStats(coreStatsRequest);
-                    // core stats 更新较慢, 重复获取直到超时
-                    if (!rcloneResponse.isSuccess()) {
-                        return false;
-                    }
-                    // core stats 获取成功, 更新 copy job
-                    CoreStatsResponse coreStats = rcloneResponse.getData();
-                    this.copyJobService.updateSuccessCopyJobStat(copyJobId, coreStats);
-                    future.complete(null);
-                    // core stats 获取成功, 取消周期任务
-                    return true;
-                },
-                INTERVAL,
-                // rclone 存储的 core stat 在一分钟后删除, 所以 Timeout 设置为 1 分钟
-                60,
-                future
-        );
-        return future;
+        int rcloneJobId = copyJobEntity.getRcloneJobId().intValue();
+        // 优先使用 job 结束时获取的 core stats
+        CoreStatsResponse coreStats = this.rcloneJobTracker.takeStats(rcloneJobId);
+        if (ObjectUtils.isNotEmpty(coreStats)) {
+            this.copyJobService.updateSuccessCopyJobStat(copyJobId, coreStats);
+            return CompletableFuture.completedFuture(null);
+        }
+        // core stats 更新较慢, 由 tracker 重复获取直到超时
+        return this.rcloneJobTracker.trackStats(rcloneJobId)
+                .thenAccept(stats -> this.copyJobService.updateSuccessCopyJobStat(copyJobId, stats));
     }
 
-    public boolean isFileFiltered(String fileName, SyncFlowEntity syncFlowEntity) {
-        List<String> filterCriteriaList = this.syncFlowService.getFilterCriteriaAsList(syncFlowEntity);
-        if (CollectionUtils.isEmpty(filterCriteriaList)) {
+    // filePath 为绝对路径, 使用 source folder 之后的相对路径匹配
+    public boolean isFileFiltered(String filePath, SyncFlowEntity syncFlowEntity) {
+        if (StringUtils.isEmpty(filePath)) {
             return false;
         }
-        if (StringUtils.isEmpty(fileName)) {
+        CompiledFilter compiledFilter = this.getCompiledFilter(syncFlowEntity);
+        if (compiledFilter.pattern() == null) {
             return false;
         }
-        for (String filterCriteria : filterCriteriaList) {
-            // 手动实现 rclone 的 patten.  https://rclone.org/filtering/
-            // 目前仅实现 "*" patten
-            String regexString = convertToRegex(filterCriteria);
-            if (fileName.matches(regexString)) {
-                return true;
+        // 在原字符串上设置 region, 不截取相对路径
+        String sourceFolderPath = syncFlowEntity.getSourceFolderPath();
+        int start = 0;
+        if (filePath.startsWith(sourceFolderPath)) {
+            start = sourceFolderPath.length();
+            if (start < filePath.length() && filePath.charAt(start) == '/') {
+                start++;
             }
         }
-        return false;
+        Matcher matcher = compiledFilter.matcher().get();
+        matcher.reset(filePath).region(start, filePath.length());
+        return matcher.find();
     }
 
-    private String convertToRegex(String filterCriteria) {
-        // 转义正则表达式中的特殊字符，除了 '*'
-        StringBuilder regexBuilder = new StringBuilder();
-        for (char c : filterCriteria.toCharArray()) {
-            if (c == '*') {
-                regexBuilder.append("[^/]*");
-            } else if ("\\^$.|?*+[]{}()".indexOf(c) != -1) {
-                // 如果字符是正则表达式中预留的字符, 则增加 "\\" 表示转义
-                regexBuilder.append('\\').append(c);
-            } else {
-                regexBuilder.append(c);
-            }
+    // filter criteria 修改或者 syncflow 删除时调用
+    public void invalidateFilter(long syncFlowId) {
+        this.compiledFilterMap.remove(syncFlowId);
+    }
+
+    private CompiledFilter getCompiledFilter(SyncFlowEntity syncFlowEntity) {
+        String filterCriteria = StringUtils.defaultString(syncFlowEntity.getFilterCriteria());
+        CompiledFilter compiledFilter = this.compiledFilterMap.get(syncFlowEntity.getSyncFlowId());
+        // 缓存中的 filterCriteria 与 entity 一致才使用
+        if (compiledFilter != null && compiledFilter.filterCriteria().equals(filterCriteria)) {
+            return compiledFilter;
         }
-        return regexBuilder.toString();
+        Pattern pattern = RcloneFilterUtil.compile(this.syncFlowService.getFilterCriteriaAsList(syncFlowEntity));
+        compiledFilter = new CompiledFilter(
+                filterCriteria,
+                pattern,
+                pattern == null ? null : ThreadLocal.withInitial(() -> pattern.matcher("")));
+        this.compiledFilterMap.put(syncFlowEntity.getSyncFlowId(), compiledFilter);
+        return compiledFilter;
+    }
+
+    // 每个线程复用自己的 Matcher
+    private record CompiledFilter(String filterCriteria, Pattern pattern, ThreadLocal<Matcher> matcher) {
     }
 
     // 启动 rclone 的方法, 要求系统中已经安装并正确配置rclone
@@ -354,6 +435,15 @@ public class RcloneFacadeService implements DisposableBean {
                     "httpUrl, httpUser, httpPassword, logFileLocation is null");
         }
         FilesystemUtil.isFilePathValid(this.logFolderPath);
+        // 上次异常退出遗留的 socket 文件会导致 rcd 监听失败
+        if (StringUtils.isNotBlank(this.unixSocketPath)) {
+            try {
+                Files.deleteIfExists(Path.of(this.unixSocketPath));
+            } catch (IOException e) {
+                throw new FileOperationException("startRclone failed. can't delete unix socket file %s"
+                        .formatted(this.unixSocketPath), e);
+            }
+        }
         CommandLine commandLine = buildStartRcloneCommandLine();
         // 创建执行器
         DefaultExecutor executor = DefaultExecutor.builder().get();
@@ -399,6 +489,11 @@ public class RcloneFacadeService implements DisposableBean {
         // rclone rcd 地址设置
         commandLine.addArgument("--rc-addr");
         commandLine.addArgument(this.httpUrl);
+        // 同时监听 unix socket, rc 请求走 unix socket, web gui 仍然走 TCP
+        if (StringUtils.isNotBlank(this.unixSocketPath)) {
+            commandLine.addArgument("--rc-addr");
+            commandLine.addArgument("unix://%s".formatted(this.unixSocketPath));
+        }
         // rclone web 设置
         commandLine.addArgument("--rc-web-gui");
         commandLine.addArgument("--rc-web-gui-no-open-browser");
@@ -0,0 +1,333 @@
+package com.syncduo.server.service.rclone;
+
+import com.syncduo.server.exception.BusinessException;
+import com.syncduo.server.model.rclone.core.stat.CoreStatsRequest;
+import com.syncduo.server.model.rclone.core.stat.CoreStatsResponse;
+import com.syncduo.server.model.rclone.job.status.JobStatusRequest;
+import com.syncduo.server.model.rclone.job.status.JobStatusResponse;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+
+// 所有 rclone 异步 job 共用一个跟踪线程
+// 每轮先用 job/list 过滤掉仍在运行的 job, 只对到期且已结束的 job 查询 job/status, 并在同一轮获取 core/stats
+// 请求使用 RcloneService 的异步方法, 跟踪线程不等待 socket IO
+@Slf4j
+@Service
+public class RcloneJobTracker implements DisposableBean {
+
+    private final RcloneService rcloneService;
+
+    private final TaskScheduler generalTaskScheduler;
+
+    // future 在 generalTaskScheduler 中完成, 避免下游回调占用跟踪线程
+    private final Executor completeExecutor;
+
+    // rcloneJobId -> 等待 job 结束的跟踪
+    private final Map<Integer, TrackedJob> trackedJobMap = new ConcurrentHashMap<>();
+
+    // rcloneJobId -> 只等待 core/stats 的跟踪
+    private final Map<Integer, TrackedJob> trackedStatsMap = new ConcurrentHashMap<>();
+
+    // job 结束时顺带获取的 core/stats, 等待 takeStats 取走
+    private final Map<Integer, CachedStats> finishedStatsMap = new ConcurrentHashMap<>();
+
+    private final Object monitor = new Object();
+
+    private final Thread trackerThread;
+
+    private volatile boolean running = true;
+
+    // 旧版本的 rclone 没有 runningIds, 只能逐个查询 job/status
+    private volatile boolean jobListSupported = true;
+
+    @Value("${syncduo.server.rclone.jobStatusTrackTimeoutSec}")
+    private int TIMEOUT;
+
+    @Value("${syncduo.server.rclone.jobStatusTrackIntervalSec}")
+    private int MAX_INTERVAL;
+
+    @Value("${syncduo.server.rclone.jobStatusTrackMinIntervalMillis:1000}")
+    private long MIN_INTERVAL_MILLIS;
+
+    // rclone 存储的 core stat 在一分钟后删除
+    private static final long STATS_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    @Autowired
+    public RcloneJobTracker(
+            RcloneService rcloneService,
+            @Qualifier("generalTaskScheduler") TaskScheduler generalTaskScheduler) {
+        this.rcloneService = rcloneService;
+        this.generalTaskScheduler = generalTaskScheduler;
+        this.completeExecutor = task -> this.generalTaskScheduler.schedule(task, Instant.now());
+        this.trackerThread = new Thread(this::run, "Rclone-Job-Tracker");
+        this.trackerThread.setDaemon(true);
+        this.trackerThread.start();
+    }
+
+    // 跟踪 job 直到结束, withStats 为 true 时在同一轮获取 core/stats
+    public CompletableFuture<RcloneJobResult> track(int rcloneJobId, boolean withStats) {
+        TrackedJob trackedJob = new TrackedJob(rcloneJobId, withStats, TimeUnit.SECONDS.toMillis(TIMEOUT));
+        this.trackedJobMap.put(rcloneJobId, trackedJob);
+        this.wakeUp();
+        return trackedJob.future;
+    }
+
+    // 取走 job 结束时获取的 core/stats, 没有则返回 null
+    public CoreStatsResponse takeStats(int rcloneJobId) {
+        CachedStats cachedStats = this.finishedStatsMap.remove(rcloneJobId);
+        return cachedStats == null ? null : cachedStats.coreStats;
+    }
+
+    // 只跟踪 core/stats, 直到获取成功或超时
+    public CompletableFuture<CoreStatsResponse> trackStats(int rcloneJobId) {
+        TrackedJob trackedJob = new TrackedJob(rcloneJobId, true, STATS_TIMEOUT_MILLIS);
+        this.trackedStatsMap.put(rcloneJobId, trackedJob);
+        this.wakeUp();
+        return trackedJob.future.thenApply(RcloneJobResult::getCoreStats);
+    }
+
+    public int getTrackedJobCount() {
+        return this.trackedJobMap.size() + this.trackedStatsMap.size();
+    }
+
+    @Override
+    public void destroy() {
+        this.running = false;
+        this.wakeUp();
+    }
+
+    private void wakeUp() {
+        synchronized (this.monitor) {
+            this.monitor.notifyAll();
+        }
+    }
+
+    private void run() {
+        while (this.running) {
+            long nextDueMillis;
+            try {
+                nextDueMillis = this.sweep();
+            } catch (Exception e) {
+                log.error("rclone job tracker sweep failed.", e);
+                nextDueMillis = System.currentTimeMillis() + MIN_INTERVAL_MILLIS;
+            }
+            synchronized (this.monitor) {
+                long waitMillis = nextDueMillis - System.currentTimeMillis();
+                if (waitMillis > 0 && this.running) {
+                    try {
+                        this.monitor.wait(waitMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    // 返回下一次需要 sweep 的时间. 请求都是异步发出的, sweep 本身不等待 IO
+    private long sweep() {
+        long now = System.currentTimeMillis();
+        long maxIntervalMillis = TimeUnit.SECONDS.toMillis(MAX_INTERVAL);
+        long nextDueMillis = now + maxIntervalMillis;
+        // 清理过期的 stats 缓存
+        this.finishedStatsMap.values().removeIf(cachedStats -> cachedStats.expireAt < now);
+        // 到期的 job
+        List<TrackedJob> dueJobList = new ArrayList<>();
+        for (TrackedJob trackedJob : this.trackedJobMap.values()) {
+            if (this.removeIfTimeout(this.trackedJobMap, trackedJob, now)) {
+                continue;
+            }
+            if (!trackedJob.inFlight && trackedJob.nextPollAt <= now) {
+                trackedJob.inFlight = true;
+                trackedJob.reschedule(now, MIN_INTERVAL_MILLIS, maxIntervalMillis);
+                dueJobList.add(trackedJob);
+            }
+            nextDueMillis = Math.min(nextDueMillis, trackedJob.nextPollAt);
+        }
+        if (!dueJobList.isEmpty()) {
+            // 一次 job/list 得到仍在运行的 job, 这些 job 不需要查询 job/status
+            this.getRunningIdSetAsync()
+                    .thenAccept(runningIdSet -> {
+                        for (TrackedJob trackedJob : dueJobList) {
+                            if (runningIdSet.contains(trackedJob.rcloneJobId)) {
+                                trackedJob.inFlight = false;
+                            } else {
+                                this.pollJobStatusAsync(trackedJob);
+                            }
+                        }
+                    })
+                    .exceptionally(ex -> {
+                        log.warn("rclone job tracker poll failed.", ex);
+                        dueJobList.forEach(trackedJob -> trackedJob.inFlight = false);
+                        return null;
+                    });
+        }
+        // 只等待 core/stats 的跟踪
+        for (TrackedJob trackedJob : this.trackedStatsMap.values()) {
+            if (this.removeIfTimeout(this.trackedStatsMap, trackedJob, now)) {
+                continue;
+            }
+            if (!trackedJob.inFlight && trackedJob.nextPollAt <= now) {
+                trackedJob.inFlight = true;
+                trackedJob.reschedule(now, MIN_INTERVAL_MILLIS, maxIntervalMillis);
+                this.pollCoreStatsAsync(trackedJob);
+            }
+            nextDueMillis = Math.min(nextDueMillis, trackedJob.nextPollAt);
+        }
+        return nextDueMillis;
+    }
+
+    private boolean removeIfTimeout(Map<Integer, TrackedJob> map, TrackedJob trackedJob, long now) {
+        if (now - trackedJob.startAt <= trackedJob.timeoutMillis) {
+            return false;
+        }
+        map.remove(trackedJob.rcloneJobId, trackedJob);
+        this.completeExceptionally(trackedJob, new BusinessException(
+                "track rclone job timeout. rcloneJobId is %s".formatted(trackedJob.rcloneJobId)));
+        return true;
+    }
+
+    private CompletableFuture<Set<Integer>> getRunningIdSetAsync() {
+        if (!this.jobListSupported) {
+            return CompletableFuture.completedFuture(Set.of());
+        }
+        return this.rcloneService.getJobListAsync().thenApply(jobListResponse -> {
+            if (!jobListResponse.isSuccess() || jobListResponse.getData() == null) {
+                return Set.of();
+            }
+            List<Integer> runningIds = jobListResponse.getData().getRunningIds();
+            if (runningIds == null) {
+                log.info("rclone job/list doesn't return runningIds. fallback to job/status");
+                this.jobListSupported = false;
+                return Set.of();
+            }
+            return new HashSet<>(runningIds);
+        });
+    }
+
+    private void pollJobStatusAsync(TrackedJob trackedJob) {
+        int rcloneJobId = trackedJob.rcloneJobId;
+        this.rcloneService.getJobStatusAsync(new JobStatusRequest(rcloneJobId))
+                .thenCompose(jobStatusResponse -> {
+                    // rclone 访问失败或者 job status 不是 finish, 则下一轮重试
+                    if (!jobStatusResponse.isSuccess() || !jobStatusResponse.getData().isFinished()) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    JobStatusResponse jobStatusData = jobStatusResponse.getData();
+                    if (!trackedJob.withStats || !jobStatusData.isSuccess()) {
+                        return CompletableFuture.completedFuture(new RcloneJobResult(jobStatusData, null));
+                    }
+                    // 同一轮获取 core/stats, 失败则留给 trackStats 重试
+                    return this.rcloneService.getCoreStatsAsync(new CoreStatsRequest(rcloneJobId))
+                            .thenApply(statsResponse -> new RcloneJobResult(
+                                    jobStatusData,
+                                    statsResponse.isSuccess() ? statsResponse.getData() : null));
+                })
+                .whenComplete((rcloneJobResult, ex) -> {
+                    trackedJob.inFlight = false;
+                    if (ex != null) {
+                        this.trackedJobMap.remove(rcloneJobId, trackedJob);
+                        this.completeExceptionally(trackedJob, new BusinessException(
+                                "track rclone job failed. rcloneJobId is %s".formatted(rcloneJobId), ex));
+                        return;
+                    }
+                    if (rcloneJobResult == null) {
+                        return;
+                    }
+                    if (rcloneJobResult.getCoreStats() != null) {
+                        this.finishedStatsMap.put(rcloneJobId, new CachedStats(
+                                rcloneJobResult.getCoreStats(),
+                                System.currentTimeMillis() + STATS_TIMEOUT_MILLIS));
+                    }
+                    this.trackedJobMap.remove(rcloneJobId, trackedJob);
+                    this.complete(trackedJob, rcloneJobResult);
+                });
+    }
+
+    private void pollCoreStatsAsync(TrackedJob trackedJob) {
+        int rcloneJobId = trackedJob.rcloneJobId;
+        this.rcloneService.getCoreStatsAsync(new CoreStatsRequest(rcloneJobId))
+                .whenComplete((statsResponse, ex) -> {
+                    trackedJob.inFlight = false;
+                    // core stats 更新较慢, 失败则下一轮重试直到超时
+                    if (ex != null || !statsResponse.isSuccess()) {
+                        return;
+                    }
+                    this.trackedStatsMap.remove(rcloneJobId, trackedJob);
+                    this.complete(trackedJob, new RcloneJobResult(null, statsResponse.getData()));
+                });
+    }
+
+    private void complete(TrackedJob trackedJob, RcloneJobResult result) {
+        this.completeExecutor.execute(() -> trackedJob.future.complete(result));
+    }
+
+    private void completeExceptionally(TrackedJob trackedJob, Throwable ex) {
+        this.completeExecutor.execute(() -> trackedJob.future.completeExceptionally(ex));
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class RcloneJobResult {
+
+        // 只跟踪 core/stats 时为 null
+        private JobStatusResponse jobStatus;
+
+        // 没有请求或者获取失败时为 null
+        private CoreStatsResponse coreStats;
+    }
+
+    private record CachedStats(CoreStatsResponse coreStats, long expireAt) {
+    }
+
+    private static class TrackedJob {
+
+        private final int rcloneJobId;
+
+        private final boolean withStats;
+
+        private final long timeoutMillis;
+
+        private final long startAt = System.currentTimeMillis();
+
+        private final CompletableFuture<RcloneJobResult> future = new CompletableFuture<>();
+
+        // 新提交的 job 立即查询一次
+        private volatile long nextPollAt = this.startAt;
+
+        // 上一轮的请求还没有返回
+        private volatile boolean inFlight = false;
+
+        TrackedJob(int rcloneJobId, boolean withStats, long timeoutMillis) {
+            this.rcloneJobId = rcloneJobId;
+            this.withStats = withStats;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        // 运行越久的 job 查询越慢, 间隔为已运行时间的 1/10
+        void reschedule(long now, long minIntervalMillis, long maxIntervalMillis) {
+            long interval = Math.max(minIntervalMillis, Math.min(maxIntervalMillis, (now - this.startAt) / 10));
+            this.nextPollAt = now + interval;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.syncduo.server.service.rclone;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.syncduo.server.configuration.RcloneHttpTimeoutConfig;
 import com.syncduo.server.exception.BusinessException;
 import com.syncduo.server.exception.ValidationException;
 import com.syncduo.server.model.rclone.core.stat.CoreStatsRequest;
@@ -8,6 +10,7 @@ import com.syncduo.server.model.rclone.core.transferred.TransferredStatResponse;
 import com.syncduo.server.model.rclone.global.ErrorInfo;
 import com.syncduo.server.model.rclone.global.SubmitAsyncJobResponse;
 import com.syncduo.server.model.rclone.global.RcloneResponse;
+import com.syncduo.server.model.rclone.job.list.JobListResponse;
 import com.syncduo.server.model.rclone.job.status.JobStatusRequest;
 import com.syncduo.server.model.rclone.job.status.JobStatusResponse;
 import com.syncduo.server.model.rclone.operations.check.CheckRequest;
@@ -18,21 +21,77 @@ import com.syncduo.server.model.rclone.sync.copy.SyncCopyRequest;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.eclipse.jetty.client.BufferingResponseListener;
+import org.eclipse.jetty.client.BytesRequestContent;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.Result;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestClient;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 
 @Slf4j
 @Service
 public class RcloneService {
 
+    private static final byte[] EMPTY_JSON_BODY = "{}".getBytes(StandardCharsets.UTF_8);
+
+    // unix socket 异步请求的响应在内存中缓冲, job/list 等响应不会超过这个大小
+    private static final int MAX_RESPONSE_BYTES = 16 * 1024 * 1024;
+
     private final RestClient rcloneRestClient;
 
+    private final RestClient rcloneTcpRestClient;
+
+    // 没有配置 unixSocketPath 时为 null
+    private final HttpClient rcloneUnixSocketHttpClient;
+
+    private final CloseableHttpAsyncClient rcloneHttpAsyncClient;
+
+    private final RcloneHttpTimeoutConfig rcloneHttpTimeoutConfig;
+
+    private final ObjectMapper objectMapper;
+
+    @Value("${syncduo.server.rclone.httpBaseUrl}")
+    private String httpBaseUrl;
+
+    @Value("${syncduo.server.rclone.httpUser}")
+    private String httpUser;
+
+    @Value("${syncduo.server.rclone.httpPassword}")
+    private String httpPassword;
+
     @Autowired
-    protected RcloneService(RestClient rcloneRestClient) {
+    protected RcloneService(
+            @Qualifier("rcloneRestClient") RestClient rcloneRestClient,
+            @Qualifier("rcloneTcpRestClient") RestClient rcloneTcpRestClient,
+            @Qualifier("rcloneUnixSocketHttpClient") ObjectProvider<HttpClient> rcloneUnixSocketHttpClient,
+            CloseableHttpAsyncClient rcloneHttpAsyncClient,
+            RcloneHttpTimeoutConfig rcloneHttpTimeoutConfig,
+            ObjectMapper objectMapper) {
         this.rcloneRestClient = rcloneRestClient;
+        this.rcloneTcpRestClient = rcloneTcpRestClient;
+        this.rcloneUnixSocketHttpClient = rcloneUnixSocketHttpClient.getIfAvailable();
+        this.rcloneHttpAsyncClient = rcloneHttpAsyncClient;
+        this.rcloneHttpTimeoutConfig = rcloneHttpTimeoutConfig;
+        this.objectMapper = objectMapper;
     }
 
     @Deprecated
@@ -145,6 +204,183 @@ public class RcloneService {
         );
     }
 
+    // rc/noop 原样返回请求参数, 用于测量传输延迟
+    protected RcloneResponse<Map> noop(boolean viaTcp) {
+        RestClient restClient = viaTcp ? this.rcloneTcpRestClient : this.rcloneRestClient;
+        return this.handleClientResponse(
+                restClient.post().uri("/rc/noop").body(Map.of("ping", "pong")),
+                Map.class
+        );
+    }
+
+    protected boolean isUnixSocketEnabled() {
+        return this.rcloneUnixSocketHttpClient != null;
+    }
+
+    // 以下为异步版本, 请求在 IO reactor 中完成(unix socket 为 jetty HttpClient 的线程池), 不占用调用线程
+    protected CompletableFuture<RcloneResponse<CoreStatsResponse>> getCoreStatsAsync(
+            CoreStatsRequest coreStatsRequest) throws ValidationException {
+        if (ObjectUtils.anyNull(coreStatsRequest, coreStatsRequest.getGroup())) {
+            throw new ValidationException("getCoreStatsAsync failed. " +
+                    "coreStatsRequest or group is null." +
+                    "coreStatsRequest is %s".formatted(coreStatsRequest));
+        }
+        return this.postAsync("/core/stats", coreStatsRequest, false, CoreStatsResponse.class);
+    }
+
+    protected CompletableFuture<RcloneResponse<JobStatusResponse>> getJobStatusAsync(
+            JobStatusRequest jobStatusRequest) throws ValidationException {
+        if (ObjectUtils.anyNull(jobStatusRequest, jobStatusRequest.getJobId())) {
+            throw new ValidationException("getJobStatusAsync failed. " +
+                    "jobStatusRequest or jobId is null." +
+                    "jobStatusRequest is %s".formatted(jobStatusRequest));
+        }
+        return this.postAsync("/job/status", jobStatusRequest, false, JobStatusResponse.class);
+    }
+
+    // 获得 rclone 内存中全部 job 的 id
+    protected CompletableFuture<RcloneResponse<JobListResponse>> getJobListAsync() {
+        return this.postAsync("/job/list", null, false, JobListResponse.class);
+    }
+
+    protected CompletableFuture<RcloneResponse<SubmitAsyncJobResponse>> copyFileAsync(
+            CopyFileRequest copyFileRequest) throws ValidationException {
+        if (ObjectUtils.anyNull(
+                copyFileRequest,
+                copyFileRequest.getSrcFs(),
+                copyFileRequest.getSrcRemote(),
+                copyFileRequest.getDstFs(),
+                copyFileRequest.getDstRemote())) {
+            throw new ValidationException("copyFileAsync failed." +
+                    "copyFileRequest, srcFs, srcRemote, dstFs, dstRemote is null." +
+                    "copyFileRequest is %s".formatted(copyFileRequest));
+        }
+        return this.postAsync("/operations/copyfile", copyFileRequest, true, SubmitAsyncJobResponse.class);
+    }
+
+    protected CompletableFuture<RcloneResponse<SubmitAsyncJobResponse>> syncCopyAsync(
+            SyncCopyRequest syncCopyRequest) throws ValidationException {
+        if (ObjectUtils.anyNull(syncCopyRequest, syncCopyRequest.getSrcFs(), syncCopyRequest.getDstFs())) {
+            throw new ValidationException("syncCopyAsync failed." +
+                    "copyRequest, srcFs, dstFs is null." +
+                    "syncCopyRequest is %s".formatted(syncCopyRequest));
+        }
+        return this.postAsync("/sync/copy", syncCopyRequest, true, SubmitAsyncJobResponse.class);
+    }
+
+    protected CompletableFuture<RcloneResponse<SubmitAsyncJobResponse>> oneWayCheckAsync(
+            CheckRequest checkRequest) throws ValidationException {
+        if (ObjectUtils.anyNull(checkRequest, checkRequest.getSrcFs(), checkRequest.getDstFs())) {
+            throw new ValidationException("oneWayCheckAsync failed." +
+                    "checkRequest, srcFs or dstFs is null." +
+                    "checkRequest is %s".formatted(checkRequest));
+        }
+        return this.postAsync("/operations/check", checkRequest, true, SubmitAsyncJobResponse.class);
+    }
+
+    private <Req, Res> CompletableFuture<RcloneResponse<Res>> postAsync(
+            String url, Req request, boolean isAsyncJob, Class<Res> clazz) {
+        if (this.isUnixSocketEnabled()) {
+            return this.postUnixSocketAsync(url, request, isAsyncJob, clazz);
+        }
+        CompletableFuture<RcloneResponse<Res>> future = new CompletableFuture<>();
+        SimpleHttpRequest httpRequest;
+        try {
+            httpRequest = SimpleRequestBuilder
+                    .post(this.httpBaseUrl + url + (isAsyncJob ? "?_async=true" : ""))
+                    .addHeader(HttpHeaders.AUTHORIZATION, "Basic " + HttpHeaders.encodeBasicAuth(
+                            this.httpUser, this.httpPassword, StandardCharsets.UTF_8))
+                    .setBody(
+                            ObjectUtils.isEmpty(request) ?
+                                    EMPTY_JSON_BODY : this.objectMapper.writeValueAsBytes(request),
+                            ContentType.APPLICATION_JSON)
+                    .build();
+            httpRequest.setConfig(this.rcloneHttpTimeoutConfig.forRequest(isAsyncJob));
+        } catch (Exception e) {
+            future.complete(RcloneResponse.error(
+                    new BusinessException("build request failed. url is %s".formatted(url), e)));
+            return future;
+        }
+        this.rcloneHttpAsyncClient.execute(httpRequest, new FutureCallback<>() {
+            @Override
+            public void completed(SimpleHttpResponse httpResponse) {
+                future.complete(handleAsyncResponse(url, httpResponse, clazz));
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                future.complete(RcloneResponse.error(
+                        new BusinessException("request failed. url is %s".formatted(url), ex)));
+            }
+
+            @Override
+            public void cancelled() {
+                future.complete(RcloneResponse.error(
+                        new BusinessException("request cancelled. url is %s".formatted(url))));
+            }
+        });
+        return future;
+    }
+
+    private <Req, Res> CompletableFuture<RcloneResponse<Res>> postUnixSocketAsync(
+            String url, Req request, boolean isAsyncJob, Class<Res> clazz) {
+        byte[] body;
+        try {
+            body = ObjectUtils.isEmpty(request) ? EMPTY_JSON_BODY : this.objectMapper.writeValueAsBytes(request);
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(RcloneResponse.error(
+                    new BusinessException("build request failed. url is %s".formatted(url), e)));
+        }
+        CompletableFuture<RcloneResponse<Res>> future = new CompletableFuture<>();
+        // 超时包含排队和连接的时间
+        this.rcloneUnixSocketHttpClient
+                .newRequest(RcloneHttpTimeoutConfig.UNIX_SOCKET_BASE_URL + url + (isAsyncJob ? "?_async=true" : ""))
+                .method("POST")
+                .headers(headers -> headers.put(
+                        HttpHeaders.AUTHORIZATION,
+                        "Basic " + HttpHeaders.encodeBasicAuth(this.httpUser, this.httpPassword, StandardCharsets.UTF_8)))
+                .body(new BytesRequestContent(MediaType.APPLICATION_JSON_VALUE, body))
+                .timeout(this.rcloneHttpTimeoutConfig.getReadTimeoutMillis(isAsyncJob), TimeUnit.MILLISECONDS)
+                .send(new BufferingResponseListener(MAX_RESPONSE_BYTES) {
+                    @Override
+                    public void onComplete(Result result) {
+                        if (result.isFailed()) {
+                            future.complete(RcloneResponse.error(new BusinessException(
+                                    "request failed. url is %s".formatted(url), result.getFailure())));
+                            return;
+                        }
+                        future.complete(handleAsyncResponse(
+                                url, result.getResponse().getStatus(), this.getContent(), clazz));
+                    }
+                });
+        return future;
+    }
+
+    private <T> RcloneResponse<T> handleAsyncResponse(
+            String url,
+            SimpleHttpResponse httpResponse,
+            Class<T> dataType) {
+        return this.handleAsyncResponse(url, httpResponse.getCode(), httpResponse.getBodyBytes(), dataType);
+    }
+
+    private <T> RcloneResponse<T> handleAsyncResponse(
+            String url,
+            int statusCode,
+            byte[] body,
+            Class<T> dataType) {
+        try {
+            if (HttpStatusCode.valueOf(statusCode).is2xxSuccessful()) {
+                return RcloneResponse.success(statusCode, this.objectMapper.readValue(body, dataType));
+            } else {
+                // 处理错误http响应（非2xx）
+                return RcloneResponse.error(statusCode, this.objectMapper.readValue(body, ErrorInfo.class));
+            }
+        } catch (Exception e) {
+            return RcloneResponse.error(
+                    new BusinessException("handle response failed. url is %s".formatted(url), e));
+        }
+    }
+
     private <Req, Res> RcloneResponse<Res> post(
             String url, Req request, Class<Res> clazz) {
         if (ObjectUtils.isEmpty(request)) {
@@ -0,0 +1,256 @@
+package com.syncduo.server.service.restic;
+
+import com.syncduo.server.bus.FolderWatcher;
+import com.syncduo.server.enums.BackupOrderEnum;
+import com.syncduo.server.enums.SyncFlowStatusEnum;
+import com.syncduo.server.model.api.snapshots.BackupQueueInfo;
+import com.syncduo.server.model.entity.BackupJobEntity;
+import com.syncduo.server.model.entity.SyncFlowEntity;
+import com.syncduo.server.service.db.impl.BackupJobService;
+import com.syncduo.server.service.db.impl.SyncFlowService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.ObjectUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+
+// 所有 backup 都经过这里排队, 同时运行的 restic backup 不超过 backupConcurrency
+// 手动 backup 排在最前面, 其余按 backupOrder 排序. 同一个 syncflow 最多排队一次
+@Slf4j
+@Service
+public class BackupScheduler {
+
+    private final ResticFacadeService resticFacadeService;
+
+    private final SyncFlowService syncFlowService;
+
+    private final BackupJobService backupJobService;
+
+    private final FolderWatcher folderWatcher;
+
+    private final TaskScheduler generalTaskScheduler;
+
+    private final int backupConcurrency;
+
+    private final BackupOrderEnum backupOrder;
+
+    // 以下状态都在 synchronized(this) 中访问
+    private final PriorityQueue<BackupTask> backupQueue;
+
+    // <syncFlowId, task>
+    private final Map<Long, BackupTask> queuedMap = new HashMap<>();
+
+    private final Map<Long, BackupTask> runningMap = new HashMap<>();
+
+    private long sequence = 0;
+
+    @Autowired
+    public BackupScheduler(
+            ResticFacadeService resticFacadeService,
+            SyncFlowService syncFlowService,
+            BackupJobService backupJobService,
+            FolderWatcher folderWatcher,
+            TaskScheduler generalTaskScheduler,
+            @Value("${syncduo.server.restic.backupConcurrency:2}") int backupConcurrency,
+            @Value("${syncduo.server.restic.backupOrder:OLDEST_SNAPSHOT_FIRST}") String backupOrder) {
+        this.resticFacadeService = resticFacadeService;
+        this.syncFlowService = syncFlowService;
+        this.backupJobService = backupJobService;
+        this.folderWatcher = folderWatcher;
+        this.generalTaskScheduler = generalTaskScheduler;
+        this.backupConcurrency = Math.max(1, backupConcurrency);
+        this.backupOrder = BackupOrderEnum.fromOrderString(backupOrder);
+        this.backupQueue = new PriorityQueue<>(getComparator(this.backupOrder));
+    }
+
+    // 加入队列. 已经在排队时, 手动 backup 会把它提到最前面. 返回是否加入或提升了队列
+    public boolean submit(SyncFlowEntity syncFlowEntity, boolean manual) {
+        if (ObjectUtils.isEmpty(syncFlowEntity) ||
+                SyncFlowStatusEnum.isBackupProhibit(syncFlowEntity.getSyncStatus())) {
+            return false;
+        }
+        long syncFlowId = syncFlowEntity.getSyncFlowId();
+        // 排序依据在入队时计算一次, 查询数据库不放在锁中
+        BackupTask backupTask = this.createBackupTask(syncFlowEntity, manual);
+        synchronized (this) {
+            BackupTask queued = this.queuedMap.get(syncFlowId);
+            if (ObjectUtils.isNotEmpty(queued)) {
+                if (!manual || queued.manual) {
+                    return false;
+                }
+                this.backupQueue.remove(queued);
+                queued.manual = true;
+                this.backupQueue.add(queued);
+                return true;
+            }
+            // 正在运行时, 定时 backup 不需要再排队. 手动 backup 可能是为了备份运行之后的变化, 继续排队
+            if (this.runningMap.containsKey(syncFlowId) && !manual) {
+                return false;
+            }
+            backupTask.sequence = this.sequence++;
+            this.queuedMap.put(syncFlowId, backupTask);
+            this.backupQueue.add(backupTask);
+        }
+        this.dispatch();
+        return true;
+    }
+
+    public synchronized List<BackupQueueInfo> getBackupQueueInfo() {
+        long now = System.currentTimeMillis();
+        List<BackupQueueInfo> result = new ArrayList<>(this.runningMap.size() + this.backupQueue.size());
+        for (BackupTask backupTask : this.runningMap.values()) {
+            BackupQueueInfo backupQueueInfo = backupTask.toBackupQueueInfo("RUNNING", 0);
+            backupQueueInfo.setWaitMillis(backupTask.startedAt - backupTask.enqueuedAt);
+            backupQueueInfo.setStartedAt(backupTask.startedAt);
+            result.add(backupQueueInfo);
+        }
+        List<BackupTask> queuedList = new ArrayList<>(this.backupQueue);
+        queuedList.sort(this.backupQueue.comparator());
+        for (int i = 0; i < queuedList.size(); i++) {
+            BackupTask backupTask = queuedList.get(i);
+            BackupQueueInfo backupQueueInfo = backupTask.toBackupQueueInfo("QUEUED", i + 1);
+            backupQueueInfo.setWaitMillis(now - backupTask.enqueuedAt);
+            result.add(backupQueueInfo);
+        }
+        return result;
+    }
+
+    private void dispatch() {
+        List<BackupTask> startList = new ArrayList<>();
+        synchronized (this) {
+            // 同一个 syncflow 不同时运行两个 backup, 等当前的结束后再调度
+            List<BackupTask> deferredList = new ArrayList<>();
+            while (this.runningMap.size() < this.backupConcurrency && !this.backupQueue.isEmpty()) {
+                BackupTask backupTask = this.backupQueue.poll();
+                if (this.runningMap.containsKey(backupTask.syncFlowId)) {
+                    deferredList.add(backupTask);
+                    continue;
+                }
+                this.queuedMap.remove(backupTask.syncFlowId);
+                backupTask.startedAt = System.currentTimeMillis();
+                this.runningMap.put(backupTask.syncFlowId, backupTask);
+                startList.add(backupTask);
+            }
+            this.backupQueue.addAll(deferredList);
+        }
+        for (BackupTask backupTask : startList) {
+            try {
+                this.generalTaskScheduler.schedule(() -> this.run(backupTask), Instant.now());
+            } catch (Exception e) {
+                log.error("schedule backup failed. syncFlowId is {}", backupTask.syncFlowId, e);
+                synchronized (this) {
+                    this.runningMap.remove(backupTask.syncFlowId, backupTask);
+                }
+            }
+        }
+    }
+
+    private void run(BackupTask backupTask) {
+        CompletableFuture<Void> future;
+        try {
+            // 排队期间 syncflow 可能被删除或暂停
+            SyncFlowEntity syncFlowEntity = this.syncFlowService.getBySyncFlowId(backupTask.syncFlowId);
+            if (ObjectUtils.isEmpty(syncFlowEntity)) {
+                future = CompletableFuture.completedFuture(null);
+            } else {
+                future = this.resticFacadeService.backup(syncFlowEntity);
+            }
+        } catch (Exception e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((ignored, ex) -> {
+            if (ObjectUtils.isNotEmpty(ex)) {
+                log.error("backup failed. syncFlowId is {}", backupTask.syncFlowId, ex);
+            }
+            synchronized (this) {
+                this.runningMap.remove(backupTask.syncFlowId, backupTask);
+            }
+            this.dispatch();
+        });
+    }
+
+    private BackupTask createBackupTask(SyncFlowEntity syncFlowEntity, boolean manual) {
+        BackupTask backupTask = new BackupTask(syncFlowEntity.getSyncFlowId(), syncFlowEntity.getSyncFlowName());
+        backupTask.manual = manual;
+        backupTask.enqueuedAt = System.currentTimeMillis();
+        if (manual) {
+            return backupTask;
+        }
+        try {
+            BackupJobEntity latest = this.backupJobService.getLatestSnapshotBackupJob(syncFlowEntity.getSyncFlowId());
+            if (ObjectUtils.isNotEmpty(latest) && ObjectUtils.isNotEmpty(latest.getFinishedAt())) {
+                backupTask.lastSnapshotTime = latest.getFinishedAt().getTime();
+                backupTask.lastSnapshotBytes = latest.getBackupBytes() == null ?
+                        0 : latest.getBackupBytes().longValue();
+                // 没有 watcher 的 syncflow 无法判断, 视为有变化
+                backupTask.dirty = !this.folderWatcher.isUnchangedSince(
+                        syncFlowEntity.getSourceFolderPath(), backupTask.lastSnapshotTime);
+            }
+        } catch (Exception e) {
+            log.warn("createBackupTask failed to get latest snapshot. use default order. syncFlowId is {}",
+                    syncFlowEntity.getSyncFlowId(), e);
+        }
+        return backupTask;
+    }
+
+    private static Comparator<BackupTask> getComparator(BackupOrderEnum backupOrder) {
+        Comparator<BackupTask> orderComparator = switch (backupOrder) {
+            case OLDEST_SNAPSHOT_FIRST -> Comparator.comparingLong(task -> task.lastSnapshotTime);
+            case DIRTY_FIRST -> Comparator.<BackupTask, Boolean>comparing(task -> !task.dirty)
+                    .thenComparingLong(task -> task.lastSnapshotTime);
+            case SMALLEST_FIRST -> Comparator.comparingLong(task -> task.lastSnapshotBytes);
+        };
+        // 手动 backup 在最前面, 相同优先级先入队的先执行
+        return Comparator.<BackupTask, Boolean>comparing(task -> !task.manual)
+                .thenComparing(orderComparator)
+                .thenComparingLong(task -> task.sequence);
+    }
+
+    private static class BackupTask {
+
+        private final long syncFlowId;
+
+        private final String syncFlowName;
+
+        private boolean manual;
+
+        private long sequence;
+
+        private long enqueuedAt;
+
+        private long startedAt;
+
+        // 从未备份过则为 0, 排在最前面
+        private long lastSnapshotTime = 0;
+
+        private long lastSnapshotBytes = 0;
+
+        private boolean dirty = true;
+
+        BackupTask(long syncFlowId, String syncFlowName) {
+            this.syncFlowId = syncFlowId;
+            this.syncFlowName = syncFlowName;
+        }
+
+        BackupQueueInfo toBackupQueueInfo(String backupStatus, int queuePosition) {
+            BackupQueueInfo backupQueueInfo = new BackupQueueInfo();
+            backupQueueInfo.setSyncFlowId(Long.toString(this.syncFlowId));
+            backupQueueInfo.setSyncFlowName(this.syncFlowName);
+            backupQueueInfo.setBackupStatus(backupStatus);
+            backupQueueInfo.setManual(this.manual);
+            backupQueueInfo.setQueuePosition(queuePosition);
+            backupQueueInfo.setEnqueuedAt(this.enqueuedAt);
+            return backupQueueInfo;
+        }
+    }
+}
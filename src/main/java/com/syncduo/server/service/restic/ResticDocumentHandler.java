@@ -0,0 +1,41 @@
+package com.syncduo.server.service.restic;
+
+import com.syncduo.server.exception.ValidationException;
+import com.syncduo.server.util.JsonUtil;
+
+// 输出是单个 json document(可能跨多行)的命令, 例如 stats, cat config. 超过上限的输出视为异常
+public class ResticDocumentHandler<R> implements ResticOutputHandler<R> {
+
+    private static final int MAX_DOCUMENT_CHARS = 4 * 1024 * 1024;
+
+    private final Class<R> clazz;
+
+    private final StringBuilder document = new StringBuilder();
+
+    private boolean truncated = false;
+
+    public ResticDocumentHandler(Class<R> clazz) {
+        this.clazz = clazz;
+    }
+
+    @Override
+    public void onLine(String line) {
+        if (this.truncated) {
+            return;
+        }
+        if (this.document.length() + line.length() > MAX_DOCUMENT_CHARS) {
+            this.truncated = true;
+            return;
+        }
+        this.document.append(line).append('\n');
+    }
+
+    @Override
+    public R getResult() {
+        if (this.truncated) {
+            throw new ValidationException("restic document exceed %s chars. clazz is %s"
+                    .formatted(MAX_DOCUMENT_CHARS, this.clazz.getSimpleName()));
+        }
+        return JsonUtil.parseResticJsonDocument(this.document.toString().trim(), this.clazz);
+    }
+}
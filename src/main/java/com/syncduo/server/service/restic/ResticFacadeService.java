@@ -1,6 +1,8 @@
 package com.syncduo.server.service.restic;
 
 import com.syncduo.server.enums.CommonStatus;
+import com.syncduo.server.enums.ResticDumpArchiveEnum;
+import com.syncduo.server.enums.ResticJobTypeEnum;
 import com.syncduo.server.enums.ResticNodeTypeEnum;
 import com.syncduo.server.enums.SyncFlowStatusEnum;
 import com.syncduo.server.exception.BusinessException;
@@ -8,6 +10,7 @@ import com.syncduo.server.exception.DbException;
 import com.syncduo.server.exception.ResourceNotFoundException;
 import com.syncduo.server.exception.ValidationException;
 import com.syncduo.server.model.api.snapshots.SnapshotFileInfo;
+import com.syncduo.server.model.api.snapshots.SnapshotFilePage;
 import com.syncduo.server.model.entity.BackupJobEntity;
 import com.syncduo.server.model.entity.RestoreJobEntity;
 import com.syncduo.server.model.entity.SyncFlowEntity;
@@ -17,7 +20,6 @@ import com.syncduo.server.model.restic.global.ResticExecResult;
 import com.syncduo.server.model.restic.init.Init;
 import com.syncduo.server.model.restic.ls.Node;
 import com.syncduo.server.model.restic.stats.Stats;
-import com.syncduo.server.service.bussiness.DebounceService;
 import com.syncduo.server.service.db.impl.BackupJobService;
 import com.syncduo.server.service.db.impl.RestoreJobService;
 import com.syncduo.server.service.rclone.RcloneFacadeService;
@@ -29,18 +31,21 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
+import java.io.OutputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 // Restic 设计为单备份仓库, 单密码
 @Slf4j
 @Service
 public class ResticFacadeService {
 
-    private final DebounceService.ModuleDebounceService moduleDebounceService;
-
     private final ResticService resticService;
 
     private final BackupJobService backupJobService;
@@ -49,42 +54,45 @@ public class ResticFacadeService {
 
     private final RestoreJobService restoreJobService;
 
+    private final ResticProgressService resticProgressService;
+
+    private final SnapshotIndexService snapshotIndexService;
+
+    private final RestoreCacheService restoreCacheService;
+
     @Value("${syncduo.server.system.backupIntervalMillis}")
     private long SYSTEM_BACKUP_INTERVAL;
 
-    @Value("${syncduo.server.restic.restoreAgeSec}")
-    private long RESTIC_RESTORE_AGE_SEC;
-
     @Value("${syncduo.server.restic.restorePath}")
     private String RESTIC_RESTORE_PATH;
 
     public ResticFacadeService(
-            DebounceService debounceService,
             ResticService resticService,
             BackupJobService backupJobService,
             RcloneFacadeService rcloneFacadeService,
-            RestoreJobService restoreJobService) {
-        this.moduleDebounceService = debounceService.forModule(ResticFacadeService.class.getSimpleName());
+            RestoreJobService restoreJobService,
+            ResticProgressService resticProgressService,
+            SnapshotIndexService snapshotIndexService,
+            RestoreCacheService restoreCacheService) {
         this.resticService = resticService;
         this.backupJobService = backupJobService;
         this.rcloneFacadeService = rcloneFacadeService;
         this.restoreJobService = restoreJobService;
+        this.resticProgressService = resticProgressService;
+        this.snapshotIndexService = snapshotIndexService;
+        this.restoreCacheService = restoreCacheService;
     }
 
     public void init() {
         try {
-            if (ObjectUtils.anyNull(SYSTEM_BACKUP_INTERVAL, RESTIC_RESTORE_AGE_SEC) ||
-                    SYSTEM_BACKUP_INTERVAL < 1 || RESTIC_RESTORE_AGE_SEC < 1) {
+            if (ObjectUtils.isEmpty(SYSTEM_BACKUP_INTERVAL) || SYSTEM_BACKUP_INTERVAL < 1) {
                 throw new ValidationException(
-                        "RESTIC_BACKUP_INTERVAL:%s or ".formatted(SYSTEM_BACKUP_INTERVAL) +
-                                "RESTIC_RESTORE_AGE:%s is null.".formatted(RESTIC_RESTORE_AGE_SEC));
+                        "RESTIC_BACKUP_INTERVAL:%s is null.".formatted(SYSTEM_BACKUP_INTERVAL));
             }
             // 检查 restore path 是否存在
             this.rcloneFacadeService.isSourceFolderExist(RESTIC_RESTORE_PATH);
-            // 删除 restore path 的所有子文件夹
-            FilesystemUtil.deleteFolder(RESTIC_RESTORE_PATH, false);
-            // 逻辑删除所有restore记录
-            this.restoreJobService.deleteAllRecord();
+            // 恢复上次运行留下的 restore 缓存, 清理没有完成的 restore
+            this.restoreCacheService.init();
             // 检查备份目录是否已经初始化
             ResticExecResult<CatConfig, ExitErrors> catConfigResult = this.resticService.catConfig();
             // 没有初始化则初始化
@@ -95,6 +103,8 @@ public class ResticFacadeService {
                             initResult.getBusinessException());
                 }
             }
+            // 登记本地的 snapshot index
+            this.snapshotIndexService.init();
         } catch (Exception e) {
             throw new BusinessException("Restic init failed", e);
         }
@@ -114,6 +124,14 @@ public class ResticFacadeService {
             throw new ValidationException("getSnapshotFileInfo failed. " +
                     "snapshotsId or pathString is null");
         }
+        // 优先使用本地 index. index 不可用或 pathString 不是目录时使用 restic ls
+        SnapshotIndex snapshotIndex = this.snapshotIndexService.getIndex(snapshotId);
+        if (ObjectUtils.isNotEmpty(snapshotIndex)) {
+            List<Node> children = snapshotIndex.listChildren(pathString);
+            if (children != null) {
+                return children;
+            }
+        }
         ResticExecResult<List<Node>, ExitErrors> lsResult = this.resticService.ls(snapshotId, pathString);
         if (!lsResult.isSuccess()) {
             throw new BusinessException("getSnapshotFileInfo failed.", lsResult.getBusinessException());
@@ -121,24 +139,121 @@ public class ResticFacadeService {
         return lsResult.getData();
     }
 
-    @Async("generalTaskScheduler")
-    public void backup(SyncFlowEntity syncFlowEntity) throws DbException, BusinessException {
+    // 分页列出目录, 排序为 目录在前, 再按名称. cursor 为上一页返回的 nextCursor, 为空表示第一页
+    public SnapshotFilePage getSnapshotFilePage(
+            String snapshotId,
+            String pathString,
+            String cursor,
+            String namePrefix,
+            int pageSize) throws ValidationException, BusinessException {
+        if (StringUtils.isAnyBlank(snapshotId, pathString)) {
+            throw new ValidationException("getSnapshotFilePage failed. " +
+                    "snapshotsId or pathString is null");
+        }
+        if (pageSize < 1) {
+            throw new ValidationException("getSnapshotFilePage failed. pageSize should be positive");
+        }
+        SnapshotListCursor after = SnapshotListCursor.decode(cursor);
+        // 多取一项, 用于判断是否还有下一页
+        List<Node> nodeList = null;
+        SnapshotIndex snapshotIndex = this.snapshotIndexService.getIndex(snapshotId);
+        if (ObjectUtils.isNotEmpty(snapshotIndex)) {
+            nodeList = snapshotIndex.listChildrenPage(pathString, after, namePrefix, pageSize + 1);
+        }
+        if (nodeList == null) {
+            nodeList = this.lsPage(snapshotId, pathString, after, namePrefix, pageSize + 1);
+        }
+        boolean hasMore = nodeList.size() > pageSize;
+        if (hasMore) {
+            nodeList = nodeList.subList(0, pageSize);
+        }
+        List<SnapshotFileInfo> snapshotFileInfoList = new ArrayList<>(nodeList.size());
+        for (Node node : nodeList) {
+            snapshotFileInfoList.add(SnapshotFileInfo.getFromResticNode(snapshotId, node));
+        }
+        SnapshotFilePage snapshotFilePage = new SnapshotFilePage();
+        snapshotFilePage.setSnapshotFileInfoList(snapshotFileInfoList);
+        snapshotFilePage.setHasMore(hasMore);
+        if (hasMore) {
+            snapshotFilePage.setNextCursor(SnapshotListCursor.of(nodeList.get(nodeList.size() - 1)).encode());
+        }
+        return snapshotFilePage;
+    }
+
+    // 没有 index 时使用 restic ls. 输出逐行处理, 只保留排序最靠前的 limit 项
+    private List<Node> lsPage(
+            String snapshotId,
+            String pathString,
+            SnapshotListCursor after,
+            String namePrefix,
+            int limit) throws BusinessException {
+        String dirPath = SnapshotIndex.normalizeDirPath(pathString);
+        Comparator<Node> comparator = Comparator.comparing(SnapshotListCursor::of);
+        // 大顶堆, 堆顶是当前保留的最后一项
+        PriorityQueue<Node> topNodes = new PriorityQueue<>(limit + 1, comparator.reversed());
+        ResticExecResult<Long, ExitErrors> lsResult;
+        try {
+            lsResult = this.resticService.lsStream(snapshotId, pathString, node -> {
+                if (StringUtils.isAnyBlank(node.getPath(), node.getName())) {
+                    return;
+                }
+                // restic ls 的结果包含查询的目录本身
+                String nodePath = SnapshotIndex.normalizeDirPath(node.getPath());
+                if (!dirPath.equals(SnapshotIndex.getParentDirPath(nodePath)) || dirPath.equals(nodePath)) {
+                    return;
+                }
+                if (StringUtils.isNotEmpty(namePrefix) && !node.getName().startsWith(namePrefix)) {
+                    return;
+                }
+                if (after != null && SnapshotListCursor.of(node).compareTo(after) <= 0) {
+                    return;
+                }
+                topNodes.add(node);
+                if (topNodes.size() > limit) {
+                    topNodes.poll();
+                }
+            }).get();
+        } catch (Exception e) {
+            throw new BusinessException("lsPage failed. future get failed. ", e);
+        }
+        if (!lsResult.isSuccess()) {
+            throw new BusinessException("lsPage failed.", lsResult.getBusinessException());
+        }
+        List<Node> result = new ArrayList<>(topNodes);
+        result.sort(comparator);
+        return result;
+    }
+
+    // 由 BackupScheduler 调用. 返回的 future 在 restic 结束并记录结果后完成
+    public CompletableFuture<Void> backup(SyncFlowEntity syncFlowEntity) throws DbException, BusinessException {
         // 判断是否允许 backup
         if (SyncFlowStatusEnum.isBackupProhibit(syncFlowEntity.getSyncStatus())) {
-            return;
+            return CompletableFuture.completedFuture(null);
         }
         BackupJobEntity backupJobEntity = this.backupJobService.addBackupJob(syncFlowEntity.getSyncFlowId());
-        // backup
-        this.resticService.backup(syncFlowEntity.getDestFolderPath())
+        long backupJobId = backupJobEntity.getBackupJobId();
+        // backup, status 消息实时更新进度
+        CompletableFuture<Void> future = this.resticService.backup(
+                        syncFlowEntity.getDestFolderPath(),
+                        backupStatus -> this.resticProgressService.updateBackup(backupJobId, backupStatus))
                 .thenCompose(backupResult -> {
+                    this.resticProgressService.finish(
+                            ResticJobTypeEnum.BACKUP,
+                            backupJobId,
+                            backupResult.isSuccess() ? CommonStatus.SUCCESS : CommonStatus.FAILED);
                     if (backupResult.isSuccess()) {
                         this.backupJobService.updateSuccessBackupJob(backupJobEntity, backupResult.getData());
+                        // 新 snapshot 提前构建 index, 第一次浏览不需要等待 restic ls
+                        this.snapshotIndexService.buildAsync(backupResult.getData().getSnapshotId());
                     } else {
                         BusinessException ex = backupResult.getBusinessException();
                         this.backupJobService.updateFailBackupJob(backupJobEntity, ex.toString());
                     }
-                    return CompletableFuture.completedFuture(null);
+                    return CompletableFuture.<Void>completedFuture(null);
                 });
+        // 命令提交成功后才登记进度, 同步抛出异常时不会留下 RUNNING 的进度
+        this.resticProgressService.start(ResticJobTypeEnum.BACKUP, backupJobId);
+        return future;
     }
 
     public long submitRestoreJob(List<SnapshotFileInfo> snapshotFileInfoList) {
@@ -172,22 +287,21 @@ public class ResticFacadeService {
         return restoreJobEntity.getRestoreJobId();
     }
 
+    // 只查询内存中的 restore 缓存, 命中则更新访问时间
     public RestoreJobEntity searchRestoreFile(SnapshotFileInfo snapshotFileInfo) {
-        RestoreJobEntity dbResult = this.restoreJobService.getBySnapshotIdAndOrigFilePath(
+        Long restoreJobId = this.restoreCacheService.lookup(
                 snapshotFileInfo.getSnapshotId(),
                 snapshotFileInfo.getPath()
         );
-        if (ObjectUtils.isEmpty(dbResult)) {
+        if (ObjectUtils.isEmpty(restoreJobId)) {
             return null;
         }
-        CommonStatus restoreJobStatus = CommonStatus.fromName(dbResult.getRestoreJobStatus());
-        if (restoreJobStatus != CommonStatus.SUCCESS) {
+        RestoreJobEntity dbResult = this.restoreJobService.getByRestoreJobId(restoreJobId);
+        if (ObjectUtils.isEmpty(dbResult)) {
             return null;
         }
         try {
             FilesystemUtil.isFilePathValid(dbResult.getRestoreFullPath());
-            // 延长 debounce 删除
-            this.delayDeleteRestoreFilesJob(dbResult);
             return dbResult;
         } catch (ValidationException | ResourceNotFoundException e) {
             log.warn("searchRestoreFile failed. RestoreJobEntity:{} valid but restore file not exist.", dbResult);
@@ -203,6 +317,8 @@ public class ResticFacadeService {
         }
         switch (CommonStatus.fromName(dbResult.getRestoreJobStatus())) {
             case SUCCESS -> {
+                // 下载也算作访问, 正在下载的文件不会最先被淘汰
+                this.restoreCacheService.touch(restoreJobId);
                 return FilesystemUtil.isFilePathValid(dbResult.getRestoreFullPath());
             }
             case RUNNING -> {
@@ -215,12 +331,48 @@ public class ResticFacadeService {
         }
     }
 
+    // 不经过 restorePath, restic dump 的输出直接写入 outputStream. 目录按 archive 打包, 文件 archive 为 null
+    // 在 StreamingResponseBody 的线程中调用, 阻塞直到 dump 结束. 线程被中断(请求超时)时结束 restic 进程
+    public long dumpToStream(
+            String snapshotId,
+            String pathString,
+            ResticDumpArchiveEnum archive,
+            OutputStream outputStream) throws BusinessException {
+        long startTime = System.currentTimeMillis();
+        CompletableFuture<ResticExecResult<Long, ExitErrors>> future =
+                this.resticService.dump(snapshotId, pathString, archive, outputStream);
+        ResticExecResult<Long, ExitErrors> dumpResult;
+        try {
+            dumpResult = future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new BusinessException("dumpToStream interrupted. snapshotId is %s, path is %s"
+                    .formatted(snapshotId, pathString), e);
+        } catch (ExecutionException e) {
+            throw new BusinessException("dumpToStream failed. snapshotId is %s, path is %s"
+                    .formatted(snapshotId, pathString), e);
+        }
+        if (!dumpResult.isSuccess()) {
+            throw new BusinessException("dumpToStream failed. snapshotId is %s, path is %s"
+                    .formatted(snapshotId, pathString), dumpResult.getBusinessException());
+        }
+        log.info("dumpToStream success. snapshotId is {}, path is {}, bytes is {}, cost {} ms",
+                snapshotId, pathString, dumpResult.getData(), System.currentTimeMillis() - startTime);
+        return dumpResult.getData();
+    }
+
     @Async("generalTaskScheduler")
     protected void restoreFiles(List<SnapshotFileInfo> snapshotFileInfoList, RestoreJobEntity restoreJobEntity) {
         String snapshotId = snapshotFileInfoList.get(0).getSnapshotId();
         String[] pathStrings = snapshotFileInfoList.stream().map(SnapshotFileInfo::getPath).toArray(String[]::new);
         String restoreRootPath = restoreJobEntity.getRestoreRootPath();
-        this.resticService.restore(snapshotId, pathStrings, restoreRootPath)
+        long restoreJobId = restoreJobEntity.getRestoreJobId();
+        this.resticService.restore(
+                        snapshotId,
+                        pathStrings,
+                        restoreRootPath,
+                        restoreStatus -> this.resticProgressService.updateRestore(restoreJobId, restoreStatus))
                 .thenCompose(resticRestoreResult -> {
                     if (resticRestoreResult.isSuccess()) {
                         Path restoreFile = FilesystemUtil.zipAllFile(
@@ -233,6 +385,7 @@ public class ResticFacadeService {
                                 resticRestoreResult.getData(),
                                 restoreFile.toAbsolutePath().toString()
                         );
+                        this.restoreCacheService.register(restoreJobEntity, restoreFile);
                     } else {
                         // 记录失败日志
                         BusinessException restoreException = resticRestoreResult.getBusinessException();
@@ -241,9 +394,15 @@ public class ResticFacadeService {
                                 restoreException.toString()
                         );
                     }
-                    return CompletableFuture.completedFuture(null);
+                    return CompletableFuture.completedFuture(resticRestoreResult.isSuccess());
                 })
-                .whenComplete((ignored, ex) -> {
+                .whenComplete((isSuccess, ex) -> {
+                    // 打包完成后才算结束
+                    this.resticProgressService.finish(
+                            ResticJobTypeEnum.RESTORE,
+                            restoreJobId,
+                            ObjectUtils.isEmpty(ex) && Boolean.TRUE.equals(isSuccess) ?
+                                    CommonStatus.SUCCESS : CommonStatus.FAILED);
                     try {
                         if (ObjectUtils.isNotEmpty(ex)) {
                             BusinessException businessException = new BusinessException(
@@ -256,9 +415,13 @@ public class ResticFacadeService {
                     } catch (Exception e) {
                         log.error("restoreFile failed. restore files:{}", snapshotFileInfoList, ex);
                     } finally {
-                        this.delayDeleteRestoreFilesJob(restoreJobEntity);
+                        // 成功的已经登记到 restore 缓存, 由缓存淘汰
+                        if (ObjectUtils.isNotEmpty(ex) || !Boolean.TRUE.equals(isSuccess)) {
+                            this.restoreCacheService.discard(restoreJobEntity);
+                        }
                     }
                 });
+        this.resticProgressService.start(ResticJobTypeEnum.RESTORE, restoreJobId);
     }
 
     @Async("generalTaskScheduler")
@@ -266,7 +429,12 @@ public class ResticFacadeService {
         String snapshotId = snapshotFileInfo.getSnapshotId();
         String[] pathStrings = new String[]{snapshotFileInfo.getPath()};
         String restoreRootPath = restoreJobEntity.getRestoreRootPath();
-        this.resticService.restore(snapshotId, pathStrings, restoreRootPath)
+        long restoreJobId = restoreJobEntity.getRestoreJobId();
+        this.resticService.restore(
+                        snapshotId,
+                        pathStrings,
+                        restoreRootPath,
+                        restoreStatus -> this.resticProgressService.updateRestore(restoreJobId, restoreStatus))
                 .thenCompose(resticRestoreResult -> {
                     if (resticRestoreResult.isSuccess()) {
                         Path restoreFile = FilesystemUtil.getAllFile(Paths.get(restoreRootPath)).get(0);
@@ -276,6 +444,7 @@ public class ResticFacadeService {
                                 resticRestoreResult.getData(),
                                 restoreFile.toAbsolutePath().toString()
                         );
+                        this.restoreCacheService.register(restoreJobEntity, restoreFile);
                     } else {
                         // 记录失败日志
                         BusinessException restoreException = resticRestoreResult.getBusinessException();
@@ -284,9 +453,15 @@ public class ResticFacadeService {
                                 restoreException.toString()
                         );
                     }
-                    return CompletableFuture.completedFuture(null);
+                    return CompletableFuture.completedFuture(resticRestoreResult.isSuccess());
                 })
-                .whenComplete((ignored, ex) -> {
+                .whenComplete((isSuccess, ex) -> {
+                    // 打包完成后才算结束
+                    this.resticProgressService.finish(
+                            ResticJobTypeEnum.RESTORE,
+                            restoreJobId,
+                            ObjectUtils.isEmpty(ex) && Boolean.TRUE.equals(isSuccess) ?
+                                    CommonStatus.SUCCESS : CommonStatus.FAILED);
                     try {
                         if (ObjectUtils.isNotEmpty(ex)) {
                             BusinessException businessException = new BusinessException(
@@ -299,17 +474,13 @@ public class ResticFacadeService {
                     } catch (Exception e) {
                         log.error("restoreFile failed. restore file:{}", snapshotFileInfo, ex);
                     } finally {
-                        this.delayDeleteRestoreFilesJob(restoreJobEntity);
+                        // 成功的已经登记到 restore 缓存, 由缓存淘汰
+                        if (ObjectUtils.isNotEmpty(ex) || !Boolean.TRUE.equals(isSuccess)) {
+                            this.restoreCacheService.discard(restoreJobEntity);
+                        }
                     }
                 });
-    }
-
-    private void delayDeleteRestoreFilesJob(RestoreJobEntity restoreJobEntity) {
-        this.moduleDebounceService.debounce(
-                "RestoreJobId::%s::delete".formatted(restoreJobEntity.getRestoreJobId()),
-                () -> FilesystemUtil.deleteFolder(restoreJobEntity.getRestoreRootPath(), true),
-                RESTIC_RESTORE_AGE_SEC
-        );
+        this.resticProgressService.start(ResticJobTypeEnum.RESTORE, restoreJobId);
     }
 
     private boolean isRestoreAsZipFile(SnapshotFileInfo snapshotFileInfo) {
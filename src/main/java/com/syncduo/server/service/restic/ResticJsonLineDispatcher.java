@@ -0,0 +1,77 @@
+package com.syncduo.server.service.restic;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.syncduo.server.exception.JsonException;
+import com.syncduo.server.util.JsonUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// 按 message_type 把 restic --json 的每一行分发给对应的回调. 没有注册的 message_type 只读取类型, 不做反序列化
+public class ResticJsonLineDispatcher<R> implements ResticOutputHandler<R> {
+
+    private final Map<String, Consumer<JsonNode>> handlerMap = new HashMap<>();
+
+    private Supplier<R> resultSupplier = () -> null;
+
+    // 第一个解析失败的异常. 解析失败不中断后续行的处理
+    private JsonException firstException;
+
+    public <T> ResticJsonLineDispatcher<R> on(String messageType, Class<T> clazz, Consumer<T> callback) {
+        this.handlerMap.put(messageType, message -> callback.accept(
+                JsonUtil.convertResticJsonMessage(message, clazz)));
+        return this;
+    }
+
+    public ResticJsonLineDispatcher<R> result(Supplier<R> resultSupplier) {
+        this.resultSupplier = resultSupplier;
+        return this;
+    }
+
+    @Override
+    public void onLine(String line) {
+        try {
+            JsonNode message = JsonUtil.parseResticJsonMessage(line);
+            if (message == null) {
+                return;
+            }
+            Consumer<JsonNode> handler = this.handlerMap.get(JsonUtil.getResticMessageType(message));
+            if (handler != null) {
+                handler.accept(message);
+            }
+        } catch (JsonException e) {
+            if (this.firstException == null) {
+                this.firstException = e;
+            }
+        }
+    }
+
+    @Override
+    public R getResult() throws JsonException {
+        if (this.firstException != null) {
+            throw this.firstException;
+        }
+        return this.resultSupplier.get();
+    }
+
+    // 只保留最后一条指定类型的消息, 用于 summary 等
+    public static <T> ResticJsonLineDispatcher<T> lastOf(String messageType, Class<T> clazz) {
+        AtomicReference<T> last = new AtomicReference<>();
+        return new ResticJsonLineDispatcher<T>()
+                .on(messageType, clazz, last::set)
+                .result(last::get);
+    }
+
+    // 保留全部指定类型的消息, 其他类型丢弃
+    public static <T> ResticJsonLineDispatcher<List<T>> listOf(String messageType, Class<T> clazz) {
+        List<T> result = new ArrayList<>();
+        return new ResticJsonLineDispatcher<List<T>>()
+                .on(messageType, clazz, result::add)
+                .result(() -> result);
+    }
+}
@@ -0,0 +1,57 @@
+package com.syncduo.server.service.restic;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.exec.LogOutputStream;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+// PumpStreamHandler 的输出端. 每收到一行交给 handler, 同时保留最后几行用于错误信息
+@Slf4j
+public class ResticLineOutputStream extends LogOutputStream {
+
+    private static final int MAX_TAIL_CHARS = 16 * 1024;
+
+    private final ResticOutputHandler<?> handler;
+
+    private final ArrayDeque<String> tail = new ArrayDeque<>();
+
+    private int tailChars = 0;
+
+    private long lineCount = 0;
+
+    public ResticLineOutputStream(ResticOutputHandler<?> handler) {
+        super(0, StandardCharsets.UTF_8);
+        this.handler = handler;
+    }
+
+    @Override
+    protected void processLine(String line, int logLevel) {
+        this.appendTail(line);
+        try {
+            this.handler.onLine(line);
+        } catch (Exception e) {
+            // 不能让异常中断 pump 线程, 否则子进程会因为管道写满而阻塞
+            log.warn("restic output handler failed. line is {}", line, e);
+        }
+    }
+
+    // 最后几行输出, 超长的行被截断
+    public synchronized String getTail() {
+        return String.join("\n", this.tail);
+    }
+
+    public synchronized long getLineCount() {
+        return this.lineCount;
+    }
+
+    private synchronized void appendTail(String line) {
+        this.lineCount++;
+        String kept = line.length() > MAX_TAIL_CHARS ? line.substring(0, MAX_TAIL_CHARS) : line;
+        this.tail.addLast(kept);
+        this.tailChars += kept.length();
+        while (this.tailChars > MAX_TAIL_CHARS && this.tail.size() > 1) {
+            this.tailChars -= this.tail.removeFirst().length();
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.syncduo.server.service.restic;
+
+// 逐行接收 restic 的输出, 进程结束后给出结果. 只保留结果需要的数据, 不缓存整个输出
+public interface ResticOutputHandler<R> {
+
+    // 在 stream pump 线程中调用
+    void onLine(String line);
+
+    // 进程结束, 输出全部处理完之后调用
+    R getResult();
+}
@@ -4,7 +4,6 @@ import com.syncduo.server.enums.ResticExitCodeEnum;
 import com.syncduo.server.exception.BusinessException;
 import com.syncduo.server.model.restic.global.ExitErrors;
 import com.syncduo.server.model.restic.global.ResticExecResult;
-import com.syncduo.server.util.JsonUtil;
 import lombok.extern.slf4j.Slf4j;
 import net.sf.jsqlparser.util.validation.ValidationException;
 import org.apache.commons.collections4.MapUtils;
@@ -12,22 +11,27 @@ import org.apache.commons.exec.*;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.nio.charset.StandardCharsets;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.function.Function;
 
 @Slf4j
 public class ResticParser {
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
     public static <SR>  CompletableFuture<ResticExecResult<SR, ExitErrors>> executeWithExitErrorsHandler(
             String resticPassword,
             String resticRepository,
             CommandLine commandLine,
-            Function<String, SR> successHandler
+            ResticOutputHandler<SR> stdoutHandler
     ) throws com.syncduo.server.exception.ValidationException {
         return execute(
                 resticPassword,
@@ -35,8 +39,8 @@ public class ResticParser {
                 null,
                 null,
                 commandLine,
-                successHandler,
-                stderr -> JsonUtil.parseResticJsonDocument(stderr, ExitErrors.class)
+                stdoutHandler,
+                ResticJsonLineDispatcher.lastOf(ExitErrors.getCondition(), ExitErrors.class)
         );
     }
 
@@ -45,8 +49,8 @@ public class ResticParser {
             String resticRepository,
             String workingDirectory,
             CommandLine commandLine,
-            Function<String, SR> successHandler,
-            Function<String, FR> failedHandler
+            ResticOutputHandler<SR> stdoutHandler,
+            ResticOutputHandler<FR> stderrHandler
     ) throws ValidationException {
         return execute(
                 resticPassword,
@@ -54,8 +58,8 @@ public class ResticParser {
                 null,
                 workingDirectory,
                 commandLine,
-                successHandler,
-                failedHandler
+                stdoutHandler,
+                stderrHandler
         );
     }
 
@@ -65,13 +69,13 @@ public class ResticParser {
             Map<String, String> extraEnvMap,
             String workingDirectory,
             CommandLine commandLine,
-            Function<String, SR> successHandler,
-            Function<String, FR> failedHandler
+            ResticOutputHandler<SR> stdoutHandler,
+            ResticOutputHandler<FR> stderrHandler
             ) throws ValidationException {
         // 检查参数
-        if (ObjectUtils.anyNull(commandLine, successHandler, failedHandler)) {
+        if (ObjectUtils.anyNull(commandLine, stdoutHandler, stderrHandler)) {
             throw new ValidationException("restic execute failed. " +
-                    "commandLine, successHandler or failedHandler is null");
+                    "commandLine, stdoutHandler or stderrHandler is null");
         }
         if (StringUtils.isAnyBlank(resticPassword, resticRepository)) {
             throw new ValidationException("restic execute failed. resticPassWord or resticRepository is null");
@@ -82,9 +86,9 @@ public class ResticParser {
         if (StringUtils.isNotBlank(workingDirectory)) {
             executor.setWorkingDirectory(new File(workingDirectory));
         }
-        // 2. 创建输出流处理器（捕获 stdout/stderr）
-        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
-        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        // 2. 创建输出流处理器. stdout/stderr 逐行交给 handler, 不缓存整个输出
+        ResticLineOutputStream stdout = new ResticLineOutputStream(stdoutHandler);
+        ResticLineOutputStream stderr = new ResticLineOutputStream(stderrHandler);
         PumpStreamHandler streamHandler = new PumpStreamHandler(stdout, stderr);
         executor.setStreamHandler(streamHandler);
         // 3. 设置超时. 计算公式 = 50G 文件备份 / 30MB/s 机械硬盘速度 / 60 ~= 30 分钟
@@ -97,9 +101,8 @@ public class ResticParser {
                 @Override
                 public void onProcessComplete(int exitCode) {
                     ResticExitCodeEnum resticExitCodeEnum = ResticExitCodeEnum.fromCode(exitCode);
-                    String stdoutString = getStdAsString(stdout);
                     try {
-                        SR successResult = successHandler.apply(stdoutString);
+                        SR successResult = stdoutHandler.getResult();
                         if (ObjectUtils.isEmpty(successResult)) {
                             throw new BusinessException("restic success handler failed.");
                         }
@@ -111,7 +114,8 @@ public class ResticParser {
                         future.complete(ResticExecResult.failed(
                                 resticExitCodeEnum,
                                 new BusinessException("restic command success." +
-                                        "stdout is %s. but handler failed.".formatted(stdoutString), e)));
+                                        "stdout lines is %s, tail is %s. but handler failed.".formatted(
+                                                stdout.getLineCount(), stdout.getTail()), e)));
                     }
                 }
 
@@ -119,9 +123,8 @@ public class ResticParser {
                 public void onProcessFailed(ExecuteException e) {
                     int exitValue = e.getExitValue();
                     ResticExitCodeEnum resticExitCodeEnum = ResticExitCodeEnum.fromCode(exitValue);
-                    String stderrString = getStdAsString(stderr);
                     try {
-                        FR failedResult = failedHandler.apply(stderrString);
+                        FR failedResult = stderrHandler.getResult();
                         // fall back
                         if (ObjectUtils.isEmpty(failedResult)) {
                             throw new BusinessException("restic failed handler failed.");
@@ -135,7 +138,7 @@ public class ResticParser {
                         future.complete(ResticExecResult.failed(
                                 resticExitCodeEnum,
                                 new BusinessException("restic failed handler fallback." +
-                                        "stderr is %s.".formatted(stderrString), e)));
+                                        "stderr is %s.".formatted(stderr.getTail()), e)));
                     }
                 }
             });
@@ -146,11 +149,88 @@ public class ResticParser {
         return future;
     }
 
-    private static String getStdAsString(ByteArrayOutputStream std) {
-        if (ObjectUtils.isEmpty(std)) {
-            return "";
+    // stdout 是二进制数据(restic dump), 直接写入 outputStream, 不按行处理. 结果为写入的字节数
+    // outputStream 写入失败(客户端断开)或者 future 被 cancel 时, 立即结束 restic 进程
+    public static <FR> CompletableFuture<ResticExecResult<Long, FR>> executeToStream(
+            String resticPassword,
+            String resticRepository,
+            CommandLine commandLine,
+            OutputStream outputStream,
+            ResticOutputHandler<FR> stderrHandler,
+            Duration timeout
+    ) throws ValidationException {
+        // 检查参数
+        if (ObjectUtils.anyNull(commandLine, outputStream, stderrHandler, timeout)) {
+            throw new ValidationException("restic executeToStream failed. " +
+                    "commandLine, outputStream, stderrHandler or timeout is null");
         }
-        return std.toString(StandardCharsets.UTF_8).trim();
+        if (StringUtils.isAnyBlank(resticPassword, resticRepository)) {
+            throw new ValidationException("restic executeToStream failed. " +
+                    "resticPassWord or resticRepository is null");
+        }
+        Executor executor = DefaultExecutor.builder().get();
+        CompletableFuture<ResticExecResult<Long, FR>> future = new CompletableFuture<>();
+        ExecuteWatchdog watchdog = ExecuteWatchdog.builder().setTimeout(timeout).get();
+        executor.setWatchdog(watchdog);
+        // stdout 直接写入 outputStream, stderr 逐行交给 handler
+        ResticStreamOutputStream stdout = new ResticStreamOutputStream(outputStream, watchdog);
+        ResticLineOutputStream stderr = new ResticLineOutputStream(stderrHandler);
+        executor.setStreamHandler(new PumpStreamHandler(stdout, stderr) {
+            // 默认的 1KB buffer 对大文件太小
+            @Override
+            protected Thread createPump(InputStream is, OutputStream os, boolean closeWhenExhausted) {
+                Thread pump = new Thread(new StreamPumper(is, os, closeWhenExhausted, STREAM_BUFFER_SIZE),
+                        "Restic-Stream-Pumper");
+                pump.setDaemon(true);
+                return pump;
+            }
+        });
+        future.whenComplete((result, ex) -> {
+            if (ex instanceof CancellationException) {
+                watchdog.destroyProcess();
+            }
+        });
+        Map<String, String> env = getEnv(resticPassword, resticRepository, null);
+        try {
+            executor.execute(commandLine, env, new ExecuteResultHandler() {
+                @Override
+                public void onProcessComplete(int exitCode) {
+                    future.complete(ResticExecResult.success(
+                            ResticExitCodeEnum.fromCode(exitCode),
+                            stdout.getByteCount()));
+                }
+
+                @Override
+                public void onProcessFailed(ExecuteException e) {
+                    ResticExitCodeEnum resticExitCodeEnum = ResticExitCodeEnum.fromCode(e.getExitValue());
+                    // 写入失败导致进程被结束, 不是 restic 的错误
+                    if (ObjectUtils.isNotEmpty(stdout.getWriteException())) {
+                        future.complete(ResticExecResult.failed(
+                                resticExitCodeEnum,
+                                new BusinessException("restic stream aborted. write to output stream failed. " +
+                                        "bytes written is %s.".formatted(stdout.getByteCount()),
+                                        stdout.getWriteException())));
+                        return;
+                    }
+                    try {
+                        FR failedResult = stderrHandler.getResult();
+                        if (ObjectUtils.isEmpty(failedResult)) {
+                            throw new BusinessException("restic failed handler failed.");
+                        }
+                        future.complete(ResticExecResult.failed(resticExitCodeEnum, failedResult));
+                    } catch (Exception ex) {
+                        future.complete(ResticExecResult.failed(
+                                resticExitCodeEnum,
+                                new BusinessException("restic failed handler fallback." +
+                                        "stderr is %s.".formatted(stderr.getTail()), e)));
+                    }
+                }
+            });
+        } catch (Exception e) {
+            future.complete(ResticExecResult.failed(
+                    new BusinessException("restic failed before command exec. ", e)));
+        }
+        return future;
     }
 
     private static Map<String, String> getEnv(
@@ -167,4 +247,65 @@ public class ResticParser {
         }
         return result;
     }
+
+    // 记录写入的字节数. 写入失败时结束进程, 否则 restic 会阻塞在写满的管道上直到超时
+    private static class ResticStreamOutputStream extends FilterOutputStream {
+
+        private final ExecuteWatchdog watchdog;
+
+        private volatile long byteCount = 0;
+
+        private volatile IOException writeException;
+
+        ResticStreamOutputStream(OutputStream outputStream, ExecuteWatchdog watchdog) {
+            super(outputStream);
+            this.watchdog = watchdog;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                this.out.write(b, off, len);
+                this.byteCount += len;
+            } catch (IOException e) {
+                this.onWriteFailed(e);
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                this.out.flush();
+            } catch (IOException e) {
+                this.onWriteFailed(e);
+                throw e;
+            }
+        }
+
+        // outputStream 由调用方关闭
+        @Override
+        public void close() {
+        }
+
+        long getByteCount() {
+            return this.byteCount;
+        }
+
+        IOException getWriteException() {
+            return this.writeException;
+        }
+
+        private void onWriteFailed(IOException e) {
+            if (ObjectUtils.isEmpty(this.writeException)) {
+                this.writeException = e;
+                this.watchdog.destroyProcess();
+            }
+        }
+    }
 }
@@ -0,0 +1,318 @@
+package com.syncduo.server.service.restic;
+
+import com.syncduo.server.enums.CommonStatus;
+import com.syncduo.server.enums.ResticJobTypeEnum;
+import com.syncduo.server.model.api.snapshots.JobProgress;
+import com.syncduo.server.model.restic.backup.BackupStatus;
+import com.syncduo.server.model.restic.restore.RestoreStatus;
+import com.syncduo.server.service.bussiness.DebounceService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// backup/restore 的实时进度. 只在内存中保留每个 job 最新的一条 status, job 结束一段时间后移除
+// 进度由 stream pump 线程写入, 推送由定时任务批量完成, 慢的 SSE 客户端不会阻塞 restic 的输出
+@Slf4j
+@Service
+public class ResticProgressService implements DisposableBean {
+
+    // 吞吐量的指数平滑系数
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final DebounceService.ModuleDebounceService moduleDebounceService;
+
+    private final Map<String, Tracker> trackerMap = new ConcurrentHashMap<>();
+
+    private final List<Subscriber> subscriberList = new CopyOnWriteArrayList<>();
+
+    private final ScheduledFuture<?> pushFuture;
+
+    @Value("${syncduo.server.restic.progressRetainSec:60}")
+    private long PROGRESS_RETAIN_SEC;
+
+    @Value("${syncduo.server.restic.progressSseTimeoutMillis:1800000}")
+    private long PROGRESS_SSE_TIMEOUT_MILLIS;
+
+    @Autowired
+    public ResticProgressService(
+            TaskScheduler generalTaskScheduler,
+            DebounceService debounceService,
+            @Value("${syncduo.server.restic.progressPushIntervalMillis:1000}") long progressPushIntervalMillis) {
+        this.moduleDebounceService = debounceService.forModule(ResticProgressService.class.getSimpleName());
+        this.pushFuture = generalTaskScheduler.scheduleAtFixedRate(
+                this::pushDirtyProgress,
+                Duration.ofMillis(progressPushIntervalMillis));
+    }
+
+    @Override
+    public void destroy() {
+        this.pushFuture.cancel(false);
+        for (Subscriber subscriber : this.subscriberList) {
+            subscriber.emitter.complete();
+        }
+        this.subscriberList.clear();
+    }
+
+    // job 提交时调用. 如果已经收到 status, 不覆盖
+    public void start(ResticJobTypeEnum jobType, long jobId) {
+        this.getOrCreateTracker(jobType, jobId);
+    }
+
+    public void updateBackup(long backupJobId, BackupStatus backupStatus) {
+        Tracker tracker = this.getOrCreateTracker(ResticJobTypeEnum.BACKUP, backupJobId);
+        tracker.update(
+                backupStatus.getPercentDone(),
+                toLong(backupStatus.getSecondsElapsed()),
+                toLong(backupStatus.getTotalFiles()),
+                toLong(backupStatus.getFilesDone()),
+                toLong(backupStatus.getTotalBytes()),
+                toLong(backupStatus.getBytesDone()),
+                toLong(backupStatus.getErrorCount()),
+                backupStatus.getCurrentFiles(),
+                backupStatus.getSecondsRemaining() == null ? null : backupStatus.getSecondsRemaining().longValue()
+        );
+    }
+
+    public void updateRestore(long restoreJobId, RestoreStatus restoreStatus) {
+        Tracker tracker = this.getOrCreateTracker(ResticJobTypeEnum.RESTORE, restoreJobId);
+        // skip 的文件也算作完成, 和 restic 计算 percent_done 的方式一致
+        tracker.update(
+                restoreStatus.getPercentDone(),
+                toLong(restoreStatus.getSecondsElapsed()),
+                toLong(restoreStatus.getTotalFiles()),
+                toLong(restoreStatus.getFilesRestored()) + toLong(restoreStatus.getFilesSkipped()),
+                toLong(restoreStatus.getTotalBytes()),
+                toLong(restoreStatus.getBytesRestored()) + toLong(restoreStatus.getBytesSkipped()),
+                0,
+                null,
+                null
+        );
+    }
+
+    // job 结束. 保留最终状态 PROGRESS_RETAIN_SEC 秒, 给轮询的客户端读取
+    public void finish(ResticJobTypeEnum jobType, long jobId, CommonStatus jobStatus) {
+        String key = getKey(jobType, jobId);
+        Tracker tracker = this.getOrCreateTracker(jobType, jobId);
+        tracker.finish(jobStatus);
+        this.moduleDebounceService.debounce(
+                key,
+                () -> this.trackerMap.remove(key, tracker),
+                PROGRESS_RETAIN_SEC
+        );
+    }
+
+    public JobProgress getProgress(ResticJobTypeEnum jobType, long jobId) {
+        Tracker tracker = this.trackerMap.get(getKey(jobType, jobId));
+        return tracker == null ? null : tracker.snapshot();
+    }
+
+    public List<JobProgress> getAllProgress() {
+        List<JobProgress> result = new ArrayList<>();
+        for (Tracker tracker : this.trackerMap.values()) {
+            result.add(tracker.snapshot());
+        }
+        result.sort(Comparator.comparing(JobProgress::getUpdatedAt).reversed());
+        return result;
+    }
+
+    // jobType, jobId 为 null 表示订阅全部. 订阅时先推送一次当前进度
+    public SseEmitter subscribe(ResticJobTypeEnum jobType, Long jobId) {
+        SseEmitter emitter = new SseEmitter(PROGRESS_SSE_TIMEOUT_MILLIS);
+        Subscriber subscriber = new Subscriber(emitter, jobType, jobId);
+        emitter.onCompletion(() -> this.subscriberList.remove(subscriber));
+        emitter.onTimeout(() -> this.subscriberList.remove(subscriber));
+        emitter.onError(e -> this.subscriberList.remove(subscriber));
+        this.subscriberList.add(subscriber);
+        for (Tracker tracker : this.trackerMap.values()) {
+            if (subscriber.accept(tracker.jobType, tracker.jobId)) {
+                this.send(subscriber, tracker.snapshot());
+            }
+        }
+        return emitter;
+    }
+
+    public int getSubscriberCount() {
+        return this.subscriberList.size();
+    }
+
+    private void pushDirtyProgress() {
+        try {
+            for (Tracker tracker : this.trackerMap.values()) {
+                // 没有订阅者也要清除 dirty 标记, 避免有人订阅时推送旧数据
+                if (!tracker.dirty.compareAndSet(true, false) || this.subscriberList.isEmpty()) {
+                    continue;
+                }
+                JobProgress jobProgress = tracker.snapshot();
+                for (Subscriber subscriber : this.subscriberList) {
+                    if (subscriber.accept(tracker.jobType, tracker.jobId)) {
+                        this.send(subscriber, jobProgress);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.warn("pushDirtyProgress failed.", e);
+        }
+    }
+
+    private void send(Subscriber subscriber, JobProgress jobProgress) {
+        try {
+            subscriber.emitter.send(SseEmitter.event()
+                    .name("progress")
+                    .id(jobProgress.getJobType() + "::" + jobProgress.getJobId())
+                    .data(jobProgress));
+        } catch (Exception e) {
+            // 客户端已断开
+            log.debug("send job progress failed. remove subscriber", e);
+            this.subscriberList.remove(subscriber);
+            subscriber.emitter.completeWithError(e);
+        }
+    }
+
+    private Tracker getOrCreateTracker(ResticJobTypeEnum jobType, long jobId) {
+        return this.trackerMap.computeIfAbsent(getKey(jobType, jobId), k -> new Tracker(jobType, jobId));
+    }
+
+    private static String getKey(ResticJobTypeEnum jobType, long jobId) {
+        return jobType.getName() + "::" + jobId;
+    }
+
+    private static long toLong(BigInteger value) {
+        return value == null ? 0L : value.longValue();
+    }
+
+    private static class Tracker {
+
+        private final ResticJobTypeEnum jobType;
+
+        private final long jobId;
+
+        private final AtomicBoolean dirty = new AtomicBoolean(true);
+
+        // 以下状态都在 synchronized(this) 中访问
+        private final JobProgress jobProgress = new JobProgress();
+
+        private double bytesPerSecond = 0;
+
+        private long lastSampleMillis = 0;
+
+        private long lastSampleBytes = 0;
+
+        Tracker(ResticJobTypeEnum jobType, long jobId) {
+            this.jobType = jobType;
+            this.jobId = jobId;
+            this.jobProgress.setJobType(jobType.getName());
+            this.jobProgress.setJobId(Long.toString(jobId));
+            this.jobProgress.setJobStatus(CommonStatus.RUNNING.getName());
+            this.jobProgress.setUpdatedAt(System.currentTimeMillis());
+        }
+
+        synchronized void update(
+                double percentDone,
+                long secondsElapsed,
+                long totalFiles,
+                long filesDone,
+                long totalBytes,
+                long bytesDone,
+                long errorCount,
+                List<String> currentFiles,
+                Long resticSecondsRemaining) {
+            if (!CommonStatus.RUNNING.getName().equals(this.jobProgress.getJobStatus())) {
+                // 已结束的 job 不再接收进度
+                return;
+            }
+            long now = System.currentTimeMillis();
+            this.updateRate(now, secondsElapsed, bytesDone);
+            this.jobProgress.setPercentDone(percentDone);
+            this.jobProgress.setSecondsElapsed(secondsElapsed);
+            this.jobProgress.setTotalFiles(totalFiles);
+            this.jobProgress.setFilesDone(filesDone);
+            this.jobProgress.setTotalBytes(totalBytes);
+            this.jobProgress.setBytesDone(bytesDone);
+            this.jobProgress.setErrorCount(errorCount);
+            this.jobProgress.setCurrentFiles(currentFiles == null ? null : List.copyOf(currentFiles));
+            this.jobProgress.setBytesPerSecond(Math.round(this.bytesPerSecond));
+            // 优先使用自己计算的 ETA, 没有吞吐量时使用 restic 给出的剩余时间
+            long remainingBytes = Math.max(0, totalBytes - bytesDone);
+            if (this.bytesPerSecond > 0 && totalBytes > 0) {
+                this.jobProgress.setEtaSeconds((long) Math.ceil(remainingBytes / this.bytesPerSecond));
+            } else {
+                this.jobProgress.setEtaSeconds(resticSecondsRemaining);
+            }
+            this.jobProgress.setUpdatedAt(now);
+            this.dirty.set(true);
+        }
+
+        synchronized void finish(CommonStatus jobStatus) {
+            this.jobProgress.setJobStatus(jobStatus.getName());
+            if (jobStatus == CommonStatus.SUCCESS) {
+                this.jobProgress.setPercentDone(1);
+                this.jobProgress.setFilesDone(Math.max(this.jobProgress.getFilesDone(),
+                        this.jobProgress.getTotalFiles()));
+                this.jobProgress.setBytesDone(Math.max(this.jobProgress.getBytesDone(),
+                        this.jobProgress.getTotalBytes()));
+            }
+            this.jobProgress.setEtaSeconds(0L);
+            this.jobProgress.setCurrentFiles(null);
+            this.jobProgress.setUpdatedAt(System.currentTimeMillis());
+            this.dirty.set(true);
+        }
+
+        synchronized JobProgress snapshot() {
+            return this.jobProgress.copy();
+        }
+
+        // 相邻两次 status 的字节差计算瞬时吞吐量, 再做指数平滑
+        private void updateRate(long now, long secondsElapsed, long bytesDone) {
+            if (this.lastSampleMillis == 0) {
+                // 第一条 status 使用 restic 的平均速度
+                if (secondsElapsed > 0) {
+                    this.bytesPerSecond = (double) bytesDone / secondsElapsed;
+                }
+            } else {
+                long intervalMillis = now - this.lastSampleMillis;
+                if (intervalMillis <= 0) {
+                    return;
+                }
+                double sampleRate = Math.max(0, bytesDone - this.lastSampleBytes) * 1000.0 / intervalMillis;
+                this.bytesPerSecond = RATE_SMOOTHING * sampleRate + (1 - RATE_SMOOTHING) * this.bytesPerSecond;
+            }
+            this.lastSampleMillis = now;
+            this.lastSampleBytes = bytesDone;
+        }
+    }
+
+    private static class Subscriber {
+
+        private final SseEmitter emitter;
+
+        private final ResticJobTypeEnum jobType;
+
+        private final Long jobId;
+
+        Subscriber(SseEmitter emitter, ResticJobTypeEnum jobType, Long jobId) {
+            this.emitter = emitter;
+            this.jobType = jobType;
+            this.jobId = jobId;
+        }
+
+        boolean accept(ResticJobTypeEnum jobType, long jobId) {
+            return (this.jobType == null || this.jobType == jobType)
+                    && (this.jobId == null || this.jobId == jobId);
+        }
+    }
+}
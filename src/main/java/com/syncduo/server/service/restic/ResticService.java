@@ -1,8 +1,10 @@
 package com.syncduo.server.service.restic;
 
+import com.syncduo.server.enums.ResticDumpArchiveEnum;
 import com.syncduo.server.exception.BusinessException;
 import com.syncduo.server.exception.ValidationException;
 import com.syncduo.server.model.restic.backup.BackupError;
+import com.syncduo.server.model.restic.backup.BackupStatus;
 import com.syncduo.server.model.restic.backup.BackupSummary;
 import com.syncduo.server.model.restic.cat.CatConfig;
 import com.syncduo.server.model.restic.global.ExitErrors;
@@ -10,10 +12,10 @@ import com.syncduo.server.model.restic.global.ResticExecResult;
 import com.syncduo.server.model.restic.init.Init;
 import com.syncduo.server.model.restic.ls.Node;
 import com.syncduo.server.model.restic.restore.RestoreError;
+import com.syncduo.server.model.restic.restore.RestoreStatus;
 import com.syncduo.server.model.restic.restore.RestoreSummary;
 import com.syncduo.server.model.restic.stats.Stats;
 import com.syncduo.server.util.FilesystemUtil;
-import com.syncduo.server.util.JsonUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.lang3.ArrayUtils;
@@ -21,9 +23,15 @@ import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.OutputStream;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 @Slf4j
 @Service
@@ -35,6 +43,14 @@ public class ResticService {
     @Value("${syncduo.server.restic.backupPath}")
     private String RESTIC_BACKUP_PATH;
 
+    // --json 模式下 restic 默认每秒输出 60 条 status, 限制频率
+    @Value("${syncduo.server.restic.progressFps:1}")
+    private String RESTIC_PROGRESS_FPS;
+
+    // dump 的速度取决于客户端下载速度, 超时单独设置
+    @Value("${syncduo.server.restic.dumpTimeoutSec:21600}")
+    private long RESTIC_DUMP_TIMEOUT_SEC;
+
     // create restic repository
     protected ResticExecResult<Init, ExitErrors> init() throws ValidationException {
         // 参数检查
@@ -49,7 +65,7 @@ public class ResticService {
                     RESTIC_PASSWORD,
                     RESTIC_BACKUP_PATH,
                     commandLine,
-                    stdout -> JsonUtil.parseResticJsonLine(stdout, Init.getCondition(), Init.class)
+                    ResticJsonLineDispatcher.lastOf(Init.getCondition(), Init.class)
             );
             return future.get();
         } catch (Exception e) {
@@ -58,21 +74,25 @@ public class ResticService {
     }
 
     public CompletableFuture<ResticExecResult<BackupSummary, List<BackupError>>> backup(
-            String folderPathString) throws BusinessException {
+            String folderPathString,
+            Consumer<BackupStatus> statusCallback) throws BusinessException {
         FilesystemUtil.isFolderPathValid(folderPathString);
         CommandLine commandLine = getDefaultCommandLine();
         commandLine.addArgument("backup");
         commandLine.addArgument(".");
         commandLine.addArgument("--skip-if-unchanged");
-        return ResticParser.executeWithWorkingDirectory(
+        AtomicReference<BackupSummary> summary = new AtomicReference<>();
+        return ResticParser.execute(
                     RESTIC_PASSWORD,
                     RESTIC_BACKUP_PATH,
+                    getProgressEnv(),
                     folderPathString,
                     commandLine,
-                    stdout -> JsonUtil.parseResticJsonLine(
-                            stdout, BackupSummary.getCondition(), BackupSummary.class),
-                    stderr -> JsonUtil.parseResticJsonLines(
-                            stderr, BackupError.getCondition(), BackupError.class)
+                    new ResticJsonLineDispatcher<BackupSummary>()
+                            .on(BackupStatus.getCondition(), BackupStatus.class, statusCallback)
+                            .on(BackupSummary.getCondition(), BackupSummary.class, summary::set)
+                            .result(summary::get),
+                    ResticJsonLineDispatcher.listOf(BackupError.getCondition(), BackupError.class)
         );
     }
 
@@ -85,7 +105,7 @@ public class ResticService {
                 RESTIC_PASSWORD,
                 RESTIC_BACKUP_PATH,
                 commandLine,
-                stdout -> JsonUtil.parseResticJsonDocument(stdout, Stats.class)
+                new ResticDocumentHandler<>(Stats.class)
         );
         try {
             return future.get();
@@ -102,7 +122,7 @@ public class ResticService {
                 RESTIC_PASSWORD,
                 RESTIC_BACKUP_PATH,
                 commandLine,
-                stdout -> JsonUtil.parseResticJsonDocument(stdout, CatConfig.class)
+                new ResticDocumentHandler<>(CatConfig.class)
         );
         try {
             return future.get();
@@ -127,7 +147,7 @@ public class ResticService {
                     RESTIC_PASSWORD,
                     RESTIC_BACKUP_PATH,
                     commandLine,
-                    stdout -> JsonUtil.parseResticJsonLines(stdout, Node.getCondition(), Node.class)
+                    ResticJsonLineDispatcher.listOf(Node.getCondition(), Node.class)
         );
         try {
             return future.get();
@@ -136,10 +156,37 @@ public class ResticService {
         }
     }
 
+    // 逐个把 node 交给 nodeCallback, 不缓存. pathString 为空则列出 snapshot 的全部 node. 结果为 node 数量
+    public CompletableFuture<ResticExecResult<Long, ExitErrors>> lsStream(
+            String snapshotId, String pathString, Consumer<Node> nodeCallback) throws ValidationException {
+        if (StringUtils.isBlank(snapshotId)) {
+            throw new ValidationException("lsStream failed. snapshotsId is null");
+        }
+        CommandLine commandLine = getDefaultCommandLine();
+        commandLine.addArgument("ls");
+        commandLine.addArgument(snapshotId);
+        if (StringUtils.isNotBlank(pathString)) {
+            commandLine.addArgument(pathString);
+        }
+        AtomicLong nodeCount = new AtomicLong(0);
+        return ResticParser.executeWithExitErrorsHandler(
+                RESTIC_PASSWORD,
+                RESTIC_BACKUP_PATH,
+                commandLine,
+                new ResticJsonLineDispatcher<Long>()
+                        .on(Node.getCondition(), Node.class, node -> {
+                            nodeCount.incrementAndGet();
+                            nodeCallback.accept(node);
+                        })
+                        .result(nodeCount::get)
+        );
+    }
+
     public CompletableFuture<ResticExecResult<RestoreSummary, List<RestoreError>>> restore(
             String snapshotId,
             String[] pathStrings,
-            String targetString) throws ValidationException, BusinessException {
+            String targetString,
+            Consumer<RestoreStatus> statusCallback) throws ValidationException, BusinessException {
         if (StringUtils.isAnyBlank(snapshotId, targetString)) {
             throw new ValidationException("restoreFile failed. snapshotsId or targetString is null");
         }
@@ -153,19 +200,62 @@ public class ResticService {
         } else {
             buildRestoreMultipleCommandLine(restoreCommandLine, snapshotId, pathStrings, targetString);
         }
+        AtomicReference<RestoreSummary> summary = new AtomicReference<>();
         return ResticParser.execute(
                 RESTIC_PASSWORD,
                 RESTIC_BACKUP_PATH,
-                null,
+                getProgressEnv(),
                 null,
                 restoreCommandLine,
-                stdout ->
-                        JsonUtil.parseResticJsonLine(stdout, RestoreSummary.getCondition(), RestoreSummary.class),
-                stderr ->
-                        JsonUtil.parseResticJsonLines(stderr, RestoreError.getCondition(), RestoreError.class)
+                new ResticJsonLineDispatcher<RestoreSummary>()
+                        .on(RestoreStatus.getCondition(), RestoreStatus.class, statusCallback)
+                        .on(RestoreSummary.getCondition(), RestoreSummary.class, summary::set)
+                        .result(summary::get),
+                ResticJsonLineDispatcher.listOf(RestoreError.getCondition(), RestoreError.class)
         );
     }
 
+    // 把 snapshot 中的文件或者目录直接写入 outputStream. 目录需要指定 archive, 文件的 archive 为 null 时输出原始内容
+    // 结果为写入的字节数
+    public CompletableFuture<ResticExecResult<Long, ExitErrors>> dump(
+            String snapshotId,
+            String pathString,
+            ResticDumpArchiveEnum archive,
+            OutputStream outputStream) throws ValidationException {
+        if (StringUtils.isAnyBlank(snapshotId, pathString)) {
+            throw new ValidationException("dump failed. snapshotId or pathString is null");
+        }
+        // path 以 '/' 开头, 不会被当作 restic 的参数
+        if (!pathString.startsWith("/") || snapshotId.startsWith("-")) {
+            throw new ValidationException("dump failed. snapshotId or pathString is invalid. " +
+                    "snapshotId is %s, pathString is %s".formatted(snapshotId, pathString));
+        }
+        if (archive == ResticDumpArchiveEnum.UNKNOWN) {
+            throw new ValidationException("dump failed. archive is unknown");
+        }
+        CommandLine commandLine = getDefaultCommandLine();
+        commandLine.addArgument("dump");
+        if (archive != null) {
+            commandLine.addArgument("--archive");
+            commandLine.addArgument(archive.getArchive());
+        }
+        commandLine.addArgument(snapshotId);
+        // 不处理引号, 路径中的空格和引号原样传给 restic
+        commandLine.addArgument(pathString, false);
+        return ResticParser.executeToStream(
+                RESTIC_PASSWORD,
+                RESTIC_BACKUP_PATH,
+                commandLine,
+                outputStream,
+                ResticJsonLineDispatcher.lastOf(ExitErrors.getCondition(), ExitErrors.class),
+                Duration.ofSeconds(RESTIC_DUMP_TIMEOUT_SEC)
+        );
+    }
+
+    private Map<String, String> getProgressEnv() {
+        return Map.of("RESTIC_PROGRESS_FPS", RESTIC_PROGRESS_FPS);
+    }
+
     private static CommandLine getDefaultCommandLine() {
         CommandLine commandLine = new CommandLine("restic");
         commandLine.addArgument("--json");
@@ -0,0 +1,296 @@
+package com.syncduo.server.service.restic;
+
+import com.syncduo.server.enums.CommonStatus;
+import com.syncduo.server.exception.BusinessException;
+import com.syncduo.server.exception.ValidationException;
+import com.syncduo.server.model.entity.RestoreJobEntity;
+import com.syncduo.server.model.internal.RestoreFileCache;
+import com.syncduo.server.service.db.impl.RestoreJobService;
+import com.syncduo.server.util.FilesystemUtil;
+import com.syncduo.server.util.ParallelFileWalker;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+// restore 的结果保留在 restorePath 作为缓存, 相同的 (snapshotId, path) 直接返回, 不再执行 restic restore
+// 超过 restoreAgeSec 没有访问, 或者总大小超过 restoreCacheMaxBytes 时, 从最久没有访问的开始淘汰, 由一个定时任务统一清理
+// 最近访问时间同时写入 restore root folder 的修改时间, 重启后根据 restore_job 记录和磁盘上的文件恢复
+@Slf4j
+@Service
+public class RestoreCacheService {
+
+    private final RestoreJobService restoreJobService;
+
+    private final ParallelFileWalker fileWalker;
+
+    // 按访问顺序排列. <restoreJobId, cache>
+    private final LinkedHashMap<Long, RestoreFileCache> cacheMap = new LinkedHashMap<>(16, 0.75f, true);
+
+    // <snapshotId::originFilePath, restoreJobId>, 多个文件的 restore 没有 originFilePath, 不登记
+    // 和 cacheMap 一起在 synchronized(this) 中访问
+    private final Map<String, Long> pathKeyMap = new HashMap<>();
+
+    private long cacheBytes = 0;
+
+    @Value("${syncduo.server.restic.restorePath}")
+    private String RESTIC_RESTORE_PATH;
+
+    @Value("${syncduo.server.restic.restoreAgeSec}")
+    private long RESTIC_RESTORE_AGE_SEC;
+
+    @Value("${syncduo.server.restic.restoreCacheMaxBytes:10737418240}")
+    private long RESTORE_CACHE_MAX_BYTES;
+
+    @Autowired
+    public RestoreCacheService(RestoreJobService restoreJobService, ParallelFileWalker fileWalker) {
+        this.restoreJobService = restoreJobService;
+        this.fileWalker = fileWalker;
+    }
+
+    // 登记上次运行留下的 restore. 没有完成, 失败, 或者文件已经不存在的记录逻辑删除, 没有记录的文件夹删除
+    public void init() {
+        if (RESTIC_RESTORE_AGE_SEC < 1) {
+            throw new ValidationException("restore cache init failed. RESTIC_RESTORE_AGE:%s is invalid."
+                    .formatted(RESTIC_RESTORE_AGE_SEC));
+        }
+        Path restoreFolder = Path.of(RESTIC_RESTORE_PATH).toAbsolutePath().normalize();
+        List<RestoreFileCache> recoveredList = new ArrayList<>();
+        Set<Path> keptRootSet = new HashSet<>();
+        for (RestoreJobEntity restoreJobEntity : this.restoreJobService.getAllRestoreJob()) {
+            RestoreFileCache restoreFileCache = this.recover(restoreFolder, restoreJobEntity);
+            if (ObjectUtils.isEmpty(restoreFileCache)) {
+                this.restoreJobService.deleteRecord(restoreJobEntity.getRestoreJobId());
+                continue;
+            }
+            recoveredList.add(restoreFileCache);
+            keptRootSet.add(Path.of(restoreFileCache.getRestoreRootPath()));
+        }
+        List<Path> orphanList;
+        try (Stream<Path> stream = Files.list(restoreFolder)) {
+            orphanList = stream.filter(path -> !keptRootSet.contains(path.toAbsolutePath().normalize())).toList();
+        } catch (IOException e) {
+            throw new BusinessException("restore cache init failed. can't list restorePath:%s"
+                    .formatted(RESTIC_RESTORE_PATH), e);
+        }
+        for (Path orphan : orphanList) {
+            this.deletePath(orphan);
+        }
+        // 按最近访问时间登记, 旧的先被淘汰
+        recoveredList.sort(Comparator.comparingLong(RestoreFileCache::getLastAccessMillis));
+        synchronized (this) {
+            for (RestoreFileCache restoreFileCache : recoveredList) {
+                this.put(restoreFileCache);
+            }
+        }
+        this.sweep();
+        log.info("restore cache init success. recovered count is {}, bytes is {}, orphan count is {}",
+                this.getCacheCount(), this.getCacheBytes(), orphanList.size());
+    }
+
+    // 命中则更新访问时间, 返回 restoreJobId. 没有命中返回 null
+    public Long lookup(String snapshotId, String originFilePath) {
+        if (StringUtils.isAnyBlank(snapshotId, originFilePath)) {
+            return null;
+        }
+        Long restoreJobId;
+        synchronized (this) {
+            restoreJobId = this.pathKeyMap.get(getPathKey(snapshotId, originFilePath));
+        }
+        if (ObjectUtils.isEmpty(restoreJobId) || !this.touch(restoreJobId)) {
+            return null;
+        }
+        return restoreJobId;
+    }
+
+    // 更新访问时间. 不在缓存中返回 false
+    public boolean touch(long restoreJobId) {
+        long now = System.currentTimeMillis();
+        RestoreFileCache restoreFileCache;
+        synchronized (this) {
+            // access order 的 LinkedHashMap, get 会移动到末尾
+            restoreFileCache = this.cacheMap.get(restoreJobId);
+            if (ObjectUtils.isEmpty(restoreFileCache)) {
+                return false;
+            }
+            restoreFileCache.setLastAccessMillis(now);
+        }
+        try {
+            Files.setLastModifiedTime(Path.of(restoreFileCache.getRestoreRootPath()), FileTime.fromMillis(now));
+        } catch (IOException e) {
+            log.debug("touch restore cache failed. can't set last modified time. restoreJobId is {}",
+                    restoreJobId, e);
+        }
+        return true;
+    }
+
+    // restore 成功后登记. 超出总大小时淘汰旧的, 刚登记的即使单独超出也保留
+    public void register(RestoreJobEntity restoreJobEntity, Path restoreFile) {
+        Path restoreRoot = Path.of(restoreJobEntity.getRestoreRootPath()).toAbsolutePath().normalize();
+        long bytes = FilesystemUtil.getFolderInfo(restoreRoot.toString(), this.fileWalker).get(2);
+        long now = System.currentTimeMillis();
+        try {
+            Files.setLastModifiedTime(restoreRoot, FileTime.fromMillis(now));
+        } catch (IOException e) {
+            log.debug("register restore cache. can't set last modified time. restoreRoot is {}", restoreRoot, e);
+        }
+        RestoreFileCache restoreFileCache = new RestoreFileCache(
+                restoreJobEntity.getRestoreJobId(),
+                restoreJobEntity.getSnapshotId(),
+                restoreJobEntity.getOriginFilePath(),
+                restoreRoot.toString(),
+                restoreFile.toAbsolutePath().toString(),
+                bytes,
+                now);
+        List<RestoreFileCache> evictList;
+        synchronized (this) {
+            this.put(restoreFileCache);
+            evictList = this.pollEvictList(Long.MIN_VALUE);
+        }
+        this.evict(evictList);
+    }
+
+    // restore 失败, 记录保留用于返回错误信息, 只删除文件夹
+    public void discard(RestoreJobEntity restoreJobEntity) {
+        if (StringUtils.isBlank(restoreJobEntity.getRestoreRootPath())) {
+            return;
+        }
+        this.deletePath(Path.of(restoreJobEntity.getRestoreRootPath()));
+    }
+
+    @Scheduled(
+            initialDelayString = "${syncduo.server.restic.restoreCacheSweepIntervalMillis:60000}",
+            fixedDelayString = "${syncduo.server.restic.restoreCacheSweepIntervalMillis:60000}",
+            scheduler = "systemManagementTaskScheduler"
+    )
+    public void sweep() {
+        List<RestoreFileCache> evictList;
+        synchronized (this) {
+            evictList = this.pollEvictList(System.currentTimeMillis() - RESTIC_RESTORE_AGE_SEC * 1000);
+        }
+        this.evict(evictList);
+    }
+
+    public synchronized long getCacheBytes() {
+        return this.cacheBytes;
+    }
+
+    public synchronized int getCacheCount() {
+        return this.cacheMap.size();
+    }
+
+    // 在 synchronized(this) 中调用
+    private void put(RestoreFileCache restoreFileCache) {
+        RestoreFileCache previous = this.cacheMap.put(restoreFileCache.getRestoreJobId(), restoreFileCache);
+        if (ObjectUtils.isNotEmpty(previous)) {
+            this.cacheBytes -= previous.getBytes();
+        }
+        this.cacheBytes += restoreFileCache.getBytes();
+        if (StringUtils.isNotBlank(restoreFileCache.getOriginFilePath())) {
+            this.pathKeyMap.put(
+                    getPathKey(restoreFileCache.getSnapshotId(), restoreFileCache.getOriginFilePath()),
+                    restoreFileCache.getRestoreJobId());
+        }
+    }
+
+    // 在 synchronized(this) 中调用. 从最久没有访问的开始, 取出过期的和超出总大小的. 最近访问的一个不因为总大小淘汰
+    private List<RestoreFileCache> pollEvictList(long expireBefore) {
+        List<RestoreFileCache> evictList = new ArrayList<>();
+        Iterator<RestoreFileCache> iterator = this.cacheMap.values().iterator();
+        while (iterator.hasNext()) {
+            RestoreFileCache restoreFileCache = iterator.next();
+            boolean expired = restoreFileCache.getLastAccessMillis() < expireBefore;
+            boolean overBudget = this.cacheBytes > RESTORE_CACHE_MAX_BYTES && this.cacheMap.size() > 1;
+            // 按访问顺序排列, 之后的都更新
+            if (!expired && !overBudget) {
+                break;
+            }
+            iterator.remove();
+            this.cacheBytes -= restoreFileCache.getBytes();
+            if (StringUtils.isNotBlank(restoreFileCache.getOriginFilePath())) {
+                this.pathKeyMap.remove(
+                        getPathKey(restoreFileCache.getSnapshotId(), restoreFileCache.getOriginFilePath()),
+                        restoreFileCache.getRestoreJobId());
+            }
+            evictList.add(restoreFileCache);
+        }
+        return evictList;
+    }
+
+    // 先删除记录, 查询不到之后再删除文件
+    private void evict(List<RestoreFileCache> evictList) {
+        for (RestoreFileCache restoreFileCache : evictList) {
+            try {
+                this.restoreJobService.deleteRecord(restoreFileCache.getRestoreJobId());
+            } catch (Exception e) {
+                log.warn("evict restore cache failed. can't delete record. restoreFileCache is {}",
+                        restoreFileCache, e);
+            }
+            this.deletePath(Path.of(restoreFileCache.getRestoreRootPath()));
+            log.debug("evict restore cache. restoreFileCache is {}", restoreFileCache);
+        }
+    }
+
+    // 只恢复成功, 并且文件还在 restorePath 中的记录
+    private RestoreFileCache recover(Path restoreFolder, RestoreJobEntity restoreJobEntity) {
+        if (CommonStatus.fromName(restoreJobEntity.getRestoreJobStatus()) != CommonStatus.SUCCESS ||
+                StringUtils.isAnyBlank(restoreJobEntity.getRestoreRootPath(), restoreJobEntity.getRestoreFullPath())) {
+            return null;
+        }
+        try {
+            Path restoreRoot = Path.of(restoreJobEntity.getRestoreRootPath()).toAbsolutePath().normalize();
+            Path restoreFile = Path.of(restoreJobEntity.getRestoreFullPath()).toAbsolutePath().normalize();
+            if (!restoreFolder.equals(restoreRoot.getParent()) ||
+                    !restoreFile.startsWith(restoreRoot) ||
+                    !Files.isRegularFile(restoreFile, LinkOption.NOFOLLOW_LINKS)) {
+                return null;
+            }
+            return new RestoreFileCache(
+                    restoreJobEntity.getRestoreJobId(),
+                    restoreJobEntity.getSnapshotId(),
+                    restoreJobEntity.getOriginFilePath(),
+                    restoreRoot.toString(),
+                    restoreFile.toString(),
+                    FilesystemUtil.getFolderInfo(restoreRoot.toString(), this.fileWalker).get(2),
+                    Files.getLastModifiedTime(restoreRoot).toMillis());
+        } catch (Exception e) {
+            log.warn("recover restore cache failed. restoreJobEntity is {}", restoreJobEntity, e);
+            return null;
+        }
+    }
+
+    private void deletePath(Path path) {
+        try {
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                FilesystemUtil.deleteFolder(path.toString(), true, this.fileWalker);
+            } else {
+                Files.deleteIfExists(path);
+            }
+        } catch (Exception e) {
+            log.warn("delete restore path failed. path is {}", path, e);
+        }
+    }
+
+    private static String getPathKey(String snapshotId, String originFilePath) {
+        return snapshotId + "::" + originFilePath;
+    }
+}
@@ -0,0 +1,257 @@
+package com.syncduo.server.service.restic;
+
+import com.syncduo.server.enums.ResticNodeTypeEnum;
+import com.syncduo.server.exception.ValidationException;
+import com.syncduo.server.model.restic.ls.Node;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+// 单个 snapshot 的目录索引, 只读, 通过 mmap 访问. 文件结构:
+// header(48 bytes) | dir table(按 path 排序, 每项 24 bytes) | record(每项 32 bytes) | names(utf-8)
+// 同一目录的子节点在 record 中连续存放, 目录在前, 再按名称排序
+// 只使用绝对位置读取 buffer, 多线程共享同一个实例
+public class SnapshotIndex {
+
+    static final int MAGIC = 0x53444958; // SDIX
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 48;
+
+    static final int DIR_ENTRY_SIZE = 24;
+
+    static final int RECORD_SIZE = 32;
+
+    private final String snapshotId;
+
+    private final long fileSize;
+
+    private final MappedByteBuffer buffer;
+
+    private final int dirCount;
+
+    private final int nodeCount;
+
+    private final int dirTableOffset;
+
+    private final int recordOffset;
+
+    private final int namesOffset;
+
+    private SnapshotIndex(String snapshotId, long fileSize, MappedByteBuffer buffer) throws ValidationException {
+        this.snapshotId = snapshotId;
+        this.fileSize = fileSize;
+        this.buffer = buffer;
+        if (fileSize < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new ValidationException("open snapshot index failed. snapshotId:%s, bad header".formatted(snapshotId));
+        }
+        this.dirCount = buffer.getInt(8);
+        this.nodeCount = buffer.getInt(12);
+        this.dirTableOffset = (int) buffer.getLong(16);
+        this.recordOffset = (int) buffer.getLong(24);
+        this.namesOffset = (int) buffer.getLong(32);
+        if (this.dirCount < 1 || this.nodeCount < 0 ||
+                this.recordOffset != this.dirTableOffset + (long) this.dirCount * DIR_ENTRY_SIZE ||
+                this.namesOffset != this.recordOffset + (long) this.nodeCount * RECORD_SIZE ||
+                this.namesOffset > fileSize) {
+            throw new ValidationException("open snapshot index failed. snapshotId:%s, bad layout".formatted(snapshotId));
+        }
+    }
+
+    public static SnapshotIndex open(String snapshotId, Path file) throws IOException, ValidationException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new ValidationException("open snapshot index failed. file exceed 2GB. file is %s"
+                        .formatted(file));
+            }
+            // channel 关闭后 mapping 依然有效
+            return new SnapshotIndex(snapshotId, size, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    public String getSnapshotId() {
+        return this.snapshotId;
+    }
+
+    public long getFileSize() {
+        return this.fileSize;
+    }
+
+    public int getNodeCount() {
+        return this.nodeCount;
+    }
+
+    // 返回 dirPath 的直接子节点. dirPath 不是目录返回 null
+    public List<Node> listChildren(String dirPath) {
+        int dirIndex = this.findDir(dirPath);
+        if (dirIndex < 0) {
+            return null;
+        }
+        String normalized = normalizeDirPath(dirPath);
+        int entryOffset = this.dirTableOffset + dirIndex * DIR_ENTRY_SIZE;
+        int firstChild = this.buffer.getInt(entryOffset + 12);
+        int childCount = this.buffer.getInt(entryOffset + 16);
+        List<Node> result = new ArrayList<>(childCount);
+        for (int i = firstChild; i < firstChild + childCount; i++) {
+            result.add(this.readNode(normalized, i));
+        }
+        return result;
+    }
+
+    // 分页读取 dirPath 的子节点, 返回排序键大于 after 的最多 limit 项. namePrefix 为空表示不过滤
+    // 同一类型内按名称排序, 前缀相同的项是连续的, 通过二分查找跳过, 不需要扫描整个目录
+    public List<Node> listChildrenPage(String dirPath, SnapshotListCursor after, String namePrefix, int limit) {
+        int dirIndex = this.findDir(dirPath);
+        if (dirIndex < 0) {
+            return null;
+        }
+        String normalized = normalizeDirPath(dirPath);
+        int entryOffset = this.dirTableOffset + dirIndex * DIR_ENTRY_SIZE;
+        int first = this.buffer.getInt(entryOffset + 12);
+        int end = first + this.buffer.getInt(entryOffset + 16);
+        boolean hasPrefix = namePrefix != null && !namePrefix.isEmpty();
+        List<Node> result = new ArrayList<>(Math.max(0, Math.min(limit, end - first)));
+        int position = after == null ? first : this.upperBound(first, end, after);
+        while (position < end && result.size() < limit) {
+            SnapshotListCursor key = this.readKey(position);
+            if (hasPrefix) {
+                if (key.name().compareTo(namePrefix) < 0) {
+                    // 跳到当前类型中第一个 >= prefix 的位置
+                    position = Math.max(position + 1,
+                            this.lowerBound(first, end, new SnapshotListCursor(key.typeRank(), namePrefix)));
+                    continue;
+                }
+                if (!key.name().startsWith(namePrefix)) {
+                    // 当前类型中已经没有匹配项, 跳到下一个类型
+                    position = Math.max(position + 1,
+                            this.lowerBound(first, end, new SnapshotListCursor(key.typeRank() + 1, "")));
+                    continue;
+                }
+            }
+            result.add(this.readNode(normalized, position));
+            position++;
+        }
+        return result;
+    }
+
+    // 二分查找 dir table
+    int findDir(String dirPath) {
+        String target = normalizeDirPath(dirPath);
+        int low = 0;
+        int high = this.dirCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entryOffset = this.dirTableOffset + mid * DIR_ENTRY_SIZE;
+            String midPath = this.readString(this.buffer.getLong(entryOffset), this.buffer.getInt(entryOffset + 8));
+            int cmp = midPath.compareTo(target);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // [first, end) 中第一个 >= key 的位置
+    private int lowerBound(int first, int end, SnapshotListCursor key) {
+        int low = first;
+        int high = end;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.readKey(mid).compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // [first, end) 中第一个 > key 的位置
+    private int upperBound(int first, int end, SnapshotListCursor key) {
+        int low = first;
+        int high = end;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.readKey(mid).compareTo(key) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private SnapshotListCursor readKey(int recordIndex) {
+        int offset = this.recordOffset + recordIndex * RECORD_SIZE;
+        return new SnapshotListCursor(
+                getTypeRank(fromTypeCode(this.buffer.get(offset + 12))),
+                this.readString(this.buffer.getLong(offset), this.buffer.getInt(offset + 8)));
+    }
+
+    private Node readNode(String parentDirPath, int recordIndex) {
+        int offset = this.recordOffset + recordIndex * RECORD_SIZE;
+        String name = this.readString(this.buffer.getLong(offset), this.buffer.getInt(offset + 8));
+        ResticNodeTypeEnum type = fromTypeCode(this.buffer.get(offset + 12));
+        long size = this.buffer.getLong(offset + 16);
+        long mtime = this.buffer.getLong(offset + 24);
+        Node node = new Node();
+        node.setMessageType(Node.getCondition());
+        node.setName(name);
+        node.setType(type.getType());
+        node.setPath("/".equals(parentDirPath) ? "/" + name : parentDirPath + "/" + name);
+        node.setSize(size < 0 ? null : BigInteger.valueOf(size));
+        node.setMtime(mtime == Long.MIN_VALUE ? null : Instant.ofEpochMilli(mtime));
+        return node;
+    }
+
+    private String readString(long nameOffset, int length) {
+        byte[] bytes = new byte[length];
+        this.buffer.get(this.namesOffset + (int) nameOffset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // "/a/b/" -> "/a/b", "" -> "/"
+    static String normalizeDirPath(String path) {
+        String result = path.replace('\\', '/');
+        if (!result.startsWith("/")) {
+            result = "/" + result;
+        }
+        while (result.length() > 1 && result.endsWith("/")) {
+            result = result.substring(0, result.length() - 1);
+        }
+        return result;
+    }
+
+    static String getParentDirPath(String normalizedPath) {
+        int index = normalizedPath.lastIndexOf('/');
+        return index <= 0 ? "/" : normalizedPath.substring(0, index);
+    }
+
+    // 目录排在前面
+    static int getTypeRank(ResticNodeTypeEnum type) {
+        return type == ResticNodeTypeEnum.DIRECTORY ? 0 : 1;
+    }
+
+    static byte toTypeCode(ResticNodeTypeEnum type) {
+        return (byte) type.ordinal();
+    }
+
+    static ResticNodeTypeEnum fromTypeCode(byte code) {
+        ResticNodeTypeEnum[] values = ResticNodeTypeEnum.values();
+        return code >= 0 && code < values.length ? values[code] : ResticNodeTypeEnum.UNKNOWN;
+    }
+}
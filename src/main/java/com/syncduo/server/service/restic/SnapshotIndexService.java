@@ -0,0 +1,312 @@
+package com.syncduo.server.service.restic;
+
+import com.syncduo.server.exception.BusinessException;
+import com.syncduo.server.model.restic.global.ExitErrors;
+import com.syncduo.server.model.restic.global.ResticExecResult;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// snapshot 不可变, 每个 snapshot 只执行一次 restic ls, 结果写成本地 index 文件, 之后的目录浏览直接读 index
+// 磁盘上的 index 总大小有上限, 按最近访问时间淘汰. snapshotIndexPath 为空则不使用 index
+@Slf4j
+@Service
+public class SnapshotIndexService {
+
+    private static final Pattern SNAPSHOT_ID_PATTERN = Pattern.compile("^[0-9a-f]{8,64}$");
+
+    private static final String INDEX_SUFFIX = ".sidx";
+
+    private final ResticService resticService;
+
+    private final TaskScheduler generalTaskScheduler;
+
+    // 磁盘上的 index, 按访问顺序排列. <snapshotId, fileSize>
+    private final LinkedHashMap<String, Long> diskIndexMap = new LinkedHashMap<>(16, 0.75f, true);
+
+    // 已经 mmap 的 index, 数量有上限. 和 diskIndexMap 一起在 synchronized(this) 中访问
+    private final LinkedHashMap<String, SnapshotIndex> openIndexMap = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long diskBytes = 0;
+
+    // 正在构建的 index, 同一个 snapshot 并发访问只执行一次 restic ls
+    private final Map<String, CompletableFuture<SnapshotIndex>> buildingMap = new ConcurrentHashMap<>();
+
+    @Value("${syncduo.server.restic.snapshotIndexPath:}")
+    private String SNAPSHOT_INDEX_PATH;
+
+    @Value("${syncduo.server.restic.snapshotIndexMaxBytes:1073741824}")
+    private long SNAPSHOT_INDEX_MAX_BYTES;
+
+    @Value("${syncduo.server.restic.snapshotIndexMaxOpen:16}")
+    private int SNAPSHOT_INDEX_MAX_OPEN;
+
+    // 请求等待 index 构建的最长时间, 超时后本次使用 restic ls, index 继续在后台构建
+    @Value("${syncduo.server.restic.snapshotIndexWaitMillis:3000}")
+    private long SNAPSHOT_INDEX_WAIT_MILLIS;
+
+    @Autowired
+    public SnapshotIndexService(ResticService resticService, TaskScheduler generalTaskScheduler) {
+        this.resticService = resticService;
+        this.generalTaskScheduler = generalTaskScheduler;
+    }
+
+    // 登记上次运行留下的 index, 删除没写完的临时文件
+    public void init() {
+        if (!this.isEnabled()) {
+            log.info("snapshot index is disabled. snapshotIndexPath is blank");
+            return;
+        }
+        Path indexFolder = Path.of(SNAPSHOT_INDEX_PATH);
+        try {
+            Files.createDirectories(indexFolder);
+            List<Path> indexFileList;
+            try (Stream<Path> stream = Files.list(indexFolder)) {
+                indexFileList = stream.filter(Files::isRegularFile).toList();
+            }
+            // 按修改时间登记, 旧的先被淘汰
+            List<Path> sortedList = indexFileList.stream()
+                    .filter(file -> file.getFileName().toString().endsWith(INDEX_SUFFIX))
+                    .sorted(Comparator.comparingLong(SnapshotIndexService::getLastModified))
+                    .toList();
+            synchronized (this) {
+                for (Path file : sortedList) {
+                    String fileName = file.getFileName().toString();
+                    String snapshotId = fileName.substring(0, fileName.length() - INDEX_SUFFIX.length());
+                    if (!isSnapshotIdValid(snapshotId)) {
+                        continue;
+                    }
+                    long size = Files.size(file);
+                    this.diskIndexMap.put(snapshotId, size);
+                    this.diskBytes += size;
+                }
+                this.evictDiskIndex(null);
+            }
+            for (Path file : indexFileList) {
+                if (file.getFileName().toString().endsWith(".tmp")) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            throw new BusinessException("snapshot index init failed. snapshotIndexPath is %s"
+                    .formatted(SNAPSHOT_INDEX_PATH), e);
+        }
+        log.info("snapshot index init success. index count is {}, bytes is {}",
+                this.diskIndexMap.size(), this.diskBytes);
+    }
+
+    public boolean isEnabled() {
+        return StringUtils.isNotBlank(SNAPSHOT_INDEX_PATH);
+    }
+
+    // 没有 index 则构建, 最多等待 snapshotIndexWaitMillis. 返回 null 表示 index 不可用, 调用方使用 restic ls
+    public SnapshotIndex getIndex(String snapshotId) {
+        if (!this.isEnabled() || !isSnapshotIdValid(snapshotId)) {
+            return null;
+        }
+        SnapshotIndex snapshotIndex = this.getCachedIndex(snapshotId);
+        if (ObjectUtils.isNotEmpty(snapshotIndex)) {
+            return snapshotIndex;
+        }
+        try {
+            return this.buildAsync(snapshotId).get(SNAPSHOT_INDEX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.info("getIndex wait timeout, use restic ls. index is still building. snapshotId is {}", snapshotId);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            log.warn("getIndex failed. snapshotId is {}", snapshotId, e);
+            return null;
+        }
+    }
+
+    // backup 完成后提前构建. 已有 index 或正在构建则直接返回
+    public CompletableFuture<SnapshotIndex> buildAsync(String snapshotId) {
+        if (!this.isEnabled() || !isSnapshotIdValid(snapshotId)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<SnapshotIndex> future = new CompletableFuture<>();
+        CompletableFuture<SnapshotIndex> building = this.buildingMap.putIfAbsent(snapshotId, future);
+        if (ObjectUtils.isNotEmpty(building)) {
+            return building;
+        }
+        SnapshotIndex cached = this.getCachedIndex(snapshotId);
+        if (ObjectUtils.isNotEmpty(cached)) {
+            this.buildingMap.remove(snapshotId, future);
+            future.complete(cached);
+            return future;
+        }
+        // 超出内存缓存的 node 排序后写入 index 目录下的临时文件
+        SnapshotIndexWriter snapshotIndexWriter = new SnapshotIndexWriter(Path.of(SNAPSHOT_INDEX_PATH));
+        try {
+            this.resticService.lsStream(snapshotId, null, snapshotIndexWriter::add)
+                    .whenComplete((lsResult, ex) ->
+                            // 排序和写文件不占用 restic 的回调线程
+                            this.generalTaskScheduler.schedule(
+                                    () -> this.finishBuild(snapshotId, snapshotIndexWriter, lsResult, ex, future),
+                                    Instant.now()));
+        } catch (Exception e) {
+            snapshotIndexWriter.close();
+            this.buildingMap.remove(snapshotId, future);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public synchronized long getDiskBytes() {
+        return this.diskBytes;
+    }
+
+    public synchronized int getIndexCount() {
+        return this.diskIndexMap.size();
+    }
+
+    private void finishBuild(
+            String snapshotId,
+            SnapshotIndexWriter snapshotIndexWriter,
+            ResticExecResult<Long, ExitErrors> lsResult,
+            Throwable ex,
+            CompletableFuture<SnapshotIndex> future) {
+        try {
+            if (ObjectUtils.isNotEmpty(ex)) {
+                throw new BusinessException("build snapshot index failed. restic ls failed.", ex);
+            }
+            if (!lsResult.isSuccess()) {
+                throw new BusinessException("build snapshot index failed. restic ls failed.",
+                        lsResult.getBusinessException());
+            }
+            long startTime = System.currentTimeMillis();
+            Path indexFile = this.getIndexFile(snapshotId);
+            snapshotIndexWriter.write(indexFile);
+            SnapshotIndex snapshotIndex = SnapshotIndex.open(snapshotId, indexFile);
+            this.register(snapshotIndex);
+            log.info("build snapshot index success. snapshotId is {}, node count is {}, bytes is {}, cost {} ms",
+                    snapshotId,
+                    snapshotIndexWriter.getNodeCount(),
+                    snapshotIndex.getFileSize(),
+                    System.currentTimeMillis() - startTime);
+            future.complete(snapshotIndex);
+        } catch (Exception e) {
+            log.warn("build snapshot index failed. snapshotId is {}", snapshotId, e);
+            future.completeExceptionally(e);
+        } finally {
+            snapshotIndexWriter.close();
+            this.buildingMap.remove(snapshotId, future);
+        }
+    }
+
+    private synchronized SnapshotIndex getCachedIndex(String snapshotId) {
+        SnapshotIndex snapshotIndex = this.openIndexMap.get(snapshotId);
+        if (ObjectUtils.isNotEmpty(snapshotIndex)) {
+            // 更新磁盘 LRU 的访问顺序
+            this.diskIndexMap.get(snapshotId);
+            return snapshotIndex;
+        }
+        if (!this.diskIndexMap.containsKey(snapshotId)) {
+            return null;
+        }
+        Path indexFile = this.getIndexFile(snapshotId);
+        try {
+            snapshotIndex = SnapshotIndex.open(snapshotId, indexFile);
+        } catch (Exception e) {
+            log.warn("open snapshot index failed. delete it. snapshotId is {}", snapshotId, e);
+            this.removeDiskIndex(snapshotId);
+            return null;
+        }
+        this.openIndexMap.put(snapshotId, snapshotIndex);
+        this.trimOpenIndex();
+        return snapshotIndex;
+    }
+
+    private synchronized void register(SnapshotIndex snapshotIndex) {
+        String snapshotId = snapshotIndex.getSnapshotId();
+        Long oldSize = this.diskIndexMap.put(snapshotId, snapshotIndex.getFileSize());
+        this.diskBytes += snapshotIndex.getFileSize() - (oldSize == null ? 0 : oldSize);
+        this.openIndexMap.put(snapshotId, snapshotIndex);
+        this.trimOpenIndex();
+        this.evictDiskIndex(snapshotId);
+    }
+
+    // 关闭的 index 只是不再持有引用, mapping 由 GC 回收
+    private void trimOpenIndex() {
+        Iterator<String> iterator = this.openIndexMap.keySet().iterator();
+        while (this.openIndexMap.size() > SNAPSHOT_INDEX_MAX_OPEN && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    // 超过总大小时从最久没访问的开始删除. keepSnapshotId 是刚构建的 index, 不删除
+    private void evictDiskIndex(String keepSnapshotId) {
+        Iterator<Map.Entry<String, Long>> iterator = this.diskIndexMap.entrySet().iterator();
+        while (this.diskBytes > SNAPSHOT_INDEX_MAX_BYTES && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            String snapshotId = entry.getKey();
+            if (snapshotId.equals(keepSnapshotId)) {
+                continue;
+            }
+            iterator.remove();
+            this.diskBytes -= entry.getValue();
+            this.openIndexMap.remove(snapshotId);
+            this.deleteIndexFile(snapshotId);
+            log.info("evict snapshot index. snapshotId is {}", snapshotId);
+        }
+    }
+
+    private void removeDiskIndex(String snapshotId) {
+        Long size = this.diskIndexMap.remove(snapshotId);
+        if (size != null) {
+            this.diskBytes -= size;
+        }
+        this.openIndexMap.remove(snapshotId);
+        this.deleteIndexFile(snapshotId);
+    }
+
+    private void deleteIndexFile(String snapshotId) {
+        try {
+            // 正在被读取的 mapping 在 linux 下不受影响
+            Files.deleteIfExists(this.getIndexFile(snapshotId));
+        } catch (IOException e) {
+            log.warn("delete snapshot index failed. snapshotId is {}", snapshotId, e);
+        }
+    }
+
+    private Path getIndexFile(String snapshotId) {
+        return Path.of(SNAPSHOT_INDEX_PATH).resolve(snapshotId + INDEX_SUFFIX);
+    }
+
+    // snapshotId 用作文件名, 只接受 restic 的 hex id
+    private static boolean isSnapshotIdValid(String snapshotId) {
+        return StringUtils.isNotBlank(snapshotId) && SNAPSHOT_ID_PATTERN.matcher(snapshotId).matches();
+    }
+
+    private static long getLastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+}
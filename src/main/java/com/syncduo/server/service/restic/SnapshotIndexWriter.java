@@ -0,0 +1,390 @@
+package com.syncduo.server.service.restic;
+
+import com.syncduo.server.enums.ResticNodeTypeEnum;
+import com.syncduo.server.exception.ValidationException;
+import com.syncduo.server.model.restic.ls.Node;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// 接收 restic ls 的全部 node, 按 (父目录, 类型, 名称) 外部排序后写成 SnapshotIndex 文件.
+// 内存中最多缓存 runSize 个 node, 满了排序后写入临时文件(run), 写 index 时多路归并, 内存占用和快照大小无关
+@Slf4j
+class SnapshotIndexWriter implements Closeable {
+
+    private static final int DEFAULT_RUN_SIZE = 100_000;
+
+    // 目录标记的类型序号, 排在该目录所有子节点之前. 空目录也要能查询
+    private static final int DIR_MARKER_RANK = -1;
+
+    private static final int RUN_BUFFER_SIZE = 16 * 1024;
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    // run 文件和写 index 时的分段文件所在目录, 以 .tmp 结尾, 启动时会被清理
+    private final Path tempFolder;
+
+    private final int runSize;
+
+    private final List<Entry> bufferList = new ArrayList<>();
+
+    private final List<Path> runFileList = new ArrayList<>();
+
+    private long nodeCount = 0;
+
+    // add 在 restic 的回调线程中调用, 写 run 失败时记录下来, write 时抛出
+    private IOException failure;
+
+    SnapshotIndexWriter(Path tempFolder) {
+        this(tempFolder, DEFAULT_RUN_SIZE);
+    }
+
+    SnapshotIndexWriter(Path tempFolder, int runSize) {
+        this.tempFolder = tempFolder;
+        this.runSize = Math.max(1, runSize);
+        this.bufferList.add(Entry.dirMarker("/"));
+    }
+
+    // 在 stream pump 线程中调用
+    void add(Node node) {
+        if (this.failure != null || node == null || StringUtils.isAnyBlank(node.getPath(), node.getName())) {
+            return;
+        }
+        String path = SnapshotIndex.normalizeDirPath(node.getPath());
+        if ("/".equals(path)) {
+            return;
+        }
+        ResticNodeTypeEnum type = ResticNodeTypeEnum.fromString(node.getType());
+        long size = node.getSize() == null ? -1 : node.getSize().longValue();
+        long mtime = node.getMtime() == null ? Long.MIN_VALUE : node.getMtime().toEpochMilli();
+        this.bufferList.add(new Entry(
+                SnapshotIndex.getParentDirPath(path),
+                SnapshotIndex.getTypeRank(type),
+                node.getName(),
+                SnapshotIndex.toTypeCode(type),
+                size,
+                mtime));
+        if (type == ResticNodeTypeEnum.DIRECTORY) {
+            this.bufferList.add(Entry.dirMarker(path));
+        }
+        this.nodeCount++;
+        if (this.bufferList.size() >= this.runSize) {
+            try {
+                this.spill();
+            } catch (IOException e) {
+                this.failure = e;
+                this.bufferList.clear();
+            }
+        }
+    }
+
+    long getNodeCount() {
+        return this.nodeCount;
+    }
+
+    // 归并所有 run, 按 dir table, record, names 三段分别写临时文件, 再拼接成 index.
+    // 先写临时文件再替换, 读取方不会看到写了一半的 index
+    void write(Path file) throws IOException, ValidationException {
+        if (this.failure != null) {
+            throw new IOException("write snapshot index failed. spill run failed.", this.failure);
+        }
+        if (this.nodeCount > Integer.MAX_VALUE) {
+            throw new ValidationException("write snapshot index failed. too many nodes: %s".formatted(this.nodeCount));
+        }
+        this.bufferList.sort(null);
+        Path dirFile = file.resolveSibling(file.getFileName() + ".dirs.tmp");
+        Path recordFile = file.resolveSibling(file.getFileName() + ".records.tmp");
+        Path namesFile = file.resolveSibling(file.getFileName() + ".names.tmp");
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        List<RunReader> runReaderList = new ArrayList<>(this.runFileList.size());
+        try {
+            for (Path runFile : this.runFileList) {
+                runReaderList.add(new RunReader(runFile));
+            }
+            int dirCount;
+            int recordCount;
+            long namesSize;
+            try (DataOutputStream dirOut = newOutput(dirFile);
+                 DataOutputStream recordOut = newOutput(recordFile);
+                 DataOutputStream namesOut = newOutput(namesFile)) {
+                SectionWriter sectionWriter = new SectionWriter(dirOut, recordOut, namesOut);
+                merge(runReaderList, this.bufferList.iterator(), sectionWriter);
+                sectionWriter.finish();
+                dirCount = sectionWriter.dirCount;
+                recordCount = sectionWriter.recordCount;
+                namesSize = sectionWriter.namesSize;
+            }
+            long dirTableOffset = SnapshotIndex.HEADER_SIZE;
+            long recordOffset = dirTableOffset + (long) dirCount * SnapshotIndex.DIR_ENTRY_SIZE;
+            long namesOffset = recordOffset + (long) recordCount * SnapshotIndex.RECORD_SIZE;
+            if (namesOffset + namesSize > Integer.MAX_VALUE) {
+                throw new ValidationException("write snapshot index failed. index exceed 2GB");
+            }
+            try (OutputStream outputStream = Files.newOutputStream(tmpFile);
+                 DataOutputStream out = new DataOutputStream(
+                         new BufferedOutputStream(outputStream, OUTPUT_BUFFER_SIZE))) {
+                // 1. header
+                out.writeInt(SnapshotIndex.MAGIC);
+                out.writeInt(SnapshotIndex.VERSION);
+                out.writeInt(dirCount);
+                out.writeInt(recordCount);
+                out.writeLong(dirTableOffset);
+                out.writeLong(recordOffset);
+                out.writeLong(namesOffset);
+                out.writeLong(0L); // reserved
+                // 2. dir table 3. record 4. names heap
+                Files.copy(dirFile, out);
+                Files.copy(recordFile, out);
+                Files.copy(namesFile, out);
+            }
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            for (RunReader runReader : runReaderList) {
+                runReader.close();
+            }
+            Files.deleteIfExists(dirFile);
+            Files.deleteIfExists(recordFile);
+            Files.deleteIfExists(namesFile);
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    // 删除 run 文件. 构建成功或失败都要调用
+    @Override
+    public void close() {
+        for (Path runFile : this.runFileList) {
+            try {
+                Files.deleteIfExists(runFile);
+            } catch (IOException e) {
+                log.warn("delete snapshot index run failed. file is {}", runFile, e);
+            }
+        }
+        this.runFileList.clear();
+        this.bufferList.clear();
+    }
+
+    private void spill() throws IOException {
+        this.bufferList.sort(null);
+        Path runFile = Files.createTempFile(this.tempFolder, "snapshot-index-", ".run.tmp");
+        this.runFileList.add(runFile);
+        try (DataOutputStream out = newOutput(runFile)) {
+            for (Entry entry : this.bufferList) {
+                entry.writeTo(out);
+            }
+        }
+        this.bufferList.clear();
+    }
+
+    // 多路归并, 按排序键依次交给 sectionWriter
+    private static void merge(
+            List<RunReader> runReaderList,
+            Iterator<Entry> memoryIterator,
+            SectionWriter sectionWriter) throws IOException {
+        PriorityQueue<EntrySource> priorityQueue = new PriorityQueue<>(runReaderList.size() + 1);
+        for (RunReader runReader : runReaderList) {
+            EntrySource.offer(priorityQueue, new EntrySource(runReader::next));
+        }
+        EntrySource.offer(priorityQueue, new EntrySource(() -> memoryIterator.hasNext() ? memoryIterator.next() : null));
+        while (!priorityQueue.isEmpty()) {
+            EntrySource entrySource = priorityQueue.poll();
+            sectionWriter.accept(entrySource.current);
+            EntrySource.offer(priorityQueue, entrySource);
+        }
+    }
+
+    private static DataOutputStream newOutput(Path file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), OUTPUT_BUFFER_SIZE));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // 同一目录的 entry 连续到达. 目录第一次出现时写入路径, 下一个目录开始时写入上一个目录的 dir table 项
+    private static class SectionWriter {
+
+        private final DataOutputStream dirOut;
+
+        private final DataOutputStream recordOut;
+
+        private final DataOutputStream namesOut;
+
+        private String currentDir;
+
+        private long currentDirNameOffset;
+
+        private int currentDirNameLength;
+
+        private int firstChild;
+
+        private int dirCount = 0;
+
+        private int recordCount = 0;
+
+        // DataOutputStream.size() 超过 2GB 会停在 Integer.MAX_VALUE, 自己计数
+        private long namesSize = 0;
+
+        SectionWriter(DataOutputStream dirOut, DataOutputStream recordOut, DataOutputStream namesOut) {
+            this.dirOut = dirOut;
+            this.recordOut = recordOut;
+            this.namesOut = namesOut;
+        }
+
+        void accept(Entry entry) throws IOException {
+            if (!entry.dir.equals(this.currentDir)) {
+                this.finish();
+                byte[] pathBytes = entry.dir.getBytes(StandardCharsets.UTF_8);
+                this.currentDir = entry.dir;
+                this.currentDirNameOffset = this.namesSize;
+                this.currentDirNameLength = pathBytes.length;
+                this.firstChild = this.recordCount;
+                this.namesOut.write(pathBytes);
+                this.namesSize += pathBytes.length;
+            }
+            if (entry.rank == DIR_MARKER_RANK) {
+                return;
+            }
+            // 每个目录内 目录在前, 再按名称排序
+            byte[] nameBytes = entry.name.getBytes(StandardCharsets.UTF_8);
+            this.recordOut.writeLong(this.namesSize);
+            this.recordOut.writeInt(nameBytes.length);
+            this.recordOut.writeByte(entry.typeCode);
+            this.recordOut.write(new byte[3]);
+            this.recordOut.writeLong(entry.size);
+            this.recordOut.writeLong(entry.mtime);
+            this.namesOut.write(nameBytes);
+            this.namesSize += nameBytes.length;
+            this.recordCount++;
+        }
+
+        // 写入当前目录的 dir table 项, 子节点在 record 中连续存放
+        void finish() throws IOException {
+            if (this.currentDir == null) {
+                return;
+            }
+            this.dirOut.writeLong(this.currentDirNameOffset);
+            this.dirOut.writeInt(this.currentDirNameLength);
+            this.dirOut.writeInt(this.firstChild);
+            this.dirOut.writeInt(this.recordCount - this.firstChild);
+            this.dirOut.writeInt(0);
+            this.dirCount++;
+            this.currentDir = null;
+        }
+    }
+
+    private interface EntrySupplier {
+        Entry next() throws IOException;
+    }
+
+    private static class EntrySource implements Comparable<EntrySource> {
+
+        private final EntrySupplier entrySupplier;
+
+        private Entry current;
+
+        EntrySource(EntrySupplier entrySupplier) {
+            this.entrySupplier = entrySupplier;
+        }
+
+        // 取下一个 entry, 还有数据则放回队列
+        static void offer(PriorityQueue<EntrySource> priorityQueue, EntrySource entrySource) throws IOException {
+            entrySource.current = entrySource.entrySupplier.next();
+            if (entrySource.current != null) {
+                priorityQueue.offer(entrySource);
+            }
+        }
+
+        @Override
+        public int compareTo(EntrySource other) {
+            return this.current.compareTo(other.current);
+        }
+    }
+
+    private static class RunReader implements Closeable {
+
+        private final DataInputStream in;
+
+        RunReader(Path runFile) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(runFile), RUN_BUFFER_SIZE));
+        }
+
+        // 读完返回 null
+        Entry next() throws IOException {
+            String dir;
+            try {
+                dir = readString(this.in);
+            } catch (EOFException e) {
+                return null;
+            }
+            return new Entry(
+                    dir,
+                    this.in.readInt(),
+                    readString(this.in),
+                    this.in.readByte(),
+                    this.in.readLong(),
+                    this.in.readLong());
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.in.close();
+        }
+    }
+
+    // dir 为父目录, 目录标记的 dir 为目录自身
+    private record Entry(
+            String dir,
+            int rank,
+            String name,
+            byte typeCode,
+            long size,
+            long mtime) implements Comparable<Entry> {
+
+        static Entry dirMarker(String dir) {
+            return new Entry(dir, DIR_MARKER_RANK, "", (byte) 0, -1, Long.MIN_VALUE);
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            writeString(out, this.dir);
+            out.writeInt(this.rank);
+            writeString(out, this.name);
+            out.writeByte(this.typeCode);
+            out.writeLong(this.size);
+            out.writeLong(this.mtime);
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int result = this.dir.compareTo(other.dir);
+            if (result != 0) {
+                return result;
+            }
+            result = Integer.compare(this.rank, other.rank);
+            return result != 0 ? result : this.name.compareTo(other.name);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.syncduo.server.service.restic;
+
+import com.syncduo.server.enums.ResticNodeTypeEnum;
+import com.syncduo.server.exception.ValidationException;
+import com.syncduo.server.model.restic.ls.Node;
+import org.apache.commons.lang3.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+// 目录分页的排序键: 目录在前, 再按名称排序. 游标是上一页最后一项的排序键, 编码为 url safe base64
+public record SnapshotListCursor(int typeRank, String name) implements Comparable<SnapshotListCursor> {
+
+    public static SnapshotListCursor of(Node node) {
+        return new SnapshotListCursor(
+                SnapshotIndex.getTypeRank(ResticNodeTypeEnum.fromString(node.getType())),
+                node.getName());
+    }
+
+    // 文件名不会包含 '/', 用作分隔符
+    public String encode() {
+        String key = this.typeRank + "/" + this.name;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // 空字符串表示第一页, 返回 null
+    public static SnapshotListCursor decode(String cursor) throws ValidationException {
+        if (StringUtils.isBlank(cursor)) {
+            return null;
+        }
+        try {
+            String key = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int index = key.indexOf('/');
+            return new SnapshotListCursor(Integer.parseInt(key.substring(0, index)), key.substring(index + 1));
+        } catch (Exception e) {
+            throw new ValidationException("decode cursor failed. cursor is %s".formatted(cursor));
+        }
+    }
+
+    @Override
+    public int compareTo(SnapshotListCursor other) {
+        int result = Integer.compare(this.typeRank, other.typeRank);
+        return result != 0 ? result : this.name.compareTo(other.name);
+    }
+}
@@ -95,7 +95,8 @@ public class EntityValidationUtil {
                 // 设置默认值
                 createSyncFlowRequest.setFilterCriteria(JsonUtil.serializeListToString(new ArrayList<>()));
             } else {
-                JsonUtil.deserializeStringToList(filterCriteria);
+                // 规则必须能按 rclone 的语义编译
+                RcloneFilterUtil.compile(JsonUtil.deserializeStringToList(filterCriteria));
             }
         } catch (JsonException e) {
             throw new ValidationException("isReactiveSyncFlowValid failed. " +
@@ -139,7 +140,7 @@ public class EntityValidationUtil {
                     "syncFlowId %s can't convert to long.".formatted(updateFilterCriteriaRequest.getSyncFlowId()));
         }
         try {
-            JsonUtil.deserializeStringToList(updateFilterCriteriaRequest.getFilterCriteria());
+            RcloneFilterUtil.compile(JsonUtil.deserializeStringToList(updateFilterCriteriaRequest.getFilterCriteria()));
         } catch (JsonException e) {
             throw new ValidationException("isUpdateFilterCriteriaRequestValid failed. " +
                     "filterCriteria %s can't convert to list<string>"
@@ -9,7 +9,7 @@ import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -60,36 +60,34 @@ public class FilesystemUtil {
         }
     }
 
-    // [0] = 文件数量, [1] = 文件夹数量, [2] = 总大小
-    public static List<Long> getFolderInfo(String path)
+    // [0] = 文件数量, [1] = 文件夹数量, [2] = 总大小. 遍历使用调用方的 parallelFileWalker
+    public static List<Long> getFolderInfo(String path, ParallelFileWalker parallelFileWalker)
             throws ValidationException, ResourceNotFoundException, FileOperationException {
         // 参数检查
         Path folder = FilesystemUtil.isFolderPathValid(path);
         // 初始化变量
-        AtomicLong fileCount = new AtomicLong(0);
-        AtomicLong subFolderCount = new AtomicLong(0);
-        AtomicLong totalSize = new AtomicLong(0);
-        // 遍历统计
-        try {
-            Files.walkFileTree(folder, new SimpleFileVisitor<>() {
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                    fileCount.incrementAndGet();
-                    totalSize.addAndGet(attrs.size());
-                    return FileVisitResult.CONTINUE;
-                }
+        LongAdder fileCount = new LongAdder();
+        LongAdder subFolderCount = new LongAdder();
+        LongAdder totalSize = new LongAdder();
+        // 并行遍历统计
+        ParallelFileWalker.WalkResult walkResult = parallelFileWalker.walk(folder, new ParallelFileWalker.Visitor() {
+            @Override
+            public boolean preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                subFolderCount.increment();
+                return true;
+            }
 
-                @Override
-                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-                    subFolderCount.incrementAndGet();
-                    return FileVisitResult.CONTINUE;
-                }
-            });
-        } catch (IOException e) {
-            throw new FileOperationException("getFolderInfo failed.", e);
+            @Override
+            public void visitFile(Path file, BasicFileAttributes attrs) {
+                fileCount.increment();
+                totalSize.add(attrs.size());
+            }
+        });
+        if (!walkResult.isSuccess()) {
+            throw new FileOperationException("getFolderInfo failed.", walkResult.toIOException());
         }
 
-        return Arrays.asList(fileCount.get(), subFolderCount.get(), totalSize.get());
+        return Arrays.asList(fileCount.sum(), subFolderCount.sum(), totalSize.sum());
     }
 
     public static Path isFilePathValid(String filePathString)
@@ -198,16 +196,12 @@ public class FilesystemUtil {
         } catch (Exception e) {
             throw new ResourceNotFoundException("zipAllFile resolve path failed.", e);
         }
-        // 遍历所有文件和文件夹
+        // 按目录顺序遍历, 边遍历边写入, 不保存整个目录树. ZipOutputStream 只能单线程写入
         try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(zipFile))) {
             Files.walkFileTree(folder, new SimpleFileVisitor<>() {
                 @Override
                 public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                    // 跳过ZIP文件自身
-                    if (dir.equals(zipFile)) {
-                        return FileVisitResult.SKIP_SUBTREE;
-                    }
-                    // 计算相对路径
+                    // 文件夹的名称在其内容之前写入
                     String zipEntryName = folder.relativize(dir).toString().replace("\\", "/");
                     if (!zipEntryName.isEmpty()) {
                         zos.putNextEntry(new ZipEntry(zipEntryName + "/"));
@@ -220,12 +214,9 @@ public class FilesystemUtil {
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
                     // 跳过ZIP文件自身
                     if (file.equals(zipFile)) {
-                        return FileVisitResult.SKIP_SUBTREE;
+                        return FileVisitResult.CONTINUE;
                     }
-                    // 计算相对路径
-                    String zipEntryName = folder.relativize(file).toString().replace("\\", "/");
-                    // 处理文件：写入ZIP条目
-                    zos.putNextEntry(new ZipEntry(zipEntryName));
+                    zos.putNextEntry(new ZipEntry(folder.relativize(file).toString().replace("\\", "/")));
                     Files.copy(file, zos);
                     zos.closeEntry();
                     return FileVisitResult.CONTINUE;
@@ -240,34 +231,33 @@ public class FilesystemUtil {
     /**
      * 删除指定路径的文件夹及其所有内容
      * @param folderPathString 要删除的文件夹路径
+     * @param parallelFileWalker 遍历使用的 walker
      * @throws FileOperationException 如果删除过程中发生错误
      */
-    public static void deleteFolder(String folderPathString, boolean includeSelf)
-            throws ValidationException, ResourceNotFoundException, FileOperationException {
+    public static void deleteFolder(
+            String folderPathString,
+            boolean includeSelf,
+            ParallelFileWalker parallelFileWalker) throws ValidationException, ResourceNotFoundException, FileOperationException {
         Path folderPath = isFolderPathValid(folderPathString);
-        // 使用Files.walkFileTree遍历并删除文件夹内容
-        try {
-            Files.walkFileTree(folderPath, new SimpleFileVisitor<>() {
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    // 删除文件
-                    Files.delete(file);
-                    return FileVisitResult.CONTINUE;
-                }
+        // 并行遍历删除文件夹内容, 目录在其内容删除后删除
+        ParallelFileWalker.WalkResult walkResult = parallelFileWalker.walk(folderPath, new ParallelFileWalker.Visitor() {
+            @Override
+            public void visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                // 删除文件
+                Files.delete(file);
+            }
 
-                @Override
-                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                    // 删除目录（在访问完目录内容后执行）
-                    if (!includeSelf && dir.equals(folderPath)) {
-                        // 遇到 self 则跳过
-                        return FileVisitResult.CONTINUE;
-                    }
-                    Files.delete(dir);
-                    return FileVisitResult.CONTINUE;
+            @Override
+            public void postVisitDirectory(Path dir) throws IOException {
+                // 遇到 self 则跳过
+                if (!includeSelf && dir.equals(folderPath)) {
+                    return;
                 }
-            });
-        } catch (IOException e) {
-            throw new FileOperationException("deleteFolder failed. ", e);
+                Files.delete(dir);
+            }
+        });
+        if (!walkResult.isSuccess()) {
+            throw new FileOperationException("deleteFolder failed. ", walkResult.toIOException());
         }
     }
 }
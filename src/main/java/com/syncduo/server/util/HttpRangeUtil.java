@@ -0,0 +1,248 @@
+package com.syncduo.server.util;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.MimeTypeUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+// 把本地文件写入 response, 支持 Range, If-Range, If-None-Match 和 If-Modified-Since
+// 容器支持 sendfile(tomcat NIO, 非 TLS) 时由容器直接从文件发送到 socket
+// 否则使用 FileChannel.transferTo 写入 servlet output stream, 数据会经过 JVM heap 复制
+@Slf4j
+public class HttpRangeUtil {
+
+    private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    // 和 tomcat 默认的 sendfileSize 一致, 小文件直接写更快
+    private static final long SENDFILE_MIN_SIZE = 48 * 1024;
+
+    // 强校验的 ETag, 文件大小或修改时间变化后失效
+    public static String getETag(BasicFileAttributes attrs) {
+        return "\"%x-%x\"".formatted(attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+
+    // headers 中的 Content-Type, Content-Disposition, ETag, Last-Modified 等会复制到 response
+    public static void sendFile(
+            HttpServletRequest request,
+            HttpServletResponse response,
+            Path file,
+            HttpHeaders headers) throws IOException {
+        long length = Files.readAttributes(file, BasicFileAttributes.class).size();
+        String eTag = headers.getETag();
+        long lastModified = headers.getLastModified();
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            for (String value : entry.getValue()) {
+                response.addHeader(entry.getKey(), value);
+            }
+        }
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        boolean isHead = "HEAD".equalsIgnoreCase(request.getMethod());
+        if (isNotModified(request, eTag, lastModified)) {
+            response.setStatus(HttpStatus.NOT_MODIFIED.value());
+            return;
+        }
+        List<long[]> regionList = getRegionList(request, eTag, lastModified, length);
+        // 没有 Range 或者 If-Range 不匹配, 返回整个文件
+        if (regionList == null) {
+            response.setStatus(HttpStatus.OK.value());
+            response.setContentLengthLong(length);
+            if (!isHead) {
+                transfer(request, response, file, 0, length, true);
+            }
+            return;
+        }
+        if (regionList.isEmpty()) {
+            response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            response.setContentLengthLong(0);
+            return;
+        }
+        response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        if (regionList.size() == 1) {
+            long start = regionList.get(0)[0];
+            long end = regionList.get(0)[1];
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes %s-%s/%s".formatted(start, end - 1, length));
+            response.setContentLengthLong(end - start);
+            if (!isHead) {
+                transfer(request, response, file, start, end, true);
+            }
+            return;
+        }
+        // 多个 range 使用 multipart/byteranges, sendfile 只能发送一段, 每段都用 transferTo
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        String contentType = StringUtils.defaultIfBlank(response.getContentType(), "application/octet-stream");
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        if (isHead) {
+            return;
+        }
+        OutputStream outputStream = response.getOutputStream();
+        for (long[] region : regionList) {
+            outputStream.write(("\r\n--%s\r\n%s: %s\r\n%s: bytes %s-%s/%s\r\n\r\n".formatted(
+                    boundary,
+                    HttpHeaders.CONTENT_TYPE, contentType,
+                    HttpHeaders.CONTENT_RANGE, region[0], region[1] - 1, length)).getBytes(StandardCharsets.US_ASCII));
+            transfer(request, response, file, region[0], region[1], false);
+        }
+        outputStream.write("\r\n--%s--\r\n".formatted(boundary).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // If-None-Match 优先, 没有时才判断 If-Modified-Since
+    private static boolean isNotModified(HttpServletRequest request, String eTag, long lastModified) {
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (StringUtils.isNotBlank(ifNoneMatch)) {
+            if (StringUtils.isBlank(eTag)) {
+                return false;
+            }
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                // If-None-Match 使用弱比较
+                if ("*".equals(tag) || StringUtils.removeStart(tag, "W/").equals(StringUtils.removeStart(eTag, "W/"))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince = getDateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+        // http date 只精确到秒
+        return ifModifiedSince >= 0 && lastModified >= 0 && lastModified / 1000 * 1000 <= ifModifiedSince;
+    }
+
+    // 返回按 start 排序, 合并了重叠和相邻 range 的 [start, end) 列表.
+    // 返回 null 表示返回整个文件, 返回空列表表示所有 range 都超出文件长度
+    private static List<long[]> getRegionList(
+            HttpServletRequest request,
+            String eTag,
+            long lastModified,
+            long length) {
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (StringUtils.isBlank(rangeHeader)) {
+            return null;
+        }
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (StringUtils.isNotBlank(ifRange) && !isIfRangeMatch(request, ifRange.trim(), eTag, lastModified)) {
+            return null;
+        }
+        List<HttpRange> httpRangeList;
+        try {
+            httpRangeList = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            // 无法解析的 Range 忽略
+            log.debug("getRegionList ignore range. range is {}", rangeHeader, e);
+            return null;
+        }
+        List<long[]> regionList = new ArrayList<>(httpRangeList.size());
+        long requestedLength = 0;
+        for (HttpRange httpRange : httpRangeList) {
+            if (length == 0) {
+                break;
+            }
+            long start;
+            long end;
+            try {
+                start = httpRange.getRangeStart(length);
+                end = httpRange.getRangeEnd(length) + 1;
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            // 超出文件长度的 range 跳过
+            if (start < 0 || start >= length || end <= start) {
+                continue;
+            }
+            regionList.add(new long[]{start, end});
+            requestedLength += end - start;
+        }
+        // 和 HttpRange.toResourceRegions 一样, range 总长度超过文件长度时不按 range 发送,
+        // 避免 bytes=0-,0-,... 让同一个文件发送多次. 这里返回整个文件
+        if (requestedLength > length) {
+            log.debug("getRegionList ignore range. requested length exceed file length. range is {}", rangeHeader);
+            return null;
+        }
+        regionList.sort(Comparator.comparingLong(region -> region[0]));
+        List<long[]> mergedRegionList = new ArrayList<>(regionList.size());
+        for (long[] region : regionList) {
+            long[] last = mergedRegionList.isEmpty() ? null : mergedRegionList.get(mergedRegionList.size() - 1);
+            if (last != null && region[0] <= last[1]) {
+                last[1] = Math.max(last[1], region[1]);
+            } else {
+                mergedRegionList.add(region);
+            }
+        }
+        return mergedRegionList;
+    }
+
+    // If-Range 是 ETag 时使用强比较, 是日期时必须和 Last-Modified 完全一致
+    private static boolean isIfRangeMatch(HttpServletRequest request, String ifRange, String eTag, long lastModified) {
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return StringUtils.isNotBlank(eTag) && !eTag.startsWith("W/") && ifRange.equals(eTag);
+        }
+        long ifRangeDate = getDateHeader(request, HttpHeaders.IF_RANGE);
+        return ifRangeDate >= 0 && lastModified >= 0 && lastModified / 1000 * 1000 == ifRangeDate;
+    }
+
+    // 格式错误的日期视为不存在
+    private static long getDateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    // 发送 [start, end)
+    private static void transfer(
+            HttpServletRequest request,
+            HttpServletResponse response,
+            Path file,
+            long start,
+            long end,
+            boolean allowSendfile) throws IOException {
+        if (allowSendfile && end - start >= SENDFILE_MIN_SIZE &&
+                Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))) {
+            // servlet 返回后由 tomcat 使用 sendfile 发送, 数据不经过 JVM heap
+            request.setAttribute(SENDFILE_FILENAME_ATTR, file.toRealPath().toString());
+            request.setAttribute(SENDFILE_START_ATTR, start);
+            request.setAttribute(SENDFILE_END_ATTR, end);
+            return;
+        }
+        // 不关闭 channel, response 的 output stream 由容器关闭
+        // ServletOutputStream 不是 FileChannel 能直接写入的 channel, transferTo 在这里退化为
+        // 经过 heap buffer 的分块复制(每次最多 8KB), 没有零拷贝. 只有上面的 sendfile 分支不经过 JVM heap
+        WritableByteChannel outputChannel = Channels.newChannel(response.getOutputStream());
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = start;
+            while (position < end) {
+                long transferred = fileChannel.transferTo(position, end - position, outputChannel);
+                if (transferred <= 0) {
+                    throw new IOException("transfer failed. file is truncated. file is %s, position is %s"
+                            .formatted(file, position));
+                }
+                position += transferred;
+            }
+        }
+    }
+}
@@ -8,14 +8,9 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.syncduo.server.exception.JsonException;
 import com.syncduo.server.exception.ValidationException;
-import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.StringReader;
-import java.util.ArrayList;
 import java.util.List;
 
 public class JsonUtil {
@@ -24,43 +19,27 @@ public class JsonUtil {
             .registerModule(new JavaTimeModule()) // jackson to handle field to Instant
             .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS); // Optional: Use ISO-8601 instead of timestamp
 
-    public static <T> T parseResticJsonLine(
-            String stdout,
-            String condition,
-            Class<T> clazz) throws ValidationException, JsonException {
-        List<T> result = parseResticJsonLines(stdout, condition, clazz);
-        if (CollectionUtils.isEmpty(result)) {
+    // 解析 restic --json 输出的一行. 不是 json object 的行返回 null
+    public static JsonNode parseResticJsonMessage(String line) throws JsonException {
+        if (StringUtils.isBlank(line) || !line.stripLeading().startsWith("{")) {
             return null;
         }
-        return result.get(0);
+        try {
+            return objectMapper.readTree(line);
+        } catch (JsonProcessingException e) {
+            throw new JsonException("parseResticJsonMessage failed. line is %s".formatted(line), e);
+        }
     }
 
-    public static <T> List<T> parseResticJsonLines(
-            String commandLineOutput,
-            String condition,
-            Class<T> clazz) throws ValidationException, JsonException {
-        if (ObjectUtils.isEmpty(clazz)) {
-            throw new ValidationException("parseLine failed. clazz is null.");
-        }
-        if (StringUtils.isAnyBlank(commandLineOutput, condition)) {
-            return null;
-        }
-        List<T> result = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new StringReader(commandLineOutput))) {
-            String line;
-            while ((line = br.readLine()) != null && !line.isBlank()) {
-                // Parse to a tree to inspect message_type quickly
-                JsonNode root = objectMapper.readTree(line);
-                String type = root.path("message_type").asText();
-                if (condition.equals(type)) {
-                    result.add(objectMapper.treeToValue(root, clazz));
-                }
-            }
-            return result;
-        } catch (IOException e) {
-            throw new JsonException("parseResticJsonLine failed. " +
-                    "commandLineOutput is %s".formatted(commandLineOutput),
-                    e);
+    public static String getResticMessageType(JsonNode message) {
+        return message.path("message_type").asText();
+    }
+
+    public static <T> T convertResticJsonMessage(JsonNode message, Class<T> clazz) throws JsonException {
+        try {
+            return objectMapper.treeToValue(message, clazz);
+        } catch (JsonProcessingException | IllegalArgumentException e) {
+            throw new JsonException("convertResticJsonMessage failed. message is %s".formatted(message), e);
         }
     }
 
@@ -0,0 +1,235 @@
+package com.syncduo.server.util;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 基于 fork-join 的并行目录遍历. 每个子目录是一个 task, entry 很多的目录再按批拆分, 空闲线程窃取其他目录的 task
+// 和 Files.walkFileTree 一样不跟随链接, 链接和其他非目录都按文件访问
+// visitor 会在多个线程中并发调用, 需要自己保证线程安全. 遍历出错不中断, 收集后在 WalkResult 中返回
+public class ParallelFileWalker {
+
+    // 同一个目录下的 entry, 每批的数量
+    private static final int FILE_BATCH_SIZE = 256;
+
+    // 保留的错误数量, 超出的只计数
+    private static final int MAX_ERRORS = 100;
+
+    private final ForkJoinPool forkJoinPool;
+
+    public ParallelFileWalker(int parallelism) {
+        this("Parallel-File-Walker-", parallelism, Thread.NORM_PRIORITY);
+    }
+
+    public ParallelFileWalker(String threadNamePrefix, int parallelism, int threadPriority) {
+        AtomicInteger threadSequence = new AtomicInteger(0);
+        this.forkJoinPool = new ForkJoinPool(
+                Math.max(1, parallelism),
+                pool -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName(threadNamePrefix + threadSequence.getAndIncrement());
+                    thread.setPriority(threadPriority);
+                    return thread;
+                },
+                null,
+                false);
+    }
+
+    public int getParallelism() {
+        return this.forkJoinPool.getParallelism();
+    }
+
+    // 正在执行的遍历会继续完成
+    public void shutdown() {
+        this.forkJoinPool.shutdown();
+    }
+
+    // root 是文件时只调用 visitFile. 阻塞直到遍历完成
+    public WalkResult walk(Path root, Visitor visitor) {
+        WalkResult walkResult = new WalkResult();
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            walkResult.addError(root, e);
+            return walkResult;
+        }
+        if (!attrs.isDirectory()) {
+            try {
+                visitor.visitFile(root, attrs);
+            } catch (IOException e) {
+                walkResult.addError(root, e);
+            }
+            return walkResult;
+        }
+        try {
+            if (!visitor.preVisitDirectory(root, attrs)) {
+                return walkResult;
+            }
+        } catch (IOException e) {
+            walkResult.addError(root, e);
+            return walkResult;
+        }
+        this.forkJoinPool.invoke(new DirectoryTask(root, visitor, walkResult));
+        return walkResult;
+    }
+
+    public interface Visitor {
+
+        // 返回 false 则跳过这个目录
+        default boolean preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+            return true;
+        }
+
+        default void visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        }
+
+        // 目录下所有文件和子目录都访问完后调用, 包括访问失败的情况
+        default void postVisitDirectory(Path dir) throws IOException {
+        }
+    }
+
+    public record WalkError(Path path, IOException exception) {
+    }
+
+    public static class WalkResult {
+
+        private final ConcurrentLinkedQueue<WalkError> errorQueue = new ConcurrentLinkedQueue<>();
+
+        private final AtomicLong errorCount = new AtomicLong(0);
+
+        void addError(Path path, IOException exception) {
+            if (this.errorCount.incrementAndGet() <= MAX_ERRORS) {
+                this.errorQueue.add(new WalkError(path, exception));
+            }
+        }
+
+        public boolean isSuccess() {
+            return this.errorCount.get() == 0;
+        }
+
+        public long getErrorCount() {
+            return this.errorCount.get();
+        }
+
+        // 最多保留 MAX_ERRORS 个
+        public List<WalkError> getErrorList() {
+            return Collections.unmodifiableList(new ArrayList<>(this.errorQueue));
+        }
+
+        // 第一个错误的异常, 其他错误作为 suppressed. 没有错误返回 null
+        public IOException toIOException() {
+            if (this.isSuccess()) {
+                return null;
+            }
+            List<WalkError> errorList = this.getErrorList();
+            IOException result = new IOException("walk failed. error count is %s, first error path is %s"
+                    .formatted(this.errorCount.get(), errorList.get(0).path()), errorList.get(0).exception());
+            for (int i = 1; i < errorList.size(); i++) {
+                result.addSuppressed(errorList.get(i).exception());
+            }
+            return result;
+        }
+    }
+
+    // 列出目录下的 entry, 按批交给 EntryBatchTask. 所有子 task 完成后调用 postVisitDirectory
+    private static class DirectoryTask extends RecursiveAction {
+
+        private final Path dir;
+
+        private final Visitor visitor;
+
+        private final WalkResult walkResult;
+
+        DirectoryTask(Path dir, Visitor visitor, WalkResult walkResult) {
+            this.dir = dir;
+            this.visitor = visitor;
+            this.walkResult = walkResult;
+        }
+
+        @Override
+        protected void compute() {
+            List<EntryBatchTask> subTaskList = new ArrayList<>();
+            List<Path> entryList = new ArrayList<>(FILE_BATCH_SIZE);
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(this.dir)) {
+                for (Path entry : directoryStream) {
+                    entryList.add(entry);
+                    if (entryList.size() >= FILE_BATCH_SIZE) {
+                        // 满一批就交给其他线程, 大目录的 stat 不会只由一个线程处理
+                        EntryBatchTask entryBatchTask = new EntryBatchTask(entryList, this.visitor, this.walkResult);
+                        entryBatchTask.fork();
+                        subTaskList.add(entryBatchTask);
+                        entryList = new ArrayList<>(FILE_BATCH_SIZE);
+                    }
+                }
+            } catch (IOException e) {
+                this.walkResult.addError(this.dir, e);
+            } catch (DirectoryIteratorException e) {
+                // 迭代过程中的 IOException 被包装为 DirectoryIteratorException
+                this.walkResult.addError(this.dir, e.getCause());
+            }
+            // 剩余的 entry 在当前线程处理
+            new EntryBatchTask(entryList, this.visitor, this.walkResult).compute();
+            for (EntryBatchTask subTask : subTaskList) {
+                subTask.join();
+            }
+            try {
+                this.visitor.postVisitDirectory(this.dir);
+            } catch (IOException e) {
+                this.walkResult.addError(this.dir, e);
+            }
+        }
+    }
+
+    // 读取 entry 的属性, 文件直接访问, 子目录 fork 为 DirectoryTask
+    private static class EntryBatchTask extends RecursiveAction {
+
+        private final List<Path> entryList;
+
+        private final Visitor visitor;
+
+        private final WalkResult walkResult;
+
+        EntryBatchTask(List<Path> entryList, Visitor visitor, WalkResult walkResult) {
+            this.entryList = entryList;
+            this.visitor = visitor;
+            this.walkResult = walkResult;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryTask> subTaskList = new ArrayList<>();
+            for (Path entry : this.entryList) {
+                try {
+                    BasicFileAttributes attrs =
+                            Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (!attrs.isDirectory()) {
+                        this.visitor.visitFile(entry, attrs);
+                    } else if (this.visitor.preVisitDirectory(entry, attrs)) {
+                        DirectoryTask directoryTask = new DirectoryTask(entry, this.visitor, this.walkResult);
+                        directoryTask.fork();
+                        subTaskList.add(directoryTask);
+                    }
+                } catch (IOException e) {
+                    this.walkResult.addError(entry, e);
+                }
+            }
+            for (DirectoryTask subTask : subTaskList) {
+                subTask.join();
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.syncduo.server.util;
+
+import com.syncduo.server.exception.ValidationException;
+import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// 按 rclone 的规则把 filter glob 编译成正则. https://rclone.org/filtering/
+// 不以 "/" 开头的规则匹配路径的任意一级结尾, 以 "/" 开头的规则从根目录开始匹配
+// 以 "/" 结尾的是目录规则, 目录下的全部内容都被匹配
+public class RcloneFilterUtil {
+
+    // 正则中有特殊含义, glob 中作为普通字符的字符
+    private static final String REGEX_SPECIAL_CHARS = "\\^$.|+(){}[]*?";
+
+    // 多个规则合并为一个 Pattern, 任意一个规则匹配即匹配. 规则为空返回 null
+    public static Pattern compile(List<String> globList) throws ValidationException {
+        if (CollectionUtils.isEmpty(globList)) {
+            return null;
+        }
+        StringBuilder regex = new StringBuilder();
+        for (String glob : globList) {
+            if (StringUtils.isBlank(glob)) {
+                continue;
+            }
+            if (!regex.isEmpty()) {
+                regex.append('|');
+            }
+            regex.append("(?:").append(globToRegex(glob)).append(')');
+        }
+        if (regex.isEmpty()) {
+            return null;
+        }
+        try {
+            return Pattern.compile(regex.toString());
+        } catch (PatternSyntaxException e) {
+            throw new ValidationException("compile filter failed. globList is %s. error is %s"
+                    .formatted(globList, e.getDescription()));
+        }
+    }
+
+    // 只取覆盖整个目录树的规则("dir/" 和 "dir/**"), 编译为匹配目录相对路径的正则
+    // 目录匹配则目录下的全部内容都被排除, 可以不扫描. 没有这类规则返回 null
+    public static Pattern compileFolderRule(List<String> globList) throws ValidationException {
+        if (CollectionUtils.isEmpty(globList)) {
+            return null;
+        }
+        List<String> folderGlobList = globList.stream()
+                .filter(StringUtils::isNotBlank)
+                .map(RcloneFilterUtil::getFolderGlob)
+                .filter(StringUtils::isNotEmpty)
+                .toList();
+        return compile(folderGlobList);
+    }
+
+    // "dir/" 和 "dir/**" 返回 "dir", 其他规则返回 null. 以 "\" 转义的 "/" 不算
+    private static String getFolderGlob(String glob) {
+        String folderGlob;
+        if (glob.endsWith("/**")) {
+            folderGlob = glob.substring(0, glob.length() - 3);
+        } else if (glob.endsWith("/")) {
+            folderGlob = glob.substring(0, glob.length() - 1);
+        } else {
+            return null;
+        }
+        if (folderGlob.endsWith("\\") || folderGlob.equals("/")) {
+            return null;
+        }
+        return folderGlob;
+    }
+
+    public static String globToRegex(String glob) throws ValidationException {
+        if (StringUtils.isEmpty(glob)) {
+            throw new ValidationException("globToRegex failed. glob is empty");
+        }
+        StringBuilder regex = new StringBuilder(glob.length() * 2);
+        String body = glob;
+        if (body.startsWith("/")) {
+            regex.append('^');
+            body = body.substring(1);
+        } else {
+            regex.append("(?:^|/)");
+        }
+        // 目录规则匹配目录下的全部内容
+        if (body.endsWith("/")) {
+            body = body + "**";
+        }
+        boolean inBrace = false;
+        int length = body.length();
+        for (int i = 0; i < length; i++) {
+            char c = body.charAt(i);
+            switch (c) {
+                case '\\' -> {
+                    if (i + 1 >= length) {
+                        throw new ValidationException("globToRegex failed. glob %s ends with \\".formatted(glob));
+                    }
+                    appendLiteral(regex, body.charAt(++i));
+                }
+                case '*' -> {
+                    if (i + 1 < length && body.charAt(i + 1) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                }
+                case '?' -> regex.append("[^/]");
+                case '[' -> i = appendCharClass(regex, body, i, glob);
+                case '{' -> {
+                    // {{regexp}} 直接嵌入正则
+                    if (i + 1 < length && body.charAt(i + 1) == '{') {
+                        int end = body.indexOf("}}", i + 2);
+                        if (end < 0) {
+                            throw new ValidationException("globToRegex failed. glob %s has unclosed {{".formatted(glob));
+                        }
+                        regex.append('(').append(body, i + 2, end).append(')');
+                        i = end + 1;
+                    } else if (inBrace) {
+                        throw new ValidationException("globToRegex failed. glob %s has nested {".formatted(glob));
+                    } else {
+                        inBrace = true;
+                        regex.append("(?:");
+                    }
+                }
+                case '}' -> {
+                    if (!inBrace) {
+                        throw new ValidationException("globToRegex failed. glob %s has unmatched }".formatted(glob));
+                    }
+                    inBrace = false;
+                    regex.append(')');
+                }
+                case ',' -> regex.append(inBrace ? "|" : ",");
+                default -> appendLiteral(regex, c);
+            }
+        }
+        if (inBrace) {
+            throw new ValidationException("globToRegex failed. glob %s has unclosed {".formatted(glob));
+        }
+        regex.append('$');
+        return regex.toString();
+    }
+
+    // [...] 字符类, 返回 "]" 的下标
+    private static int appendCharClass(StringBuilder regex, String body, int start, String glob) {
+        int i = start + 1;
+        regex.append('[');
+        if (i < body.length() && (body.charAt(i) == '!' || body.charAt(i) == '^')) {
+            regex.append('^');
+            i++;
+        }
+        int contentStart = i;
+        for (; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c == ']' && i > contentStart) {
+                regex.append(']');
+                return i;
+            }
+            if (c == '\\' && i + 1 < body.length()) {
+                regex.append('\\').append(body.charAt(++i));
+            } else if (c == '[' || c == '&' || c == ']') {
+                regex.append('\\').append(c);
+            } else {
+                regex.append(c);
+            }
+        }
+        throw new ValidationException("globToRegex failed. glob %s has unclosed [".formatted(glob));
+    }
+
+    private static void appendLiteral(StringBuilder regex, char c) {
+        if (REGEX_SPECIAL_CHARS.indexOf(c) != -1) {
+            regex.append('\\');
+        }
+        regex.append(c);
+    }
+}
@@ -31,6 +31,7 @@ CREATE TABLE copy_job (
                           copy_job_status varchar(255),
                           transferred_files bigint,
                           transferred_bytes bigint,
+                          file_count bigint,
                           rclone_job_id int,
                           sync_flow_id bigint,
 -- select one of the defined columns as the Primary Key
@@ -35,6 +35,7 @@ CREATE TABLE copy_job (
                           copy_job_status VARCHAR(255) NULL,
                           transferred_files BIGINT NULL DEFAULT 0,
                           transferred_bytes BIGINT NULL DEFAULT 0,
+                          file_count BIGINT NULL,
                           rclone_job_id INT NULL,
                           sync_flow_id BIGINT NULL,
     -- 主键
@@ -83,7 +84,9 @@ CREATE TABLE restore_job (
                              restore_job_status VARCHAR(255) NULL,
                              error_message TEXT NULL,
                              seconds_elapsed BIGINT NULL DEFAULT 0,
+                             origin_file_path TEXT NULL,
                              restore_root_path TEXT NULL,
+                             restore_full_path TEXT NULL,
                              restore_files BIGINT NULL DEFAULT 0,
                              restore_bytes BIGINT NULL DEFAULT 0,
                              snapshot_id TEXT NULL,
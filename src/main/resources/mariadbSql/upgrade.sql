@@ -0,0 +1,9 @@
+-- 已有数据库升级用. schema.sql 会 drop 表, 升级时不要执行 schema.sql, 只执行本文件
+-- 语句可以重复执行
+
+-- copy_job 批量复制时记录文件数
+ALTER TABLE copy_job ADD COLUMN IF NOT EXISTS file_count BIGINT NULL AFTER transferred_bytes;
+
+-- restore_job 还原缓存在重启后按原路径和还原后的路径恢复
+ALTER TABLE restore_job ADD COLUMN IF NOT EXISTS origin_file_path TEXT NULL AFTER seconds_elapsed;
+ALTER TABLE restore_job ADD COLUMN IF NOT EXISTS restore_full_path TEXT NULL AFTER restore_root_path;
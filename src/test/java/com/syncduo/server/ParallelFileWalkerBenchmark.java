@@ -0,0 +1,122 @@
+package com.syncduo.server;
+
+import com.syncduo.server.util.ParallelFileWalker;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.LongAdder;
+
+// 单线程 Files.walkFileTree 和 ParallelFileWalker 的对比, 手动运行, 不属于单元测试
+// 参数: [测试目录, 默认临时目录] [parallelism, 默认 8] [rounds, 默认 5]
+// 本地磁盘的 page cache 会掩盖 IO 延迟, 在 SSD 阵列或网络文件系统上运行更有参考意义
+@Slf4j
+public class ParallelFileWalkerBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        Path root = args.length > 0 ? Paths.get(args[0]) : Files.createTempDirectory("walker-benchmark-");
+        int parallelism = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        ParallelFileWalker parallelFileWalker = new ParallelFileWalker(parallelism);
+        try {
+            // 深: 2 叉 12 层, 每个目录 8 个文件
+            Path deepTree = root.resolve("deep");
+            createTree(deepTree, 12, 2, 8);
+            benchmark("deep", deepTree, parallelFileWalker, rounds);
+            // 宽: 2 层, 每层 64 个子目录, 每个目录 32 个文件
+            Path wideTree = root.resolve("wide");
+            createTree(wideTree, 2, 64, 32);
+            benchmark("wide", wideTree, parallelFileWalker, rounds);
+        } finally {
+            parallelFileWalker.shutdown();
+            if (args.length == 0) {
+                FileOperationTestUtil.deleteAllFoldersLeaveItSelf(root);
+                Files.deleteIfExists(root);
+            }
+        }
+    }
+
+    private static void benchmark(String name, Path tree, ParallelFileWalker parallelFileWalker, int rounds)
+            throws IOException {
+        // 预热
+        long[] expected = walkFileTree(tree);
+        long[] actual = parallelWalk(tree, parallelFileWalker);
+        if (expected[0] != actual[0] || expected[1] != actual[1] || expected[2] != actual[2]) {
+            throw new IllegalStateException("result mismatch. tree is %s".formatted(name));
+        }
+        long singleNanos = 0;
+        long parallelNanos = 0;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            walkFileTree(tree);
+            singleNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            parallelWalk(tree, parallelFileWalker);
+            parallelNanos += System.nanoTime() - start;
+        }
+        log.info("{} tree: files {}, folders {}. walkFileTree avg {} ms, parallel({}) avg {} ms",
+                name, expected[0], expected[1],
+                singleNanos / rounds / 1_000_000.0,
+                parallelFileWalker.getParallelism(),
+                parallelNanos / rounds / 1_000_000.0);
+    }
+
+    private static long[] walkFileTree(Path tree) throws IOException {
+        long[] result = {0, 0, 0};
+        Files.walkFileTree(tree, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                result[1]++;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                result[0]++;
+                result[2] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return result;
+    }
+
+    private static long[] parallelWalk(Path tree, ParallelFileWalker parallelFileWalker) throws IOException {
+        LongAdder fileCount = new LongAdder();
+        LongAdder folderCount = new LongAdder();
+        LongAdder totalSize = new LongAdder();
+        ParallelFileWalker.WalkResult walkResult = parallelFileWalker.walk(tree, new ParallelFileWalker.Visitor() {
+            @Override
+            public boolean preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                folderCount.increment();
+                return true;
+            }
+
+            @Override
+            public void visitFile(Path file, BasicFileAttributes attrs) {
+                fileCount.increment();
+                totalSize.add(attrs.size());
+            }
+        });
+        if (!walkResult.isSuccess()) {
+            throw walkResult.toIOException();
+        }
+        return new long[]{fileCount.sum(), folderCount.sum(), totalSize.sum()};
+    }
+
+    private static void createTree(Path folder, int depth, int width, int fileCount) throws IOException {
+        Files.createDirectories(folder);
+        for (int i = 0; i < fileCount; i++) {
+            Path file = folder.resolve("file_" + i + ".txt");
+            if (!Files.exists(file)) {
+                Files.writeString(file, file.toString());
+            }
+        }
+        if (depth == 0) {
+            return;
+        }
+        for (int i = 0; i < width; i++) {
+            createTree(folder.resolve("folder_" + i), depth - 1, width, fileCount);
+        }
+    }
+}
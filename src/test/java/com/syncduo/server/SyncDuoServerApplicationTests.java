@@ -38,11 +38,11 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.TestPropertySource;
 
@@ -195,12 +195,11 @@ class SyncDuoServerApplicationTests {
         // 下载文件
         for (SnapshotFileInfo snapshotFileInfo : snapshotFileInfoResponse.getData()) {
             if (snapshotFileInfo.getType().equals(ResticNodeTypeEnum.FILE.getType())) {
-                ResponseEntity<Resource> response =
+                MockHttpServletResponse response =
                         this.downloadSnapshotFiles(Collections.singletonList(snapshotFileInfo));
-                assert response.getStatusCode() == HttpStatus.OK;
-                assert ObjectUtils.isNotEmpty(response.getBody());
-                assert response.getBody().contentLength() > 0;
-                String headersString = response.getHeaders().toString();
+                assert response.getStatus() == HttpStatus.OK.value();
+                assert response.getContentAsByteArray().length > 0;
+                String headersString = getHeadersString(response);
                 assert headersString.contains(HttpHeaders.CONTENT_DISPOSITION) &&
                         headersString.contains(snapshotFileInfo.getFileName());
                 assert headersString.contains(MediaType.APPLICATION_OCTET_STREAM.toString());
@@ -215,12 +214,11 @@ class SyncDuoServerApplicationTests {
         // 再次下载文件
         for (SnapshotFileInfo snapshotFileInfo : snapshotFileInfoResponse.getData()) {
             if (snapshotFileInfo.getType().equals(ResticNodeTypeEnum.FILE.getType())) {
-                ResponseEntity<Resource> response =
+                MockHttpServletResponse response =
                         this.downloadSnapshotFiles(Collections.singletonList(snapshotFileInfo));
-                assert response.getStatusCode() == HttpStatus.OK;
-                assert ObjectUtils.isNotEmpty(response.getBody());
-                assert response.getBody().contentLength() > 0;
-                String headersString = response.getHeaders().toString();
+                assert response.getStatus() == HttpStatus.OK.value();
+                assert response.getContentAsByteArray().length > 0;
+                String headersString = getHeadersString(response);
                 assert headersString.contains(HttpHeaders.CONTENT_DISPOSITION) &&
                         headersString.contains(snapshotFileInfo.getFileName());
                 assert headersString.contains(MediaType.APPLICATION_OCTET_STREAM.toString());
@@ -249,12 +247,11 @@ class SyncDuoServerApplicationTests {
         // 下载文件
         for (SnapshotFileInfo snapshotFileInfo : snapshotFileInfoResponse.getData()) {
             if (snapshotFileInfo.getType().equals(ResticNodeTypeEnum.FILE.getType())) {
-                ResponseEntity<Resource> response =
+                MockHttpServletResponse response =
                         this.downloadSnapshotFiles(Collections.singletonList(snapshotFileInfo));
-                assert response.getStatusCode() == HttpStatus.OK;
-                assert ObjectUtils.isNotEmpty(response.getBody());
-                assert response.getBody().contentLength() > 0;
-                String headersString = response.getHeaders().toString();
+                assert response.getStatus() == HttpStatus.OK.value();
+                assert response.getContentAsByteArray().length > 0;
+                String headersString = getHeadersString(response);
                 assert headersString.contains(HttpHeaders.CONTENT_DISPOSITION) &&
                         headersString.contains(snapshotFileInfo.getFileName());
                 assert headersString.contains(MediaType.APPLICATION_OCTET_STREAM.toString());
@@ -288,11 +285,10 @@ class SyncDuoServerApplicationTests {
                 "/"
         );
         // 下载多个文件
-        ResponseEntity<Resource> response = this.downloadSnapshotFiles(snapshotFileInfoResponse.getData());
-        assert response.getStatusCode() == HttpStatus.OK;
-        assert ObjectUtils.isNotEmpty(response.getBody());
-        assert response.getBody().contentLength() > 0;
-        String headersString = response.getHeaders().toString();
+        MockHttpServletResponse response = this.downloadSnapshotFiles(snapshotFileInfoResponse.getData());
+        assert response.getStatus() == HttpStatus.OK.value();
+        assert response.getContentAsByteArray().length > 0;
+        String headersString = getHeadersString(response);
         assert headersString.contains(HttpHeaders.CONTENT_DISPOSITION) && headersString.contains("zip");
         assert headersString.contains(MediaType.APPLICATION_OCTET_STREAM.toString());
         // 验证 restore 数据库记录是否生成
@@ -462,6 +458,25 @@ class SyncDuoServerApplicationTests {
         }
     }
 
+    @Test
+    void ShouldReturnTrueWhenFilterFileWithRcloneGlob() {
+        createSyncFlow("[\"*.bin\", \"/top.txt\", \"cache/\", \"*.{jpg,png}\", \"log?.txt\"]");
+        String source = this.syncFlowEntity.getSourceFolderPath();
+        // 不以 "/" 开头的规则匹配任意一级
+        assert this.rcloneFacadeService.isFileFiltered(source + "/a/b/c.bin", this.syncFlowEntity);
+        assert !this.rcloneFacadeService.isFileFiltered(source + "/a/c.bin.txt", this.syncFlowEntity);
+        // 以 "/" 开头的规则只匹配根目录
+        assert this.rcloneFacadeService.isFileFiltered(source + "/top.txt", this.syncFlowEntity);
+        assert !this.rcloneFacadeService.isFileFiltered(source + "/a/top.txt", this.syncFlowEntity);
+        // 目录规则匹配目录下的全部内容
+        assert this.rcloneFacadeService.isFileFiltered(source + "/a/cache/b/c.txt", this.syncFlowEntity);
+        assert !this.rcloneFacadeService.isFileFiltered(source + "/a/mycache/c.txt", this.syncFlowEntity);
+        // {a,b} 和 ?
+        assert this.rcloneFacadeService.isFileFiltered(source + "/p.png", this.syncFlowEntity);
+        assert this.rcloneFacadeService.isFileFiltered(source + "/log1.txt", this.syncFlowEntity);
+        assert !this.rcloneFacadeService.isFileFiltered(source + "/log12.txt", this.syncFlowEntity);
+    }
+
     @Test
     void ShouldReturnTrueWhenCreateAndDeleteSyncFlow() {
         // reactive syncflow
@@ -479,17 +494,32 @@ class SyncDuoServerApplicationTests {
         assert syncFlowResponse1.getStatusCode() == 200;
     }
 
-    ResponseEntity<Resource> downloadSnapshotFiles(List<SnapshotFileInfo> snapshotFileInfoList) {
+    MockHttpServletResponse downloadSnapshotFiles(List<SnapshotFileInfo> snapshotFileInfoList) {
         SyncDuoHttpResponse<String> response = this.snapshotsController.submitDownloadJob(snapshotFileInfoList);
-        for (int i = 0; i < 4; i++) {
-            ResponseEntity<Resource> resource =
-                    this.snapshotsController.getDownloadFiles(response.getData(), false);
-            if (resource.getStatusCode() == HttpStatus.OK) {
+        MockHttpServletResponse resource = null;
+        for (int i = 0; i < 5; i++) {
+            if (i > 0) {
+                this.waitSec(5);
+            }
+            resource = new MockHttpServletResponse();
+            this.snapshotsController.downloadFiles(
+                    response.getData(),
+                    false,
+                    new MockHttpServletRequest("GET", "/snapshots/get-download-files"),
+                    resource);
+            if (resource.getStatus() == HttpStatus.OK.value()) {
                 return resource;
             }
-            this.waitSec(5);
         }
-        return this.snapshotsController.getDownloadFiles(response.getData(), false);
+        return resource;
+    }
+
+    static String getHeadersString(MockHttpServletResponse response) {
+        StringBuilder sb = new StringBuilder();
+        for (String headerName : response.getHeaderNames()) {
+            sb.append(headerName).append(':').append(response.getHeaders(headerName)).append('\n');
+        }
+        return sb.toString();
     }
 
     void backup() {
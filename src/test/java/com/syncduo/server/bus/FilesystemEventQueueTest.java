@@ -0,0 +1,89 @@
+package com.syncduo.server.bus;
+
+import com.syncduo.server.enums.FileEventTypeEnum;
+import com.syncduo.server.model.internal.FilesystemEvent;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// 验证按 folder 轮转, folder 独占和溢出时标记 dirty
+class FilesystemEventQueueTest {
+
+    private static final Path BUSY_FOLDER = Path.of("/busy");
+
+    private static final Path QUIET_FOLDER = Path.of("/quiet");
+
+    @Test
+    void ShouldNotQueueQuietFolderBehindBusyFolder() throws Exception {
+        FilesystemEventQueue queue = new FilesystemEventQueue(100000);
+        for (int i = 0; i < 50000; i++) {
+            queue.offer(event(BUSY_FOLDER, "f" + i));
+        }
+        queue.offer(event(QUIET_FOLDER, "q"));
+        List<FilesystemEvent> batch = new ArrayList<>();
+        assert BUSY_FOLDER.equals(queue.drainTo(batch, 256));
+        assert batch.size() == 256;
+        queue.complete(BUSY_FOLDER);
+        batch.clear();
+        // busy folder 只取了一批, 下一轮轮到 quiet folder
+        assert QUIET_FOLDER.equals(queue.drainTo(batch, 256));
+        assert batch.size() == 1;
+        queue.complete(QUIET_FOLDER);
+        assert queue.size() == 50000 - 256;
+    }
+
+    @Test
+    void ShouldNotHandOutFolderUntilComplete() throws Exception {
+        FilesystemEventQueue queue = new FilesystemEventQueue(100);
+        queue.offer(event(BUSY_FOLDER, "a"));
+        List<FilesystemEvent> batch = new ArrayList<>();
+        assert BUSY_FOLDER.equals(queue.drainTo(batch, 256));
+        // 处理中的 folder 又来了事件, 其他消费者不能取到
+        queue.offer(event(BUSY_FOLDER, "b"));
+        CompletableFuture<Path> other = CompletableFuture.supplyAsync(() -> {
+            try {
+                return queue.drainTo(new ArrayList<>(), 256);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        boolean blocked = false;
+        try {
+            other.get(200, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            blocked = true;
+        }
+        assert blocked;
+        queue.complete(BUSY_FOLDER);
+        assert BUSY_FOLDER.equals(other.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void ShouldMarkBusiestFolderDirtyWhenFull() throws Exception {
+        FilesystemEventQueue queue = new FilesystemEventQueue(10);
+        for (int i = 0; i < 10; i++) {
+            queue.offer(event(BUSY_FOLDER, "f" + i));
+        }
+        queue.offer(event(QUIET_FOLDER, "q"));
+        assert queue.getOverflowCount() == 1;
+        // busy folder 的事件被 dirty 标记替代, quiet folder 的事件保留
+        assert queue.size() == 2;
+        List<FilesystemEvent> batch = new ArrayList<>();
+        assert BUSY_FOLDER.equals(queue.drainTo(batch, 256));
+        assert batch.size() == 1;
+        assert batch.get(0).getFileEventTypeEnum() == FileEventTypeEnum.FOLDER_DIRTY;
+        queue.complete(BUSY_FOLDER);
+        batch.clear();
+        assert QUIET_FOLDER.equals(queue.drainTo(batch, 256));
+        assert batch.get(0).getFileEventTypeEnum() == FileEventTypeEnum.FILE_CREATED;
+    }
+
+    private static FilesystemEvent event(Path folder, String fileName) {
+        return new FilesystemEvent(folder, folder.resolve(fileName), FileEventTypeEnum.FILE_CREATED);
+    }
+}
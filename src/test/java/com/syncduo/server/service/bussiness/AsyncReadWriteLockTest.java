@@ -0,0 +1,123 @@
+package com.syncduo.server.service.bussiness;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// 唤醒放在可控的 executor 中执行, 验证互斥, 排队顺序和重复 unlock
+class AsyncReadWriteLockTest {
+
+    private final List<Runnable> pendingTaskList = new ArrayList<>();
+
+    private final AsyncReadWriteLock lock = new AsyncReadWriteLock(this.pendingTaskList::add);
+
+    @Test
+    void ShouldExcludeOthersWhileWriterHeld() {
+        AsyncReadWriteLock.Handle writer = this.lock.writeLock().join();
+        CompletableFuture<AsyncReadWriteLock.Handle> secondWriter = this.lock.writeLock();
+        CompletableFuture<AsyncReadWriteLock.Handle> reader = this.lock.readLock();
+        assert !secondWriter.isDone();
+        assert !reader.isDone();
+        assert this.lock.getQueueLength() == 2;
+        writer.unlock();
+        // 唤醒在 executor 中完成, 不在 unlock 的线程上
+        assert !secondWriter.isDone();
+        this.runPendingTasks();
+        assert secondWriter.isDone();
+        assert !reader.isDone();
+        assert this.lock.isWriterHeld();
+        secondWriter.join().unlock();
+        this.runPendingTasks();
+        assert reader.isDone();
+        assert !this.lock.isWriterHeld();
+        assert this.lock.getReaderCount() == 1;
+        reader.join().unlock();
+        assert this.lock.isIdle();
+        assert this.lock.getAcquireCount() == 3;
+        assert this.lock.getWaitCount() == 2;
+    }
+
+    @Test
+    void ShouldQueueReadersBehindWaitingWriter() {
+        AsyncReadWriteLock.Handle firstReader = this.lock.readLock().join();
+        CompletableFuture<AsyncReadWriteLock.Handle> writer = this.lock.writeLock();
+        // 有 writer 排队时, 新的 reader 即使和当前 reader 兼容也要排队
+        CompletableFuture<AsyncReadWriteLock.Handle> secondReader = this.lock.readLock();
+        CompletableFuture<AsyncReadWriteLock.Handle> thirdReader = this.lock.readLock();
+        assert !writer.isDone();
+        assert !secondReader.isDone();
+        assert this.lock.getReaderCount() == 1;
+        firstReader.unlock();
+        this.runPendingTasks();
+        assert writer.isDone();
+        assert !secondReader.isDone();
+        writer.join().unlock();
+        this.runPendingTasks();
+        // 队头连续的 reader 一起唤醒
+        assert secondReader.isDone();
+        assert thirdReader.isDone();
+        assert this.lock.getReaderCount() == 2;
+        secondReader.join().unlock();
+        thirdReader.join().unlock();
+        assert this.lock.isIdle();
+    }
+
+    @Test
+    void ShouldIgnoreRepeatedUnlock() {
+        AsyncReadWriteLock.Handle firstReader = this.lock.readLock().join();
+        AsyncReadWriteLock.Handle secondReader = this.lock.readLock().join();
+        CompletableFuture<AsyncReadWriteLock.Handle> writer = this.lock.writeLock();
+        firstReader.unlock();
+        firstReader.unlock();
+        this.runPendingTasks();
+        // 重复 unlock 不会释放其他 reader 持有的锁
+        assert this.lock.getReaderCount() == 1;
+        assert !writer.isDone();
+        secondReader.unlock();
+        this.runPendingTasks();
+        assert writer.isDone();
+        CompletableFuture<AsyncReadWriteLock.Handle> reader = this.lock.readLock();
+        AsyncReadWriteLock.Handle writerHandle = writer.join();
+        writerHandle.unlock();
+        this.runPendingTasks();
+        assert reader.isDone();
+        CompletableFuture<AsyncReadWriteLock.Handle> secondWriter = this.lock.writeLock();
+        writerHandle.unlock();
+        reader.join().unlock();
+        this.runPendingTasks();
+        assert secondWriter.isDone();
+        // 旧 writer 的 handle 再次 unlock, 不影响新的 writer
+        writerHandle.unlock();
+        assert this.lock.isWriterHeld();
+        CompletableFuture<AsyncReadWriteLock.Handle> lateReader = this.lock.readLock();
+        this.runPendingTasks();
+        assert !lateReader.isDone();
+        secondWriter.join().unlock();
+        this.runPendingTasks();
+        assert lateReader.isDone();
+        lateReader.join().unlock();
+        assert this.lock.isIdle();
+        assert this.lock.getReaderCount() == 0;
+    }
+
+    @Test
+    void ShouldNotGrantAfterRetired() {
+        AsyncReadWriteLock.Handle writer = this.lock.writeLock().join();
+        // 有持有者时不能回收
+        assert !this.lock.retireIfIdle();
+        writer.unlock();
+        assert this.lock.retireIfIdle();
+        // 回收后拿着旧引用的调用方获取失败, 需要换成新的 lock
+        assert this.lock.writeLock() == null;
+        assert this.lock.readLock() == null;
+        assert this.lock.isIdle();
+    }
+
+    private void runPendingTasks() {
+        while (!this.pendingTaskList.isEmpty()) {
+            this.pendingTaskList.remove(0).run();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.syncduo.server.service.restic;
+
+import com.syncduo.server.enums.ResticExitCodeEnum;
+import com.syncduo.server.model.restic.global.ExitErrors;
+import com.syncduo.server.model.restic.global.ResticExecResult;
+import com.syncduo.server.model.restic.ls.Node;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// SnapshotIndexWriter 写入后由 SnapshotIndex 读取, 验证目录列表, 前缀过滤和分页
+class SnapshotIndexTest {
+
+    private static final String SNAPSHOT_ID = "0123456789abcdef";
+
+    private Path tempFolder;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        this.tempFolder = Files.createTempDirectory("snapshot-index-test");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> stream = Files.list(this.tempFolder)) {
+            for (Path file : stream.toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(this.tempFolder);
+    }
+
+    @Test
+    void ShouldListChildrenAfterRoundTrip() throws Exception {
+        SnapshotIndex snapshotIndex = this.writeAndOpen();
+        assert snapshotIndex.getNodeCount() == 7;
+        assert names(snapshotIndex.listChildren("/")).equals(List.of("a", "z.txt"));
+        // 目录在前, 再按名称
+        List<Node> children = snapshotIndex.listChildren("/a/");
+        assert names(children).equals(List.of("b", "apple", "apricot", "banana", "file1"));
+        assert "/a/apple".equals(children.get(1).getPath());
+        assert children.get(1).getSize().longValue() == 5;
+        assert children.get(1).getMtime().equals(Instant.ofEpochMilli(1_700_000_000_000L));
+        assert "dir".equals(children.get(0).getType());
+        assert children.get(0).getSize() == null;
+        // 空目录返回空列表, 文件和不存在的路径返回 null
+        assert snapshotIndex.listChildren("/a/b").isEmpty();
+        assert snapshotIndex.listChildren("/a/apple") == null;
+        assert snapshotIndex.listChildren("/missing") == null;
+    }
+
+    @Test
+    void ShouldPageChildrenWithPrefixAndCursor() throws Exception {
+        SnapshotIndex snapshotIndex = this.writeAndOpen();
+        List<Node> page = snapshotIndex.listChildrenPage("/a", null, "ap", 1);
+        assert names(page).equals(List.of("apple"));
+        // cursor 编码后再解码, 和接口的使用方式一致
+        SnapshotListCursor cursor = SnapshotListCursor.decode(SnapshotListCursor.of(page.get(0)).encode());
+        page = snapshotIndex.listChildrenPage("/a", cursor, "ap", 1);
+        assert names(page).equals(List.of("apricot"));
+        cursor = SnapshotListCursor.of(page.get(0));
+        assert snapshotIndex.listChildrenPage("/a", cursor, "ap", 1).isEmpty();
+        // 没有前缀时从 cursor 之后继续, 跨过目录和文件的分界
+        page = snapshotIndex.listChildrenPage("/a", null, null, 2);
+        assert names(page).equals(List.of("b", "apple"));
+        page = snapshotIndex.listChildrenPage("/a", SnapshotListCursor.of(page.get(1)), "", 10);
+        assert names(page).equals(List.of("apricot", "banana", "file1"));
+        // 前缀只匹配目录
+        assert names(snapshotIndex.listChildrenPage("/a", null, "b", 10)).equals(List.of("b", "banana"));
+        assert snapshotIndex.listChildrenPage("/missing", null, null, 10) == null;
+    }
+
+    @Test
+    void ShouldListSameChildrenWhenSpillRuns() throws Exception {
+        // 每 2 个 entry 写一个 run, 归并结果和全部在内存中排序一致
+        SnapshotIndex snapshotIndex = this.writeAndOpen(2);
+        assert snapshotIndex.getNodeCount() == 7;
+        assert names(snapshotIndex.listChildren("/")).equals(List.of("a", "z.txt"));
+        assert names(snapshotIndex.listChildren("/a")).equals(List.of("b", "apple", "apricot", "banana", "file1"));
+        assert snapshotIndex.listChildren("/a/b").isEmpty();
+        assert snapshotIndex.listChildren("/a/apple") == null;
+        // close 后只留下 index 文件
+        try (Stream<Path> stream = Files.list(this.tempFolder)) {
+            assert stream.map(file -> file.getFileName().toString()).toList().equals(List.of(SNAPSHOT_ID + ".sidx"));
+        }
+    }
+
+    @Test
+    void ShouldFallbackWhenIndexBuildIsSlow() throws Exception {
+        ResticService resticService = mock(ResticService.class);
+        CompletableFuture<ResticExecResult<Long, ExitErrors>> lsFuture = new CompletableFuture<>();
+        AtomicReference<Consumer<Node>> nodeCallback = new AtomicReference<>();
+        when(resticService.lsStream(anyString(), isNull(), any())).thenAnswer(invocation -> {
+            nodeCallback.set(invocation.getArgument(2));
+            return lsFuture;
+        });
+        TaskScheduler taskScheduler = mock(TaskScheduler.class);
+        when(taskScheduler.schedule(any(Runnable.class), any(Instant.class))).thenAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        });
+        SnapshotIndexService snapshotIndexService = new SnapshotIndexService(resticService, taskScheduler);
+        ReflectionTestUtils.setField(snapshotIndexService, "SNAPSHOT_INDEX_PATH", this.tempFolder.toString());
+        ReflectionTestUtils.setField(snapshotIndexService, "SNAPSHOT_INDEX_MAX_BYTES", 1024 * 1024L);
+        ReflectionTestUtils.setField(snapshotIndexService, "SNAPSHOT_INDEX_MAX_OPEN", 4);
+        ReflectionTestUtils.setField(snapshotIndexService, "SNAPSHOT_INDEX_WAIT_MILLIS", 200L);
+        // restic ls 未完成, 等待超时后返回 null, 调用方使用 restic ls
+        long start = System.currentTimeMillis();
+        assert snapshotIndexService.getIndex(SNAPSHOT_ID) == null;
+        assert System.currentTimeMillis() - start < 2000;
+        // 后台构建继续, 完成后直接使用 index
+        nodeCallback.get().accept(node("/z.txt", "file", 1L, null));
+        lsFuture.complete(ResticExecResult.success(ResticExitCodeEnum.SUCCESS, 1L));
+        SnapshotIndex snapshotIndex = snapshotIndexService.getIndex(SNAPSHOT_ID);
+        assert snapshotIndex != null;
+        assert names(snapshotIndex.listChildren("/")).equals(List.of("z.txt"));
+        assert snapshotIndexService.getIndexCount() == 1;
+    }
+
+    private SnapshotIndex writeAndOpen() throws Exception {
+        return this.writeAndOpen(1000);
+    }
+
+    private SnapshotIndex writeAndOpen(int runSize) throws Exception {
+        SnapshotIndexWriter snapshotIndexWriter = new SnapshotIndexWriter(this.tempFolder, runSize);
+        // 乱序添加, 写入时排序
+        snapshotIndexWriter.add(node("/z.txt", "file", 1L, null));
+        snapshotIndexWriter.add(node("/a/file1", "file", 3L, null));
+        snapshotIndexWriter.add(node("/a", "dir", null, null));
+        snapshotIndexWriter.add(node("/a/banana", "file", 4L, null));
+        snapshotIndexWriter.add(node("/a/apricot", "file", 0L, null));
+        snapshotIndexWriter.add(node("/a/b", "dir", null, null));
+        snapshotIndexWriter.add(node("/a/apple", "file", 5L, Instant.ofEpochMilli(1_700_000_000_000L)));
+        snapshotIndexWriter.add(node("/", "dir", null, null));
+        Path indexFile = this.tempFolder.resolve(SNAPSHOT_ID + ".sidx");
+        snapshotIndexWriter.write(indexFile);
+        snapshotIndexWriter.close();
+        assert !Files.exists(indexFile.resolveSibling(indexFile.getFileName() + ".tmp"));
+        return SnapshotIndex.open(SNAPSHOT_ID, indexFile);
+    }
+
+    private static Node node(String path, String type, Long size, Instant mtime) {
+        Node node = new Node();
+        node.setPath(path);
+        node.setName(path.substring(path.lastIndexOf('/') + 1));
+        node.setType(type);
+        node.setSize(size == null ? null : BigInteger.valueOf(size));
+        node.setMtime(mtime);
+        return node;
+    }
+
+    private static List<String> names(List<Node> nodeList) {
+        return nodeList.stream().map(Node::getName).toList();
+    }
+}
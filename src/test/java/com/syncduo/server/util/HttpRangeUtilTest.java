@@ -0,0 +1,202 @@
+package com.syncduo.server.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+
+// 使用 mock request/response 验证 Range, If-Range, If-None-Match 和 416
+class HttpRangeUtilTest {
+
+    private static final long LAST_MODIFIED = 1_700_000_000_000L;
+
+    private Path file;
+
+    private byte[] content;
+
+    private String eTag;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        this.content = new byte[100 * 1024];
+        for (int i = 0; i < this.content.length; i++) {
+            this.content[i] = (byte) (i % 251);
+        }
+        this.file = Files.createTempFile("http-range-test", ".bin");
+        Files.write(this.file, this.content);
+        Files.setLastModifiedTime(this.file, FileTime.fromMillis(LAST_MODIFIED));
+        this.eTag = HttpRangeUtil.getETag(Files.readAttributes(this.file, BasicFileAttributes.class));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.deleteIfExists(this.file);
+    }
+
+    @Test
+    void ShouldSendWholeFileWithoutRange() throws IOException {
+        MockHttpServletResponse response = this.send(request());
+        assert response.getStatus() == 200;
+        assert "bytes".equals(response.getHeader(HttpHeaders.ACCEPT_RANGES));
+        assert this.eTag.equals(response.getHeader(HttpHeaders.ETAG));
+        assert response.getContentLengthLong() == this.content.length;
+        assert Arrays.equals(response.getContentAsByteArray(), this.content);
+    }
+
+    @Test
+    void ShouldSendPartialContentForRange() throws IOException {
+        MockHttpServletRequest request = request();
+        request.addHeader(HttpHeaders.RANGE, "bytes=10-19");
+        MockHttpServletResponse response = this.send(request);
+        assert response.getStatus() == 206;
+        assert "bytes 10-19/%s".formatted(this.content.length).equals(response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assert response.getContentLengthLong() == 10;
+        assert Arrays.equals(response.getContentAsByteArray(), Arrays.copyOfRange(this.content, 10, 20));
+        // 后缀 range, 取最后 5 个字节
+        request = request();
+        request.addHeader(HttpHeaders.RANGE, "bytes=-5");
+        response = this.send(request);
+        assert response.getStatus() == 206;
+        assert Arrays.equals(response.getContentAsByteArray(),
+                Arrays.copyOfRange(this.content, this.content.length - 5, this.content.length));
+        // 超出文件长度的结束位置截断到文件末尾
+        request = request();
+        request.addHeader(HttpHeaders.RANGE, "bytes=%s-".formatted(this.content.length - 3));
+        response = this.send(request);
+        assert response.getStatus() == 206;
+        assert response.getContentAsByteArray().length == 3;
+    }
+
+    @Test
+    void ShouldSendMultipartForMultipleRanges() throws IOException {
+        MockHttpServletRequest request = request();
+        request.addHeader(HttpHeaders.RANGE, "bytes=0-1,4-5");
+        MockHttpServletResponse response = this.send(request);
+        assert response.getStatus() == 206;
+        assert response.getContentType().startsWith("multipart/byteranges; boundary=");
+        String body = response.getContentAsString(StandardCharsets.ISO_8859_1);
+        assert body.contains("Content-Range: bytes 0-1/%s".formatted(this.content.length));
+        assert body.contains("Content-Range: bytes 4-5/%s".formatted(this.content.length));
+        assert body.contains("Content-Type: " + MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        assert body.contains(new String(new byte[]{4, 5}, StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void ShouldMergeOverlappingRanges() throws IOException {
+        // 重叠和相邻的 range 合并为一段
+        MockHttpServletRequest request = request();
+        request.addHeader(HttpHeaders.RANGE, "bytes=15-19,0-9,5-14");
+        MockHttpServletResponse response = this.send(request);
+        assert response.getStatus() == 206;
+        assert "bytes 0-19/%s".formatted(this.content.length).equals(response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assert Arrays.equals(response.getContentAsByteArray(), Arrays.copyOfRange(this.content, 0, 20));
+        // range 总长度超过文件长度, 只发送一次整个文件
+        request = request();
+        request.addHeader(HttpHeaders.RANGE, "bytes=" + String.join(",", Collections.nCopies(100, "0-")));
+        response = this.send(request);
+        assert response.getStatus() == 200;
+        assert response.getContentLengthLong() == this.content.length;
+        assert Arrays.equals(response.getContentAsByteArray(), this.content);
+    }
+
+    @Test
+    void ShouldRespectIfRange() throws IOException {
+        // ETag 匹配, 返回 range
+        MockHttpServletRequest request = request();
+        request.addHeader(HttpHeaders.RANGE, "bytes=0-9");
+        request.addHeader(HttpHeaders.IF_RANGE, this.eTag);
+        assert this.send(request).getStatus() == 206;
+        // ETag 不匹配, 文件已变化, 返回整个文件
+        request = request();
+        request.addHeader(HttpHeaders.RANGE, "bytes=0-9");
+        request.addHeader(HttpHeaders.IF_RANGE, "\"other\"");
+        MockHttpServletResponse response = this.send(request);
+        assert response.getStatus() == 200;
+        assert response.getContentAsByteArray().length == this.content.length;
+        // If-Range 使用强比较, 弱 ETag 不匹配
+        request = request();
+        request.addHeader(HttpHeaders.RANGE, "bytes=0-9");
+        request.addHeader(HttpHeaders.IF_RANGE, "W/" + this.eTag);
+        assert this.send(request).getStatus() == 200;
+        // 日期必须和 Last-Modified 完全一致
+        request = request();
+        request.addHeader(HttpHeaders.RANGE, "bytes=0-9");
+        request.addHeader(HttpHeaders.IF_RANGE, LAST_MODIFIED);
+        assert this.send(request).getStatus() == 206;
+        request = request();
+        request.addHeader(HttpHeaders.RANGE, "bytes=0-9");
+        request.addHeader(HttpHeaders.IF_RANGE, LAST_MODIFIED - 1000);
+        assert this.send(request).getStatus() == 200;
+    }
+
+    @Test
+    void ShouldReturn416WhenRangeNotSatisfiable() throws IOException {
+        MockHttpServletRequest request = request();
+        request.addHeader(HttpHeaders.RANGE, "bytes=%s-".formatted(this.content.length));
+        MockHttpServletResponse response = this.send(request);
+        assert response.getStatus() == 416;
+        assert "bytes */%s".formatted(this.content.length).equals(response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assert response.getContentAsByteArray().length == 0;
+        // 无法解析的 Range 忽略, 返回整个文件
+        request = request();
+        request.addHeader(HttpHeaders.RANGE, "lines=1-2");
+        assert this.send(request).getStatus() == 200;
+    }
+
+    @Test
+    void ShouldReturn304WhenNotModified() throws IOException {
+        MockHttpServletRequest request = request();
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, "\"other\", W/" + this.eTag);
+        MockHttpServletResponse response = this.send(request);
+        assert response.getStatus() == 304;
+        assert response.getContentAsByteArray().length == 0;
+        // If-None-Match 存在时忽略 If-Modified-Since
+        request = request();
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, "\"other\"");
+        request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, LAST_MODIFIED);
+        assert this.send(request).getStatus() == 200;
+        request = request();
+        request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, LAST_MODIFIED);
+        assert this.send(request).getStatus() == 304;
+    }
+
+    @Test
+    void ShouldUseSendfileWhenSupported() throws IOException {
+        MockHttpServletRequest request = request();
+        request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+        request.addHeader(HttpHeaders.RANGE, "bytes=1024-");
+        MockHttpServletResponse response = this.send(request);
+        assert response.getStatus() == 206;
+        // 由容器发送, servlet 不写入内容
+        assert response.getContentAsByteArray().length == 0;
+        assert this.file.toRealPath().toString().equals(request.getAttribute("org.apache.tomcat.sendfile.filename"));
+        assert Long.valueOf(1024).equals(request.getAttribute("org.apache.tomcat.sendfile.start"));
+        assert Long.valueOf(this.content.length).equals(request.getAttribute("org.apache.tomcat.sendfile.end"));
+    }
+
+    private MockHttpServletResponse send(MockHttpServletRequest request) throws IOException {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        headers.setETag(this.eTag);
+        headers.setLastModified(LAST_MODIFIED);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        HttpRangeUtil.sendFile(request, response, this.file, headers);
+        return response;
+    }
+
+    private static MockHttpServletRequest request() {
+        return new MockHttpServletRequest("GET", "/snapshots/get-download-files");
+    }
+}